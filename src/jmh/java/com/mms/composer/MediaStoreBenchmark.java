@@ -0,0 +1,169 @@
+package com.mms.composer;
+
+/*
+ * @(#)MediaStoreBenchmark.java	1.1
+ *
+ * Summary
+ *
+ * Heap usage and garbage collection time of many templates in use at once, with their encoded bodies held on the
+ * heap, as arrays of bytes, or off the heap, in a "MediaStore".
+ *
+ * The benchmark holds "templates" bodies of "bodySize" bytes each : copies of the body of the sample template
+ * ("src/main/resources/multimedia"), each one stamped with its own number, as distinct campaigns would be. Each
+ * operation writes one message, i.e. a header block and the body of the next template, to a file with a gathering
+ * write (as "MmsFileWriter" does, the file being overwritten from its start), and allocates "garbage" bytes of short
+ * lived objects, as the rest of a pipeline would (manifest rows, full encodings, responses...).
+ *
+ * Run it with the GC profiler ("-prof gc") : besides the throughput, "gc.count" and "gc.time" give the number and
+ * total time of the collections. The heap and direct memory in use once the templates are loaded are printed when
+ * each fork starts.
+ *
+ * Usage
+ *
+ * 	 	mms_creation$ mvn -P jmh compile exec:exec -Djmh.args="MediaStoreBenchmark -prof gc"
+ * 	 	mms_creation$ mvn -P jmh compile exec:exec -Djmh.args="MediaStoreBenchmark -prof gc -p templates=256 -jvmArgs -Xmx2g"
+ */
+
+// These imports are necessary for utilities.
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+// Not the "Threads" of this package.
+import org.openjdk.jmh.annotations.Threads;
+
+// Nokia MMS Java Library version 1.1
+import com.nokia.mms.*;
+
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 2, time = 2 )
+@Measurement( iterations = 3, time = 2 )
+@Threads( 4 )
+@Fork( value = 1, jvmArgs = { "-Xmx1g" } )
+public class MediaStoreBenchmark {
+  private static final String ORIGINATOR = "made by Aristotelis";
+  private static final String RECIPIENT = "+306900000000/TYPE=PLMN";
+  private static final String SUBJECT = "This is a nice message ...";
+
+  // Where the bodies are held : "heap" (arrays of bytes) or "offHeap" (a "MediaStore").
+  @Param( { "heap", "offHeap" } )
+  public String storage;
+
+  // Number of templates in use at once.
+  @Param( { "128" } )
+  public int templates;
+
+  // Size, in bytes, of the body of each template ; 0 for the size of the sample template.
+  @Param( { "0" } )
+  public int bodySize;
+
+  // Bytes of short lived objects allocated per message.
+  @Param( { "65536" } )
+  public int garbage;
+
+  private MessageTemplate sample;
+  private MediaStore store;
+  private MediaStore.Media[] media;
+  private ByteBuffer[] bodies;
+
+  @Setup
+  public void setUp() throws IOException, MMEncoderException {
+    SampleMMSComposer composer = new SampleMMSComposer( new ContentCache( 64L * 1024 * 1024 ) );
+    sample = MessageTemplate.compile( composer );
+    ByteBuffer body = sample.getBody();
+    int size = bodySize > 0 ? bodySize : body.remaining();
+    store = new MediaStore( (long) size * templates );
+    media = new MediaStore.Media[ templates ];
+    bodies = new ByteBuffer[ templates ];
+    for ( int i = 0; i < templates; i++ ) {
+      byte[] bytes = new byte[ size ];
+      for ( int offset = 0; offset < size; offset += body.remaining() ) {
+        body.duplicate().get( bytes, offset, Math.min( body.remaining(), size - offset ) );
+      }
+      // Each template has a body of its own.
+      bytes[ size - 1 ] = (byte) i;
+      bytes[ size - 2 ] = (byte) ( i >> 8 );
+      if ( storage.equals( "offHeap" ) ) {
+        media[ i ] = store.put( "template-" + i, bytes, 0, size );
+        bodies[ i ] = media[ i ].buffer();
+      }
+      else {
+        bodies[ i ] = ByteBuffer.wrap( bytes );
+      }
+    }
+    System.gc();
+    long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    long direct = 0;
+    for ( BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans( BufferPoolMXBean.class ) ) {
+      if ( pool.getName().equals( "direct" ) ) {
+        direct = pool.getMemoryUsed();
+      }
+    }
+    System.out.printf( "%n%d templates of %d bytes (%s) : %d MB of heap, %d MB of direct memory in use%n",
+            templates, size, storage, heap >> 20, direct >> 20 );
+  }
+
+  @TearDown
+  public void tearDown() {
+    for ( MediaStore.Media m : media ) {
+      if ( m != null ) {
+        m.release();
+      }
+    }
+    store.close();
+    sample.close();
+  }
+
+  @Benchmark
+  public byte[] write( Sink sink ) throws IOException {
+    HeaderWriter.Buffer header = sample.writeHeader( ORIGINATOR, RECIPIENT, SUBJECT,
+            MmsEncoder.MESSAGE_TYPE_M_RETRIEVE_CONF );
+    sink.write( header, bodies[ sink.next( templates ) ] );
+    return new byte[ garbage ];
+  }
+
+  /**
+   * A file of the thread, overwritten by each message.
+   */
+  @State( Scope.Thread )
+  public static class Sink {
+    private Path file;
+    private FileChannel channel;
+    private int template = 0;
+
+    @Setup
+    public void open() throws IOException {
+      file = Files.createTempFile( "media-store-benchmark", ".mms" );
+      channel = FileChannel.open( file, StandardOpenOption.WRITE );
+    }
+
+    @TearDown
+    public void close() throws IOException {
+      channel.close();
+      Files.deleteIfExists( file );
+    }
+
+    int next( int templates ) {
+      template = ( template + 1 ) % templates;
+      return template;
+    }
+
+    void write( HeaderWriter.Buffer header, ByteBuffer body ) throws IOException {
+      ByteBuffer[] buffers = { ByteBuffer.wrap( header.array(), 0, header.length() ), body.duplicate() };
+      long remaining = header.length() + (long) body.remaining();
+      channel.position( 0 );
+      while ( remaining > 0 ) {
+        remaining -= channel.write( buffers );
+      }
+    }
+  }
+}
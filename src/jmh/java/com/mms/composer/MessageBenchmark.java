@@ -0,0 +1,201 @@
+package com.mms.composer;
+
+/*
+ * @(#)MessageBenchmark.java	1.1
+ *
+ * Summary
+ *
+ * Throughput of each stage of the composition of a Multimedia Message, from the "multimedia" file to the output
+ * MMS file :
+ *
+ * - "readFile" : read an attachment file ("SampleMMSComposer.readFile()") ;
+ * - "setHeaders" : set up the headers of a new message ("SampleMMSComposer.SetHeaders()"), for all its recipients ;
+ * - "addContents" : add the content parts of all the slides, taken from the "ContentCache" as "AddContents()" does ;
+ * - "encodeMessage" : encode the message ("MMEncoder.encodeMessage()") ;
+ * - "decodeMessage" : decode the encoded message ("MMDecoder.decodeMessage()") ;
+ * - "createMmsFile" : write the encoded message to a file ("SampleMMSComposer.createMmsFile()").
+ *
+ * Each benchmark is parameterized by the size of the image attachment of each slide ("attachmentSize", in bytes),
+ * the number of slides ("slides", each one with a text, an image and an audio part) and the number of recipients
+ * ("recipients"). The parts are built from the assets of "src/main/resources/multimedia" only : the image of
+ * each slide is "SmileyFace.gif" repeated or cut to the attachment size, and the presentation part is a "SMIL"
+ * document generated for the slides, so that no network access nor extra file is needed.
+ *
+ * The scores are throughputs (operations per second) ; run the benchmarks with the allocation profiler to get
+ * their allocation rates as well ("gc.alloc.rate" and "gc.alloc.rate.norm"). A single combination of the
+ * parameters can be selected with "-p", e.g. "-p attachmentSize=102400 -p slides=2 -p recipients=1".
+ *
+ * Usage
+ *
+ * 	 	mms_creation$ mvn -P jmh compile exec:exec -Djmh.args="MessageBenchmark -prof gc"
+ * 	 	mms_creation$ mvn -P jmh compile exec:exec -Djmh.args="MessageBenchmark.encodeMessage -prof gc -p slides=8"
+ */
+
+// These imports are necessary for utilities.
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Nokia MMS Java Library version 1.1
+import com.nokia.mms.*;
+
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 2, time = 1 )
+@Measurement( iterations = 3, time = 1 )
+@Fork( 1 )
+public class MessageBenchmark {
+  // Path where the resource multimedia contents are stored.
+  private static final String MULTIMEDIA_PATH = new File( "src/main/resources/multimedia" ).getAbsolutePath();
+
+  private static final String ORIGINATOR = "made by Aristotelis";
+  private static final String SUBJECT = "This is a nice message ...";
+
+  // Size, in bytes, of the image attachment of each slide.
+  @Param( { "1024", "102400", "1048576" } )
+  public int attachmentSize;
+
+  // Number of slides.
+  @Param( { "1", "2", "8" } )
+  public int slides;
+
+  // Number of recipients.
+  @Param( { "1", "10", "100" } )
+  public int recipients;
+
+  private SampleMMSComposer composer;
+  private ContentCache cache;
+  private File folder;
+  private String attachment;
+  private String text;
+  private String audio;
+  private String[] addresses;
+  private MMContent presentation;
+  // A complete message, its encoding and the name of its output file.
+  private MMMessage message;
+  private byte[] encoded;
+  private String output;
+
+  @Setup
+  public void setUp() throws IOException, MMEncoderException {
+    cache = new ContentCache( 64L * 1024 * 1024 );
+    composer = new SampleMMSComposer( cache );
+    folder = Files.createTempDirectory( "mms-benchmark" ).toFile();
+
+    // The attachment : "SmileyFace.gif" repeated or cut to the attachment size.
+    byte[] gif = composer.readFile( MULTIMEDIA_PATH + "/SmileyFace.gif" );
+    byte[] image = new byte[ attachmentSize ];
+    for ( int i = 0; i < image.length; i += gif.length ) {
+      System.arraycopy( gif, 0, image, i, Math.min( gif.length, image.length - i ) );
+    }
+    File attachmentFile = new File( folder, "attachment.gif" );
+    Files.write( attachmentFile.toPath(), image );
+    attachment = attachmentFile.getPath();
+    text = MULTIMEDIA_PATH + "/HelloWorld.txt";
+    audio = MULTIMEDIA_PATH + "/HelloWorld.amr";
+
+    addresses = new String[ recipients ];
+    for ( int i = 0; i < recipients; i++ ) {
+      addresses[ i ] = String.format( "+3069%08d/TYPE=PLMN", i );
+    }
+    presentation = new MMContent();
+    byte[] smil = smil( slides ).getBytes( "UTF-8" );
+    presentation.setContent( smil, 0, smil.length );
+    presentation.setContentId( "<0000>" );
+    presentation.setType( IMMConstants.CT_APPLICATION_SMIL );
+
+    message = setHeaders();
+    addContents( message );
+    encoded = encodeMessage();
+    output = new File( folder, "benchmark.mms" ).getPath();
+  }
+
+  @TearDown
+  public void tearDown() {
+    File[] files = folder.listFiles();
+    if ( files != null ) {
+      for ( File f : files ) {
+        f.delete();
+      }
+    }
+    folder.delete();
+  }
+
+  @Benchmark
+  public byte[] readFile() throws IOException {
+    return composer.readFile( attachment );
+  }
+
+  @Benchmark
+  public MMMessage setHeaders() {
+    MMMessage m = new MMMessage();
+    composer.SetHeaders( m, ORIGINATOR, addresses[ 0 ], SUBJECT );
+    for ( int i = 1; i < addresses.length; i++ ) {
+      m.addToAddress( addresses[ i ] );
+    }
+    return m;
+  }
+
+  @Benchmark
+  public MMMessage addContents() throws IOException {
+    MMMessage m = new MMMessage();
+    addContents( m );
+    return m;
+  }
+
+  @Benchmark
+  public byte[] encodeMessage() throws MMEncoderException {
+    MMEncoder encoder = new MMEncoder();
+    encoder.setMessage( message );
+    encoder.encodeMessage();
+    return encoder.getMessage();
+  }
+
+  @Benchmark
+  public MMMessage decodeMessage() throws MMDecoderException {
+    MMDecoder decoder = new MMDecoder( encoded );
+    decoder.decodeMessage();
+    return decoder.getMessage();
+  }
+
+  @Benchmark
+  public void createMmsFile() {
+    composer.createMmsFile( encoded, output );
+  }
+
+  /**
+   * Add the presentation part, then a text, an image and an audio part per slide, as "AddContents()" does.
+   */
+  private void addContents( MMMessage m ) throws IOException {
+    m.addContent( presentation );
+    for ( int i = 1; i <= slides; i++ ) {
+      m.addContent( cache.get( text, "<text" + i + ">", IMMConstants.CT_TEXT_PLAIN, composer::readFile ) );
+      m.addContent( cache.get( attachment, "<image" + i + ">", IMMConstants.CT_IMAGE_GIF, composer::readFile ) );
+      m.addContent( cache.get( audio, "<audio" + i + ">", "audio/amr", composer::readFile ) );
+    }
+  }
+
+  /**
+   * Generate the "SMIL" presentation of the slides.
+   */
+  private static String smil( int slides ) {
+    StringBuilder smil = new StringBuilder();
+    smil.append( "<smil xmlns=\"http://www.w3.org/2001/SMIL20/Language\">\n" )
+        .append( "  <head>\n    <layout>\n      <root-layout width=\"160\" height=\"140\"/>\n" )
+        .append( "      <region id=\"Image\" width=\"160\" height=\"120\" left=\"0\" top=\"0\"/>\n" )
+        .append( "      <region id=\"Text\" width=\"160\" height=\"20\" left=\"0\" top=\"120\"/>\n" )
+        .append( "    </layout>\n  </head>\n  <body>\n" );
+    for ( int i = 1; i <= slides; i++ ) {
+      smil.append( "    <par dur=\"5s\">\n" )
+          .append( "      <img src=\"cid:image" ).append( i ).append( "\" region=\"Image\" />\n" )
+          .append( "      <text src=\"cid:text" ).append( i ).append( "\" region=\"Text\" />\n" )
+          .append( "      <audio src=\"cid:audio" ).append( i ).append( "\" />\n" )
+          .append( "    </par>\n" );
+    }
+    return smil.append( "  </body>\n</smil>\n" ).toString();
+  }
+}
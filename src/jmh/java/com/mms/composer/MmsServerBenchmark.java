@@ -0,0 +1,229 @@
+package com.mms.composer;
+
+/*
+ * @(#)MmsServerBenchmark.java	1.1
+ *
+ * Summary
+ *
+ * Local load test of the "MmsServer" : many handsets retrieving their messages over kept alive connections, each
+ * benchmark thread being one handset with its own connection.
+ *
+ * - "get" : retrieve a whole message ("GET", 200 OK) ;
+ * - "resume" : retrieve the last 64 KB of a message ("Range", 206 Partial Content), as a resumed download does ;
+ * - "revalidate" : revalidate a cached message ("If-None-Match", 304 Not Modified).
+ *
+ * The messages ("messages" of them, composed with the sample content of "src/main/resources/multimedia") are
+ * served either from the message store ("source=memory", on the heap, or off the heap with "offHeap=true") or from
+ * their files ("source=file", sent with "FileChannel.transferTo()"). The server and its clients run on the same
+ * machine, over the loopback interface.
+ *
+ * Both the throughput (requests per second, over all the threads) and the latency distribution (percentiles of the
+ * time per request) are measured. The number of concurrent handsets is the number of benchmark threads ("-t") ;
+ * with "-p virtual=true" (Java 21 or later), the server serves each connection on a virtual thread, otherwise on a
+ * pool of "serverThreads" platform threads.
+ *
+ * Usage
+ *
+ * 	 	mms_creation$ mvn -P jmh compile exec:exec -Djmh.args="MmsServerBenchmark -t 64"
+ * 	 	mms_creation$ mvn -P jmh compile exec:exec -Djmh.args="MmsServerBenchmark.get -t 256 -p source=file -p virtual=true"
+ */
+
+// These imports are necessary for utilities.
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+// Not the "Threads" of this package.
+import org.openjdk.jmh.annotations.Threads;
+
+// Nokia MMS Java Library version 1.1
+import com.nokia.mms.*;
+
+@State( Scope.Benchmark )
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime } )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 2, time = 2 )
+@Measurement( iterations = 3, time = 2 )
+@Threads( 16 )
+@Fork( 1 )
+public class MmsServerBenchmark {
+  private static final String ORIGINATOR = "made by Aristotelis";
+  private static final String SUBJECT = "This is a nice message ...";
+  // Size of the range of the "resume" benchmark.
+  private static final int RESUME_BYTES = 64 * 1024;
+
+  // Where the messages are served from : "memory" (the message store) or "file".
+  @Param( { "memory", "file" } )
+  public String source;
+
+  // True to hold the message store off the heap.
+  @Param( { "false" } )
+  public boolean offHeap;
+
+  // True to serve the connections on virtual threads (Java 21 or later).
+  @Param( { "false" } )
+  public boolean virtual;
+
+  // Number of platform threads of the server.
+  @Param( { "256" } )
+  public int serverThreads;
+
+  // Number of distinct messages.
+  @Param( { "16" } )
+  public int messages;
+
+  private File folder;
+  private MmsServer server;
+  private String[] transactionIds;
+  private String[] etags;
+
+  @Setup
+  public void setUp() throws IOException, MMEncoderException {
+    folder = Files.createTempDirectory( "mms-server-benchmark" ).toFile();
+    SampleMMSComposer composer = new SampleMMSComposer( new ContentCache( 64L * 1024 * 1024 ) );
+    MessageStore store = new MessageStore( source.equals( "memory" ) ? 1L << 30 : 0, offHeap );
+    MmsFileWriter writer = new MmsFileWriter( folder );
+    MmsEncoder encoder = new MmsEncoder();
+    transactionIds = new String[ messages ];
+    for ( int i = 0; i < messages; i++ ) {
+      MMMessage mms = composer.compose( ORIGINATOR, String.format( "+3069%08d/TYPE=PLMN", i ), SUBJECT );
+      // The files hold "m-retrieve-conf" messages, as the composers write them.
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      encoder.encode( mms, composer.getContents(), MmsEncoder.MESSAGE_TYPE_M_RETRIEVE_CONF, out );
+      byte[] encoded = out.toByteArray();
+      transactionIds[ i ] = mms.getTransactionId();
+      writer.write( transactionIds[ i ] + ".mms", encoded, new byte[ 0 ] );
+      store.put( transactionIds[ i ], encoded, encoded.length, (byte[]) null );
+    }
+    server = new MmsServer( store, serverThreads, virtual );
+    server.setIdleTimeout( 0 );
+    server.addFolder( folder.toPath() );
+    server.start( new InetSocketAddress( "127.0.0.1", 0 ) );
+
+    // The entity tags, for the "revalidate" benchmark.
+    etags = new String[ messages ];
+    Client client = new Client();
+    client.connect( this );
+    for ( int i = 0; i < messages; i++ ) {
+      client.get( transactionIds[ i ], "" );
+      etags[ i ] = client.etag;
+    }
+    client.close();
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    server.close();
+    File[] files = folder.listFiles();
+    if ( files != null ) {
+      for ( File f : files ) {
+        f.delete();
+      }
+    }
+    folder.delete();
+  }
+
+  @Benchmark
+  public int get( Client client ) throws IOException {
+    return client.get( transactionIds[ client.next( messages ) ], "" );
+  }
+
+  @Benchmark
+  public int resume( Client client ) throws IOException {
+    return client.get( transactionIds[ client.next( messages ) ], "Range: bytes=-" + RESUME_BYTES + "\r\n" );
+  }
+
+  @Benchmark
+  public int revalidate( Client client ) throws IOException {
+    int i = client.next( messages );
+    return client.get( transactionIds[ i ], "If-None-Match: " + etags[ i ] + "\r\n" );
+  }
+
+  /**
+   * A handset : a kept alive connection to the server, reading the responses into a reused buffer.
+   */
+  @State( Scope.Thread )
+  public static class Client {
+    private Socket socket;
+    private OutputStream out;
+    private InputStream in;
+    private final byte[] body = new byte[ 64 * 1024 ];
+    private final StringBuilder line = new StringBuilder();
+    private int message = 0;
+    // Entity tag of the last response.
+    String etag;
+
+    @Setup
+    public void connect( MmsServerBenchmark benchmark ) throws IOException {
+      socket = new Socket( "127.0.0.1", benchmark.server.getPort() );
+      socket.setTcpNoDelay( true );
+      out = socket.getOutputStream();
+      in = new BufferedInputStream( socket.getInputStream(), 64 * 1024 );
+    }
+
+    @TearDown
+    public void close() throws IOException {
+      socket.close();
+    }
+
+    int next( int messages ) {
+      message = ( message + 1 ) % messages;
+      return message;
+    }
+
+    /**
+     * Send a request and read its response.
+     *
+     * @return the status code of the response
+     */
+    int get( String transactionId, String headers ) throws IOException {
+      out.write( ( "GET /mms/" + transactionId + " HTTP/1.1\r\nHost: localhost\r\n" + headers + "\r\n" )
+              .getBytes( StandardCharsets.ISO_8859_1 ) );
+      out.flush();
+      String statusLine = readLine();
+      int status = Integer.parseInt( statusLine.substring( 9, 12 ) );
+      long length = 0;
+      for ( String header = readLine(); !header.isEmpty(); header = readLine() ) {
+        if ( header.regionMatches( true, 0, "Content-Length:", 0, 15 ) ) {
+          length = Long.parseLong( header.substring( 15 ).trim() );
+        }
+        else if ( header.regionMatches( true, 0, "ETag:", 0, 5 ) ) {
+          etag = header.substring( 5 ).trim();
+        }
+      }
+      if ( status == 304 ) {
+        return status;
+      }
+      while ( length > 0 ) {
+        int n = in.read( body, 0, (int) Math.min( length, body.length ) );
+        if ( n < 0 ) {
+          throw new IOException( "Connection closed by the server" );
+        }
+        length -= n;
+      }
+      return status;
+    }
+
+    private String readLine() throws IOException {
+      line.setLength( 0 );
+      for ( int c = in.read(); c != '\n'; c = in.read() ) {
+        if ( c < 0 ) {
+          throw new IOException( "Connection closed by the server" );
+        }
+        if ( c != '\r' ) {
+          line.append( (char) c );
+        }
+      }
+      return line.toString();
+    }
+  }
+}
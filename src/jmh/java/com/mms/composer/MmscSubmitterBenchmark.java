@@ -0,0 +1,120 @@
+package com.mms.composer;
+
+/*
+ * @(#)MmscSubmitterBenchmark.java	1.1
+ *
+ * Summary
+ *
+ * Offline load test of the "MmscSubmitter" against the "StubMmsc" : each operation submits a batch of "batch"
+ * encoded "m-send-req" messages, with at most "inFlight" of them posted at once, and waits for all of their
+ * responses.
+ *
+ * - "submit" : the throughput of the submission, in messages per second ;
+ * - "submitOne" : the latency of a single message, submitted and waited for on its own.
+ *
+ * The stub MMSC answers after "latency" milliseconds, and fails the given shares of the messages : "unavailable"
+ * (503 Service Unavailable) and "transientFailure" (an "m-send-conf" with a transient status) are retried with
+ * backoff, "permanentFailure" is not. The messages are composed with the sample content of
+ * "src/main/resources/multimedia". The stub and the submitter run on the same machine, over the loopback interface.
+ *
+ * Usage
+ *
+ * 	 	mms_creation$ mvn -P jmh compile exec:exec -Djmh.args="MmscSubmitterBenchmark"
+ * 	 	mms_creation$ mvn -P jmh compile exec:exec -Djmh.args="MmscSubmitterBenchmark.submit -p latency=50 -p inFlight=256 -p virtual=true"
+ */
+
+// These imports are necessary for utilities.
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+// Not the "Threads" of this package.
+import org.openjdk.jmh.annotations.Threads;
+
+// Nokia MMS Java Library version 1.1
+import com.nokia.mms.*;
+
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 2, time = 2 )
+@Measurement( iterations = 3, time = 2 )
+@Threads( 1 )
+@Fork( 1 )
+public class MmscSubmitterBenchmark {
+  private static final String ORIGINATOR = "made by Aristotelis";
+  private static final String SUBJECT = "This is a nice message ...";
+  // Number of messages submitted by each operation of the "submit" benchmark.
+  private static final int BATCH = 1000;
+
+  // Response time of the stub MMSC, in milliseconds.
+  @Param( { "0", "20" } )
+  public long latency;
+
+  // Maximum number of messages in flight.
+  @Param( { "64" } )
+  public int inFlight;
+
+  // Shares of the messages failed by the stub MMSC.
+  @Param( { "0" } )
+  public double unavailable;
+
+  @Param( { "0", "0.1" } )
+  public double transientFailure;
+
+  @Param( { "0" } )
+  public double permanentFailure;
+
+  // True to post the messages, and to serve them in the stub MMSC, on virtual threads (Java 21 or later).
+  @Param( { "false" } )
+  public boolean virtual;
+
+  private StubMmsc mmsc;
+  private MmscSubmitter submitter;
+  private byte[] message;
+  private int sequence = 0;
+
+  @Setup
+  public void setUp() throws IOException, MMEncoderException {
+    SampleMMSComposer composer = new SampleMMSComposer( new ContentCache( 64L * 1024 * 1024 ) );
+    message = composer.encode( composer.compose( ORIGINATOR, "+306900000000/TYPE=PLMN", SUBJECT ) );
+    mmsc = new StubMmsc( Math.max( inFlight, 16 ), virtual );
+    mmsc.setLatency( latency );
+    mmsc.setFailures( unavailable, transientFailure, permanentFailure );
+    mmsc.start( new InetSocketAddress( "127.0.0.1", 0 ) );
+    submitter = new MmscSubmitter( mmsc.getUrl(), inFlight, virtual );
+    // Short backoffs, so that the retries do not dominate the measurements.
+    submitter.setRetries( 3, 1, 20 );
+  }
+
+  @TearDown
+  public void tearDown() {
+    submitter.close();
+    mmsc.close();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation( BATCH )
+  public int submit() {
+    CompletableFuture<?>[] responses = new CompletableFuture<?>[ BATCH ];
+    for ( int i = 0; i < BATCH; i++ ) {
+      responses[ i ] = submitter.submit( "m" + sequence++, message, message.length, (byte[]) null );
+    }
+    int accepted = 0;
+    for ( CompletableFuture<?> response : responses ) {
+      if ( ( (MmscSubmitter.Response) response.join() ).isAccepted() ) {
+        accepted++;
+      }
+    }
+    return accepted;
+  }
+
+  @Benchmark
+  @BenchmarkMode( Mode.SampleTime )
+  @OutputTimeUnit( TimeUnit.MILLISECONDS )
+  public boolean submitOne() {
+    return submitter.submit( "m" + sequence++, message, message.length, (byte[]) null ).join().isAccepted();
+  }
+}
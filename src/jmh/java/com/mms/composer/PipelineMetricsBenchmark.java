@@ -0,0 +1,59 @@
+package com.mms.composer;
+
+/*
+ * @(#)PipelineMetricsBenchmark.java	1.1
+ *
+ * Summary
+ *
+ * Measures the overhead of timing a stage with the "PipelineMetrics", from many threads at once :
+ *
+ * - "baseline" : the two "System.nanoTime()" calls alone ;
+ * - "stage" : "start()" and "stop()", i.e. the latency recorded in the histogram of the stage and its bytes counted ;
+ * - "stageJfr" : the same, also emitting a Java Flight Recorder event (disabled unless a recording is started,
+ *   e.g. with "-jvmArgsAppend -XX:StartFlightRecording").
+ *
+ * Usage
+ *
+ * 	 	mms_creation$ mvn -P jmh compile exec:exec -Djmh.args="PipelineMetricsBenchmark -t 8"
+ */
+
+// These imports are necessary for utilities.
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class PipelineMetricsBenchmark {
+  private PipelineMetrics metrics;
+  private PipelineMetrics jfrMetrics;
+
+  @Setup
+  public void setUp() {
+    metrics = new PipelineMetrics();
+    jfrMetrics = new PipelineMetrics();
+    jfrMetrics.setJfrEvents( true );
+  }
+
+  @Benchmark
+  public long baseline() {
+    long start = System.nanoTime();
+    return System.nanoTime() - start;
+  }
+
+  @Benchmark
+  public void stage() {
+    long start = metrics.start();
+    metrics.stop( PipelineMetrics.Stage.ENCODE, start, 1024 );
+  }
+
+  @Benchmark
+  public void stageJfr() {
+    long start = jfrMetrics.start();
+    jfrMetrics.stop( PipelineMetrics.Stage.ENCODE, start, 1024 );
+  }
+}
@@ -0,0 +1,92 @@
+package com.mms.composer;
+
+/*
+ * @(#)ReadFileBenchmark.java	1.1
+ *
+ * Summary
+ *
+ * Compares the loading of the "multimedia" files by the "MediaLoader" (bulk reads, memory mapping and the default
+ * threshold between them) with the original "readFile()" loop, which called "RandomAccessFile.readByte()" once per
+ * byte until an "EOFException".
+ *
+ * Usage
+ *
+ * 	 	mms_creation$ mvn -P jmh compile exec:exec -Djmh.args="ReadFileBenchmark"
+ */
+
+// These imports are necessary for utilities.
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class ReadFileBenchmark {
+  // Path where the resource multimedia contents are stored.
+  private static final String MULTIMEDIA_PATH = new File( "src/main/resources/multimedia" ).getAbsolutePath();
+
+  // Small text, small audio clip and large image.
+  @Param( { "HelloWorld.txt", "YallComeBackNowYaHear.amr", "SmileyFace.gif" } )
+  public String file;
+
+  private String filename;
+  private final MediaLoader bulk = new MediaLoader( Long.MAX_VALUE );
+  private final MediaLoader mapped = new MediaLoader( 0 );
+  private final MediaLoader threshold = new MediaLoader();
+
+  @Setup
+  public void setUp() {
+    filename = MULTIMEDIA_PATH + "/" + file;
+  }
+
+  @Benchmark
+  public byte[] byteAtATime() throws IOException {
+    return readByteAtATime( filename );
+  }
+
+  @Benchmark
+  public byte[] bulkRead() throws IOException {
+    return bulk.load( filename );
+  }
+
+  @Benchmark
+  public byte[] memoryMapped() throws IOException {
+    return mapped.load( filename );
+  }
+
+  @Benchmark
+  public byte[] defaultThreshold() throws IOException {
+    return threshold.load( filename );
+  }
+
+  /**
+   * The original "readFile()" loop : one "readByte()", i.e. one system call, per byte.
+   *
+   * @param filename name of the "multimedia" file
+   * @return array of bytes
+   * @throws IOException if the file cannot be read
+   */
+  static byte[] readByteAtATime( String filename ) throws IOException {
+    try ( RandomAccessFile fileH = new RandomAccessFile( filename, "r" ) ) {
+      byte[] buf = new byte[ (int) fileH.length() ];
+      int i = 0;
+      while ( true ) {
+        try {
+          buf[ i++ ] = fileH.readByte();
+        }
+        catch ( EOFException e ) {
+          break;
+        }
+      }
+      return buf;
+    }
+  }
+}
@@ -0,0 +1,112 @@
+package com.mms.composer;
+
+/*
+ * @(#)RecipientListBenchmark.java	1.1
+ *
+ * Summary
+ *
+ * Time taken to prepare a distribution list of "rows" addresses for a fan-out (see "FanOutComposer") :
+ *
+ * - "normalize" : validate and normalize every address of the list with a single "AddressNormalizer" ;
+ * - "read" : read the list file from memory into a "RecipientList", i.e. parse the "to:", "cc:" and "bcc:" fields,
+ *   normalize and deduplicate the addresses ;
+ * - "group" : split the recipients of the list into groups of up to "maxRecipients" addresses and encode their
+ *   "To", "Cc" and "Bcc" fields, once per group.
+ *
+ * The list mixes, as written by hand, phone numbers with separators and without the "/TYPE=PLMN" suffix (60%),
+ * e-mail addresses with upper case domains (20%), IPv4 addresses (10%) and phone numbers already in the full format
+ * (10%), one in twenty being a duplicate of a previous row. The scores are milliseconds per list ; divided by "rows",
+ * they give the cost per address. Run the benchmarks with the allocation profiler to get their allocation rates as
+ * well ("-prof gc").
+ *
+ * Usage
+ *
+ * 	 	mms_creation$ mvn -P jmh compile exec:exec -Djmh.args="RecipientListBenchmark -prof gc -p rows=1000000"
+ */
+
+// These imports are necessary for utilities.
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 2, time = 5 )
+@Measurement( iterations = 5, time = 5 )
+@Fork( value = 1, jvmArgs = { "-Xmx4g" } )
+public class RecipientListBenchmark {
+  // Number of rows of the list.
+  @Param( { "1000000", "4000000" } )
+  public int rows;
+
+  // Maximum number of addresses of a group.
+  @Param( { "1", "20" } )
+  public int maxRecipients;
+
+  // The addresses of the list, and the list file.
+  private String[] addresses;
+  private byte[] file;
+  // The list, read once, for "group".
+  private RecipientList list;
+
+  @Setup
+  public void setUp() throws IOException {
+    addresses = new String[ rows ];
+    StringBuilder text = new StringBuilder( 32 * rows );
+    for ( int i = 0; i < rows; i++ ) {
+      int n = i % 20 == 19 ? i - 7 : i;
+      String address;
+      String field = "";
+      switch ( n % 10 ) {
+        case 6: case 7:
+          address = "User." + n + "@Example.ORG";
+          field = "cc:";
+          break;
+        case 8:
+          address = String.format( "10.%d.%d.%d", n >> 16 & 0xFF, n >> 8 & 0xFF, n & 0xFF );
+          field = "bcc:";
+          break;
+        case 9:
+          address = String.format( "+3069%08d/TYPE=PLMN", n );
+          break;
+        default:
+          address = String.format( "+30 69%d %03d %04d", n / 10_000_000 % 10, n / 10_000 % 1000, n % 10_000 );
+          break;
+      }
+      addresses[ i ] = address;
+      text.append( field ).append( address ).append( '\n' );
+    }
+    file = text.toString().getBytes( StandardCharsets.UTF_8 );
+    list = read();
+  }
+
+  @Benchmark
+  public int normalize() {
+    AddressNormalizer normalizer = new AddressNormalizer();
+    int valid = 0;
+    for ( String address : addresses ) {
+      if ( normalizer.normalize( address ) != null ) {
+        valid++;
+      }
+    }
+    return valid;
+  }
+
+  @Benchmark
+  public RecipientList read() throws IOException {
+    RecipientList recipients = new RecipientList();
+    recipients.read( new InputStreamReader( new ByteArrayInputStream( file ), StandardCharsets.UTF_8 ), "benchmark" );
+    return recipients;
+  }
+
+  @Benchmark
+  public List<RecipientList.Group> group() {
+    return list.group( maxRecipients );
+  }
+}
@@ -0,0 +1,106 @@
+package com.mms.composer;
+
+/*
+ * @(#)SegmentWriterBenchmark.java	1.1
+ *
+ * Summary
+ *
+ * Compares the output of a batch of small messages, from a single writer thread :
+ *
+ * - "files" : one file per message, written under a temporary name and renamed (see "MmsFileWriter") ;
+ * - "segments" : one record per message, appended to segment files that are indexed when complete (see
+ *   "SegmentWriter").
+ *
+ * Each message is a header block written by the "HeaderWriter" of the sample template, followed by a body of
+ * "bodySize" bytes. The output folder is emptied before each iteration, so that the file system holds at most the
+ * messages of one iteration. "fsync" syncs the output to the disk every that many messages : the files and the
+ * folder for "files", the segment for "segments".
+ *
+ * Usage
+ *
+ * 	 	mms_creation$ mvn -P jmh compile exec:exec -Djmh.args="SegmentWriterBenchmark -p bodySize=2048 -p fsync=0,1000"
+ */
+
+// These imports are necessary for utilities.
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.*;
+
+// Nokia MMS Java Library version 1.1
+import com.nokia.mms.*;
+
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 2, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class SegmentWriterBenchmark {
+  private static final String ORIGINATOR = "made by Aristotelis";
+  private static final String RECIPIENT = "+306900000000/TYPE=PLMN";
+  private static final String SUBJECT = "This is a nice message ...";
+
+  // Output : "files" or "segments".
+  @Param( { "files", "segments" } )
+  public String output;
+
+  // Size, in bytes, of the body of each message.
+  @Param( { "2048", "32768" } )
+  public int bodySize;
+
+  // Number of messages synced to the disk together, or 0 not to sync them at all.
+  @Param( { "0" } )
+  public int fsync;
+
+  private MessageTemplate template;
+  private ByteBuffer body;
+  private Path folder;
+  private MmsFileWriter writer;
+  private long messages;
+
+  @Setup
+  public void setUp() throws IOException, MMEncoderException {
+    template = MessageTemplate.compile( new SampleMMSComposer( new ContentCache( 64L * 1024 * 1024 ) ) );
+    body = ByteBuffer.wrap( new byte[ bodySize ] );
+    folder = Files.createTempDirectory( "mms-segments" );
+  }
+
+  @Setup( Level.Iteration )
+  public void startIteration() throws IOException {
+    clear();
+    writer = output.equals( "segments" ) ? new SegmentWriter( folder.toFile(), SegmentWriter.DEFAULT_SEGMENT_SIZE,
+            fsync ) : new MmsFileWriter( folder.toFile(), fsync );
+  }
+
+  @TearDown( Level.Iteration )
+  public void finishIteration() throws IOException {
+    writer.close();
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    clear();
+    Files.delete( folder );
+    template.close();
+  }
+
+  @Benchmark
+  public void write() throws IOException {
+    HeaderWriter.Buffer header = template.writeHeader( ORIGINATOR, RECIPIENT, SUBJECT,
+            MmsEncoder.MESSAGE_TYPE_M_RETRIEVE_CONF );
+    writer.write( "m" + messages++ + ".mms", header.array(), header.length(), body );
+  }
+
+  private void clear() throws IOException {
+    try ( Stream<Path> files = Files.list( folder ) ) {
+      for ( Path file : (Iterable<Path>) files::iterator ) {
+        Files.delete( file );
+      }
+    }
+  }
+}
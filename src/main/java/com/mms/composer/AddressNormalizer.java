@@ -0,0 +1,261 @@
+package com.mms.composer;
+
+/*
+ * @(#)AddressNormalizer.java	1.1
+ *
+ * Summary
+ *
+ * Validates the addresses of the recipients of a message and normalizes them to the full format of
+ * "WAP-209-MMSEncapsulation" (WAP Forum), so that the same recipient, written two different ways, is recognized as
+ * such. Three kinds of addresses are supported :
+ *
+ * - phone numbers : an optional "+" followed by 3 to 15 digits, possibly separated by spaces, "-", "." or
+ *   parentheses, which are dropped ; the "/TYPE=PLMN" suffix is added if missing. "+30 (690) 000-0000" becomes
+ *   "+306900000000/TYPE=PLMN" ;
+ * - e-mail addresses : "local@domain", the domain being made of letters, digits and "-" and written in lower case ;
+ *   the local part is kept as it is. "Joe@User.ORG" becomes "Joe@user.org" ;
+ * - IPv4 addresses : four decimal numbers up to 255, separated by "." ; the leading zeros are dropped and the
+ *   "/TYPE=IPv4" suffix is added if missing. "010.1.1.1" becomes "10.1.1.1/TYPE=IPv4".
+ *
+ * The suffix of an address is matched regardless of case. An address without a suffix is an e-mail address if it
+ * holds a "@", an IPv4 address if it is made of four numbers separated by ".", and a phone number otherwise.
+ * Anything else (other address types, display names, non ASCII characters, ...) is refused.
+ *
+ * A normalizer reuses a single buffer and returns the address it was given, rather than a copy, when that address
+ * is already normalized : normalizing a list of millions of addresses allocates little more than the addresses
+ * that needed rewriting. A normalizer is not thread safe ; each thread uses its own.
+ */
+
+public final class AddressNormalizer {
+  // Suffixes of the phone numbers and of the IPv4 addresses.
+  public static final String PLMN_SUFFIX = "/TYPE=PLMN";
+  public static final String IPV4_SUFFIX = "/TYPE=IPv4";
+  // Number of digits of a phone number (E.164 numbers have up to 15).
+  private static final int MIN_PHONE_DIGITS = 3;
+  private static final int MAX_PHONE_DIGITS = 15;
+  // Sizes of the parts of an e-mail address (RFC 5321).
+  private static final int MAX_LOCAL_LENGTH = 64;
+  private static final int MAX_DOMAIN_LENGTH = 253;
+  private static final int MAX_LABEL_LENGTH = 63;
+  // Characters, other than letters and digits, allowed in the local part of an e-mail address, besides ".".
+  private static final String LOCAL_SPECIALS = "!#$%&'*+-/=?^_`{|}~";
+  private static final String TYPE = "/TYPE=";
+
+  /**
+   * Kind of an address.
+   */
+  public enum Type {
+    PLMN,
+    EMAIL,
+    IPV4
+  }
+
+  // Buffer of the normalized address.
+  private final StringBuilder out = new StringBuilder( 64 );
+  // Kind of the last address normalized.
+  private Type type;
+
+  /**
+   * Validate and normalize an address.
+   *
+   * @param address the address, as written in a recipient list
+   * @return the normalized address, the same "String" if it already was normalized ; null if it is invalid
+   */
+  public String normalize( String address ) {
+    type = null;
+    int start = 0;
+    int end = address.length();
+    while ( start < end && address.charAt( start ) <= ' ' ) {
+      start++;
+    }
+    while ( end > start && address.charAt( end - 1 ) <= ' ' ) {
+      end--;
+    }
+    if ( start == end ) {
+      return null;
+    }
+    out.setLength( 0 );
+    boolean valid;
+    int slash = address.lastIndexOf( '/', end - 1 );
+    if ( slash >= start && address.regionMatches( true, slash, TYPE, 0, TYPE.length() ) ) {
+      // An explicit address type.
+      int typeStart = slash + TYPE.length();
+      if ( end - typeStart == 4 && address.regionMatches( true, typeStart, "PLMN", 0, 4 ) ) {
+        valid = phone( address, start, slash );
+      }
+      else if ( end - typeStart == 4 && address.regionMatches( true, typeStart, "IPv4", 0, 4 ) ) {
+        valid = ipv4( address, start, slash );
+      }
+      else {
+        valid = false;
+      }
+    }
+    else if ( address.lastIndexOf( '@', end - 1 ) >= start ) {
+      valid = email( address, start, end );
+    }
+    else if ( isDottedQuad( address, start, end ) ) {
+      valid = ipv4( address, start, end );
+    }
+    else {
+      valid = phone( address, start, end );
+    }
+    if ( !valid ) {
+      type = null;
+      return null;
+    }
+    return out.length() == address.length() && address.contentEquals( out ) ? address : out.toString();
+  }
+
+  /**
+   * Return the kind of the last address normalized.
+   *
+   * @return the kind of the address, or null if it was invalid
+   */
+  public Type getType() {
+    return type;
+  }
+
+  /**
+   * Write a phone number : its "+", if any, and its digits, with the "/TYPE=PLMN" suffix.
+   */
+  private boolean phone( String address, int start, int end ) {
+    int i = start;
+    if ( address.charAt( i ) == '+' ) {
+      out.append( '+' );
+      i++;
+    }
+    int digits = 0;
+    for ( ; i < end; i++ ) {
+      char c = address.charAt( i );
+      if ( c >= '0' && c <= '9' ) {
+        if ( ++digits > MAX_PHONE_DIGITS ) {
+          return false;
+        }
+        out.append( c );
+      }
+      else if ( c != ' ' && c != '-' && c != '.' && c != '(' && c != ')' ) {
+        return false;
+      }
+    }
+    if ( digits < MIN_PHONE_DIGITS ) {
+      return false;
+    }
+    out.append( PLMN_SUFFIX );
+    type = Type.PLMN;
+    return true;
+  }
+
+  /**
+   * Tell whether an address is made of four numbers separated by ".", i.e. is meant as an IPv4 address.
+   */
+  private static boolean isDottedQuad( String address, int start, int end ) {
+    int dots = 0;
+    boolean digit = false;
+    for ( int i = start; i < end; i++ ) {
+      char c = address.charAt( i );
+      if ( c == '.' ) {
+        if ( !digit ) {
+          return false;
+        }
+        dots++;
+        digit = false;
+      }
+      else if ( c >= '0' && c <= '9' ) {
+        digit = true;
+      }
+      else {
+        return false;
+      }
+    }
+    return dots == 3 && digit;
+  }
+
+  /**
+   * Write an IPv4 address : its four numbers, without leading zeros, with the "/TYPE=IPv4" suffix.
+   */
+  private boolean ipv4( String address, int start, int end ) {
+    int i = start;
+    for ( int part = 0; part < 4; part++ ) {
+      if ( part > 0 ) {
+        if ( i == end || address.charAt( i ) != '.' ) {
+          return false;
+        }
+        out.append( '.' );
+        i++;
+      }
+      int value = 0;
+      int digits = 0;
+      for ( ; i < end && address.charAt( i ) >= '0' && address.charAt( i ) <= '9'; i++ ) {
+        value = 10 * value + address.charAt( i ) - '0';
+        if ( ++digits > 3 ) {
+          return false;
+        }
+      }
+      if ( digits == 0 || value > 255 ) {
+        return false;
+      }
+      out.append( value );
+    }
+    if ( i != end ) {
+      return false;
+    }
+    out.append( IPV4_SUFFIX );
+    type = Type.IPV4;
+    return true;
+  }
+
+  /**
+   * Write an e-mail address : its local part as it is, and its domain in lower case.
+   */
+  private boolean email( String address, int start, int end ) {
+    int at = address.indexOf( '@', start );
+    if ( at == start || at - start > MAX_LOCAL_LENGTH || end - at - 1 > MAX_DOMAIN_LENGTH ) {
+      return false;
+    }
+    // Local part : "dot-atom" characters, without leading, trailing or consecutive dots.
+    char previous = '.';
+    for ( int i = start; i < at; i++ ) {
+      char c = address.charAt( i );
+      if ( c == '.' ? previous == '.' : !isLetterOrDigit( c ) && LOCAL_SPECIALS.indexOf( c ) < 0 ) {
+        return false;
+      }
+      out.append( c );
+      previous = c;
+    }
+    if ( previous == '.' ) {
+      return false;
+    }
+    out.append( '@' );
+    // Domain : labels of letters, digits and "-", neither starting nor ending with "-".
+    int label = 0;
+    previous = '.';
+    for ( int i = at + 1; i < end; i++ ) {
+      char c = address.charAt( i );
+      if ( c == '.' ) {
+        if ( label == 0 || previous == '-' ) {
+          return false;
+        }
+        label = 0;
+      }
+      else if ( isLetterOrDigit( c ) || ( c == '-' && label > 0 ) ) {
+        if ( ++label > MAX_LABEL_LENGTH ) {
+          return false;
+        }
+      }
+      else {
+        return false;
+      }
+      out.append( c >= 'A' && c <= 'Z' ? (char) ( c + ( 'a' - 'A' ) ) : c );
+      previous = c;
+    }
+    if ( label == 0 || previous == '-' ) {
+      return false;
+    }
+    type = Type.EMAIL;
+    return true;
+  }
+
+  private static boolean isLetterOrDigit( char c ) {
+    return ( c >= 'a' && c <= 'z' ) || ( c >= 'A' && c <= 'Z' ) || ( c >= '0' && c <= '9' );
+  }
+}
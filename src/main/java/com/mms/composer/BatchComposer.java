@@ -0,0 +1,865 @@
+package com.mms.composer;
+
+/*
+ * @(#)BatchComposer.java	1.1
+ *
+ * Summary
+ *
+ * Batch mode of the sample application : composes one MMS per row of a recipient / subject manifest (see
+ * "ManifestReader" for the CSV and JSON Lines formats) within a single JVM, and writes each encoded MMS to its
+ * own file, named after the key of the row, in the output folder. All the messages share the predefined
+ * structure and multimedia content of "SampleMMSComposer".
+ *
+ * Usage
+ *
+ * 	 	mms_creation$ java.exe -Dfile.encoding=UTF-8 -classpath "target/classes;lib/MMSLibrary.jar" com.mms.composer.BatchComposer <manifest file> [<output folder>]
+ * example :
+ * 	 	mms_creation$ java.exe -Dfile.encoding=UTF-8 -classpath "target/classes;lib/MMSLibrary.jar" com.mms.composer.BatchComposer campaign.csv target/mms
+ *
+ * When the output folder is omitted, the MMS files are saved in "src/main/resources/mms" folder. At the end of the
+ * run the number of composed and failed messages, as well as the throughput in messages per second, are reported.
+ * A row that cannot be composed is reported and skipped ; it does not stop the run. The multimedia content parts
+ * are read once and shared by all the messages (see "ContentCache").
+ *
+ * For high volume runs, the "--threads <n>" option composes and encodes the messages on a pool of worker threads
+ * (see "ParallelComposer") :
+ *
+ * 	 	mms_creation$ java.exe -Dfile.encoding=UTF-8 -classpath "target/classes;lib/MMSLibrary.jar" com.mms.composer.BatchComposer --threads 8 campaign.csv target/mms
+ *
+ * The "--template" option encodes the multipart body, which is the same for every message, only once and then
+ * encodes just the header block of each message (see "MessageTemplate"). With "--off-heap", that body is held off
+ * the heap, in the process wide "MediaStore", and written from there.
+ *
+ * The "--slides <file>" option composes the messages from a slide template rather than from the predefined content
+ * parts (see "SlideTemplate"). With "--template", the template is only read when the batch starts.
+ *
+ * The "--max-size <bytes>" option fits every message into that size (see "MessageFitter") : the images are scaled
+ * down and requantized, and the audio clips trimmed or parts dropped, by priority, should the message be too large.
+ * Each asset is transcoded once ; with "--transcode-cache <folder>", the transcoded assets are also kept in that
+ * folder, for the next runs of the campaign.
+ *
+ * Each file is written under a temporary name and renamed once complete (see "MmsFileWriter"). The "--fsync <n>"
+ * option also syncs the files to the disk, "n" messages at a time. With "--segments", the messages are appended to
+ * segment files of up to "--segment-size <bytes>" (1 GB by default), each indexed by transaction ID, rather than
+ * written to a file each (see "SegmentWriter" and "MmsSegment").
+ *
+ * The "--mmsc <url>" option submits the messages to an MMSC instead of writing them to files (see
+ * "MmscSubmitter"), with up to "--in-flight <n>" messages in flight ; a message counts as composed once the MMSC
+ * accepts it.
+ *
+ * With "--journal <file>", every message written (or accepted by the MMSC) is recorded in a progress journal (see
+ * "ProgressJournal"), forced to the disk "--journal-sync <n>" records at a time. A run given the journal of an
+ * interrupted one resumes it : the rows whose message is already written, with the same content parts and headers,
+ * are skipped, and only the others are composed. With "--segments", the journal records the segment of each message
+ * and the offset of its record, once the segment is forced or indexed, and a row is only skipped if its segment still
+ * holds that record. With "--verify", the checksums of the written files (or records) are checked too.
+ *
+ * 	 	mms_creation$ java.exe -Dfile.encoding=UTF-8 -classpath "target/classes;lib/MMSLibrary.jar" com.mms.composer.BatchComposer --threads 8 --journal target/mms/campaign.journal campaign.csv target/mms
+ *
+ * The latency of each stage of the pipeline, the bytes it processed, the messages by outcome and the depths of the
+ * queues are recorded in the "PipelineMetrics" of the process. "--metrics-interval <s>" logs them every "s" seconds,
+ * "--metrics-file <file>" writes them to a Prometheus text file (every 10 s by default, and at the end of the run),
+ * "--metrics-port <n>" serves them on "http://localhost:<n>/metrics" while the batch runs, and "--jfr" emits a Java
+ * Flight Recorder event per stage timed :
+ *
+ * 	 	mms_creation$ java.exe -Dfile.encoding=UTF-8 -XX:StartFlightRecording=filename=batch.jfr -classpath "target/classes;lib/MMSLibrary.jar" com.mms.composer.BatchComposer --threads 8 --metrics-interval 5 --metrics-file /var/lib/node_exporter/mms.prom --jfr campaign.csv target/mms
+ *
+ * The transaction IDs are unique across the threads of the run (see "IdGenerator") ; when several nodes compose the
+ * messages of a campaign, "--node-id <n>" gives each one its own node ID (0-1023), so that their IDs never collide.
+ */
+
+// These imports are necessary for utilities.
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.function.LongSupplier;
+import java.util.concurrent.atomic.LongAdder;
+
+// Nokia MMS Java Library version 1.1
+import com.nokia.mms.*;
+
+public class BatchComposer {
+  // Default path where the output MMS files shall be stored.
+  private static final String MMS_PATH = new File( "src/main/resources/mms" ).getAbsolutePath();
+
+  // The composer, shared by all the messages of the batch.
+  private final SampleMMSComposer composer;
+  // Folder where the output MMS files shall be stored.
+  private final File outputFolder;
+  // Pre-encoded template of the messages, or null to encode each message in full.
+  private MessageTemplate template;
+  // Number of messages synced to the disk together, or 0 not to sync them at all.
+  private int syncBatch;
+  private long segmentSize;
+  // Submitter of the messages to an MMSC, or null to write them to files.
+  private MmscSubmitter submitter;
+  // Journal of the progress of the run, or null.
+  private ProgressJournal journal;
+  // True to check the checksums of the files of the journal.
+  private boolean verify;
+
+  /**
+   * Create a batch composer.
+   *
+   * @param outputFolder folder where the output MMS files shall be stored
+   */
+  public BatchComposer( File outputFolder ) {
+    this( new SampleMMSComposer(), outputFolder );
+  }
+
+  /**
+   * Create a batch composer.
+   *
+   * @param composer composer of the messages
+   * @param outputFolder folder where the output MMS files shall be stored
+   */
+  public BatchComposer( SampleMMSComposer composer, File outputFolder ) {
+    this.composer = composer;
+    this.outputFolder = outputFolder;
+  }
+
+  /**
+   * Encode the messages from a pre-encoded template : only the header block of each message is encoded, the
+   * multipart body being shared.
+   *
+   * @param template template of the messages, or null to encode each message in full
+   */
+  public void setTemplate( MessageTemplate template ) {
+    this.template = template;
+  }
+
+  /**
+   * Sync the output files to the disk in batches (see "MmsFileWriter").
+   *
+   * @param syncBatch number of messages synced together, or 0 not to sync them at all
+   */
+  public void setSyncBatch( int syncBatch ) {
+    if ( syncBatch < 0 ) {
+      throw new IllegalArgumentException( "Negative sync batch : " + syncBatch );
+    }
+    this.syncBatch = syncBatch;
+  }
+
+  /**
+   * Pack the messages into segment files rather than writing a file each (see "SegmentWriter").
+   *
+   * @param segmentSize maximum size of a segment, in bytes, or 0 to write a file per message
+   */
+  public void setSegmentSize( long segmentSize ) {
+    if ( segmentSize < 0 ) {
+      throw new IllegalArgumentException( "Negative segment size : " + segmentSize );
+    }
+    this.segmentSize = segmentSize;
+  }
+
+  /**
+   * Submit the messages to an MMSC instead of writing them to files.
+   *
+   * @param submitter submitter of the messages, or null to write them to files
+   */
+  public void setSubmitter( MmscSubmitter submitter ) {
+    this.submitter = submitter;
+  }
+
+  /**
+   * Record the messages in a progress journal, and skip those that it records as completed.
+   *
+   * @param journal the journal, or null
+   * @param verify true to also check the checksums of the files recorded, rather than only their sizes
+   */
+  public void setJournal( ProgressJournal journal, boolean verify ) {
+    this.journal = journal;
+    this.verify = verify;
+  }
+
+  /**
+   * Compose, encode and save one MMS per row of a manifest.
+   *
+   * @param manifest name of the manifest file
+   * @return report of the run
+   * @throws IOException if the manifest cannot be read or the output folder cannot be created
+   */
+  public Report run( String manifest ) throws IOException {
+    if ( submitter == null && !outputFolder.isDirectory() && !outputFolder.mkdirs() ) {
+      throw new IOException( "Cannot create output folder : \"" + outputFolder + "\"" );
+    }
+    PipelineMetrics metrics = composer.getMetrics();
+    Report report = new Report( metrics );
+    MmsFileWriter writer = submitter == null ? newWriter( outputFolder, segmentSize, syncBatch ) : null;
+    LongSupplier inFlight = submitter != null ? submitter::getInFlight : null;
+    if ( inFlight != null ) {
+      metrics.registerGauge( "mmsc_in_flight", inFlight );
+    }
+    if ( journal != null ) {
+      journal.begin( ProgressJournal.fingerprint( composer.getContents() ) );
+    }
+    try ( ManifestReader reader = new ManifestReader( manifest ) ) {
+      while ( true ) {
+        ManifestEntry entry;
+        try {
+          entry = reader.next();
+        }
+        catch ( ManifestReader.MalformedRowException e ) {
+          // A malformed row : report it and carry on with the next one. Any other error ends the run.
+          System.err.println( e.getMessage() );
+          report.failed();
+          continue;
+        }
+        if ( entry == null ) {
+          break;
+        }
+        long input = journal != null ? journal.input( entry ) : 0;
+        if ( journal != null && isDone( journal, entry, input, submitter == null ? outputFolder : null,
+                segmentSize > 0, verify ) ) {
+          report.skipped();
+          continue;
+        }
+        compose( entry, input, writer, report );
+      }
+    }
+    finally {
+      if ( writer != null ) {
+        close( writer, report, journal );
+      }
+      else {
+        submitter.flush();
+        metrics.unregisterGauge( "mmsc_in_flight", inFlight );
+      }
+      if ( journal != null ) {
+        sync( journal, report );
+      }
+    }
+    report.finish();
+    return report;
+  }
+
+  /**
+   * Compose, encode and save the MMS of a single manifest row.
+   *
+   * @param entry manifest row
+   * @param input digest of the inputs of the message, for the journal
+   * @param writer writer of the output files
+   * @param report report of the run
+   */
+  private void compose( ManifestEntry entry, long input, MmsFileWriter writer, Report report ) {
+    PipelineMetrics metrics = composer.getMetrics();
+    try {
+      if ( template != null ) {
+        // Only the header block is encoded, into a reused buffer, and written in front of the shared body.
+        long start = metrics.start();
+        HeaderWriter.Buffer header = template.writeHeader( entry.getOriginator(), entry.getRecipient(),
+                entry.getSubject(), messageType( submitter ) );
+        metrics.stop( PipelineMetrics.Stage.ENCODE, start, header.length() );
+        if ( submitter != null ) {
+          submit( submitter, entry.getKey(), header.array(), header.length(), template.getBody(), report, journal,
+                  input );
+          return;
+        }
+        Written written = written( entry.getKey(), input, header.array(), header.length(), template.getBody(),
+                journal );
+        start = metrics.start();
+        List<MmsFileWriter.Outcome> outcomes = writer.write( entry.getKey() + ".mms", header.array(),
+                header.length(), template.getBody(), written );
+        metrics.stop( PipelineMetrics.Stage.WRITE, start, written.length );
+        saved( outcomes, report, journal );
+        return;
+      }
+      // Set headers, add various content parts and encode the message.
+      EncodedMessage encoded = EncodedMessage.encode( composer, null, entry, messageType( submitter ) );
+      if ( submitter != null ) {
+        submit( submitter, encoded.getKey(), encoded.getHeader(), encoded.getHeader().length, encoded.getBody(),
+                report, journal, input );
+        return;
+      }
+      // Write the encoded message to a file ; it is counted once saved, i.e. once its batch is synced.
+      encoded.setInput( input );
+      long start = metrics.start();
+      List<MmsFileWriter.Outcome> outcomes = writer.write( encoded.getKey() + ".mms", encoded.getHeader(),
+              encoded.getHeader().length, encoded.getBody(), written( encoded, journal ) );
+      metrics.stop( PipelineMetrics.Stage.WRITE, start, encoded.getLength() );
+      saved( outcomes, report, journal );
+    }
+    catch ( Exception e ) {
+      System.err.println( "An error occurred composing the Multimedia Message " + entry + " : " + e.getMessage() );
+      report.failed();
+    }
+  }
+
+  /**
+   * Submit an encoded message to an MMSC ; it is reported as composed once the MMSC accepts it, and as failed
+   * otherwise. Blocks while the submitter has the maximum number of messages in flight.
+   *
+   * @param submitter submitter of the messages
+   * @param key key of the message
+   * @param header array holding the header block of the encoded message, or the whole message
+   * @param headerLength size of the header block
+   * @param body body of the encoded message, possibly shared or off the heap
+   * @param report report of the run
+   * @param journal journal recording the accepted messages, or null
+   * @param input digest of the inputs of the message, for the journal
+   */
+  static void submit( MmscSubmitter submitter, String key, byte[] header, int headerLength, ByteBuffer body,
+                      Report report, ProgressJournal journal, long input ) {
+    long length = headerLength + (long) body.remaining();
+    // The checksum is taken before the header block is reused for the next message.
+    int checksum = journal != null ? ProgressJournal.checksum( header, headerLength, body ) : 0;
+    submitter.submit( key, header, headerLength, body ).whenComplete( ( response, failure ) -> {
+      if ( failure != null ) {
+        System.err.println( "An error occurred submitting the Multimedia Message " + key + " : "
+                + failure.getMessage() );
+        report.failed();
+      }
+      else if ( !response.isAccepted() ) {
+        System.err.println( "The MMSC rejected the Multimedia Message " + response );
+        report.rejected();
+      }
+      else {
+        if ( journal != null ) {
+          try {
+            journal.completed( key, input, checksum, length );
+          }
+          catch ( IOException e ) {
+            System.err.println( "An error occurred recording the Multimedia Message " + key + " : "
+                    + e.getMessage() );
+          }
+        }
+        report.composed( length );
+      }
+    } );
+  }
+
+  /**
+   * Return the type of the messages to encode : "m-send-req" to submit them to an MMSC, "m-retrieve-conf" to write
+   * them to files or segments, which their recipients retrieve as they are.
+   *
+   * @param submitter submitter of the messages, or null if they are written to files or segments
+   * @return "MESSAGE_TYPE_M_SEND_REQ" or "MESSAGE_TYPE_M_RETRIEVE_CONF" (see "MmsEncoder")
+   */
+  static int messageType( MmscSubmitter submitter ) {
+    return submitter != null ? MmsEncoder.MESSAGE_TYPE_M_SEND_REQ : MmsEncoder.MESSAGE_TYPE_M_RETRIEVE_CONF;
+  }
+
+  /**
+   * Tell whether the message of a manifest row is recorded as completed in a journal, i.e. is to be skipped.
+   *
+   * @param journal the journal
+   * @param entry manifest row
+   * @param input digest of the inputs of the message
+   * @param outputFolder folder of the output files, or null for messages submitted to an MMSC
+   * @param segments true if the messages are appended to the segments of the output folder, rather than written to
+   *        a file each ; the segment recorded must then still hold the message
+   * @param verify true to also check the checksum of the output file
+   * @return true if the message is completed
+   */
+  static boolean isDone( ProgressJournal journal, ManifestEntry entry, long input, File outputFolder,
+                         boolean segments, boolean verify ) {
+    String key = entry.getKey();
+    if ( outputFolder != null && segments ) {
+      return journal.isDoneInSegment( key, input, outputFolder.toPath(), verify );
+    }
+    return journal.isDone( key, input, outputFolder == null ? null : new File( outputFolder, key + ".mms" ).toPath(),
+            verify );
+  }
+
+  /**
+   * Return what is counted, and recorded in the journal, of a message once its writer reports it saved. The
+   * checksum is taken before the header block is reused for the next message.
+   *
+   * @param key key of the message
+   * @param input digest of the inputs of the message, for the journal
+   * @param header array holding the header block of the encoded message, or the whole message
+   * @param headerLength size of the header block
+   * @param body body of the encoded message
+   * @param journal journal recording the saved messages, or null
+   * @return the attachment of the message, for the writer
+   */
+  static Written written( String key, long input, byte[] header, int headerLength, ByteBuffer body,
+                          ProgressJournal journal ) {
+    int checksum = journal != null ? ProgressJournal.checksum( header, headerLength, body ) : 0;
+    return new Written( key, input, checksum, headerLength + (long) body.remaining() );
+  }
+
+  /**
+   * Return what is counted, and recorded in the journal, of an encoded message once its writer reports it saved.
+   *
+   * @param encoded the encoded message, with the digest of its inputs
+   * @param journal journal recording the saved messages, or null
+   * @return the attachment of the message, for the writer
+   */
+  static Written written( EncodedMessage encoded, ProgressJournal journal ) {
+    return written( encoded.getKey(), encoded.getInput(), encoded.getHeader(), encoded.getHeader().length,
+            encoded.getBody(), journal );
+  }
+
+  /**
+   * Count the messages whose outcome a writer reports, and record the saved ones in the journal. A message is only
+   * counted as composed once saved, i.e. once its batch is synced (or its segment forced or indexed) ; the journal
+   * records the segment of a message and the offset of its record, if any.
+   *
+   * @param outcomes outcomes of the messages, each written with its "Written" attachment
+   * @param report report of the run
+   * @param journal journal recording the saved messages, or null
+   */
+  static void saved( List<MmsFileWriter.Outcome> outcomes, Report report, ProgressJournal journal ) {
+    for ( MmsFileWriter.Outcome outcome : outcomes ) {
+      Written written = (Written) outcome.getAttachment();
+      if ( !outcome.isSaved() ) {
+        System.err.println( "An error occurred saving the Multimedia Message " + written.key + " : "
+                + outcome.getFailure().getMessage() );
+        report.failed();
+        continue;
+      }
+      if ( journal != null ) {
+        try {
+          journal.completed( written.key, written.input, written.checksum, written.length,
+                  outcome.getOffset() >= 0 ? outcome.getFile().getFileName().toString() : null, outcome.getOffset() );
+        }
+        catch ( IOException e ) {
+          System.err.println( "An error occurred recording the Multimedia Message " + written.key + " : "
+                  + e.getMessage() );
+        }
+      }
+      report.composed( written.length );
+    }
+  }
+
+  /**
+   * Force the last records of the run to the journal. A journal that cannot be written is reported as a failure of
+   * the run.
+   *
+   * @param journal the journal
+   * @param report report of the run
+   */
+  static void sync( ProgressJournal journal, Report report ) {
+    try {
+      journal.sync();
+    }
+    catch ( IOException e ) {
+      System.err.println( "An error occurred recording the progress of the run : " + e.getMessage() );
+      report.failed();
+    }
+  }
+
+  /**
+   * Create the writer of the output files.
+   *
+   * @param outputFolder folder of the output files
+   * @param segmentSize maximum size of a segment file, or 0 to write a file per message
+   * @param syncBatch number of messages synced to the disk together, or 0 not to sync them at all
+   * @return the writer
+   */
+  static MmsFileWriter newWriter( File outputFolder, long segmentSize, int syncBatch ) {
+    return segmentSize > 0 ? new SegmentWriter( outputFolder, segmentSize, syncBatch )
+            : new MmsFileWriter( outputFolder, syncBatch );
+  }
+
+  /**
+   * Close the writer of the output files, i.e. sync its last batch, counting each of its messages by outcome. A
+   * writer that cannot be synced or closed is reported as a failure of the run.
+   *
+   * @param writer writer of the output files
+   * @param report report of the run
+   * @param journal journal recording the saved messages, or null
+   */
+  static void close( MmsFileWriter writer, Report report, ProgressJournal journal ) {
+    try {
+      try {
+        saved( writer.sync(), report, journal );
+      }
+      finally {
+        writer.close();
+      }
+    }
+    catch ( IOException e ) {
+      System.err.println( "An error occurred saving the Multimedia Messages : " + e.getMessage() );
+      report.failed();
+    }
+  }
+
+  /**
+   * A message written, as counted and recorded once saved.
+   */
+  static final class Written {
+    final String key;
+    final long input;
+    final int checksum;
+    final long length;
+
+    Written( String key, long input, int checksum, long length ) {
+      this.key = key;
+      this.input = input;
+      this.checksum = checksum;
+      this.length = length;
+    }
+  }
+
+  /**
+   * Report of a batch run. The counters may be updated by several threads at once.
+   */
+  public static class Report {
+    // Metrics the messages are also counted in, by outcome, or null.
+    private final PipelineMetrics metrics;
+    private final long startNanos = System.nanoTime();
+    private volatile long elapsedNanos;
+    private final LongAdder composed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+
+    /**
+     * Create the report of a run.
+     */
+    public Report() {
+      this( null );
+    }
+
+    /**
+     * Create the report of a run, also counting its messages in metrics.
+     *
+     * @param metrics the metrics, or null
+     */
+    public Report( PipelineMetrics metrics ) {
+      this.metrics = metrics;
+    }
+
+    /**
+     * Count a message that was composed, encoded and saved.
+     *
+     * @param length size, in bytes, of the encoded message
+     */
+    void composed( long length ) {
+      composed.increment();
+      bytes.add( length );
+      if ( metrics != null ) {
+        metrics.count( PipelineMetrics.Outcome.COMPOSED );
+      }
+    }
+
+    /**
+     * Count a message that could not be composed, encoded or saved.
+     */
+    void failed() {
+      failed.increment();
+      if ( metrics != null ) {
+        metrics.count( PipelineMetrics.Outcome.FAILED );
+      }
+    }
+
+    /**
+     * Count a message that the MMSC rejected, as failed.
+     */
+    void rejected() {
+      failed.increment();
+      if ( metrics != null ) {
+        metrics.count( PipelineMetrics.Outcome.REJECTED );
+      }
+    }
+
+    /**
+     * Count a message skipped as completed by a previous run.
+     */
+    void skipped() {
+      skipped.increment();
+      if ( metrics != null ) {
+        metrics.count( PipelineMetrics.Outcome.SKIPPED );
+      }
+    }
+
+    /**
+     * Mark the end of the run.
+     */
+    void finish() {
+      elapsedNanos = System.nanoTime() - startNanos;
+    }
+
+    public long getComposed() {
+      return composed.sum();
+    }
+
+    public long getFailed() {
+      return failed.sum();
+    }
+
+    public long getBytes() {
+      return bytes.sum();
+    }
+
+    public long getSkipped() {
+      return skipped.sum();
+    }
+
+    public long getElapsedNanos() {
+      return elapsedNanos;
+    }
+
+    /**
+     * Return the throughput of the run.
+     *
+     * @return composed messages per second
+     */
+    public double getMessagesPerSecond() {
+      return elapsedNanos > 0 ? getComposed() * 1e9 / elapsedNanos : 0;
+    }
+
+    @Override
+    public String toString() {
+      return String.format( "Composed %d Multimedia Messages (%d failed, %d skipped, %d bytes) in %.3f s : "
+              + "%.1f messages/s", getComposed(), getFailed(), getSkipped(), getBytes(), elapsedNanos / 1e9,
+              getMessagesPerSecond() );
+    }
+  }
+
+  /**
+   * Batch MMS Composer application
+   *
+   * @param args application's input arguments
+   */
+  public static void main( String[] args ) throws IOException {
+    // The application requires one input argument, plus an optional one :
+    // * the manifest file
+    // * the folder where the output MMS files shall be stored
+    // preceded by the options of the parallel pipeline, if any :
+    // * --threads <n> : compose and encode on "n" worker threads
+    // * --queue <n> : capacity of the bounded queues between the stages
+    // * --virtual : use virtual threads for the workers (Java 21 or later)
+    // and of the encoding :
+    // * --node-id <n> : generate the transaction IDs as node "n" of the deployment (see "IdGenerator")
+    // * --template : encode the shared multipart body once, and only the headers of each message
+    // * --off-heap : hold the shared multipart body off the heap (see "MediaStore")
+    // * --slides <file> : take the content parts from a slide template (see "SlideTemplate")
+    // * --max-size <bytes> : fit the messages into "bytes" (see "MessageFitter")
+    // * --transcode-cache <folder> : keep the transcoded media in "folder" across runs
+    // and of the output :
+    // * --fsync <n> : sync the output files to the disk in batches of "n" messages
+    // * --segments : append the messages to indexed segment files rather than writing a file each
+    // * --segment-size <bytes> : maximum size of a segment file
+    // * --mmsc <url> : submit the messages to an MMSC instead of writing them to files
+    // * --in-flight <n> : submit up to "n" messages at once
+    // * --journal <file> : record the progress in "file", and resume from it
+    // * --journal-sync <n> : force the journal to the disk every "n" messages
+    // * --verify : check the checksums of the files recorded in the journal
+    // and of the metrics :
+    // * --metrics-interval <s> : log the metrics every "s" seconds
+    // * --metrics-file <file> : write the metrics to a Prometheus text file
+    // * --metrics-port <n> : serve the metrics on "http://localhost:<n>/metrics"
+    // * --jfr : emit a Java Flight Recorder event per stage
+    int threads = 0;
+    int queue = ParallelComposer.DEFAULT_QUEUE_CAPACITY;
+    boolean virtual = false;
+    Integer nodeId = null;
+    boolean template = false;
+    boolean offHeap = false;
+    String slides = null;
+    int maxSize = 0;
+    String transcodeCache = null;
+    int fsync = 0;
+    boolean segments = false;
+    long segmentSize = 0;
+    String mmsc = null;
+    int inFlight = MmscSubmitter.DEFAULT_MAX_IN_FLIGHT;
+    String journalFile = null;
+    int journalSync = ProgressJournal.DEFAULT_SYNC_BATCH;
+    boolean verify = false;
+    double metricsInterval = 0;
+    String metricsFile = null;
+    int metricsPort = -1;
+    boolean jfr = false;
+    int i = 0;
+    try {
+      for ( ; i < args.length && args[ i ].startsWith( "--" ); i++ ) {
+        switch ( args[ i ] ) {
+          case "--threads": threads = Integer.parseInt( args[ ++i ] ); break;
+          case "--queue": queue = Integer.parseInt( args[ ++i ] ); break;
+          case "--virtual": virtual = true; break;
+          case "--node-id": nodeId = Integer.parseInt( args[ ++i ] ); break;
+          case "--template": template = true; break;
+          case "--off-heap": offHeap = true; break;
+          case "--slides": slides = args[ ++i ]; break;
+          case "--max-size": maxSize = Integer.parseInt( args[ ++i ] ); break;
+          case "--transcode-cache": transcodeCache = args[ ++i ]; break;
+          case "--fsync": fsync = Integer.parseInt( args[ ++i ] ); break;
+          case "--segments": segments = true; break;
+          case "--segment-size": segmentSize = Long.parseLong( args[ ++i ] ); break;
+          case "--mmsc": mmsc = args[ ++i ]; break;
+          case "--in-flight": inFlight = Integer.parseInt( args[ ++i ] ); break;
+          case "--journal": journalFile = args[ ++i ]; break;
+          case "--journal-sync": journalSync = Integer.parseInt( args[ ++i ] ); break;
+          case "--verify": verify = true; break;
+          case "--metrics-interval": metricsInterval = Double.parseDouble( args[ ++i ] ); break;
+          case "--metrics-file": metricsFile = args[ ++i ]; break;
+          case "--metrics-port": metricsPort = Integer.parseInt( args[ ++i ] ); break;
+          case "--jfr": jfr = true; break;
+          default: throw new IllegalArgumentException( "Unknown option : " + args[ i ] );
+        }
+      }
+    }
+    catch ( RuntimeException e ) {
+      System.err.println( e.getMessage() );
+      i = args.length;
+    }
+    if ( args.length - i < 1 || ( offHeap && !template ) || ( transcodeCache != null && maxSize <= 0 )
+            || ( verify && journalFile == null ) || ( segmentSize != 0 && !segments )
+            || segmentSize < 0 || segmentSize > SegmentWriter.MAX_SEGMENT_SIZE ) {
+      System.err.println( "Usage : BatchComposer [--threads <n>] [--queue <n>] [--virtual] [--node-id <n>] [--template [--off-heap]] [--slides <file>] [--max-size <bytes> [--transcode-cache <folder>]] [--fsync <n>] [--segments [--segment-size <bytes>]] [--mmsc <url> [--in-flight <n>]] [--journal <file> [--journal-sync <n>] [--verify]] [--metrics-interval <s>] [--metrics-file <file>] [--metrics-port <n>] [--jfr] <manifest file> [<output folder>]" );
+      System.exit( 1 );
+    }
+    String manifest = args[ i ];
+    if ( segments && segmentSize == 0 ) {
+      segmentSize = SegmentWriter.DEFAULT_SEGMENT_SIZE;
+    }
+    File outputFolder = new File( args.length > i + 1 ? args[ i + 1 ] : MMS_PATH );
+    SampleMMSComposer composer = new SampleMMSComposer();
+    if ( nodeId != null ) {
+      try {
+        composer.setIdGenerator( new IdGenerator( nodeId ) );
+      }
+      catch ( IllegalArgumentException e ) {
+        System.err.println( e.getMessage() );
+        System.exit( 1 );
+      }
+    }
+    PipelineMetrics metrics = composer.getMetrics();
+    if ( jfr ) {
+      try {
+        metrics.setJfrEvents( true );
+      }
+      catch ( UnsupportedOperationException e ) {
+        System.err.println( e.getMessage() );
+        System.exit( 1 );
+      }
+    }
+    MessageFitter fitter = null;
+    if ( maxSize > 0 ) {
+      try {
+        fitter = new MessageFitter( maxSize, MessageFitter.DEFAULT_HEADER_RESERVE,
+                new TranscodeCache( transcodeCache != null ? Paths.get( transcodeCache ) : null ) );
+      }
+      catch ( IllegalArgumentException e ) {
+        System.err.println( e.getMessage() );
+        System.exit( 1 );
+      }
+      composer.setFitter( fitter );
+    }
+    if ( slides != null ) {
+      try {
+        composer.setSlideTemplate( Paths.get( slides ) );
+      }
+      catch ( IOException e ) {
+        System.err.println( "Cannot compile the slide template : " + e.getMessage() );
+        System.exit( 1 );
+      }
+    }
+    MessageTemplate messageTemplate = null;
+    if ( template ) {
+      try {
+        messageTemplate = MessageTemplate.compile( composer, offHeap ? MediaStore.getDefault() : null );
+      }
+      catch ( IOException | MMEncoderException e ) {
+        System.err.println( "Cannot compile the message template : " + e.getMessage() );
+        System.exit( 1 );
+      }
+    }
+    MmscSubmitter submitter = null;
+    if ( mmsc != null ) {
+      try {
+        submitter = new MmscSubmitter( mmsc, inFlight, virtual );
+      }
+      catch ( IOException | RuntimeException e ) {
+        System.err.println( e.getMessage() );
+        System.exit( 1 );
+      }
+    }
+    ProgressJournal journal = null;
+    if ( journalFile != null ) {
+      try {
+        journal = new ProgressJournal( Paths.get( journalFile ), journalSync );
+      }
+      catch ( IOException | IllegalArgumentException e ) {
+        System.err.println( "Cannot open the progress journal : " + e.getMessage() );
+        System.exit( 1 );
+      }
+    }
+    PipelineMetrics.Reporter reporter = null;
+    if ( metricsInterval > 0 || metricsFile != null ) {
+      // The log lines go to the error stream, along with the errors, the report of the run to the output.
+      long interval = metricsInterval > 0 ? Math.max( 1, Math.round( metricsInterval * 1000 ) ) : 10000;
+      reporter = new PipelineMetrics.Reporter( metrics, interval, metricsInterval > 0 ? System.err : null,
+              metricsFile != null ? Paths.get( metricsFile ) : null );
+    }
+    MmsServer metricsServer = null;
+    if ( metricsPort >= 0 ) {
+      try {
+        metricsServer = new MmsServer( new MessageStore( 0, false ), 2, false );
+        metricsServer.setMetrics( metrics );
+        metricsServer.start( new InetSocketAddress( metricsPort ) );
+        System.err.println( "Serving the metrics on http://localhost:" + metricsServer.getPort() + "/metrics" );
+      }
+      catch ( IOException e ) {
+        System.err.println( "Cannot serve the metrics : " + e.getMessage() );
+        System.exit( 1 );
+      }
+    }
+    Report report;
+    if ( threads > 0 || virtual ) {
+      // Parallel pipeline : one worker per available processor, unless told otherwise.
+      int workers = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+      ParallelComposer parallel;
+      try {
+        parallel = new ParallelComposer( composer, outputFolder, workers, queue, virtual );
+      }
+      catch ( UnsupportedOperationException | IllegalArgumentException e ) {
+        System.err.println( e.getMessage() );
+        System.exit( 1 );
+        return;
+      }
+      parallel.setTemplate( messageTemplate );
+      parallel.setSyncBatch( fsync );
+      parallel.setSegmentSize( segmentSize );
+      parallel.setSubmitter( submitter );
+      parallel.setJournal( journal, verify );
+      report = parallel.run( manifest );
+    }
+    else {
+      BatchComposer batch = new BatchComposer( composer, outputFolder );
+      batch.setTemplate( messageTemplate );
+      batch.setSyncBatch( fsync );
+      batch.setSegmentSize( segmentSize );
+      batch.setSubmitter( submitter );
+      batch.setJournal( journal, verify );
+      report = batch.run( manifest );
+    }
+    if ( reporter != null ) {
+      reporter.close();
+    }
+    if ( metricsServer != null ) {
+      metricsServer.close();
+    }
+    System.out.println( report );
+    if ( submitter != null ) {
+      submitter.close();
+      System.out.println( submitter );
+    }
+    if ( journal != null ) {
+      journal.close();
+      System.out.println( journal );
+    }
+    // The messages are written, or submitted : the shared body can be released.
+    if ( messageTemplate != null ) {
+      messageTemplate.close();
+    }
+    System.out.println( ContentCache.getDefault() );
+    if ( fitter != null ) {
+      System.out.println( fitter );
+      System.out.println( fitter.getCache() );
+    }
+    if ( offHeap ) {
+      System.out.println( MediaStore.getDefault() );
+    }
+    System.out.println( metrics );
+    if ( report.getFailed() > 0 ) {
+      System.exit( 2 );
+    }
+  }
+}
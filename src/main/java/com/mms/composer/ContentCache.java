@@ -0,0 +1,304 @@
+package com.mms.composer;
+
+/*
+ * @(#)ContentCache.java	1.1
+ *
+ * Summary
+ *
+ * Cache of the multimedia content parts of the composed messages. When the same template is sent to many
+ * recipients, every message carries the very same "SMIL" presentation, texts, images and audio clips. The cache
+ * reads each "multimedia" file from disk once and holds its bytes, as an immutable "MMContent", that is shared by
+ * all the messages composed afterwards.
+ *
+ * Entries are keyed by the path of the file (together with the "Content-ID" and type of the part) and validated
+ * against the last modification time and size of the file, so that an asset that is changed on disk is read again.
+ * The cache is bounded by the total size of the contents it holds : when that size is exceeded, the least recently
+ * used entries are evicted. A file larger than the whole budget is never cached.
+ *
+ * The cache is safe for use by multiple threads. Hit, miss and eviction counters are available for monitoring.
+ */
+
+// These imports are necessary for utilities.
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Nokia MMS Java Library version 1.1
+import com.nokia.mms.MMContent;
+
+public class ContentCache {
+  // Default budget of the process wide cache, can be overridden with the "mms.content.cache.size" system property.
+  private static final long DEFAULT_MAX_BYTES = Long.getLong( "mms.content.cache.size", 64L * 1024 * 1024 );
+  private static final ContentCache DEFAULT = new ContentCache( DEFAULT_MAX_BYTES );
+
+  /**
+   * Reads the bytes of a "multimedia" file.
+   */
+  public interface Loader {
+    /**
+     * Read a file and return its bytes.
+     *
+     * @param filename name of the file
+     * @return array of bytes
+     * @throws IOException if the file cannot be read
+     */
+    byte[] load( String filename ) throws IOException;
+  }
+
+  // Maximum total size, in bytes, of the cached contents.
+  private final long maxBytes;
+  // Entries in access order, i.e. the least recently used entry comes first. Guarded by "this".
+  private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>( 16, 0.75f, true );
+  // Total size, in bytes, of the cached contents. Guarded by "this".
+  private long residentBytes = 0;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * Create a content cache.
+   *
+   * @param maxBytes maximum total size, in bytes, of the cached contents
+   */
+  public ContentCache( long maxBytes ) {
+    if ( maxBytes < 0 ) {
+      throw new IllegalArgumentException( "Negative cache size : " + maxBytes );
+    }
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Return the process wide cache, shared by all the composers that are not given a cache of their own.
+   *
+   * @return the default cache
+   */
+  public static ContentCache getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Return the content part of a "multimedia" file, reading the file only if it is not cached yet or if it has
+   * changed on disk since it was cached. The returned content is shared and cannot be modified.
+   *
+   * @param filename name of the "multimedia" file
+   * @param contentId "Content-ID" (within "<>") or "Content-Location" of the part
+   * @param type content type of the part
+   * @param loader reads the file on a cache miss
+   * @return the content part
+   * @throws IOException if the file cannot be read
+   */
+  public MMContent get( String filename, String contentId, String type, Loader loader ) throws IOException {
+    Path path = Paths.get( filename );
+    // One "stat" per lookup, so that a changed asset is never served stale.
+    BasicFileAttributes attributes = Files.readAttributes( path, BasicFileAttributes.class );
+    long modified = attributes.lastModifiedTime().toMillis();
+    long size = attributes.size();
+    Key key = new Key( filename, contentId, type );
+
+    synchronized ( this ) {
+      Entry entry = entries.get( key );
+      if ( entry != null && entry.modified == modified && entry.size == size ) {
+        hits.increment();
+        return entry.content;
+      }
+    }
+
+    // Miss : read the file outside of the lock, so that other lookups are not held up by the disk.
+    misses.increment();
+    byte[] bytes = loader.load( filename );
+    MMContent content = new SharedContent( bytes, contentId, type );
+    if ( bytes.length > maxBytes ) {
+      return content;
+    }
+    synchronized ( this ) {
+      Entry previous = entries.put( key, new Entry( content, modified, size, bytes.length ) );
+      if ( previous != null ) {
+        residentBytes -= previous.length;
+      }
+      residentBytes += bytes.length;
+      evict();
+    }
+    return content;
+  }
+
+  /**
+   * Evict the least recently used entries until the cache fits its budget.
+   */
+  private void evict() {
+    Iterator<Map.Entry<Key, Entry>> eldest = entries.entrySet().iterator();
+    while ( residentBytes > maxBytes && eldest.hasNext() ) {
+      residentBytes -= eldest.next().getValue().length;
+      eldest.remove();
+      evictions.increment();
+    }
+  }
+
+  /**
+   * Remove all the entries of the cache. The counters are left untouched.
+   */
+  public synchronized void clear() {
+    entries.clear();
+    residentBytes = 0;
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  public synchronized long getResidentBytes() {
+    return residentBytes;
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  @Override
+  public String toString() {
+    return String.format( "Content cache : %d entries, %d/%d bytes, %d hits, %d misses, %d evictions",
+            size(), getResidentBytes(), maxBytes, getHits(), getMisses(), getEvictions() );
+  }
+
+  /**
+   * Key of a cached content part.
+   */
+  private static final class Key {
+    private final String filename;
+    private final String contentId;
+    private final String type;
+    private final int hash;
+
+    Key( String filename, String contentId, String type ) {
+      this.filename = filename;
+      this.contentId = contentId;
+      this.type = type;
+      this.hash = ( filename.hashCode() * 31 + contentId.hashCode() ) * 31 + type.hashCode();
+    }
+
+    @Override
+    public boolean equals( Object o ) {
+      if ( !( o instanceof Key ) ) {
+        return false;
+      }
+      Key k = (Key) o;
+      return filename.equals( k.filename ) && contentId.equals( k.contentId ) && type.equals( k.type );
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  /**
+   * A cached content part, together with the file attributes it was read with.
+   */
+  private static final class Entry {
+    private final MMContent content;
+    private final long modified;
+    private final long size;
+    private final int length;
+
+    Entry( MMContent content, long modified, long size, int length ) {
+      this.content = content;
+      this.modified = modified;
+      this.size = size;
+      this.length = length;
+    }
+  }
+
+  /**
+   * An "MMContent" that cannot be modified once created, so that it can safely be shared by many messages
+   * (and many threads). The content is held in a single array, which the getters copy ; the encoders of this
+   * package read it in place (see "bytes()").
+   */
+  static final class SharedContent extends MMContent {
+    // "MMContent" is serializable ; a shared content is never serialized, but keeps a fixed version all the same.
+    private static final long serialVersionUID = 1L;
+
+    private final boolean frozen;
+    private final byte[] bytes;
+
+    SharedContent( byte[] bytes, String contentId, String type ) {
+      this.bytes = bytes;
+      super.setContentId( contentId );
+      super.setType( type );
+      frozen = true;
+    }
+
+    /**
+     * Return the content itself, not a copy. The array must not be modified.
+     *
+     * @return the content
+     */
+    byte[] bytes() {
+      return bytes;
+    }
+
+    @Override
+    public int getLength() {
+      return bytes.length;
+    }
+
+    @Override
+    public byte[] getContent() {
+      return bytes.clone();
+    }
+
+    @Override
+    public String getContentAsString() {
+      return new String( bytes );
+    }
+
+    @Override
+    public void saveToFile( String filename ) throws IOException {
+      try ( FileOutputStream out = new FileOutputStream( filename ) ) {
+        out.write( bytes );
+      }
+    }
+
+    @Override
+    public void setContent( byte[] b, int off, int len ) {
+      if ( frozen ) {
+        throw new UnsupportedOperationException( "Shared content \"" + getContentId() + "\" cannot be modified" );
+      }
+      super.setContent( b, off, len );
+    }
+
+    @Override
+    public void setContentId( String contentId ) {
+      if ( frozen ) {
+        throw new UnsupportedOperationException( "Shared content \"" + getContentId() + "\" cannot be modified" );
+      }
+      super.setContentId( contentId );
+    }
+
+    @Override
+    public void setType( String type ) {
+      if ( frozen ) {
+        throw new UnsupportedOperationException( "Shared content \"" + getContentId() + "\" cannot be modified" );
+      }
+      super.setType( type );
+    }
+  }
+}
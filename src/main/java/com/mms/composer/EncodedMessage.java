@@ -0,0 +1,126 @@
+package com.mms.composer;
+
+/*
+ * @(#)EncodedMessage.java	1.1
+ *
+ * Summary
+ *
+ * An encoded Multimedia Message on its way to the output : its header block followed by its body. A message
+ * encoded in full by the Nokia MMS Java Library is held as a header block only (with an empty body), while a
+ * message encoded from a "MessageTemplate" keeps its own header block and the body shared by the template, which
+ * may be held off the heap (see "MediaStore").
+ */
+
+// These imports are necessary for utilities.
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Nokia MMS Java Library version 1.1
+import com.nokia.mms.*;
+
+public class EncodedMessage {
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate( 0 );
+
+  // Key of the message, used to name its output file.
+  private final String key;
+  // Header block of the message (or the whole message), owned by this message.
+  private final byte[] header;
+  // Body of the message, possibly shared with other messages, from its position to its limit. Never modified.
+  private final ByteBuffer body;
+  // Digest of the inputs of the message, for the progress journal (see "ProgressJournal.input()").
+  private long input;
+
+  /**
+   * Create an encoded message.
+   *
+   * @param key key of the message
+   * @param header header block of the message, or the whole message
+   * @param body body of the message, possibly shared ; null for none
+   */
+  public EncodedMessage( String key, byte[] header, byte[] body ) {
+    this( key, header, body == null ? null : ByteBuffer.wrap( body ) );
+  }
+
+  /**
+   * Create an encoded message whose body is held in a buffer, possibly off the heap.
+   *
+   * @param key key of the message
+   * @param header header block of the message, or the whole message
+   * @param body body of the message, possibly shared, from its position to its limit ; null for none
+   */
+  public EncodedMessage( String key, byte[] header, ByteBuffer body ) {
+    this.key = key;
+    this.header = header;
+    this.body = body == null ? EMPTY : body;
+  }
+
+  /**
+   * Compose and encode the message of a manifest row, either in full or from a template.
+   *
+   * @param composer composer of the message
+   * @param template template of the message, or null to encode the message in full
+   * @param entry manifest row
+   * @param messageType "MESSAGE_TYPE_M_SEND_REQ" to submit the message to an MMSC, or
+   *        "MESSAGE_TYPE_M_RETRIEVE_CONF" to write it to a file or a segment (see "MmsEncoder")
+   * @return the encoded message
+   * @throws IOException if a "multimedia" file cannot be read
+   * @throws MMEncoderException if the message cannot be encoded
+   */
+  static EncodedMessage encode( SampleMMSComposer composer, MessageTemplate template, ManifestEntry entry,
+                                int messageType ) throws IOException, MMEncoderException {
+    if ( template != null ) {
+      // Only the header block is encoded, the body is shared.
+      PipelineMetrics metrics = composer.getMetrics();
+      long start = metrics.start();
+      byte[] header = template.encodeHeader( entry.getOriginator(), entry.getRecipient(), entry.getSubject(),
+              messageType );
+      metrics.stop( PipelineMetrics.Stage.ENCODE, start, header.length );
+      return new EncodedMessage( entry.getKey(), header, template.getBody() );
+    }
+    if ( messageType == MmsEncoder.MESSAGE_TYPE_M_RETRIEVE_CONF ) {
+      // The library only encodes "m-send-req" messages : an "m-retrieve-conf" is encoded by "MmsEncoder".
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      composer.encode( entry.getOriginator(), entry.getRecipient(), entry.getSubject(), out );
+      return new EncodedMessage( entry.getKey(), out.toByteArray(), (byte[]) null );
+    }
+    // Set headers and add various content parts.
+    MMMessage mms = composer.compose( entry.getOriginator(), entry.getRecipient(), entry.getSubject() );
+    // Encode the message.
+    return new EncodedMessage( entry.getKey(), composer.encode( mms ), (byte[]) null );
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  byte[] getHeader() {
+    return header;
+  }
+
+  long getInput() {
+    return input;
+  }
+
+  void setInput( long input ) {
+    this.input = input;
+  }
+
+  /**
+   * Return the body of the message, as a view that the caller may consume.
+   *
+   * @return the body
+   */
+  ByteBuffer getBody() {
+    return body.duplicate();
+  }
+
+  /**
+   * Return the size of the encoded message.
+   *
+   * @return size, in bytes, of the header block and body
+   */
+  public int getLength() {
+    return header.length + body.remaining();
+  }
+}
@@ -0,0 +1,301 @@
+package com.mms.composer;
+
+/*
+ * @(#)FanOutComposer.java	1.1
+ *
+ * Summary
+ *
+ * Fan-out mode of the sample application : sends one message, from one sender and with one subject, to all the
+ * recipients of a distribution list (see "RecipientList"). The addresses of the list are validated, normalized and
+ * deduplicated, then split into groups of up to "--max-recipients <n>" addresses (20 by default), and one
+ * "m-send-req" PDU is composed per group, with its "To", "Cc" and "Bcc" fields. "--max-recipients 1" composes a PDU
+ * per recipient instead, which hides the other recipients from each of them. The "Bcc" fields are only kept in the
+ * PDUs submitted to an MMSC : a message written to a file or a segment is retrieved as it is, as an
+ * "m-retrieve-conf", and only holds the "To" and "Cc" fields of its group. Without "--mmsc", each "Bcc" recipient
+ * therefore gets a message of its own instead, with its address as the only "To" one.
+ *
+ * Nothing is encoded more than once : the multipart body is encoded once for all the groups (see
+ * "MessageTemplate"), the fields of each group once, when the list is grouped, and each message only has its
+ * transaction ID, date, sender and subject written around them (see "HeaderWriter").
+ *
+ * Usage
+ *
+ * 	 	mms_creation$ java.exe -Dfile.encoding=UTF-8 -classpath "target/classes;lib/MMSLibrary.jar" com.mms.composer.FanOutComposer [--max-recipients <n>] [--id <key>] [--check] <address of the message sender> <subject of the multimedia message> <recipient list> [<output folder>]
+ * example :
+ * 	 	mms_creation$ java.exe -Dfile.encoding=UTF-8 -classpath "target/classes;lib/MMSLibrary.jar" com.mms.composer.FanOutComposer --max-recipients 50 --id campaign-0001 "made by Aristotelis" "Hello, world" campaign.txt target/mms
+ *
+ * Each message is saved as "<key>-<group number>.mms" in the output folder ("src/main/resources/mms" by default),
+ * the key being "fanout" unless given with "--id". As with the "BatchComposer", "--fsync <n>" syncs the files to the
+ * disk "n" messages at a time, "--segments" packs the messages into indexed segment files, "--mmsc <url>" submits
+ * them to an MMSC instead, and "--node-id <n>" sets the node ID of the transaction IDs. With "--check", the list is
+ * only validated : the invalid addresses are reported, and no message is composed.
+ */
+
+// These imports are necessary for utilities.
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+// Nokia MMS Java Library version 1.1
+import com.nokia.mms.*;
+
+public class FanOutComposer {
+  // Default path where the output MMS files shall be stored.
+  private static final String MMS_PATH = new File( "src/main/resources/mms" ).getAbsolutePath();
+  // Default key of the messages.
+  private static final String DEFAULT_KEY = "fanout";
+
+  // The composer, and the template of its messages.
+  private final SampleMMSComposer composer;
+  private final MessageTemplate template;
+  // Folder where the output MMS files shall be stored.
+  private final File outputFolder;
+  // Number of messages synced to the disk together, or 0 not to sync them at all.
+  private int syncBatch;
+  private long segmentSize;
+  // Submitter of the messages to an MMSC, or null to write them to files.
+  private MmscSubmitter submitter;
+
+  /**
+   * Create a fan-out composer.
+   *
+   * @param composer composer of the messages
+   * @param template template of the messages, compiled from the composer
+   * @param outputFolder folder where the output MMS files shall be stored
+   */
+  public FanOutComposer( SampleMMSComposer composer, MessageTemplate template, File outputFolder ) {
+    this.composer = composer;
+    this.template = template;
+    this.outputFolder = outputFolder;
+  }
+
+  /**
+   * Sync the output files to the disk in batches (see "MmsFileWriter").
+   *
+   * @param syncBatch number of messages synced together, or 0 not to sync them at all
+   */
+  public void setSyncBatch( int syncBatch ) {
+    if ( syncBatch < 0 ) {
+      throw new IllegalArgumentException( "Negative sync batch : " + syncBatch );
+    }
+    this.syncBatch = syncBatch;
+  }
+
+  /**
+   * Pack the messages into segment files rather than writing a file each (see "SegmentWriter").
+   *
+   * @param segmentSize maximum size of a segment, in bytes, or 0 to write a file per message
+   */
+  public void setSegmentSize( long segmentSize ) {
+    if ( segmentSize < 0 ) {
+      throw new IllegalArgumentException( "Negative segment size : " + segmentSize );
+    }
+    this.segmentSize = segmentSize;
+  }
+
+  /**
+   * Submit the messages to an MMSC instead of writing them to files.
+   *
+   * @param submitter submitter of the messages, or null to write them to files
+   */
+  public void setSubmitter( MmscSubmitter submitter ) {
+    this.submitter = submitter;
+  }
+
+  /**
+   * Compose, encode and save one MMS per group of recipients.
+   *
+   * @param key key of the messages ; each message is named after it and the number of its group
+   * @param originator address of the message sender
+   * @param subject subject of the multimedia message
+   * @param groups the groups of recipients (see "RecipientList.group()") ; without a submitter, groups with "Bcc"
+   *        recipients fail, as their files would not reach them (see "RecipientList.group( int, boolean )")
+   * @return report of the run
+   * @throws IOException if the output folder cannot be created
+   */
+  public BatchComposer.Report run( String key, String originator, String subject, List<RecipientList.Group> groups )
+          throws IOException {
+    if ( submitter == null && !outputFolder.isDirectory() && !outputFolder.mkdirs() ) {
+      throw new IOException( "Cannot create output folder : \"" + outputFolder + "\"" );
+    }
+    PipelineMetrics metrics = composer.getMetrics();
+    BatchComposer.Report report = new BatchComposer.Report( metrics );
+    MmsFileWriter writer = submitter == null ? BatchComposer.newWriter( outputFolder, segmentSize, syncBatch ) : null;
+    try {
+      int number = 0;
+      for ( RecipientList.Group group : groups ) {
+        String name = String.format( "%s-%06d", key, ++number );
+        try {
+          if ( submitter == null && group.hasBcc() ) {
+            throw new IllegalArgumentException( "\"Bcc\" recipients are only reached through an MMSC" );
+          }
+          // The header block is written into a reused buffer, around the encoded fields of the group ; its "Bcc"
+          // fields only go to the MMSC.
+          long start = metrics.start();
+          HeaderWriter.Buffer header = template.writeHeader( originator, group, subject,
+                  BatchComposer.messageType( submitter ) );
+          metrics.stop( PipelineMetrics.Stage.ENCODE, start, header.length() );
+          if ( submitter != null ) {
+            BatchComposer.submit( submitter, name, header.array(), header.length(), template.getBody(), report, null,
+                    0 );
+            continue;
+          }
+          // The message is counted once saved, i.e. once its batch is synced.
+          start = metrics.start();
+          List<MmsFileWriter.Outcome> outcomes = writer.write( name + ".mms", header.array(), header.length(),
+                  template.getBody(), BatchComposer.written( name, 0, header.array(), header.length(),
+                  template.getBody(), null ) );
+          metrics.stop( PipelineMetrics.Stage.WRITE, start, header.length() + template.getBodyLength() );
+          BatchComposer.saved( outcomes, report, null );
+        }
+        catch ( Exception e ) {
+          System.err.println( "An error occurred composing the Multimedia Message " + name + " to " + group + " : "
+                  + e.getMessage() );
+          report.failed();
+        }
+      }
+    }
+    finally {
+      if ( writer != null ) {
+        BatchComposer.close( writer, report, null );
+      }
+      else {
+        submitter.flush();
+      }
+    }
+    report.finish();
+    return report;
+  }
+
+  /**
+   * Fan-out MMS Composer application
+   *
+   * @param args application's input arguments
+   */
+  public static void main( String[] args ) throws IOException {
+    // The application requires three input arguments, plus an optional one :
+    // * the address of the message sender
+    // * the subject of the multimedia message
+    // * the recipient list file
+    // * the folder where the output MMS files shall be stored
+    // preceded by the options, if any :
+    // * --max-recipients <n> : send each message to up to "n" recipients
+    // * --id <key> : name the messages "<key>-<group number>"
+    // * --check : only validate the recipient list
+    // * --node-id <n> : generate the transaction IDs as node "n" of the deployment (see "IdGenerator")
+    // * --off-heap : hold the shared multipart body off the heap (see "MediaStore")
+    // * --fsync <n> : sync the output files to the disk in batches of "n" messages
+    // * --segments : append the messages to indexed segment files rather than writing a file each
+    // * --segment-size <bytes> : maximum size of a segment file
+    // * --mmsc <url> : submit the messages to an MMSC instead of writing them to files
+    // * --in-flight <n> : submit up to "n" messages at once
+    int maxRecipients = RecipientList.DEFAULT_MAX_RECIPIENTS;
+    String key = DEFAULT_KEY;
+    boolean check = false;
+    Integer nodeId = null;
+    boolean offHeap = false;
+    int fsync = 0;
+    boolean segments = false;
+    long segmentSize = 0;
+    String mmsc = null;
+    int inFlight = MmscSubmitter.DEFAULT_MAX_IN_FLIGHT;
+    int i = 0;
+    try {
+      for ( ; i < args.length && args[ i ].startsWith( "--" ); i++ ) {
+        switch ( args[ i ] ) {
+          case "--max-recipients": maxRecipients = Integer.parseInt( args[ ++i ] ); break;
+          case "--id": key = new ManifestEntry( 0, args[ ++i ], null, null, null ).getKey(); break;
+          case "--check": check = true; break;
+          case "--node-id": nodeId = Integer.parseInt( args[ ++i ] ); break;
+          case "--off-heap": offHeap = true; break;
+          case "--fsync": fsync = Integer.parseInt( args[ ++i ] ); break;
+          case "--segments": segments = true; break;
+          case "--segment-size": segmentSize = Long.parseLong( args[ ++i ] ); break;
+          case "--mmsc": mmsc = args[ ++i ]; break;
+          case "--in-flight": inFlight = Integer.parseInt( args[ ++i ] ); break;
+          default: throw new IllegalArgumentException( "Unknown option : " + args[ i ] );
+        }
+      }
+    }
+    catch ( RuntimeException e ) {
+      System.err.println( e.getMessage() );
+      i = args.length;
+    }
+    if ( args.length - i < 3 || maxRecipients < 1 || fsync < 0 || ( segmentSize != 0 && !segments )
+            || segmentSize < 0 || segmentSize > SegmentWriter.MAX_SEGMENT_SIZE ) {
+      System.err.println( "Usage : FanOutComposer [--max-recipients <n>] [--id <key>] [--check] [--node-id <n>] [--off-heap] [--fsync <n>] [--segments [--segment-size <bytes>]] [--mmsc <url> [--in-flight <n>]] <address of the message sender> <subject of the multimedia message> <recipient list> [<output folder>]" );
+      System.exit( 1 );
+    }
+    String originator = args[ i ];
+    String subject = args[ i + 1 ];
+    String list = args[ i + 2 ];
+    if ( segments && segmentSize == 0 ) {
+      segmentSize = SegmentWriter.DEFAULT_SEGMENT_SIZE;
+    }
+    File outputFolder = new File( args.length > i + 3 ? args[ i + 3 ] : MMS_PATH );
+
+    // Validate, normalize and group the recipients.
+    RecipientList recipients = new RecipientList();
+    long started = System.nanoTime();
+    try {
+      recipients.read( list );
+    }
+    catch ( IOException e ) {
+      System.err.println( "Cannot read the recipient list : " + e.getMessage() );
+      System.exit( 1 );
+    }
+    // Without an MMSC, each "Bcc" recipient gets a message of its own, as its "To" recipient.
+    List<RecipientList.Group> groups = recipients.group( maxRecipients, mmsc != null );
+    System.out.println( recipients );
+    System.out.println( String.format( "%d messages of up to %d recipients, grouped in %.3f s", groups.size(),
+            maxRecipients, ( System.nanoTime() - started ) / 1e9 ) );
+    if ( check || groups.isEmpty() ) {
+      System.exit( recipients.getInvalid() > 0 || groups.isEmpty() ? 2 : 0 );
+    }
+
+    SampleMMSComposer composer = new SampleMMSComposer();
+    if ( nodeId != null ) {
+      try {
+        composer.setIdGenerator( new IdGenerator( nodeId ) );
+      }
+      catch ( IllegalArgumentException e ) {
+        System.err.println( e.getMessage() );
+        System.exit( 1 );
+      }
+    }
+    MessageTemplate template = null;
+    try {
+      template = MessageTemplate.compile( composer, offHeap ? MediaStore.getDefault() : null );
+    }
+    catch ( IOException | MMEncoderException e ) {
+      System.err.println( "Cannot compile the message template : " + e.getMessage() );
+      System.exit( 1 );
+    }
+    MmscSubmitter submitter = null;
+    if ( mmsc != null ) {
+      try {
+        submitter = new MmscSubmitter( mmsc, inFlight, false );
+      }
+      catch ( IOException | RuntimeException e ) {
+        System.err.println( e.getMessage() );
+        System.exit( 1 );
+      }
+    }
+    FanOutComposer fanOut = new FanOutComposer( composer, template, outputFolder );
+    fanOut.setSyncBatch( fsync );
+    fanOut.setSegmentSize( segmentSize );
+    fanOut.setSubmitter( submitter );
+    BatchComposer.Report report = fanOut.run( key, originator, subject, groups );
+    System.out.println( report );
+    if ( submitter != null ) {
+      submitter.close();
+      System.out.println( submitter );
+    }
+    // The messages are written, or submitted : the shared body can be released.
+    template.close();
+    System.out.println( composer.getMetrics() );
+    if ( report.getFailed() > 0 ) {
+      System.exit( 2 );
+    }
+  }
+}
@@ -0,0 +1,255 @@
+package com.mms.composer;
+
+/*
+ * @(#)HeaderEncoder.java	1.1
+ *
+ * Summary
+ *
+ * Encodes the header block of a Multimedia Message (WAP-209-MMSEncapsulation, section 7), i.e. everything from
+ * the "X-Mms-Message-Type" field up to and including the "Content-Type" field, without the multipart body.
+ *
+ * For "m-send-req" messages the output is byte for byte the header block that the Nokia MMS Java Library
+ * ("MMEncoder") writes, fields in the same order, so that a header block encoded here can be joined with a body
+ * encoded by the library (see "MessageTemplate"). The only deliberate difference is the "Value-length" of the
+ * "From" field, which counts bytes rather than characters, so that it stays correct for non ASCII addresses.
+ *
+ * "m-retrieve-conf" messages are encoded natively, instead of flipping the second byte of an "m-send-req" : the
+ * "Date" field becomes mandatory and the fields that only apply to the submission of a message ("Bcc",
+ * "X-Mms-Expiry", "X-Mms-Delivery-Time" and "X-Mms-Sender-Visibility") are left out.
+ */
+
+// These imports are necessary for utilities.
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.Vector;
+
+// Nokia MMS Java Library version 1.1
+import com.nokia.mms.*;
+
+final class HeaderEncoder {
+  // Message types, as written in the "X-Mms-Message-Type" field.
+  static final int MESSAGE_TYPE_M_SEND_REQ = 0x80;
+  static final int MESSAGE_TYPE_M_RETRIEVE_CONF = 0x84;
+  // "Yes" and "No" values of the boolean fields.
+  private static final int YES = 0x80;
+  private static final int NO = 0x81;
+  // "Absolute-token" and "Relative-token" of the date fields.
+  private static final int ABSOLUTE = 0x80;
+  private static final int RELATIVE = 0x81;
+  // "Address-present-token" and "Insert-address-token" of the "From" field.
+  private static final int ADDRESS_PRESENT = 0x80;
+  private static final int INSERT_ADDRESS = 0x81;
+
+  private HeaderEncoder() {
+  }
+
+  /**
+   * Encode the header block of an "m-send-req" message.
+   *
+   * @param m multimedia message
+   * @return the encoded header block
+   * @throws MMEncoderException if a mandatory field is missing
+   */
+  static byte[] encode( MMMessage m ) throws MMEncoderException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream( 256 );
+    try {
+      encode( m, MESSAGE_TYPE_M_SEND_REQ, out );
+    }
+    catch ( IOException e ) {
+      // Not thrown by a "ByteArrayOutputStream".
+      throw new MMEncoderException( "An IO error occurred encoding the Multimedia Message." );
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Encode the header block of a message to a stream.
+   *
+   * @param m multimedia message
+   * @param messageType "MESSAGE_TYPE_M_SEND_REQ" or "MESSAGE_TYPE_M_RETRIEVE_CONF"
+   * @param out the stream
+   * @throws MMEncoderException if a mandatory field is missing
+   * @throws IOException if the stream cannot be written
+   */
+  static void encode( MMMessage m, int messageType, OutputStream out ) throws MMEncoderException, IOException {
+    boolean retrieveConf = messageType == MESSAGE_TYPE_M_RETRIEVE_CONF;
+    if ( messageType != MESSAGE_TYPE_M_SEND_REQ && !retrieveConf ) {
+      throw new MMEncoderException( "Invalid Multimedia Message format." );
+    }
+    // "Type", "TransID", "Version" are all mandatory, and must be the first headers, in this order !
+    out.write( IMMConstants.FN_MESSAGE_TYPE | 0x80 );
+    out.write( messageType );
+    if ( m.isTransactionIdAvailable() ) {
+      out.write( IMMConstants.FN_TRANSACTION_ID | 0x80 );
+      Wsp.writeText( m.getTransactionId(), out );
+    }
+    out.write( IMMConstants.FN_MMS_VERSION | 0x80 );
+    out.write( m.isVersionAvailable() ? m.getVersion() : IMMConstants.MMS_VERSION_10 );
+
+    if ( m.isDateAvailable() ) {
+      writeDate( m.getDate(), out );
+    }
+    else if ( retrieveConf ) {
+      throw new MMEncoderException( "The field DATE is mandatory in an m-retrieve-conf Multimedia Message." );
+    }
+
+    out.write( IMMConstants.FN_FROM | 0x80 );
+    if ( m.isFromAvailable() ) {
+      String from = m.getFrom().getFullAddress();
+      if ( from == null ) {
+        throw new MMEncoderException( "The field from is assigned to null" );
+      }
+      byte[] address = from.getBytes();
+      Wsp.writeValueLength( address.length + 2, out );
+      out.write( ADDRESS_PRESENT );
+      out.write( address );
+      out.write( 0 );
+    }
+    else {
+      out.write( 1 );
+      out.write( INSERT_ADDRESS );
+    }
+
+    boolean recipients = writeAddresses( m.isToAvailable() ? m.getTo() : null, IMMConstants.FN_TO, out );
+    recipients |= writeAddresses( m.isCcAvailable() ? m.getCc() : null, IMMConstants.FN_CC, out );
+    if ( !retrieveConf ) {
+      // The recipients of an "m-retrieve-conf" never see the "Bcc" ones.
+      recipients |= writeAddresses( m.isBccAvailable() ? m.getBcc() : null, IMMConstants.FN_BCC, out );
+    }
+    if ( !recipients && !retrieveConf ) {
+      throw new MMEncoderException( "No recipient specified in the Multimedia Message." );
+    }
+
+    if ( m.isSubjectAvailable() ) {
+      out.write( IMMConstants.FN_SUBJECT | 0x80 );
+      Wsp.writeText( m.getSubject(), out );
+    }
+    encodeTail( m, messageType, out );
+  }
+
+  /**
+   * Encode the fields of a header block that follow the "Subject" field, up to and including the "Content-Type"
+   * field. Those fields do not depend on the sender, the recipients or the subject of the message, so that they
+   * can be encoded once for many messages (see "HeaderWriter").
+   *
+   * @param m multimedia message
+   * @param messageType "MESSAGE_TYPE_M_SEND_REQ" or "MESSAGE_TYPE_M_RETRIEVE_CONF"
+   * @param out the stream
+   * @throws MMEncoderException if the "Content-Type" field is missing
+   * @throws IOException if the stream cannot be written
+   */
+  static void encodeTail( MMMessage m, int messageType, OutputStream out ) throws MMEncoderException, IOException {
+    boolean retrieveConf = messageType == MESSAGE_TYPE_M_RETRIEVE_CONF;
+    if ( m.isDeliveryReportAvailable() ) {
+      out.write( IMMConstants.FN_DELIVERY_REPORT | 0x80 );
+      out.write( m.getDeliveryReport() ? YES : NO );
+    }
+    if ( m.isSenderVisibilityAvailable() && !retrieveConf ) {
+      out.write( IMMConstants.FN_SENDER_VISIBILITY | 0x80 );
+      out.write( m.getSenderVisibility() );
+    }
+    if ( m.isReadReplyAvailable() ) {
+      out.write( IMMConstants.FN_READ_REPLY | 0x80 );
+      out.write( m.getReadReply() ? YES : NO );
+    }
+    if ( m.isMessageClassAvailable() ) {
+      out.write( IMMConstants.FN_MESSAGE_CLASS | 0x80 );
+      out.write( m.getMessageClass() );
+    }
+    if ( m.isExpiryAvailable() && !retrieveConf ) {
+      writeTime( IMMConstants.FN_EXPIRY, m.getExpiry(), m.isExpiryAbsolute(), out );
+    }
+    if ( m.isDeliveryTimeAvailable() && !retrieveConf ) {
+      writeTime( IMMConstants.FN_DELIVERY_TIME, m.getDeliveryTime(), m.isDeliveryTimeAbsolute(), out );
+    }
+    if ( m.isPriorityAvailable() ) {
+      out.write( IMMConstants.FN_PRIORITY | 0x80 );
+      out.write( m.getPriority() );
+    }
+
+    // "ContentType" is mandatory, and must be last header !
+    if ( !m.isContentTypeAvailable() ) {
+      throw new MMEncoderException( "The field CONTENT TYPE of the Multimedia Message is not specified." );
+    }
+    writeContentType( m, out );
+  }
+
+  /**
+   * Return true if the body of a message is "multipart related", i.e. if its parts carry a "Content-ID".
+   *
+   * @param m multimedia message
+   * @return true for an "application/vnd.wap.multipart.related" message
+   */
+  static boolean isMultipartRelated( MMMessage m ) {
+    return Wsp.wellKnownMedia( m.getContentType() ) == Wsp.MULTIPART_RELATED;
+  }
+
+  /**
+   * Write the "Content-Type" field. A "multipart related" content type carries its "type" and "start" parameters.
+   */
+  private static void writeContentType( MMMessage m, OutputStream out ) throws IOException {
+    out.write( IMMConstants.FN_CONTENT_TYPE | 0x80 );
+    String contentType = m.getContentType();
+    int media = Wsp.wellKnownMedia( contentType );
+    if ( media == Wsp.MULTIPART_RELATED ) {
+      byte[] type = m.getMultipartRelatedType().getBytes();
+      byte[] start = m.getPresentationId().getBytes();
+      Wsp.writeValueLength( 1 + type.length + 2 + start.length + 2, out );
+      out.write( media | 0x80 );
+      out.write( Wsp.PARAM_TYPE );
+      out.write( type );
+      out.write( 0 );
+      out.write( Wsp.PARAM_START );
+      out.write( start );
+      out.write( 0 );
+    }
+    else if ( media > 0 ) {
+      out.write( media | 0x80 );
+    }
+    else {
+      Wsp.writeText( contentType, out );
+    }
+  }
+
+  /**
+   * Write the "Date" field, as a "Long-integer" number of seconds since the epoch.
+   */
+  private static void writeDate( Date date, OutputStream out ) throws IOException {
+    out.write( IMMConstants.FN_DATE | 0x80 );
+    Wsp.writeLongInteger( date.getTime() / 1000L, out );
+  }
+
+  /**
+   * Write an "X-Mms-Expiry" or "X-Mms-Delivery-Time" field : "Value-length", absolute or relative token and the
+   * "Long-integer" number of seconds.
+   */
+  private static void writeTime( byte field, Date time, boolean absolute, OutputStream out ) throws IOException {
+    long seconds = time.getTime() / 1000L;
+    out.write( field | 0x80 );
+    Wsp.writeValueLength( Wsp.longIntegerLength( seconds ) + 2, out );
+    out.write( absolute ? ABSOLUTE : RELATIVE );
+    Wsp.writeLongInteger( seconds, out );
+  }
+
+  /**
+   * Write one "To", "Cc" or "Bcc" field per address.
+   *
+   * @return true if at least one address was written
+   */
+  private static boolean writeAddresses( Vector<?> addresses, byte field, OutputStream out ) throws IOException {
+    boolean written = false;
+    if ( addresses != null ) {
+      for ( Object address : addresses ) {
+        String full = ( (MMAddress) address ).getFullAddress();
+        if ( full != null ) {
+          out.write( field | 0x80 );
+          Wsp.writeText( full, out );
+          written = true;
+        }
+      }
+    }
+    return written;
+  }
+}
@@ -0,0 +1,300 @@
+package com.mms.composer;
+
+/*
+ * @(#)HeaderWriter.java	1.1
+ *
+ * Summary
+ *
+ * Allocation free encoding of the header block of the messages of a batch. The messages of a batch are all set up
+ * by "SetHeaders()" the same way, apart from their sender, recipients, subject, transaction ID and date. A writer
+ * is prepared once from a prototype message : the fields that follow the "Subject" field are encoded once and
+ * for all (see "HeaderEncoder.encodeTail()"). Each message then only has its variable fields written, byte by
+ * byte, into a buffer owned by the current thread and reused from one message to the next :
+ *
+ * - no "MMMessage", "Date", "MMAddress" or transaction ID "String" is created ;
+ * - the transaction ID is drawn from an "IdGenerator" as a number, and its digits written straight into the buffer ;
+ * - the date is written as a "Long-integer" number of seconds, straight into the buffer ;
+ * - ASCII addresses and subjects are copied into the buffer character by character ; only other texts are
+ *   converted with the platform charset, as the Nokia MMS Java Library does ;
+ * - the "To", "Cc" and "Bcc" fields of a group of recipients are copied as they were encoded with the group (see
+ *   "RecipientList.Group") ; the "Bcc" ones are left out of an "m-retrieve-conf", which is delivered as it is.
+ *
+ * The output is byte for byte the header block that "HeaderEncoder" encodes, as the same message type, for a message
+ * set up by "SetHeaders()" with the same fields (see "MessageTemplateTest").
+ */
+
+// These imports are necessary for utilities.
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+// Nokia MMS Java Library version 1.1
+import com.nokia.mms.*;
+
+final class HeaderWriter {
+  // Number of digits of the transaction IDs, as generated by "SampleMMSComposer".
+  static final int TRANSACTION_ID_DIGITS = IdGenerator.TRANSACTION_ID_DIGITS;
+  // "Address-present-token" of the "From" field.
+  private static final int ADDRESS_PRESENT = 0x80;
+  // Initial size of the buffers, enough for most header blocks.
+  private static final int INITIAL_CAPACITY = 512;
+
+  // Buffer of each thread, reused by every writer.
+  private static final ThreadLocal<Buffer> BUFFERS = ThreadLocal.withInitial( Buffer::new );
+
+  // "X-Mms-Message-Type" and "X-Mms-MMS-Version" values.
+  private final int messageType;
+  private final int version;
+  // Encoded fields that follow the "Subject" field. Never modified.
+  private final byte[] tail;
+  // Generator of the transaction IDs.
+  private final IdGenerator ids;
+
+  /**
+   * Prepare a writer from a prototype message.
+   *
+   * @param prototype message set up by "SetHeaders()" ; its sender, recipients, subject, transaction ID and date
+   *        are not used
+   * @param messageType "MESSAGE_TYPE_M_SEND_REQ" or "MESSAGE_TYPE_M_RETRIEVE_CONF" (see "HeaderEncoder")
+   * @param ids generator of the transaction IDs
+   * @throws MMEncoderException if the fields of the prototype cannot be encoded
+   */
+  HeaderWriter( MMMessage prototype, int messageType, IdGenerator ids ) throws MMEncoderException {
+    if ( messageType != HeaderEncoder.MESSAGE_TYPE_M_SEND_REQ
+            && messageType != HeaderEncoder.MESSAGE_TYPE_M_RETRIEVE_CONF ) {
+      throw new MMEncoderException( "Invalid Multimedia Message format." );
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      HeaderEncoder.encodeTail( prototype, messageType, out );
+    }
+    catch ( IOException e ) {
+      // Not thrown by a "ByteArrayOutputStream".
+      throw new MMEncoderException( "An IO error occurred encoding the Multimedia Message." );
+    }
+    this.messageType = messageType;
+    this.version = prototype.isVersionAvailable() ? prototype.getVersion() : IMMConstants.MMS_VERSION_10;
+    this.tail = out.toByteArray();
+    this.ids = ids;
+  }
+
+  /**
+   * Write the header block of a message, with a new transaction ID and the current date, into the buffer of
+   * the current thread.
+   *
+   * @param originator address of the message sender
+   * @param recipient address of the message receiver
+   * @param subject subject of the multimedia message
+   * @return the buffer of the current thread, holding the header block ; it is overwritten by the next call
+   *         from the same thread
+   */
+  Buffer write( String originator, String recipient, String subject ) {
+    long now = System.currentTimeMillis();
+    return write( originator, recipient, subject, ids.next( now ), now / 1000L );
+  }
+
+  /**
+   * Write the header block of a message into the buffer of the current thread.
+   *
+   * @param originator address of the message sender
+   * @param recipient address of the message receiver
+   * @param subject subject of the multimedia message
+   * @param transactionId transaction ID, a "TRANSACTION_ID_DIGITS" digits number
+   * @param date sending time of the message, in seconds since the epoch
+   * @return the buffer of the current thread, holding the header block ; it is overwritten by the next call
+   *         from the same thread
+   */
+  Buffer write( String originator, String recipient, String subject, long transactionId, long date ) {
+    return write( originator, recipient, null, subject, transactionId, date );
+  }
+
+  /**
+   * Write the header block of a message to a group of recipients, with a new transaction ID and the current date,
+   * into the buffer of the current thread.
+   *
+   * @param originator address of the message sender
+   * @param recipients the recipients of the message ; the "Bcc" ones are only written into an "m-send-req"
+   * @param subject subject of the multimedia message
+   * @return the buffer of the current thread, holding the header block ; it is overwritten by the next call
+   *         from the same thread
+   */
+  Buffer write( String originator, RecipientList.Group recipients, String subject ) {
+    long now = System.currentTimeMillis();
+    return write( originator, null, recipients, subject, ids.next( now ), now / 1000L );
+  }
+
+  /**
+   * Write the header block of a message to a group of recipients into the buffer of the current thread.
+   *
+   * @param originator address of the message sender
+   * @param recipients the recipients of the message ; the "Bcc" ones are only written into an "m-send-req"
+   * @param subject subject of the multimedia message
+   * @param transactionId transaction ID, a "TRANSACTION_ID_DIGITS" digits number
+   * @param date sending time of the message, in seconds since the epoch
+   * @return the buffer of the current thread, holding the header block ; it is overwritten by the next call
+   *         from the same thread
+   */
+  Buffer write( String originator, RecipientList.Group recipients, String subject, long transactionId, long date ) {
+    return write( originator, null, recipients, subject, transactionId, date );
+  }
+
+  /**
+   * Return the message type of the header blocks written.
+   *
+   * @return "MESSAGE_TYPE_M_SEND_REQ" or "MESSAGE_TYPE_M_RETRIEVE_CONF" (see "HeaderEncoder")
+   */
+  int getMessageType() {
+    return messageType;
+  }
+
+  /**
+   * Write the header block of a message, to a single recipient or to a group of recipients.
+   */
+  private Buffer write( String originator, String recipient, RecipientList.Group recipients, String subject,
+                        long transactionId, long date ) {
+    Buffer buf = BUFFERS.get();
+    buf.length = 0;
+    // "Type", "TransID", "Version" are all mandatory, and must be the first headers, in this order !
+    buf.put( IMMConstants.FN_MESSAGE_TYPE | 0x80 );
+    buf.put( messageType );
+    buf.put( IMMConstants.FN_TRANSACTION_ID | 0x80 );
+    buf.putDigits( transactionId, TRANSACTION_ID_DIGITS );
+    buf.put( 0 );
+    buf.put( IMMConstants.FN_MMS_VERSION | 0x80 );
+    buf.put( version );
+    buf.put( IMMConstants.FN_DATE | 0x80 );
+    buf.putLongInteger( date );
+    // "From" : "Value-length", "Address-present-token" and the address.
+    buf.put( IMMConstants.FN_FROM | 0x80 );
+    byte[] from = isAscii( originator ) ? null : originator.getBytes();
+    buf.putValueLength( ( from == null ? originator.length() : from.length ) + 2 );
+    buf.put( ADDRESS_PRESENT );
+    buf.putText( originator, from );
+    if ( recipients != null ) {
+      // The recipients of an "m-retrieve-conf" never see the "Bcc" ones, which follow the others.
+      byte[] encoded = recipients.getEncoded();
+      buf.put( encoded, 0, messageType == HeaderEncoder.MESSAGE_TYPE_M_SEND_REQ ? encoded.length
+              : recipients.getVisibleLength() );
+    }
+    else {
+      buf.put( IMMConstants.FN_TO | 0x80 );
+      buf.putText( recipient, isAscii( recipient ) ? null : recipient.getBytes() );
+    }
+    buf.put( IMMConstants.FN_SUBJECT | 0x80 );
+    buf.putText( subject, isAscii( subject ) ? null : subject.getBytes() );
+    buf.put( tail, 0, tail.length );
+    return buf;
+  }
+
+  private static boolean isAscii( String text ) {
+    for ( int i = 0, n = text.length(); i < n; i++ ) {
+      if ( text.charAt( i ) >= 0x80 ) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * A growable array of bytes, owned by a thread.
+   */
+  static final class Buffer {
+    private byte[] bytes = new byte[ INITIAL_CAPACITY ];
+    private int length;
+
+    /**
+     * Return the array holding the header block. It must not be modified, and is only valid until the next header
+     * block is written by the same thread.
+     *
+     * @return the array, of which the first "length()" bytes are the header block
+     */
+    byte[] array() {
+      return bytes;
+    }
+
+    int length() {
+      return length;
+    }
+
+    /**
+     * Return a copy of the header block, e.g. to hand it over to another thread.
+     *
+     * @return the header block
+     */
+    byte[] toByteArray() {
+      return Arrays.copyOf( bytes, length );
+    }
+
+    private void ensure( int extra ) {
+      if ( length + extra > bytes.length ) {
+        bytes = Arrays.copyOf( bytes, Math.max( 2 * bytes.length, length + extra ) );
+      }
+    }
+
+    private void put( int b ) {
+      ensure( 1 );
+      bytes[ length++ ] = (byte) b;
+    }
+
+    private void put( byte[] b, int off, int len ) {
+      ensure( len );
+      System.arraycopy( b, off, bytes, length, len );
+      length += len;
+    }
+
+    /**
+     * Write the decimal digits of a number, most significant first.
+     */
+    private void putDigits( long value, int digits ) {
+      ensure( digits );
+      for ( int i = length + digits - 1; i >= length; i-- ) {
+        bytes[ i ] = (byte) ( '0' + value % 10 );
+        value /= 10;
+      }
+      length += digits;
+    }
+
+    /**
+     * Write a "Long-integer" : its "Short-length" followed by its significant bytes.
+     */
+    private void putLongInteger( long value ) {
+      int n = Wsp.longIntegerLength( value );
+      ensure( n + 1 );
+      bytes[ length++ ] = (byte) n;
+      for ( int i = n - 1; i >= 0; i-- ) {
+        bytes[ length++ ] = (byte) ( value >>> ( 8 * i ) );
+      }
+    }
+
+    /**
+     * Write a "Value-length" : a single byte up to 30, otherwise 31 followed by a "Uintvar".
+     */
+    private void putValueLength( int value ) {
+      ensure( 6 );
+      if ( value <= Wsp.SHORT_LENGTH_MAX ) {
+        bytes[ length++ ] = (byte) value;
+      }
+      else {
+        bytes[ length++ ] = (byte) Wsp.LENGTH_QUOTE;
+        length = Wsp.putUintvar( value, bytes, length );
+      }
+    }
+
+    /**
+     * Write a null terminated text string : the characters of an ASCII text, or else its encoded bytes.
+     */
+    private void putText( String text, byte[] encoded ) {
+      if ( encoded != null ) {
+        put( encoded, 0, encoded.length );
+      }
+      else {
+        int n = text.length();
+        ensure( n );
+        for ( int i = 0; i < n; i++ ) {
+          bytes[ length++ ] = (byte) text.charAt( i );
+        }
+      }
+      put( 0 );
+    }
+  }
+}
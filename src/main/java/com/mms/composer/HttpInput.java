@@ -0,0 +1,218 @@
+package com.mms.composer;
+
+/*
+ * @(#)HttpInput.java	1.1
+ *
+ * Summary
+ *
+ * Buffered input of an HTTP/1.1 connection : header lines and message bodies, delimited by a "Content-Length" or
+ * chunked. The bytes read ahead, e.g. those of a pipelined request, are kept for the next message. Shared by the
+ * "MmsServer" and the "MmscSubmitter" ; an input is used by one thread at a time.
+ */
+
+// These imports are necessary for utilities.
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+final class HttpInput {
+  // Maximum size of a line, and number of header fields, of a message.
+  static final int MAX_LINE = 8192;
+  static final int MAX_HEADERS = 100;
+
+  private final InputStream in;
+  private final byte[] buf = new byte[ MAX_LINE ];
+  private int pos = 0;
+  private int limit = 0;
+
+  HttpInput( InputStream in ) {
+    this.in = in;
+  }
+
+  /**
+   * Read a line, without its line terminator.
+   *
+   * @return the line, or null at the end of the stream
+   * @throws ProtocolException if the line is too long
+   */
+  String readLine() throws IOException {
+    int scanned = pos;
+    while ( true ) {
+      for ( int i = scanned; i < limit; i++ ) {
+        if ( buf[ i ] == '\n' ) {
+          int end = i > pos && buf[ i - 1 ] == '\r' ? i - 1 : i;
+          String line = new String( buf, pos, end - pos, StandardCharsets.ISO_8859_1 );
+          pos = i + 1;
+          return line;
+        }
+      }
+      if ( pos > 0 ) {
+        System.arraycopy( buf, pos, buf, 0, limit - pos );
+        limit -= pos;
+        pos = 0;
+      }
+      if ( limit == buf.length ) {
+        throw new ProtocolException( "Line too long" );
+      }
+      scanned = limit;
+      int n = in.read( buf, limit, buf.length - limit );
+      if ( n < 0 ) {
+        return null;
+      }
+      limit += n;
+    }
+  }
+
+  /**
+   * Read header fields, up to the empty line that ends them, into a map by lower case name. The values of a
+   * repeated field are joined with commas.
+   *
+   * @param headers the map
+   * @return false at the end of the stream
+   * @throws ProtocolException if a header field is malformed
+   */
+  boolean readHeaders( Map<String, String> headers ) throws IOException {
+    for ( int n = 0; ; n++ ) {
+      String line = readLine();
+      if ( line == null ) {
+        return false;
+      }
+      if ( line.isEmpty() ) {
+        return true;
+      }
+      int colon = line.indexOf( ':' );
+      if ( colon <= 0 || n >= MAX_HEADERS ) {
+        throw new ProtocolException( "Malformed header field" );
+      }
+      headers.merge( line.substring( 0, colon ).trim().toLowerCase( Locale.ROOT ), line.substring( colon + 1 ).trim(),
+              ( a, b ) -> a + ", " + b );
+    }
+  }
+
+  /**
+   * Read up to "len" bytes, the bytes read ahead first.
+   *
+   * @return number of bytes read, or -1 at the end of the stream
+   */
+  int read( byte[] b, int off, int len ) throws IOException {
+    if ( pos < limit ) {
+      int n = Math.min( len, limit - pos );
+      System.arraycopy( buf, pos, b, off, n );
+      pos += n;
+      return n;
+    }
+    return in.read( b, off, len );
+  }
+
+  /**
+   * Read exactly "len" bytes.
+   *
+   * @throws EOFException if the stream ends before
+   */
+  void readFully( byte[] b, int off, int len ) throws IOException {
+    while ( len > 0 ) {
+      int n = read( b, off, len );
+      if ( n < 0 ) {
+        throw new EOFException( "Connection closed within a message body" );
+      }
+      off += n;
+      len -= n;
+    }
+  }
+
+  /**
+   * Skip "count" bytes, or up to the end of the stream.
+   */
+  void skip( long count ) throws IOException {
+    long buffered = Math.min( count, limit - pos );
+    pos += (int) buffered;
+    count -= buffered;
+    while ( count > 0 ) {
+      long n = in.skip( count );
+      if ( n <= 0 ) {
+        if ( in.read() < 0 ) {
+          return;
+        }
+        n = 1;
+      }
+      count -= n;
+    }
+  }
+
+  /**
+   * Read a message body, delimited as its header fields tell : chunked, by its "Content-Length", or else by the end
+   * of the stream.
+   *
+   * @param headers header fields of the message, by lower case name
+   * @param max maximum size of the body
+   * @return the body
+   * @throws ProtocolException if the body is larger than "max", or malformed
+   */
+  byte[] readBody( Map<String, String> headers, int max ) throws IOException {
+    String transferEncoding = headers.get( "transfer-encoding" );
+    if ( transferEncoding != null && transferEncoding.toLowerCase( Locale.ROOT ).contains( "chunked" ) ) {
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      byte[] chunk = new byte[ 4096 ];
+      while ( true ) {
+        String line = readLine();
+        if ( line == null ) {
+          throw new EOFException( "Connection closed within a chunked body" );
+        }
+        int semicolon = line.indexOf( ';' );
+        long size;
+        try {
+          size = Long.parseLong( ( semicolon < 0 ? line : line.substring( 0, semicolon ) ).trim(), 16 );
+        }
+        catch ( NumberFormatException e ) {
+          throw new ProtocolException( "Malformed chunk size" );
+        }
+        if ( size == 0 ) {
+          // Trailer fields, if any, are ignored.
+          readHeaders( new HashMap<>() );
+          return body.toByteArray();
+        }
+        if ( size < 0 || body.size() + size > max ) {
+          throw new ProtocolException( "Message body larger than " + max + " bytes" );
+        }
+        for ( long left = size; left > 0; ) {
+          int n = (int) Math.min( left, chunk.length );
+          readFully( chunk, 0, n );
+          body.write( chunk, 0, n );
+          left -= n;
+        }
+        readLine();
+      }
+    }
+    String contentLength = headers.get( "content-length" );
+    if ( contentLength != null ) {
+      long length;
+      try {
+        length = Long.parseLong( contentLength.trim() );
+      }
+      catch ( NumberFormatException e ) {
+        throw new ProtocolException( "Malformed Content-Length" );
+      }
+      if ( length < 0 || length > max ) {
+        throw new ProtocolException( "Message body larger than " + max + " bytes" );
+      }
+      byte[] body = new byte[ (int) length ];
+      readFully( body, 0, body.length );
+      return body;
+    }
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    byte[] chunk = new byte[ 4096 ];
+    for ( int n = read( chunk, 0, chunk.length ); n >= 0; n = read( chunk, 0, chunk.length ) ) {
+      if ( body.size() + n > max ) {
+        throw new ProtocolException( "Message body larger than " + max + " bytes" );
+      }
+      body.write( chunk, 0, n );
+    }
+    return body.toByteArray();
+  }
+}
@@ -0,0 +1,190 @@
+package com.mms.composer;
+
+/*
+ * @(#)IdGenerator.java	1.1
+ *
+ * Summary
+ *
+ * Generator of the transaction IDs and "Message-ID"s of the messages, unique across the threads of a process and
+ * across the nodes of a deployment, in the manner of Snowflake. An ID is a positive 63 bits number made of :
+ *
+ * - the time of its generation, in milliseconds since 2020-01-01T00:00:00Z (41 bits, until 2089) ;
+ * - the ID of the node that generated it (10 bits, 0-1023), given to each node of the deployment ;
+ * - a sequence number within the millisecond (12 bits, i.e. 4096 IDs per millisecond).
+ *
+ * The last timestamp and sequence handed out are held in a single "AtomicLong", updated with a compare-and-set :
+ * generating an ID takes no lock, and two threads never get the same one. When more than 4096 IDs are generated
+ * within a millisecond, the sequence goes on in the next millisecond, ahead of the clock, rather than waiting for it ;
+ * likewise, if the clock goes back, the IDs go on from the last one. IDs of different nodes differ by their node ID.
+ *
+ * Uniqueness therefore holds as long as every generator in use has its own node ID : the composers of a process
+ * share the default generator (see "getDefault()"), and each node of a deployment is given its own ID with the
+ * "mms.node.id" system property or the "--node-id" option of the "BatchComposer". A node restarted within the
+ * milliseconds its last IDs were ahead of the clock, or after its clock was set back, could hand out some of them
+ * again.
+ *
+ * A transaction ID is the ID as a 19 digits decimal number, written straight into the header block by the
+ * "HeaderWriter" ; a "Message-ID" is the ID as a 16 digits hexadecimal number.
+ */
+
+// These imports are necessary for utilities.
+import java.util.concurrent.atomic.AtomicLong;
+
+public final class IdGenerator {
+  // Bits of the node ID and of the sequence ; the timestamp takes the remaining 41 bits of a positive "long".
+  private static final int NODE_BITS = 10;
+  private static final int SEQUENCE_BITS = 12;
+  private static final int TIMESTAMP_BITS = 63 - NODE_BITS - SEQUENCE_BITS;
+  private static final long SEQUENCE_MASK = ( 1L << SEQUENCE_BITS ) - 1;
+  // Largest node ID.
+  public static final int MAX_NODE = ( 1 << NODE_BITS ) - 1;
+  // Epoch of the timestamps : 2020-01-01T00:00:00Z, in milliseconds.
+  public static final long EPOCH = 1_577_836_800_000L;
+  // Number of digits of a transaction ID.
+  public static final int TRANSACTION_ID_DIGITS = 19;
+  // Node ID of the default generator, can be set with the "mms.node.id" system property.
+  private static final IdGenerator DEFAULT = new IdGenerator( Integer.getInteger( "mms.node.id", 0 ) );
+
+  private final int node;
+  // Last timestamp and sequence handed out : the timestamp shifted left by "SEQUENCE_BITS", plus the sequence.
+  private final AtomicLong last = new AtomicLong();
+
+  /**
+   * Create a generator. No other generator in use, in this process or on another node, may have the same node ID.
+   *
+   * @param node ID of the node (0-1023)
+   */
+  public IdGenerator( int node ) {
+    if ( node < 0 || node > MAX_NODE ) {
+      throw new IllegalArgumentException( "Invalid node ID : " + node + " (0-" + MAX_NODE + ")" );
+    }
+    this.node = node;
+  }
+
+  /**
+   * Return the process wide generator, shared by all the composers that are not given a generator of their own. Its
+   * node ID is the "mms.node.id" system property, 0 by default.
+   *
+   * @return the default generator
+   */
+  public static IdGenerator getDefault() {
+    return DEFAULT;
+  }
+
+  public int getNode() {
+    return node;
+  }
+
+  /**
+   * Generate an ID. Safe for use by multiple threads, without locks.
+   *
+   * @return the ID, a positive number, larger than any ID generated before by this generator
+   * @throws IllegalStateException past 2089, when the timestamps overflow their 41 bits
+   */
+  public long next() {
+    return next( System.currentTimeMillis() );
+  }
+
+  /**
+   * Generate an ID at a time already read from the clock, e.g. the date of the message, so as to read the clock
+   * only once.
+   *
+   * @param currentTimeMillis the current time, in milliseconds since the epoch
+   * @return the ID, a positive number, larger than any ID generated before by this generator
+   * @throws IllegalStateException past 2089, when the timestamps overflow their 41 bits
+   */
+  public long next( long currentTimeMillis ) {
+    long now = ( currentTimeMillis - EPOCH ) << SEQUENCE_BITS;
+    long previous;
+    long next;
+    do {
+      previous = last.get();
+      next = Math.max( previous + 1, now );
+    } while ( !last.compareAndSet( previous, next ) );
+    if ( next >>> ( TIMESTAMP_BITS + SEQUENCE_BITS ) != 0 ) {
+      throw new IllegalStateException( "The timestamps of the IDs overflow" );
+    }
+    return ( next >>> SEQUENCE_BITS ) << ( NODE_BITS + SEQUENCE_BITS )
+            | (long) node << SEQUENCE_BITS
+            | next & SEQUENCE_MASK;
+  }
+
+  /**
+   * Generate a transaction ID.
+   *
+   * @return the transaction ID, "TRANSACTION_ID_DIGITS" decimal digits
+   */
+  public String nextTransactionId() {
+    return toTransactionId( next() );
+  }
+
+  /**
+   * Generate a "Message-ID".
+   *
+   * @return the "Message-ID", 16 hexadecimal digits
+   */
+  public String nextMessageId() {
+    return toMessageId( next() );
+  }
+
+  /**
+   * Return the transaction ID of an ID : its decimal digits, padded with zeros.
+   *
+   * @param id the ID
+   * @return the transaction ID, "TRANSACTION_ID_DIGITS" decimal digits
+   */
+  public static String toTransactionId( long id ) {
+    char[] digits = new char[ TRANSACTION_ID_DIGITS ];
+    for ( int i = digits.length - 1; i >= 0; i-- ) {
+      digits[ i ] = (char) ( '0' + id % 10 );
+      id /= 10;
+    }
+    return new String( digits );
+  }
+
+  /**
+   * Return the "Message-ID" of an ID : its hexadecimal digits, padded with zeros.
+   *
+   * @param id the ID
+   * @return the "Message-ID", 16 hexadecimal digits
+   */
+  public static String toMessageId( long id ) {
+    String hex = Long.toHexString( id );
+    return "0000000000000000".substring( hex.length() ) + hex;
+  }
+
+  /**
+   * Return the time an ID was generated at.
+   *
+   * @param id the ID
+   * @return the time, in milliseconds since the epoch ; it may be a little ahead of the clock
+   */
+  public static long getTimestamp( long id ) {
+    return ( id >>> ( NODE_BITS + SEQUENCE_BITS ) ) + EPOCH;
+  }
+
+  /**
+   * Return the ID of the node that generated an ID.
+   *
+   * @param id the ID
+   * @return the node ID
+   */
+  public static int getNode( long id ) {
+    return (int) ( id >>> SEQUENCE_BITS ) & MAX_NODE;
+  }
+
+  /**
+   * Return how far the IDs generated are ahead of the clock, because more than 4096 IDs were generated within a
+   * millisecond.
+   *
+   * @return the time, in milliseconds, the last ID is ahead of the clock ; 0 if it is not
+   */
+  public long getAhead() {
+    return Math.max( 0, ( last.get() >>> SEQUENCE_BITS ) - ( System.currentTimeMillis() - EPOCH ) );
+  }
+
+  @Override
+  public String toString() {
+    return String.format( "ID generator : node %d, %d ms ahead of the clock", node, getAhead() );
+  }
+}
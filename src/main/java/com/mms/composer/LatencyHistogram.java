@@ -0,0 +1,180 @@
+package com.mms.composer;
+
+/*
+ * @(#)LatencyHistogram.java	1.1
+ *
+ * Summary
+ *
+ * Histogram of latencies, in nanoseconds, in the manner of HdrHistogram : values are counted in log-linear buckets,
+ * i.e. 64 linear sub-buckets per power of two, so that any percentile is reported within 1/64 (about 1.6 %) of the
+ * value recorded, from a nanosecond up to about 18 minutes (larger values are counted as the largest). The buckets
+ * are fixed : recording a value is one array increment and one addition, without locks nor allocation, and is safe
+ * for use by multiple threads.
+ *
+ * A "Snapshot" is a copy of the counts, from which percentiles are read ; the difference of two snapshots gives the
+ * histogram of the values recorded in between, e.g. for a periodic report.
+ */
+
+// These imports are necessary for utilities.
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public final class LatencyHistogram {
+  // Bits of the linear sub-buckets : values below 2^SUB_BITS are counted exactly, larger ones with SUB_BITS - 1
+  // significant bits.
+  private static final int SUB_BITS = 7;
+  private static final int SUB_COUNT = 1 << SUB_BITS;
+  private static final int HALF_COUNT = SUB_COUNT / 2;
+  // Largest shift, for values below 2^40 ns.
+  private static final int MAX_SHIFT = 40 - SUB_BITS;
+  private static final int LENGTH = SUB_COUNT + MAX_SHIFT * HALF_COUNT;
+
+  private final AtomicLongArray counts = new AtomicLongArray( LENGTH );
+  private final LongAdder sum = new LongAdder();
+
+  /**
+   * Record a value.
+   *
+   * @param nanos the value, in nanoseconds ; a negative value is counted as 0
+   */
+  public void record( long nanos ) {
+    long value = Math.max( 0, nanos );
+    counts.incrementAndGet( index( value ) );
+    sum.add( value );
+  }
+
+  /**
+   * Return the bucket of a value.
+   */
+  static int index( long value ) {
+    if ( value < SUB_COUNT ) {
+      return (int) value;
+    }
+    int shift = 64 - Long.numberOfLeadingZeros( value ) - SUB_BITS;
+    if ( shift > MAX_SHIFT ) {
+      return LENGTH - 1;
+    }
+    return SUB_COUNT + ( shift - 1 ) * HALF_COUNT + (int) ( value >>> shift ) - HALF_COUNT;
+  }
+
+  /**
+   * Return the largest value counted in a bucket.
+   */
+  static long highestValue( int index ) {
+    if ( index < SUB_COUNT ) {
+      return index;
+    }
+    int shift = ( index - SUB_COUNT ) / HALF_COUNT + 1;
+    long sub = ( index - SUB_COUNT ) % HALF_COUNT + HALF_COUNT;
+    return ( ( sub + 1 ) << shift ) - 1;
+  }
+
+  /**
+   * Return a copy of the counts. Values recorded meanwhile may or may not be in it.
+   *
+   * @return the snapshot
+   */
+  public Snapshot snapshot() {
+    long[] copy = new long[ LENGTH ];
+    for ( int i = 0; i < LENGTH; i++ ) {
+      copy[ i ] = counts.get( i );
+    }
+    return new Snapshot( copy, sum.sum() );
+  }
+
+  /**
+   * A copy of the counts of a histogram.
+   */
+  public static final class Snapshot {
+    private static final Snapshot EMPTY = new Snapshot( new long[ LENGTH ], 0 );
+
+    private final long[] counts;
+    private final long sum;
+    private final long count;
+
+    Snapshot( long[] counts, long sum ) {
+      this.counts = counts;
+      this.sum = sum;
+      long c = 0;
+      for ( long n : counts ) {
+        c += n;
+      }
+      this.count = c;
+    }
+
+    /**
+     * Return an empty snapshot.
+     *
+     * @return a snapshot without any value
+     */
+    public static Snapshot empty() {
+      return EMPTY;
+    }
+
+    /**
+     * Return the histogram of the values recorded since an earlier snapshot of the same histogram.
+     *
+     * @param earlier the earlier snapshot
+     * @return the difference of the snapshots
+     */
+    public Snapshot minus( Snapshot earlier ) {
+      long[] difference = new long[ LENGTH ];
+      for ( int i = 0; i < LENGTH; i++ ) {
+        difference[ i ] = Math.max( 0, counts[ i ] - earlier.counts[ i ] );
+      }
+      return new Snapshot( difference, Math.max( 0, sum - earlier.sum ) );
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    /**
+     * Return the sum of the values.
+     *
+     * @return sum, in nanoseconds
+     */
+    public long getSum() {
+      return sum;
+    }
+
+    public double getMean() {
+      return count > 0 ? (double) sum / count : 0;
+    }
+
+    /**
+     * Return the value below which a given percentage of the values fall.
+     *
+     * @param percentile the percentage (0-100)
+     * @return the value, in nanoseconds, within 1/64 ; 0 if there is no value
+     */
+    public long getValueAtPercentile( double percentile ) {
+      if ( count == 0 ) {
+        return 0;
+      }
+      long rank = Math.max( 1, (long) Math.ceil( Math.min( 100, percentile ) / 100 * count ) );
+      long seen = 0;
+      for ( int i = 0; i < LENGTH; i++ ) {
+        seen += counts[ i ];
+        if ( seen >= rank ) {
+          return highestValue( i );
+        }
+      }
+      return highestValue( LENGTH - 1 );
+    }
+
+    /**
+     * Return the largest value.
+     *
+     * @return the value, in nanoseconds, within 1/64 ; 0 if there is no value
+     */
+    public long getMax() {
+      for ( int i = LENGTH - 1; i >= 0; i-- ) {
+        if ( counts[ i ] > 0 ) {
+          return highestValue( i );
+        }
+      }
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,87 @@
+package com.mms.composer;
+
+/*
+ * @(#)ManifestEntry.java	1.1
+ *
+ * Summary
+ *
+ * A single row of a batch manifest, i.e. the per-recipient values that are used to compose one Multimedia Message :
+ * the address of the message sender, the address of the message receiver and the subject of the message. An
+ * optional "id" names the output MMS file ; when it is missing the row sequence number is used instead.
+ */
+
+public class ManifestEntry {
+  // Sequence number of the row within the manifest (0 based, header rows and blank lines excluded).
+  private final long sequence;
+  // Optional key of the row, used to name the output MMS file.
+  private final String id;
+  // Address of the message sender.
+  private final String originator;
+  // Address of the message receiver.
+  private final String recipient;
+  // Subject of the multimedia message.
+  private final String subject;
+
+  /**
+   * Create a manifest entry.
+   *
+   * @param sequence sequence number of the row within the manifest
+   * @param id optional key of the row (may be null)
+   * @param originator address of the message sender
+   * @param recipient address of the message receiver
+   * @param subject subject of the multimedia message
+   */
+  public ManifestEntry( long sequence, String id, String originator, String recipient, String subject ) {
+    this.sequence = sequence;
+    this.id = id;
+    this.originator = originator;
+    this.recipient = recipient;
+    this.subject = subject;
+  }
+
+  public long getSequence() {
+    return sequence;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getOriginator() {
+    return originator;
+  }
+
+  public String getRecipient() {
+    return recipient;
+  }
+
+  public String getSubject() {
+    return subject;
+  }
+
+  /**
+   * Return the key of the entry : its "id" if one was given, otherwise its zero padded sequence number.
+   * Any character that is not safe in a file name is replaced by "_" : two ids may thus share a key, which the
+   * "ManifestReader" reports.
+   *
+   * @return key of the entry
+   */
+  public String getKey() {
+    if ( id == null || id.isEmpty() ) {
+      return String.format( "%08d", sequence );
+    }
+    StringBuilder key = new StringBuilder( id.length() );
+    for ( int i = 0; i < id.length(); i++ ) {
+      char c = id.charAt( i );
+      boolean safe = ( c >= 'a' && c <= 'z' ) || ( c >= 'A' && c <= 'Z' ) || ( c >= '0' && c <= '9' )
+              || c == '.' || c == '-' || c == '_' || c == '+';
+      key.append( safe ? c : '_' );
+    }
+    return key.toString();
+  }
+
+  @Override
+  public String toString() {
+    return "#" + sequence + " [" + getKey() + "] " + originator + " -> " + recipient + " : " + subject;
+  }
+}
@@ -0,0 +1,375 @@
+package com.mms.composer;
+
+/*
+ * @(#)ManifestReader.java	1.1
+ *
+ * Summary
+ *
+ * Streaming reader of a batch manifest. A manifest lists one Multimedia Message per row, either as CSV or as
+ * JSON Lines (one flat JSON object per line). The format is detected from the first non blank line : a line
+ * starting with "{" selects JSON Lines, anything else CSV.
+ *
+ * CSV
+ *
+ * Columns are "originator,recipient,subject[,id]" in that order, unless the first row is a header naming the
+ * columns (in any order, case insensitive). Fields may be quoted with '"', a quote inside a quoted field
+ * being written as '""'. A quoted field may span several lines.
+ *
+ * 		originator,recipient,subject,id
+ * 		"made by Aristotelis",+306900000000/TYPE=PLMN,"Hello, world",campaign-0001
+ *
+ * JSON Lines
+ *
+ * 		{"originator":"made by Aristotelis","recipient":"+306900000000/TYPE=PLMN","subject":"Hello","id":"c-0001"}
+ *
+ * Rows are returned one at a time, so that the manifest is never loaded into memory as a whole. A malformed row is
+ * reported with a "MalformedRowException", after which the next row can still be read ; any other "IOException"
+ * is a failure to read the manifest itself.
+ *
+ * Each row must have a key of its own, as its output file, and its record in the progress journal, are named after
+ * it (see "ManifestEntry.getKey()"). Two ids may well map to the same key, e.g. "a/b" and "a_b", or an id to the
+ * sequence number of another row, and two keys that only differ in case name the same file on some file systems :
+ * such a row is reported as malformed, rather than overwriting the message of an earlier row. Only the keys are
+ * kept in memory meanwhile, not the rows.
+ */
+
+// These imports are necessary for utilities.
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+public class ManifestReader implements Closeable {
+  // Names of the manifest columns.
+  static final String ID = "id";
+  static final String ORIGINATOR = "originator";
+  static final String RECIPIENT = "recipient";
+  static final String SUBJECT = "subject";
+
+  private final BufferedReader reader;
+  private final String name;
+  // Current line number (1 based), for error messages.
+  private long lineNumber = 0;
+  // Sequence number of the next entry.
+  private long sequence = 0;
+  // Keys of the entries read so far, in lower case.
+  private final Set<String> keys = new HashSet<>();
+  // Format of the manifest; "null" until the first non blank line has been seen.
+  private Boolean jsonLines = null;
+  // Column positions of a CSV manifest.
+  private int idColumn = 3;
+  private int originatorColumn = 0;
+  private int recipientColumn = 1;
+  private int subjectColumn = 2;
+
+  /**
+   * Open a manifest file. The file is read as UTF-8.
+   *
+   * @param filename name of the manifest file
+   * @throws IOException if the file cannot be opened
+   */
+  public ManifestReader( String filename ) throws IOException {
+    this( new InputStreamReader( new FileInputStream( filename ), StandardCharsets.UTF_8 ), filename );
+  }
+
+  /**
+   * Read a manifest from a character stream.
+   *
+   * @param in the manifest
+   * @param name name of the manifest, used in error messages
+   */
+  public ManifestReader( Reader in, String name ) {
+    this.reader = in instanceof BufferedReader ? (BufferedReader) in : new BufferedReader( in, 64 * 1024 );
+    this.name = name;
+  }
+
+  /**
+   * Read the next entry of the manifest.
+   *
+   * @return the next entry, or null at the end of the manifest
+   * @throws MalformedRowException if the row is malformed ; the next call reads the next row
+   * @throws IOException if the manifest cannot be read
+   */
+  public ManifestEntry next() throws IOException {
+    String line;
+    while ( ( line = reader.readLine() ) != null ) {
+      lineNumber++;
+      if ( line.trim().isEmpty() ) {
+        continue;
+      }
+      boolean first = jsonLines == null;
+      if ( first ) {
+        // Strip a UTF-8 "BOM", if any, and detect the format of the manifest.
+        if ( line.charAt( 0 ) == '\uFEFF' ) {
+          line = line.substring( 1 );
+        }
+        jsonLines = line.trim().startsWith( "{" );
+      }
+      if ( jsonLines ) {
+        return parseJsonLine( line );
+      }
+      String[] fields = parseCsv( line );
+      if ( first && readCsvHeader( fields ) ) {
+        continue;
+      }
+      return csvEntry( fields );
+    }
+    return null;
+  }
+
+  /**
+   * Use the first row of a CSV manifest as a header, if it names the columns.
+   *
+   * @param fields fields of the first row
+   * @return true if the row is a header
+   */
+  private boolean readCsvHeader( String[] fields ) {
+    Map<String, Integer> columns = new HashMap<>();
+    for ( int i = 0; i < fields.length; i++ ) {
+      columns.put( fields[ i ].trim().toLowerCase(), i );
+    }
+    if ( !columns.containsKey( RECIPIENT ) ) {
+      return false;
+    }
+    idColumn = columns.getOrDefault( ID, -1 );
+    originatorColumn = columns.getOrDefault( ORIGINATOR, -1 );
+    recipientColumn = columns.get( RECIPIENT );
+    subjectColumn = columns.getOrDefault( SUBJECT, -1 );
+    return true;
+  }
+
+  private ManifestEntry csvEntry( String[] fields ) throws IOException {
+    return entry( field( fields, idColumn ), field( fields, originatorColumn ), field( fields, recipientColumn ),
+            field( fields, subjectColumn ) );
+  }
+
+  /**
+   * Create the entry of a row. The originator and the recipient are mandatory, a missing subject is left empty.
+   *
+   * @param id optional key of the row
+   * @param originator address of the message sender
+   * @param recipient address of the message receiver
+   * @param subject subject of the multimedia message
+   * @return the entry
+   * @throws IOException if a mandatory value is missing, or if the key of the entry is the key of an earlier one
+   */
+  private ManifestEntry entry( String id, String originator, String recipient, String subject ) throws IOException {
+    if ( originator == null || originator.isEmpty() ) {
+      throw malformed( "missing originator" );
+    }
+    if ( recipient == null || recipient.isEmpty() ) {
+      throw malformed( "missing recipient" );
+    }
+    ManifestEntry entry = new ManifestEntry( sequence++, id, originator, recipient, subject == null ? "" : subject );
+    if ( !keys.add( entry.getKey().toLowerCase( Locale.ROOT ) ) ) {
+      throw malformed( "duplicate key \"" + entry.getKey() + "\"" + ( id == null || id.isEmpty() ? ""
+              : " of id \"" + id + "\"" ) );
+    }
+    return entry;
+  }
+
+  private static String field( String[] fields, int column ) {
+    return column >= 0 && column < fields.length ? fields[ column ] : null;
+  }
+
+  /**
+   * Split a CSV row into its fields. A quoted field that is not closed on this line continues on the next one.
+   *
+   * @param line the row
+   * @return fields of the row
+   * @throws IOException if a quoted field is never closed
+   */
+  private String[] parseCsv( String line ) throws IOException {
+    List<String> fields = new ArrayList<>();
+    StringBuilder field = new StringBuilder();
+    boolean quoted = false;
+    int i = 0;
+    while ( true ) {
+      if ( i == line.length() ) {
+        if ( !quoted ) {
+          break;
+        }
+        // Quoted field spanning lines.
+        line = reader.readLine();
+        lineNumber++;
+        if ( line == null ) {
+          throw malformed( "unterminated quoted field" );
+        }
+        field.append( '\n' );
+        i = 0;
+        continue;
+      }
+      char c = line.charAt( i++ );
+      if ( quoted ) {
+        if ( c == '"' ) {
+          if ( i < line.length() && line.charAt( i ) == '"' ) {
+            field.append( '"' );
+            i++;
+          }
+          else {
+            quoted = false;
+          }
+        }
+        else {
+          field.append( c );
+        }
+      }
+      else if ( c == '"' ) {
+        quoted = true;
+      }
+      else if ( c == ',' ) {
+        fields.add( field.toString() );
+        field.setLength( 0 );
+      }
+      else {
+        field.append( c );
+      }
+    }
+    fields.add( field.toString() );
+    return fields.toArray( new String[ 0 ] );
+  }
+
+  /**
+   * Parse a JSON Lines row, i.e. a flat JSON object whose values are strings (numbers, booleans and "null"
+   * are accepted too and kept as their literal text, "null" as a missing value).
+   *
+   * @param line the row
+   * @return the entry
+   * @throws IOException if the row is not a flat JSON object
+   */
+  private ManifestEntry parseJsonLine( String line ) throws IOException {
+    Map<String, String> values = new HashMap<>();
+    int[] pos = { skipWhitespace( line, 0 ) };
+    expect( line, pos, '{' );
+    pos[ 0 ] = skipWhitespace( line, pos[ 0 ] );
+    if ( pos[ 0 ] < line.length() && line.charAt( pos[ 0 ] ) == '}' ) {
+      pos[ 0 ]++;
+    }
+    else {
+      while ( true ) {
+        pos[ 0 ] = skipWhitespace( line, pos[ 0 ] );
+        String key = jsonString( line, pos );
+        pos[ 0 ] = skipWhitespace( line, pos[ 0 ] );
+        expect( line, pos, ':' );
+        pos[ 0 ] = skipWhitespace( line, pos[ 0 ] );
+        values.put( key, jsonValue( line, pos ) );
+        pos[ 0 ] = skipWhitespace( line, pos[ 0 ] );
+        if ( pos[ 0 ] < line.length() && line.charAt( pos[ 0 ] ) == ',' ) {
+          pos[ 0 ]++;
+          continue;
+        }
+        expect( line, pos, '}' );
+        break;
+      }
+    }
+    if ( skipWhitespace( line, pos[ 0 ] ) != line.length() ) {
+      throw malformed( "unexpected characters after the JSON object" );
+    }
+    return entry( values.get( ID ), values.get( ORIGINATOR ), values.get( RECIPIENT ), values.get( SUBJECT ) );
+  }
+
+  private String jsonValue( String line, int[] pos ) throws IOException {
+    if ( pos[ 0 ] < line.length() && line.charAt( pos[ 0 ] ) == '"' ) {
+      return jsonString( line, pos );
+    }
+    int start = pos[ 0 ];
+    while ( pos[ 0 ] < line.length() && ",} \t".indexOf( line.charAt( pos[ 0 ] ) ) < 0 ) {
+      pos[ 0 ]++;
+    }
+    String literal = line.substring( start, pos[ 0 ] );
+    if ( literal.isEmpty() || literal.startsWith( "{" ) || literal.startsWith( "[" ) ) {
+      throw malformed( "only flat objects of strings are supported" );
+    }
+    return "null".equals( literal ) ? null : literal;
+  }
+
+  private String jsonString( String line, int[] pos ) throws IOException {
+    expect( line, pos, '"' );
+    StringBuilder value = new StringBuilder();
+    while ( pos[ 0 ] < line.length() ) {
+      char c = line.charAt( pos[ 0 ]++ );
+      if ( c == '"' ) {
+        return value.toString();
+      }
+      if ( c != '\\' ) {
+        value.append( c );
+        continue;
+      }
+      if ( pos[ 0 ] == line.length() ) {
+        break;
+      }
+      char e = line.charAt( pos[ 0 ]++ );
+      switch ( e ) {
+        case 'b': value.append( '\b' ); break;
+        case 'f': value.append( '\f' ); break;
+        case 'n': value.append( '\n' ); break;
+        case 'r': value.append( '\r' ); break;
+        case 't': value.append( '\t' ); break;
+        case 'u':
+          if ( pos[ 0 ] + 4 > line.length() ) {
+            throw malformed( "truncated unicode escape" );
+          }
+          try {
+            value.append( (char) Integer.parseInt( line.substring( pos[ 0 ], pos[ 0 ] + 4 ), 16 ) );
+          }
+          catch ( NumberFormatException nfe ) {
+            throw malformed( "invalid unicode escape" );
+          }
+          pos[ 0 ] += 4;
+          break;
+        default: value.append( e );
+      }
+    }
+    throw malformed( "unterminated string" );
+  }
+
+  private void expect( String line, int[] pos, char c ) throws IOException {
+    if ( pos[ 0 ] >= line.length() || line.charAt( pos[ 0 ] ) != c ) {
+      throw malformed( "expected '" + c + "' at column " + ( pos[ 0 ] + 1 ) );
+    }
+    pos[ 0 ]++;
+  }
+
+  private static int skipWhitespace( String line, int i ) {
+    while ( i < line.length() && Character.isWhitespace( line.charAt( i ) ) ) {
+      i++;
+    }
+    return i;
+  }
+
+  private MalformedRowException malformed( String reason ) {
+    return new MalformedRowException( "Malformed manifest row : \"" + name + "\" line " + lineNumber + " : "
+            + reason );
+  }
+
+  /**
+   * Return the current line number of the manifest.
+   *
+   * @return current line number (1 based)
+   */
+  public long getLineNumber() {
+    return lineNumber;
+  }
+
+  @Override
+  public void close() throws IOException {
+    reader.close();
+  }
+
+  /**
+   * A row of the manifest that cannot be parsed, or lacks a mandatory value. Unlike other "IOException"s, it does
+   * not prevent the next rows from being read.
+   */
+  public static class MalformedRowException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public MalformedRowException( String message ) {
+      super( message );
+    }
+  }
+}
@@ -0,0 +1,112 @@
+package com.mms.composer;
+
+/*
+ * @(#)MediaLoader.java	1.1
+ *
+ * Summary
+ *
+ * Loads the "multimedia" files of a Multimedia Message. Small files are read in bulk through a "FileChannel" into
+ * an array of bytes sized to the file, large files (at or above the map threshold) are memory-mapped and copied out of
+ * the mapping in one go, so that no file is ever read a byte at a time. The threshold defaults to 256 KB and can be
+ * overridden with the "mms.loader.map.threshold" system property.
+ *
+ * Every file handle is closed before returning, and a missing or unreadable file is reported with an "IOException"
+ * (a "NoSuchFileException" when the file does not exist) rather than by exiting the JVM.
+ */
+
+// These imports are necessary for utilities.
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+public class MediaLoader {
+  // Default size, in bytes, from which files are memory-mapped instead of read.
+  public static final long DEFAULT_MAP_THRESHOLD = Long.getLong( "mms.loader.map.threshold", 256L * 1024 );
+  // Largest file that fits into an array of bytes.
+  private static final long MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+  // Size, in bytes, from which files are memory-mapped instead of read.
+  private final long mapThreshold;
+
+  /**
+   * Create a loader with the default map threshold.
+   */
+  public MediaLoader() {
+    this( DEFAULT_MAP_THRESHOLD );
+  }
+
+  /**
+   * Create a loader.
+   *
+   * @param mapThreshold size, in bytes, from which files are memory-mapped instead of read
+   */
+  public MediaLoader( long mapThreshold ) {
+    if ( mapThreshold < 0 ) {
+      throw new IllegalArgumentException( "Negative map threshold : " + mapThreshold );
+    }
+    this.mapThreshold = mapThreshold;
+  }
+
+  public long getMapThreshold() {
+    return mapThreshold;
+  }
+
+  /**
+   * Read a file and return its bytes.
+   *
+   * @param filename name of the file
+   * @return array of bytes holding the whole file
+   * @throws NoSuchFileException if the file does not exist
+   * @throws IOException if the file cannot be read or is too large for an array of bytes
+   */
+  public byte[] load( String filename ) throws IOException {
+    Path path = Paths.get( filename );
+    try ( FileChannel channel = FileChannel.open( path, StandardOpenOption.READ ) ) {
+      long size = channel.size();
+      if ( size > MAX_ARRAY_SIZE ) {
+        throw new IOException( "File too large to be loaded : \"" + filename + "\" (" + size + " bytes)" );
+      }
+      byte[] buf = new byte[ (int) size ];
+      if ( size > 0 && size >= mapThreshold ) {
+        // Large file : copy the whole mapping into the array with a single bulk "get".
+        channel.map( FileChannel.MapMode.READ_ONLY, 0, size ).get( buf );
+        return buf;
+      }
+      // Small file : bulk reads straight into the array, until the whole file has been read.
+      ByteBuffer bb = ByteBuffer.wrap( buf );
+      while ( bb.hasRemaining() ) {
+        if ( channel.read( bb ) < 0 ) {
+          // The file was truncated while being read.
+          return Arrays.copyOf( buf, bb.position() );
+        }
+      }
+      return buf;
+    }
+  }
+
+  /**
+   * Map a file into memory, read only. Unlike "load()", the bytes of the file are not copied ; the mapping stays
+   * valid after the file handle is closed and is released when the returned buffer is garbage collected.
+   *
+   * @param filename name of the file
+   * @return read only buffer over the whole file
+   * @throws NoSuchFileException if the file does not exist
+   * @throws IOException if the file cannot be mapped
+   */
+  public MappedByteBuffer map( String filename ) throws IOException {
+    Path path = Paths.get( filename );
+    try ( FileChannel channel = FileChannel.open( path, StandardOpenOption.READ ) ) {
+      long size = channel.size();
+      if ( size > Integer.MAX_VALUE ) {
+        throw new IOException( "File too large to be mapped : \"" + filename + "\" (" + size + " bytes)" );
+      }
+      return channel.map( FileChannel.MapMode.READ_ONLY, 0, size );
+    }
+  }
+}
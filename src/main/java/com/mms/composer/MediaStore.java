@@ -0,0 +1,436 @@
+package com.mms.composer;
+
+/*
+ * @(#)MediaStore.java	1.1
+ *
+ * Summary
+ *
+ * Off-heap store of media bytes, such as the encoded multipart body of a "MessageTemplate", i.e. the images, audio
+ * clips and texts that every message of a template carries. Each media is held in a direct buffer, outside of the
+ * heap : the garbage collector never scans, copies nor promotes its bytes, however many templates are in use at
+ * once, and a channel writes it to a file or a socket without first copying it into a temporary direct buffer.
+ *
+ * Media are keyed (e.g. by a digest of their bytes, so that identical media are held once) and reference counted :
+ *
+ * - "put()" and "get()" return the media with a reference taken on behalf of the caller, who must "release()" it
+ *   once done ; "retain()" takes a further reference, e.g. for another thread. The bytes of a media may only be
+ *   read while a reference to it is held.
+ * - The store keeps its own reference to the media it caches. A media that is no longer referenced by anyone else
+ *   stays cached, so that a template compiled again finds its body ready, until the budget is needed.
+ * - When the last reference is released, the direct buffer is freed at once, rather than whenever the garbage
+ *   collector finds it unreachable.
+ *
+ * The store is bounded by the total size of the media it holds : when that size is exceeded, the least recently
+ * used media that nobody else references are evicted. Media in use are never evicted, so the budget may be exceeded
+ * while they are ; a media larger than the whole budget is never cached. The store is safe for use by multiple
+ * threads. Hit, miss and eviction counters, and the resident size, are available for monitoring.
+ */
+
+// These imports are necessary for utilities.
+import java.io.Closeable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+public class MediaStore implements Closeable {
+  // Frees a direct buffer at once : "Unsafe.invokeCleaner()" on Java 9 or later, the "Cleaner" of the buffer on
+  // Java 8. Null if neither is available, the buffers then being freed by the garbage collector.
+  private static final Deallocator DEALLOCATOR = Deallocator.find();
+  // Default budget of the process wide store, can be overridden with the "mms.media.store.size" system property.
+  private static final long DEFAULT_MAX_BYTES = Long.getLong( "mms.media.store.size", 256L * 1024 * 1024 );
+  private static final MediaStore DEFAULT = new MediaStore( DEFAULT_MAX_BYTES );
+
+  // Maximum total size, in bytes, of the media held.
+  private final long maxBytes;
+  // Cached media in access order, i.e. the least recently used media comes first. Guarded by "this".
+  private final LinkedHashMap<String, Media> entries = new LinkedHashMap<>( 16, 0.75f, true );
+  // Total size, in bytes, of the media not freed yet, cached or not. Guarded by "this".
+  private long residentBytes = 0;
+  // Total size, in bytes, of the cached media. Guarded by "this".
+  private long cachedBytes = 0;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder freed = new LongAdder();
+
+  /**
+   * Create a media store.
+   *
+   * @param maxBytes maximum total size, in bytes, of the media held
+   */
+  public MediaStore( long maxBytes ) {
+    if ( maxBytes < 0 ) {
+      throw new IllegalArgumentException( "Negative store size : " + maxBytes );
+    }
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Return the process wide store.
+   *
+   * @return the default store
+   */
+  public static MediaStore getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Return a cached media, with a reference taken on behalf of the caller.
+   *
+   * @param key key of the media
+   * @return the media, or null if it is not cached
+   */
+  public Media get( String key ) {
+    Media media;
+    synchronized ( this ) {
+      media = entries.get( key );
+      if ( media != null ) {
+        media.references.incrementAndGet();
+      }
+    }
+    ( media != null ? hits : misses ).increment();
+    return media;
+  }
+
+  /**
+   * Return the media of a key, copying its bytes off the heap unless the media is already cached. A reference is
+   * taken on behalf of the caller.
+   *
+   * @param key key of the media ; the same key must always stand for the same bytes
+   * @param bytes the bytes of the media, copied if need be
+   * @param offset offset of the bytes in the array
+   * @param length number of bytes
+   * @return the media
+   */
+  public Media put( String key, byte[] bytes, int offset, int length ) {
+    Media cached = get( key );
+    if ( cached != null ) {
+      return cached;
+    }
+    // Copy the bytes outside of the lock ; should another thread put the same key meanwhile, its media wins.
+    ByteBuffer buffer = ByteBuffer.allocateDirect( length );
+    buffer.put( bytes, offset, length ).flip();
+    Media media = new Media( this, key, buffer );
+    List<Media> evicted = null;
+    synchronized ( this ) {
+      Media previous = entries.get( key );
+      if ( previous != null ) {
+        previous.references.incrementAndGet();
+        media = previous;
+      }
+      else {
+        residentBytes += length;
+        if ( length <= maxBytes ) {
+          // One reference for the store, one for the caller.
+          media.references.incrementAndGet();
+          entries.put( key, media );
+          cachedBytes += length;
+        }
+        evicted = evict();
+      }
+    }
+    if ( media.buffer != buffer && DEALLOCATOR != null ) {
+      // The copy was never shared : free it now.
+      DEALLOCATOR.free( buffer );
+    }
+    release( evicted );
+    return media;
+  }
+
+  /**
+   * Remove the least recently used media that nobody else references, until the store fits its budget.
+   *
+   * @return the evicted media, whose reference the caller releases outside of the lock
+   */
+  private List<Media> evict() {
+    List<Media> evicted = new ArrayList<>();
+    // The resident size only drops once the evicted media are freed, outside of the lock : count it down here.
+    long resident = residentBytes;
+    Iterator<Map.Entry<String, Media>> eldest = entries.entrySet().iterator();
+    while ( resident > maxBytes && eldest.hasNext() ) {
+      Media media = eldest.next().getValue();
+      // Under the lock, a count of one is the reference of the store : no one else can take one any more.
+      if ( media.references.get() == 1 ) {
+        eldest.remove();
+        cachedBytes -= media.length;
+        resident -= media.length;
+        evictions.increment();
+        evicted.add( media );
+      }
+    }
+    return evicted;
+  }
+
+  /**
+   * Evict the media that nobody else references any more, if the store exceeds its budget.
+   */
+  private void unreferenced() {
+    List<Media> evicted;
+    synchronized ( this ) {
+      if ( residentBytes <= maxBytes ) {
+        return;
+      }
+      evicted = evict();
+    }
+    release( evicted );
+  }
+
+  private static void release( List<Media> media ) {
+    if ( media != null ) {
+      for ( Media m : media ) {
+        m.release();
+      }
+    }
+  }
+
+  /**
+   * Remove the cached media that nobody else references. The media in use stay cached.
+   */
+  public void trim() {
+    List<Media> evicted = new ArrayList<>();
+    synchronized ( this ) {
+      Iterator<Media> i = entries.values().iterator();
+      while ( i.hasNext() ) {
+        Media media = i.next();
+        if ( media.references.get() == 1 ) {
+          i.remove();
+          cachedBytes -= media.length;
+          evicted.add( media );
+        }
+      }
+    }
+    release( evicted );
+  }
+
+  /**
+   * Release the references of the store, i.e. drop all the cached media. The media in use are freed once released.
+   */
+  @Override
+  public void close() {
+    List<Media> dropped;
+    synchronized ( this ) {
+      dropped = new ArrayList<>( entries.values() );
+      entries.clear();
+      cachedBytes = 0;
+    }
+    release( dropped );
+  }
+
+  /**
+   * Free the buffer of a media whose last reference was released.
+   */
+  private void free( Media media ) {
+    synchronized ( this ) {
+      residentBytes -= media.length;
+    }
+    freed.increment();
+    if ( DEALLOCATOR != null ) {
+      DEALLOCATOR.free( media.buffer );
+    }
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  /**
+   * Return the number of media freed, i.e. whose last reference was released.
+   *
+   * @return number of media freed
+   */
+  public long getFreed() {
+    return freed.sum();
+  }
+
+  /**
+   * Return the total size of the media held off the heap, cached or in use.
+   *
+   * @return size, in bytes, of the media not freed yet
+   */
+  public synchronized long getResidentBytes() {
+    return residentBytes;
+  }
+
+  public synchronized long getCachedBytes() {
+    return cachedBytes;
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  @Override
+  public String toString() {
+    return String.format( "Media store : %d entries, %d/%d bytes resident (%d cached), %d hits, %d misses, "
+            + "%d evictions, %d freed", size(), getResidentBytes(), maxBytes, getCachedBytes(), getHits(),
+            getMisses(), getEvictions(), getFreed() );
+  }
+
+  /**
+   * A media of the store : its bytes, in a direct buffer, and its reference count.
+   */
+  public static final class Media {
+    private final MediaStore store;
+    private final String key;
+    private final ByteBuffer buffer;
+    private final int length;
+    private final AtomicInteger references = new AtomicInteger( 1 );
+
+    Media( MediaStore store, String key, ByteBuffer buffer ) {
+      this.store = store;
+      this.key = key;
+      this.buffer = buffer;
+      this.length = buffer.remaining();
+    }
+
+    public String getKey() {
+      return key;
+    }
+
+    public int getLength() {
+      return length;
+    }
+
+    /**
+     * Return the bytes of the media, as a read only view that the caller may consume. The view must not be used
+     * once the reference of the caller is released.
+     *
+     * @return read only buffer holding the bytes
+     * @throws IllegalStateException if the media is freed
+     */
+    public ByteBuffer buffer() {
+      if ( references.get() <= 0 ) {
+        throw new IllegalStateException( "Media \"" + key + "\" is freed" );
+      }
+      return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Take a further reference to the media.
+     *
+     * @return the media
+     * @throws IllegalStateException if the media is freed
+     */
+    public Media retain() {
+      while ( true ) {
+        int count = references.get();
+        if ( count <= 0 ) {
+          throw new IllegalStateException( "Media \"" + key + "\" is freed" );
+        }
+        if ( references.compareAndSet( count, count + 1 ) ) {
+          return this;
+        }
+      }
+    }
+
+    /**
+     * Release a reference to the media, freeing its buffer if it was the last one.
+     *
+     * @throws IllegalStateException if the media is freed already
+     */
+    public void release() {
+      int count = references.decrementAndGet();
+      if ( count == 0 ) {
+        store.free( this );
+      }
+      else if ( count == 1 ) {
+        // Possibly only the reference of the store is left.
+        store.unreferenced();
+      }
+      else if ( count < 0 ) {
+        throw new IllegalStateException( "Media \"" + key + "\" is released more often than retained" );
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "Media \"" + key + "\" (" + length + " bytes, " + references.get() + " references)";
+    }
+  }
+
+  /**
+   * Free a direct buffer, or unmap a mapped one, now rather than once it is garbage collected, e.g. so that its file
+   * can be truncated or deleted on Windows. Neither the buffer nor any view of it may be used afterwards. Without
+   * access to the internals of the JDK, or for a view rather than the buffer itself, the buffer is left to the
+   * garbage collector.
+   *
+   * @param buffer the direct or mapped buffer
+   */
+  static void deallocate( ByteBuffer buffer ) {
+    if ( DEALLOCATOR != null ) {
+      DEALLOCATOR.free( buffer );
+    }
+  }
+
+  /**
+   * Frees direct buffers explicitly, through the internals of the running JDK.
+   */
+  private static final class Deallocator {
+    private final Object unsafe;
+    private final Method invokeCleaner;
+
+    private Deallocator( Object unsafe, Method invokeCleaner ) {
+      this.unsafe = unsafe;
+      this.invokeCleaner = invokeCleaner;
+    }
+
+    static Deallocator find() {
+      try {
+        // Java 9 or later.
+        Class<?> type = Class.forName( "sun.misc.Unsafe" );
+        Method invokeCleaner = type.getMethod( "invokeCleaner", ByteBuffer.class );
+        Field field = type.getDeclaredField( "theUnsafe" );
+        field.setAccessible( true );
+        return new Deallocator( field.get( null ), invokeCleaner );
+      }
+      catch ( ReflectiveOperationException | RuntimeException e ) {
+        // Java 8 : the cleaner of the buffer itself, see "free()".
+      }
+      try {
+        Method cleaner = ByteBuffer.allocateDirect( 1 ).getClass().getMethod( "cleaner" );
+        cleaner.setAccessible( true );
+        return new Deallocator( null, cleaner );
+      }
+      catch ( ReflectiveOperationException | RuntimeException e ) {
+        return null;
+      }
+    }
+
+    void free( ByteBuffer buffer ) {
+      try {
+        if ( unsafe != null ) {
+          invokeCleaner.invoke( unsafe, buffer );
+        }
+        else {
+          Object cleaner = invokeCleaner.invoke( buffer );
+          if ( cleaner != null ) {
+            cleaner.getClass().getMethod( "clean" ).invoke( cleaner );
+          }
+        }
+      }
+      catch ( ReflectiveOperationException | RuntimeException e ) {
+        // Left to the garbage collector.
+      }
+    }
+  }
+}
@@ -0,0 +1,512 @@
+package com.mms.composer;
+
+/*
+ * @(#)MediaTranscoder.java	1.1
+ *
+ * Summary
+ *
+ * Makes the media parts of a Multimedia Message smaller, with pure Java "ImageIO" only, for the "MessageFitter" :
+ *
+ * - images (GIF, JPEG, PNG) are scaled down to fit a box, their colours are reduced to fewer bits per channel and,
+ *   for animated GIFs, frames are dropped (every other one, or all but the first). Animated GIFs are composed frame
+ *   by frame, as a viewer shows them (offsets, transparency and disposal methods), then written again with the
+ *   delays of their frames, so that the animation keeps its pace. JPEGs are written again with a lower quality ;
+ * - AMR audio clips are trimmed, at a frame boundary, to a maximum size.
+ *
+ * The target of a transcoding is a "Profile" : its "toString()" names it uniquely and, with a digest of the source
+ * bytes, keys the "TranscodeCache". Transcoding is deterministic : the same source and profile always give the same
+ * bytes. Other content types are not transcoded. The transcoder holds no state and is safe for use by multiple threads.
+ */
+
+// These imports are necessary for utilities.
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.w3c.dom.Node;
+
+public final class MediaTranscoder {
+  // Header of an AMR (narrowband) file, and the size of the speech data of a frame per frame type ; -1 for the
+  // reserved frame types.
+  private static final byte[] AMR_MAGIC = "#!AMR\n".getBytes( StandardCharsets.US_ASCII );
+  private static final int[] AMR_FRAME_SIZES = { 12, 13, 15, 17, 19, 20, 26, 31, 5, -1, -1, -1, -1, -1, -1, 0 };
+  // Format name of the GIF metadata.
+  private static final String GIF_METADATA = "javax_imageio_gif_image_1.0";
+  private static final String GIF_STREAM_METADATA = "javax_imageio_gif_stream_1.0";
+
+  private MediaTranscoder() {
+  }
+
+  /**
+   * Return true if parts of the given content type can be transcoded.
+   *
+   * @param type content type of the part
+   * @return true for GIF, JPEG and PNG images, and AMR audio clips
+   */
+  public static boolean isTranscodable( String type ) {
+    return isImage( type ) || isAmr( type );
+  }
+
+  static boolean isImage( String type ) {
+    return format( type ) != null;
+  }
+
+  static boolean isAmr( String type ) {
+    return type != null && type.toLowerCase( Locale.ROOT ).startsWith( "audio/amr" );
+  }
+
+  /**
+   * Return the "ImageIO" format name of an image content type.
+   */
+  private static String format( String type ) {
+    if ( type == null ) {
+      return null;
+    }
+    switch ( type.toLowerCase( Locale.ROOT ) ) {
+      case "image/gif": return "gif";
+      case "image/jpeg":
+      case "image/jpg": return "jpeg";
+      case "image/png": return "png";
+      default: return null;
+    }
+  }
+
+  /**
+   * Transcode an image.
+   *
+   * @param bytes the image
+   * @param type content type of the image
+   * @param profile target of the transcoding
+   * @return the transcoded image, of the same content type
+   * @throws IOException if the image cannot be read or written
+   */
+  public static byte[] transcodeImage( byte[] bytes, String type, Profile profile ) throws IOException {
+    String format = format( type );
+    if ( format == null ) {
+      throw new IOException( "Cannot transcode content type : " + type );
+    }
+    List<Frame> frames = read( bytes, format );
+    if ( frames.isEmpty() ) {
+      throw new IOException( "No image in " + type + " content" );
+    }
+    frames = select( frames, profile.frameStep );
+    int width = frames.get( 0 ).image.getWidth();
+    int height = frames.get( 0 ).image.getHeight();
+    // Fit the box, keeping the aspect ratio, then scale ; never scale up.
+    double scale = 1;
+    if ( profile.maxWidth > 0 && profile.maxHeight > 0 ) {
+      scale = Math.min( 1, Math.min( (double) profile.maxWidth / width, (double) profile.maxHeight / height ) );
+    }
+    scale = Math.min( 1, scale * profile.scale );
+    int w = Math.max( 1, (int) Math.round( width * scale ) );
+    int h = Math.max( 1, (int) Math.round( height * scale ) );
+    for ( Frame frame : frames ) {
+      frame.image = posterize( resize( frame.image, w, h ), profile.colorBits );
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream( bytes.length / 2 );
+    switch ( format ) {
+      case "gif":
+        writeGif( frames, out );
+        break;
+      case "jpeg":
+        writeJpeg( frames.get( 0 ).image, profile.quality, out );
+        break;
+      default:
+        if ( !ImageIO.write( frames.get( 0 ).image, format, out ) ) {
+          throw new IOException( "No " + format + " writer" );
+        }
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Trim an AMR audio clip, at a frame boundary, to at most the given size.
+   *
+   * @param bytes the clip, in the AMR file format
+   * @param maxBytes maximum size, in bytes, of the trimmed clip
+   * @return the trimmed clip ; the clip itself if it is small enough
+   * @throws IOException if the clip is not an AMR narrowband file, or cannot be trimmed to a single frame
+   */
+  public static byte[] trimAmr( byte[] bytes, int maxBytes ) throws IOException {
+    if ( bytes.length <= maxBytes ) {
+      return bytes;
+    }
+    for ( int i = 0; i < AMR_MAGIC.length; i++ ) {
+      if ( bytes.length <= i || bytes[ i ] != AMR_MAGIC[ i ] ) {
+        throw new IOException( "Not an AMR narrowband clip" );
+      }
+    }
+    int end = AMR_MAGIC.length;
+    while ( end < bytes.length ) {
+      int size = AMR_FRAME_SIZES[ ( bytes[ end ] >> 3 ) & 0x0F ];
+      if ( size < 0 ) {
+        throw new IOException( "Malformed AMR clip at offset " + end );
+      }
+      if ( end + 1 + size > maxBytes ) {
+        break;
+      }
+      end += 1 + size;
+    }
+    if ( end == AMR_MAGIC.length ) {
+      throw new IOException( "Cannot trim an AMR clip to " + maxBytes + " bytes" );
+    }
+    byte[] trimmed = new byte[ end ];
+    System.arraycopy( bytes, 0, trimmed, 0, end );
+    return trimmed;
+  }
+
+  /**
+   * Read the frames of an image, composed as a viewer shows them.
+   */
+  private static List<Frame> read( byte[] bytes, String format ) throws IOException {
+    Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName( format );
+    if ( !readers.hasNext() ) {
+      throw new IOException( "No " + format + " reader" );
+    }
+    ImageReader reader = readers.next();
+    List<Frame> frames = new ArrayList<>();
+    try ( ImageInputStream in = ImageIO.createImageInputStream( new ByteArrayInputStream( bytes ) ) ) {
+      reader.setInput( in, false, false );
+      if ( !format.equals( "gif" ) ) {
+        frames.add( new Frame( reader.read( 0 ), 0 ) );
+        return frames;
+      }
+      // The logical screen of the animation, on which each frame is drawn at its offset.
+      int width = reader.getWidth( 0 );
+      int height = reader.getHeight( 0 );
+      IIOMetadata stream = reader.getStreamMetadata();
+      if ( stream != null ) {
+        Node screen = child( stream.getAsTree( GIF_STREAM_METADATA ), "LogicalScreenDescriptor" );
+        if ( screen != null ) {
+          width = Math.max( width, intAttribute( screen, "logicalScreenWidth", width ) );
+          height = Math.max( height, intAttribute( screen, "logicalScreenHeight", height ) );
+        }
+      }
+      BufferedImage canvas = new BufferedImage( width, height, BufferedImage.TYPE_INT_ARGB );
+      int count = reader.getNumImages( true );
+      for ( int i = 0; i < count; i++ ) {
+        BufferedImage image = reader.read( i );
+        Node tree = reader.getImageMetadata( i ).getAsTree( GIF_METADATA );
+        Node descriptor = child( tree, "ImageDescriptor" );
+        Node control = child( tree, "GraphicControlExtension" );
+        int left = descriptor != null ? intAttribute( descriptor, "imageLeftPosition", 0 ) : 0;
+        int top = descriptor != null ? intAttribute( descriptor, "imageTopPosition", 0 ) : 0;
+        int delay = control != null ? intAttribute( control, "delayTime", 0 ) : 0;
+        String disposal = control != null ? attribute( control, "disposalMethod" ) : "none";
+
+        BufferedImage previous = "restoreToPrevious".equals( disposal ) ? copy( canvas ) : null;
+        Graphics2D g = canvas.createGraphics();
+        g.drawImage( image, left, top, null );
+        g.dispose();
+        frames.add( new Frame( copy( canvas ), delay ) );
+        if ( "restoreToBackgroundColor".equals( disposal ) ) {
+          g = canvas.createGraphics();
+          g.setComposite( AlphaComposite.Clear );
+          g.fillRect( left, top, image.getWidth(), image.getHeight() );
+          g.dispose();
+        }
+        else if ( previous != null ) {
+          canvas = previous;
+        }
+      }
+    }
+    finally {
+      reader.dispose();
+    }
+    return frames;
+  }
+
+  /**
+   * Keep every "step" frame, or the first frame only if "step" is 0. The delays of the dropped frames are added to
+   * the frame shown instead, so that the animation keeps its length.
+   */
+  private static List<Frame> select( List<Frame> frames, int step ) {
+    if ( step == 1 || frames.size() == 1 ) {
+      return frames;
+    }
+    List<Frame> selected = new ArrayList<>();
+    if ( step == 0 ) {
+      selected.add( new Frame( frames.get( 0 ).image, 0 ) );
+      return selected;
+    }
+    for ( int i = 0; i < frames.size(); i += step ) {
+      int delay = 0;
+      for ( int j = i; j < Math.min( i + step, frames.size() ); j++ ) {
+        delay += frames.get( j ).delay;
+      }
+      selected.add( new Frame( frames.get( i ).image, delay ) );
+    }
+    return selected;
+  }
+
+  private static BufferedImage resize( BufferedImage image, int width, int height ) {
+    if ( image.getWidth() == width && image.getHeight() == height
+            && image.getType() == BufferedImage.TYPE_INT_ARGB ) {
+      return image;
+    }
+    BufferedImage resized = new BufferedImage( width, height, BufferedImage.TYPE_INT_ARGB );
+    Graphics2D g = resized.createGraphics();
+    g.setRenderingHint( RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR );
+    g.setRenderingHint( RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY );
+    g.drawImage( image, 0, 0, width, height, null );
+    g.dispose();
+    return resized;
+  }
+
+  /**
+   * Keep the "bits" most significant bits of each colour channel, and make each pixel either opaque or transparent,
+   * as a GIF can only show.
+   */
+  private static BufferedImage posterize( BufferedImage image, int bits ) {
+    int channel = ( 0xFF << ( 8 - bits ) ) & 0xFF;
+    int mask = ( channel << 16 ) | ( channel << 8 ) | channel;
+    int[] pixels = image.getRGB( 0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth() );
+    for ( int i = 0; i < pixels.length; i++ ) {
+      int pixel = pixels[ i ];
+      pixels[ i ] = ( pixel >>> 24 ) < 0x80 ? 0 : 0xFF000000 | ( pixel & mask );
+    }
+    image.setRGB( 0, 0, image.getWidth(), image.getHeight(), pixels, 0, image.getWidth() );
+    return image;
+  }
+
+  /**
+   * Write the frames of an image as a GIF. After the first frame of an animation, each frame only carries the pixels
+   * that changed since the previous one, within their bounding box, the others being transparent ; a frame where a
+   * pixel turns transparent is written whole, on a cleared screen.
+   */
+  private static void writeGif( List<Frame> frames, ByteArrayOutputStream bytes ) throws IOException {
+    int width = frames.get( 0 ).image.getWidth();
+    int height = frames.get( 0 ).image.getHeight();
+    int[][] pixels = new int[ frames.size() ][];
+    // True for the frames written whole, on a cleared screen.
+    boolean[] whole = new boolean[ frames.size() ];
+    for ( int i = 0; i < frames.size(); i++ ) {
+      pixels[ i ] = frames.get( i ).image.getRGB( 0, 0, width, height, null, 0, width );
+      whole[ i ] = i == 0;
+      for ( int p = 0; i > 0 && p < pixels[ i ].length && !whole[ i ]; p++ ) {
+        whole[ i ] = pixels[ i ][ p ] == 0 && pixels[ i - 1 ][ p ] != 0;
+      }
+    }
+    boolean animated = frames.size() > 1;
+    ImageWriter writer = ImageIO.getImageWritersByFormatName( "gif" ).next();
+    try ( ImageOutputStream out = ImageIO.createImageOutputStream( bytes ) ) {
+      writer.setOutput( out );
+      if ( animated ) {
+        writer.prepareWriteSequence( null );
+      }
+      for ( int i = 0; i < frames.size(); i++ ) {
+        boolean clear = i + 1 < frames.size() && whole[ i + 1 ];
+        // The changed pixels, within their bounding box ; the whole screen before it is cleared.
+        int left = 0;
+        int top = 0;
+        int right = width - 1;
+        int bottom = height - 1;
+        int[] changed = pixels[ i ];
+        if ( !whole[ i ] ) {
+          changed = new int[ changed.length ];
+          left = width;
+          top = height;
+          right = -1;
+          bottom = -1;
+          for ( int p = 0; p < changed.length; p++ ) {
+            if ( pixels[ i ][ p ] != pixels[ i - 1 ][ p ] ) {
+              changed[ p ] = pixels[ i ][ p ];
+              left = Math.min( left, p % width );
+              right = Math.max( right, p % width );
+              top = Math.min( top, p / width );
+              bottom = Math.max( bottom, p / width );
+            }
+          }
+          if ( right < 0 ) {
+            // Nothing changed : a single transparent pixel.
+            left = right = top = bottom = 0;
+          }
+          if ( clear ) {
+            left = 0;
+            top = 0;
+            right = width - 1;
+            bottom = height - 1;
+          }
+        }
+        BufferedImage image = new BufferedImage( right - left + 1, bottom - top + 1, BufferedImage.TYPE_INT_ARGB );
+        image.setRGB( 0, 0, image.getWidth(), image.getHeight(), changed, top * width + left, width );
+
+        IIOMetadata metadata = writer.getDefaultImageMetadata( ImageTypeSpecifier.createFromRenderedImage( image ),
+                null );
+        IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree( GIF_METADATA );
+        IIOMetadataNode descriptor = (IIOMetadataNode) child( root, "ImageDescriptor" );
+        if ( descriptor != null ) {
+          descriptor.setAttribute( "imageLeftPosition", Integer.toString( left ) );
+          descriptor.setAttribute( "imageTopPosition", Integer.toString( top ) );
+        }
+        IIOMetadataNode control = (IIOMetadataNode) child( root, "GraphicControlExtension" );
+        if ( control == null ) {
+          control = new IIOMetadataNode( "GraphicControlExtension" );
+          control.setAttribute( "userInputFlag", "FALSE" );
+          control.setAttribute( "transparentColorFlag", "FALSE" );
+          control.setAttribute( "transparentColorIndex", "0" );
+          root.appendChild( control );
+        }
+        control.setAttribute( "disposalMethod", !animated ? "none" : clear ? "restoreToBackgroundColor"
+                : "doNotDispose" );
+        control.setAttribute( "delayTime", Integer.toString( frames.get( i ).delay ) );
+        if ( animated && i == 0 ) {
+          // Loop for ever, as the sample animations do.
+          IIOMetadataNode extensions = new IIOMetadataNode( "ApplicationExtensions" );
+          IIOMetadataNode netscape = new IIOMetadataNode( "ApplicationExtension" );
+          netscape.setAttribute( "applicationID", "NETSCAPE" );
+          netscape.setAttribute( "authenticationCode", "2.0" );
+          netscape.setUserObject( new byte[] { 1, 0, 0 } );
+          extensions.appendChild( netscape );
+          root.appendChild( extensions );
+        }
+        metadata.setFromTree( GIF_METADATA, root );
+        if ( animated ) {
+          writer.writeToSequence( new IIOImage( image, null, metadata ), null );
+        }
+        else {
+          writer.write( null, new IIOImage( image, null, metadata ), null );
+        }
+      }
+      if ( animated ) {
+        writer.endWriteSequence();
+      }
+    }
+    finally {
+      writer.dispose();
+    }
+  }
+
+  private static void writeJpeg( BufferedImage image, float quality, ByteArrayOutputStream bytes )
+          throws IOException {
+    // JPEG has no alpha channel : flatten the image on white.
+    BufferedImage rgb = new BufferedImage( image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB );
+    Graphics2D g = rgb.createGraphics();
+    g.setColor( Color.WHITE );
+    g.fillRect( 0, 0, rgb.getWidth(), rgb.getHeight() );
+    g.drawImage( image, 0, 0, null );
+    g.dispose();
+    ImageWriter writer = ImageIO.getImageWritersByFormatName( "jpeg" ).next();
+    try ( ImageOutputStream out = ImageIO.createImageOutputStream( bytes ) ) {
+      writer.setOutput( out );
+      ImageWriteParam param = writer.getDefaultWriteParam();
+      param.setCompressionMode( ImageWriteParam.MODE_EXPLICIT );
+      param.setCompressionQuality( quality );
+      writer.write( null, new IIOImage( rgb, null, null ), param );
+    }
+    finally {
+      writer.dispose();
+    }
+  }
+
+  private static BufferedImage copy( BufferedImage image ) {
+    BufferedImage copy = new BufferedImage( image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB );
+    Graphics2D g = copy.createGraphics();
+    g.setComposite( AlphaComposite.Src );
+    g.drawImage( image, 0, 0, null );
+    g.dispose();
+    return copy;
+  }
+
+  private static Node child( Node node, String name ) {
+    for ( Node child = node.getFirstChild(); child != null; child = child.getNextSibling() ) {
+      if ( name.equals( child.getNodeName() ) ) {
+        return child;
+      }
+    }
+    return null;
+  }
+
+  private static String attribute( Node node, String name ) {
+    Node attribute = node.getAttributes().getNamedItem( name );
+    return attribute != null ? attribute.getNodeValue() : null;
+  }
+
+  private static int intAttribute( Node node, String name, int defaultValue ) {
+    String value = attribute( node, name );
+    try {
+      return value != null ? Integer.parseInt( value ) : defaultValue;
+    }
+    catch ( NumberFormatException e ) {
+      return defaultValue;
+    }
+  }
+
+  /**
+   * A frame of an image : the whole picture shown, and for how long (in hundredths of a second).
+   */
+  private static final class Frame {
+    private BufferedImage image;
+    private final int delay;
+
+    Frame( BufferedImage image, int delay ) {
+      this.image = image;
+      this.delay = delay;
+    }
+  }
+
+  /**
+   * Target of an image transcoding. Profiles are immutable ; two profiles with the same "toString()" give the same
+   * transcoding.
+   */
+  public static final class Profile {
+    private final int maxWidth;
+    private final int maxHeight;
+    private final double scale;
+    private final int colorBits;
+    private final int frameStep;
+    private final float quality;
+    private final String name;
+
+    /**
+     * Create a profile.
+     *
+     * @param maxWidth width of the box the image is fitted in, e.g. that of its region ; 0 for no box
+     * @param maxHeight height of the box the image is fitted in ; 0 for no box
+     * @param scale factor (at most 1) applied once the image fits the box
+     * @param colorBits bits kept per colour channel (1-8)
+     * @param frameStep keep every "frameStep" frame of an animation ; 0 to keep the first frame only
+     * @param quality JPEG quality (0-1)
+     */
+    public Profile( int maxWidth, int maxHeight, double scale, int colorBits, int frameStep, float quality ) {
+      if ( maxWidth < 0 || maxHeight < 0 || scale <= 0 || scale > 1 || colorBits < 1 || colorBits > 8
+              || frameStep < 0 || quality < 0 || quality > 1 ) {
+        throw new IllegalArgumentException( "Invalid image profile" );
+      }
+      this.maxWidth = maxWidth;
+      this.maxHeight = maxHeight;
+      this.scale = scale;
+      this.colorBits = colorBits;
+      this.frameStep = frameStep;
+      this.quality = quality;
+      this.name = String.format( Locale.ROOT, "image:%dx%d:s%.3f:c%d:f%d:q%.2f", maxWidth, maxHeight, scale,
+              colorBits, frameStep, quality );
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+}
@@ -0,0 +1,481 @@
+package com.mms.composer;
+
+/*
+ * @(#)MessageFitter.java	1.1
+ *
+ * Summary
+ *
+ * A stage of the composition that fits the content parts of a Multimedia Message into a maximum message size, such
+ * as the limit of an MMSC or of the handsets (e.g. 300 KB). Parts that already fit are returned unchanged. Otherwise,
+ * in this order, until the message fits :
+ *
+ * 1) the images (GIF, JPEG, PNG) are transcoded by the "MediaTranscoder", through steps of growing loss : scaled
+ *    down to the size of their "SMIL" region, then smaller, with fewer colours, fewer frames and, for JPEGs, a lower
+ *    quality. The parts of the lowest priority are degraded first, one step at a time, so that the parts that matter
+ *    most keep the most of their quality ;
+ * 2) the AMR audio clips are trimmed, lowest priority first, as long as at least a quarter of the clip is kept ;
+ * 3) the parts are dropped, lowest priority first, and their elements removed from the "SMIL" presentation.
+ *
+ * The presentation itself is never dropped. By default the texts come first (priority 3), then the images (2), the
+ * audio clips (1) and anything else (0) ; a slide template may set the priority of each of its media (see
+ * "SlideTemplate"). The size of a message is estimated from its parts, with a reserve for its headers : the estimate
+ * is an upper bound of the encoded size as long as the headers fit the reserve.
+ *
+ * Every transcoded media is held by a "TranscodeCache", keyed by the digest of its source and the name of its
+ * profile : the same asset is transcoded once, whichever template uses it. The fitted parts of a list of parts are
+ * also remembered, by the identity of the parts : as every message of a template shares the same parts (see
+ * "ContentCache"), fitting each message is then a lookup. The fitted parts are immutable and shared as well. The
+ * fitter is safe for use by multiple threads.
+ */
+
+// These imports are necessary for utilities.
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Nokia MMS Java Library version 1.1
+import com.nokia.mms.*;
+
+public class MessageFitter {
+  // Default room, in bytes, left for the headers of the message.
+  public static final int DEFAULT_HEADER_RESERVE = 1024;
+  // Priority of the presentation, which is never dropped.
+  public static final int PRESENTATION_PRIORITY = Integer.MAX_VALUE;
+  // Upper bound of the bytes a part adds to the body besides its content : the lengths of its headers and data, and
+  // the encoding of its type and "Content-ID" or "Content-Location".
+  private static final int PART_OVERHEAD = 16;
+  // Steps of the image transcoding, from the least to the most lossy.
+  private static final double[] SCALES = { 1, 0.75, 0.5, 0.5, 0.35 };
+  private static final int[] COLOR_BITS = { 8, 6, 5, 4, 3 };
+  private static final int[] FRAME_STEPS = { 1, 1, 2, 0, 0 };
+  private static final float[] QUALITIES = { 0.85f, 0.75f, 0.6f, 0.5f, 0.35f };
+  // Fitted lists of parts remembered, at most.
+  private static final int MAX_REMEMBERED = 256;
+  // Elements of a "SMIL" presentation and their attributes.
+  private static final Pattern REGION = Pattern.compile( "<region\\b[^>]*>" );
+  private static final Pattern ROOT_LAYOUT = Pattern.compile( "<root-layout\\b[^>]*>" );
+  private static final Pattern MEDIA = Pattern.compile( "<(?:img|video|ref)\\b[^>]*>" );
+
+  // Maximum size, in bytes, of the messages.
+  private final int maxBytes;
+  // Room, in bytes, left for the headers of the message.
+  private final int headerReserve;
+  private final TranscodeCache cache;
+  // Digests of the source parts, by identity.
+  private final Map<MMContent, String> digests = Collections.synchronizedMap( new WeakHashMap<>() );
+  // Fitted parts of the lists of parts fitted so far, or being fitted.
+  private final ConcurrentHashMap<Parts, CompletableFuture<List<MMContent>>> fitted = new ConcurrentHashMap<>();
+
+  private final LongAdder fits = new LongAdder();
+  private final LongAdder reused = new LongAdder();
+  private final LongAdder transcoded = new LongAdder();
+  private final LongAdder trimmed = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+
+  /**
+   * Create a fitter with the default header reserve and an in memory transcode cache.
+   *
+   * @param maxBytes maximum size, in bytes, of the messages
+   */
+  public MessageFitter( int maxBytes ) {
+    this( maxBytes, DEFAULT_HEADER_RESERVE, new TranscodeCache( null ) );
+  }
+
+  /**
+   * Create a fitter.
+   *
+   * @param maxBytes maximum size, in bytes, of the messages
+   * @param headerReserve room, in bytes, left for the headers of the messages
+   * @param cache cache of the transcoded media, possibly shared with other fitters
+   */
+  public MessageFitter( int maxBytes, int headerReserve, TranscodeCache cache ) {
+    if ( headerReserve < 0 || maxBytes <= headerReserve ) {
+      throw new IllegalArgumentException( "Invalid maximum message size : " + maxBytes );
+    }
+    this.maxBytes = maxBytes;
+    this.headerReserve = headerReserve;
+    this.cache = cache;
+  }
+
+  /**
+   * Return the default priority of a part, by its content type.
+   *
+   * @param type content type of the part
+   * @return 3 for a text, 2 for an image, 1 for an audio clip, 0 otherwise
+   */
+  public static int defaultPriority( String type ) {
+    String t = type != null ? type.toLowerCase() : "";
+    if ( t.startsWith( IMMConstants.CT_APPLICATION_SMIL ) ) {
+      return PRESENTATION_PRIORITY;
+    }
+    return t.startsWith( "text/" ) ? 3 : t.startsWith( "image/" ) ? 2 : t.startsWith( "audio/" ) ? 1 : 0;
+  }
+
+  /**
+   * Fit the content parts of a message into the maximum message size.
+   *
+   * @param parts the content parts, the presentation first ; they are not modified
+   * @param priorities priority of each part (the lowest goes first), or null for the default priorities
+   * @return the parts themselves if they fit, or else the fitted parts, an unmodifiable list
+   * @throws IOException if a media cannot be transcoded, or the message cannot fit even with the presentation
+   *         only
+   */
+  public List<MMContent> fit( List<MMContent> parts, int[] priorities ) throws IOException {
+    if ( priorities != null && priorities.length != parts.size() ) {
+      throw new IllegalArgumentException( "Expected " + parts.size() + " priorities" );
+    }
+    Parts key = new Parts( parts, priorities );
+    CompletableFuture<List<MMContent>> theirs = fitted.get( key );
+    if ( theirs == null ) {
+      if ( fitted.size() >= MAX_REMEMBERED ) {
+        fitted.clear();
+      }
+      CompletableFuture<List<MMContent>> mine = new CompletableFuture<>();
+      theirs = fitted.putIfAbsent( key, mine );
+      if ( theirs == null ) {
+        try {
+          List<MMContent> result = compute( parts, priorities );
+          mine.complete( result );
+          return result;
+        }
+        catch ( IOException | RuntimeException e ) {
+          // Not remembered : the next message tries again.
+          fitted.remove( key, mine );
+          mine.completeExceptionally( e );
+          throw e;
+        }
+      }
+    }
+    // Fitted, or being fitted by another thread.
+    reused.increment();
+    try {
+      return theirs.join();
+    }
+    catch ( RuntimeException e ) {
+      Throwable cause = e.getCause() != null ? e.getCause() : e;
+      throw cause instanceof IOException ? (IOException) cause : new IOException( cause.getMessage(), cause );
+    }
+  }
+
+  private List<MMContent> compute( List<MMContent> parts, int[] priorities ) throws IOException {
+    fits.increment();
+    List<Part> work = new ArrayList<>( parts.size() );
+    Part presentation = null;
+    long size = headerReserve;
+    for ( int i = 0; i < parts.size(); i++ ) {
+      MMContent content = parts.get( i );
+      Part part = new Part( content, i,
+              priorities != null ? priorities[ i ] : defaultPriority( content.getType() ) );
+      if ( presentation == null && IMMConstants.CT_APPLICATION_SMIL.equalsIgnoreCase( content.getType() ) ) {
+        presentation = part;
+        part.priority = PRESENTATION_PRIORITY;
+      }
+      work.add( part );
+      size += estimate( content );
+    }
+    if ( size <= maxBytes ) {
+      return parts;
+    }
+
+    // The parts that may be degraded, lowest priority first and, among equals, the last ones first.
+    List<Part> candidates = new ArrayList<>( work );
+    candidates.remove( presentation );
+    candidates.sort( ( a, b ) -> a.priority != b.priority ? Integer.compare( a.priority, b.priority )
+            : Integer.compare( b.index, a.index ) );
+    String smil = presentation != null ? new String( bytes( presentation.source ), StandardCharsets.UTF_8 ) : "";
+
+    // 1) Transcode the images, one step at a time.
+    Map<String, int[]> boxes = boxes( smil );
+    for ( int step = 0; step < SCALES.length && size > maxBytes; step++ ) {
+      for ( Part part : candidates ) {
+        if ( size <= maxBytes ) {
+          break;
+        }
+        if ( !MediaTranscoder.isImage( part.source.getType() ) ) {
+          continue;
+        }
+        int[] box = boxes.getOrDefault( reference( part.source.getContentId() ), boxes.get( null ) );
+        MediaTranscoder.Profile profile = new MediaTranscoder.Profile( box != null ? box[ 0 ] : 0,
+                box != null ? box[ 1 ] : 0, SCALES[ step ], COLOR_BITS[ step ], FRAME_STEPS[ step ],
+                QUALITIES[ step ] );
+        byte[] source = bytes( part.source );
+        byte[] bytes = cache.get( digest( part.source ), profile.toString(), () -> {
+          transcoded.increment();
+          return MediaTranscoder.transcodeImage( source, part.source.getType(), profile );
+        } );
+        size = replace( part, bytes, size );
+      }
+    }
+
+    // 2) Trim the audio clips.
+    for ( Part part : candidates ) {
+      if ( size <= maxBytes ) {
+        break;
+      }
+      if ( !MediaTranscoder.isAmr( part.source.getType() ) ) {
+        continue;
+      }
+      long target = part.content.getLength() - ( size - maxBytes );
+      if ( target < part.source.getLength() / 4 ) {
+        continue;
+      }
+      byte[] source = bytes( part.source );
+      byte[] bytes = cache.get( digest( part.source ), "amr:" + target, () -> {
+        trimmed.increment();
+        return MediaTranscoder.trimAmr( source, (int) target );
+      } );
+      size = replace( part, bytes, size );
+    }
+
+    // 3) Drop the parts, and their elements of the presentation.
+    String original = smil;
+    for ( Part part : candidates ) {
+      if ( size <= maxBytes ) {
+        break;
+      }
+      part.dropped = true;
+      size -= estimate( part.content );
+      dropped.increment();
+      smil = unreference( smil, reference( part.source.getContentId() ) );
+    }
+    if ( presentation != null && !smil.equals( original ) ) {
+      byte[] bytes = smil.getBytes( StandardCharsets.UTF_8 );
+      size -= presentation.source.getLength() - bytes.length;
+      presentation.content = new ContentCache.SharedContent( bytes, presentation.source.getContentId(),
+              presentation.source.getType() );
+    }
+    if ( size > maxBytes ) {
+      throw new IOException( "Cannot fit the Multimedia Message into " + maxBytes + " bytes : " + size
+              + " bytes with the presentation only" );
+    }
+
+    List<MMContent> result = new ArrayList<>( work.size() );
+    for ( Part part : work ) {
+      if ( !part.dropped ) {
+        result.add( part.content );
+      }
+    }
+    return Collections.unmodifiableList( result );
+  }
+
+  /**
+   * Replace the content of a part with transcoded bytes, if they are smaller.
+   *
+   * @return the new estimated size of the message
+   */
+  private static long replace( Part part, byte[] bytes, long size ) {
+    if ( bytes.length >= part.content.getLength() ) {
+      return size;
+    }
+    size -= part.content.getLength() - bytes.length;
+    part.content = new ContentCache.SharedContent( bytes, part.source.getContentId(), part.source.getType() );
+    return size;
+  }
+
+  private static int estimate( MMContent part ) {
+    String type = part.getType();
+    String id = part.getContentId();
+    return part.getLength() + PART_OVERHEAD + ( type != null ? type.length() : 0 ) + ( id != null ? id.length() : 0 );
+  }
+
+  private static byte[] bytes( MMContent part ) {
+    return part instanceof ContentCache.SharedContent ? ( (ContentCache.SharedContent) part ).bytes()
+            : part.getContent();
+  }
+
+  private String digest( MMContent part ) {
+    String digest = digests.get( part );
+    if ( digest == null ) {
+      digest = TranscodeCache.digest( bytes( part ) );
+      digests.put( part, digest );
+    }
+    return digest;
+  }
+
+  /**
+   * Return how the presentation references a part : "cid:<id>" for a "Content-ID", the "Content-Location" as is.
+   */
+  private static String reference( String contentId ) {
+    if ( contentId == null ) {
+      return "";
+    }
+    return contentId.startsWith( "<" ) && contentId.endsWith( ">" )
+            ? "cid:" + contentId.substring( 1, contentId.length() - 1 ) : contentId;
+  }
+
+  /**
+   * Return the size of the region of each visual media of a presentation, keyed by its "src" ; the size of the root
+   * layout, if any, is keyed by null. Sizes in percents are ignored.
+   */
+  private static Map<String, int[]> boxes( String smil ) {
+    Map<String, int[]> regions = new HashMap<>();
+    Matcher m = REGION.matcher( smil );
+    while ( m.find() ) {
+      int[] size = size( m.group() );
+      String id = attribute( m.group(), "id" );
+      if ( size != null && id != null ) {
+        regions.put( id, size );
+      }
+    }
+    Map<String, int[]> boxes = new HashMap<>();
+    m = ROOT_LAYOUT.matcher( smil );
+    if ( m.find() && size( m.group() ) != null ) {
+      boxes.put( null, size( m.group() ) );
+    }
+    m = MEDIA.matcher( smil );
+    while ( m.find() ) {
+      String src = attribute( m.group(), "src" );
+      String region = attribute( m.group(), "region" );
+      if ( src != null && region != null && regions.containsKey( region ) ) {
+        boxes.put( src, regions.get( region ) );
+      }
+    }
+    return boxes;
+  }
+
+  private static int[] size( String element ) {
+    String width = attribute( element, "width" );
+    String height = attribute( element, "height" );
+    if ( width == null || height == null || !width.matches( "\\d+" ) || !height.matches( "\\d+" ) ) {
+      return null;
+    }
+    return new int[] { Integer.parseInt( width ), Integer.parseInt( height ) };
+  }
+
+  private static String attribute( String element, String name ) {
+    Matcher m = Pattern.compile( "\\s" + name + "=\"([^\"]*)\"" ).matcher( element );
+    return m.find() ? unescape( m.group( 1 ) ) : null;
+  }
+
+  /**
+   * Remove from a presentation the elements (and their lines) referencing the given "src".
+   */
+  private static String unreference( String smil, String src ) {
+    String escaped = src.replace( "&", "&amp;" ).replace( "<", "&lt;" ).replace( ">", "&gt;" )
+            .replace( "\"", "&quot;" );
+    return smil.replaceAll( "[ \\t]*<\\w+\\b[^>]*\\ssrc=\"" + Pattern.quote( escaped ) + "\"[^>]*/>[ \\t]*(\\r?\\n)?",
+            "" );
+  }
+
+  private static String unescape( String text ) {
+    return text.replace( "&quot;", "\"" ).replace( "&lt;", "<" ).replace( "&gt;", ">" ).replace( "&amp;", "&" );
+  }
+
+  /**
+   * Remove the fitted parts remembered, e.g. once the templates they were fitted for are no longer used. The
+   * transcoded media stay in their cache.
+   */
+  public void clear() {
+    fitted.clear();
+  }
+
+  public int getMaxBytes() {
+    return maxBytes;
+  }
+
+  public TranscodeCache getCache() {
+    return cache;
+  }
+
+  /**
+   * Return the number of lists of parts fitted, i.e. not found among the remembered ones.
+   *
+   * @return number of lists of parts fitted
+   */
+  public long getFits() {
+    return fits.sum();
+  }
+
+  public long getReused() {
+    return reused.sum();
+  }
+
+  public long getTranscoded() {
+    return transcoded.sum();
+  }
+
+  public long getTrimmed() {
+    return trimmed.sum();
+  }
+
+  public long getDropped() {
+    return dropped.sum();
+  }
+
+  @Override
+  public String toString() {
+    return String.format( "Message fitter : %d bytes max, %d fitted, %d reused, %d images transcoded, "
+            + "%d clips trimmed, %d parts dropped", maxBytes, getFits(), getReused(), getTranscoded(), getTrimmed(),
+            getDropped() );
+  }
+
+  /**
+   * A part being fitted : its source, its current content and its priority.
+   */
+  private static final class Part {
+    private final MMContent source;
+    private final int index;
+    private int priority;
+    private MMContent content;
+    private boolean dropped = false;
+
+    Part( MMContent source, int index, int priority ) {
+      this.source = source;
+      this.index = index;
+      this.priority = priority;
+      this.content = source;
+    }
+  }
+
+  /**
+   * A list of parts, compared by the identity of its parts, and their priorities.
+   */
+  private static final class Parts {
+    private final MMContent[] parts;
+    private final int[] priorities;
+    private final int hash;
+
+    Parts( List<MMContent> parts, int[] priorities ) {
+      this.parts = parts.toArray( new MMContent[ 0 ] );
+      this.priorities = priorities;
+      int h = Arrays.hashCode( priorities );
+      for ( MMContent part : this.parts ) {
+        h = 31 * h + System.identityHashCode( part );
+      }
+      this.hash = h;
+    }
+
+    @Override
+    public boolean equals( Object o ) {
+      if ( !( o instanceof Parts ) ) {
+        return false;
+      }
+      Parts other = (Parts) o;
+      if ( other.parts.length != parts.length || !Arrays.equals( other.priorities, priorities ) ) {
+        return false;
+      }
+      for ( int i = 0; i < parts.length; i++ ) {
+        if ( other.parts[ i ] != parts[ i ] ) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+}
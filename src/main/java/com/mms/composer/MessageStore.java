@@ -0,0 +1,282 @@
+package com.mms.composer;
+
+/*
+ * @(#)MessageStore.java	1.1
+ *
+ * Summary
+ *
+ * In-memory store of encoded Multimedia Messages, keyed by their transaction ID, for the "MmsServer". Each message
+ * is held as an "m-retrieve-conf" message, ready to be written to a socket, together with its strong entity tag.
+ *
+ * Messages are either held on the heap or off the heap, in direct buffers :
+ *
+ * - On the heap, a message keeps its own copy of its header block, while its body, which may be shared by all the
+ *   messages of a template (see "MessageTemplate"), is never copied. The message type is patched in that copy,
+ *   so that an "m-send-req" header block is served as an "m-retrieve-conf" one.
+ * - Off the heap, a message is copied, patched, into a single direct buffer. The garbage collector then never has
+ *   to scan nor move its bytes, which suits stores much larger than the heap of the process.
+ *
+ * The store is bounded by the total size of the messages it holds (a shared body being counted in full for each
+ * message) : when that size is exceeded, the least recently served messages are evicted. A message larger than the
+ * whole budget is never stored. The store is safe for use by multiple threads.
+ */
+
+// These imports are necessary for utilities.
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+public class MessageStore {
+  // Second byte of an "m-retrieve-conf" message, i.e. the value of its "X-Mms-Message-Type" field.
+  private static final byte M_RETRIEVE_CONF = (byte) 0x84;
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate( 0 );
+
+  // Maximum total size, in bytes, of the stored messages.
+  private final long maxBytes;
+  // True to hold the messages in direct buffers.
+  private final boolean direct;
+  // Messages in access order, i.e. the least recently served message comes first. Guarded by "this".
+  private final LinkedHashMap<String, Message> messages = new LinkedHashMap<>( 16, 0.75f, true );
+  // Total size, in bytes, of the stored messages. Guarded by "this".
+  private long residentBytes = 0;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * Create a message store.
+   *
+   * @param maxBytes maximum total size, in bytes, of the stored messages ; 0 not to store any message
+   * @param direct true to hold the messages off the heap, in direct buffers
+   */
+  public MessageStore( long maxBytes, boolean direct ) {
+    if ( maxBytes < 0 ) {
+      throw new IllegalArgumentException( "Negative store size : " + maxBytes );
+    }
+    this.maxBytes = maxBytes;
+    this.direct = direct;
+  }
+
+  /**
+   * Store an encoded message.
+   *
+   * @param transactionId transaction ID of the message
+   * @param message the encoded message
+   * @return true if the message is stored, false if it is larger than the whole store
+   */
+  public boolean put( String transactionId, EncodedMessage message ) {
+    return put( transactionId, message.getHeader(), message.getHeader().length, message.getBody() );
+  }
+
+  /**
+   * Store an encoded message, as an "m-retrieve-conf" message. The header block is copied ; the body is copied
+   * only off the heap, and must not be modified afterwards otherwise.
+   *
+   * @param transactionId transaction ID of the message
+   * @param header array holding the header block of the encoded message, or the whole message
+   * @param headerLength size of the header block, from the start of the array
+   * @param body body of the encoded message, possibly shared ; null for none
+   * @return true if the message is stored, false if it is larger than the whole store
+   */
+  public boolean put( String transactionId, byte[] header, int headerLength, byte[] body ) {
+    return put( transactionId, header, headerLength, body == null ? null : ByteBuffer.wrap( body ) );
+  }
+
+  /**
+   * Store an encoded message, as an "m-retrieve-conf" message. The header block is copied ; the body is copied
+   * off the heap, or if it is a direct buffer (whose memory may be released, see "MediaStore"), and must not be
+   * modified afterwards otherwise.
+   *
+   * @param transactionId transaction ID of the message
+   * @param header array holding the header block of the encoded message, or the whole message
+   * @param headerLength size of the header block, from the start of the array
+   * @param body body of the encoded message, possibly shared, from its position to its limit ; null for none
+   * @return true if the message is stored, false if it is larger than the whole store
+   */
+  public boolean put( String transactionId, byte[] header, int headerLength, ByteBuffer body ) {
+    if ( headerLength < 2 ) {
+      throw new IllegalArgumentException( "Invalid Multimedia Message : \"" + transactionId + "\"" );
+    }
+    body = body == null ? EMPTY : body.duplicate();
+    long length = headerLength + (long) body.remaining();
+    if ( length > maxBytes ) {
+      return false;
+    }
+    ByteBuffer[] segments;
+    if ( direct ) {
+      ByteBuffer buffer = ByteBuffer.allocateDirect( (int) length );
+      buffer.put( header, 0, headerLength ).put( body ).flip();
+      buffer.put( 1, M_RETRIEVE_CONF );
+      segments = new ByteBuffer[] { buffer };
+    }
+    else {
+      byte[] copy = new byte[ headerLength ];
+      System.arraycopy( header, 0, copy, 0, headerLength );
+      copy[ 1 ] = M_RETRIEVE_CONF;
+      if ( body.isDirect() ) {
+        body = ByteBuffer.allocate( body.remaining() ).put( body );
+        body.flip();
+      }
+      // The body is stored from its position on, so that each buffer of the message starts at 0 (see "slice()").
+      segments = new ByteBuffer[] { ByteBuffer.wrap( copy ), body.slice() };
+    }
+    Message message = new Message( segments, length );
+    synchronized ( this ) {
+      Message previous = messages.put( transactionId, message );
+      if ( previous != null ) {
+        residentBytes -= previous.length;
+      }
+      residentBytes += length;
+      evict();
+    }
+    return true;
+  }
+
+  /**
+   * Return a stored message.
+   *
+   * @param transactionId transaction ID of the message
+   * @return the message, or null if it is not stored
+   */
+  public Message get( String transactionId ) {
+    Message message;
+    synchronized ( this ) {
+      message = messages.get( transactionId );
+    }
+    ( message != null ? hits : misses ).increment();
+    return message;
+  }
+
+  /**
+   * Remove a stored message.
+   *
+   * @param transactionId transaction ID of the message
+   * @return true if the message was stored
+   */
+  public synchronized boolean remove( String transactionId ) {
+    Message previous = messages.remove( transactionId );
+    if ( previous == null ) {
+      return false;
+    }
+    residentBytes -= previous.length;
+    return true;
+  }
+
+  /**
+   * Evict the least recently served messages until the store fits its budget.
+   */
+  private void evict() {
+    Iterator<Map.Entry<String, Message>> eldest = messages.entrySet().iterator();
+    while ( residentBytes > maxBytes && eldest.hasNext() ) {
+      residentBytes -= eldest.next().getValue().length;
+      eldest.remove();
+      evictions.increment();
+    }
+  }
+
+  /**
+   * Remove all the messages of the store. The counters are left untouched.
+   */
+  public synchronized void clear() {
+    messages.clear();
+    residentBytes = 0;
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  public synchronized long getResidentBytes() {
+    return residentBytes;
+  }
+
+  public synchronized int size() {
+    return messages.size();
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public boolean isDirect() {
+    return direct;
+  }
+
+  @Override
+  public String toString() {
+    return String.format( "Message store (%s) : %d messages, %d/%d bytes, %d hits, %d misses, %d evictions",
+            direct ? "off-heap" : "heap", size(), getResidentBytes(), maxBytes, getHits(), getMisses(),
+            getEvictions() );
+  }
+
+  /**
+   * A stored message : its bytes, as one or more buffers that are never modified, each from position 0 to its
+   * limit, and its entity tag.
+   */
+  public static final class Message {
+    private final ByteBuffer[] segments;
+    private final long length;
+    private final String etag;
+
+    Message( ByteBuffer[] segments, long length ) {
+      this.segments = segments;
+      this.length = length;
+      CRC32 crc = new CRC32();
+      for ( ByteBuffer segment : segments ) {
+        crc.update( segment.duplicate() );
+      }
+      this.etag = "\"" + Long.toHexString( crc.getValue() ) + "-" + Long.toHexString( length ) + "\"";
+    }
+
+    /**
+     * Return the size of the message.
+     *
+     * @return size, in bytes, of the "m-retrieve-conf" message
+     */
+    public long getLength() {
+      return length;
+    }
+
+    /**
+     * Return the strong entity tag of the message, derived from its bytes.
+     *
+     * @return the entity tag, within double quotes
+     */
+    public String getEtag() {
+      return etag;
+    }
+
+    /**
+     * Return a range of the message, as views of its buffers that the caller may consume.
+     *
+     * @param offset offset of the range
+     * @param count size of the range
+     * @return read only buffers holding the range, in order
+     */
+    public ByteBuffer[] slice( long offset, long count ) {
+      ByteBuffer[] views = new ByteBuffer[ segments.length ];
+      for ( int i = 0; i < segments.length; i++ ) {
+        ByteBuffer view = segments[ i ].asReadOnlyBuffer();
+        int size = view.remaining();
+        int start = (int) Math.min( Math.max( offset, 0 ), size );
+        int end = (int) Math.min( Math.max( offset + count, 0 ), size );
+        view.limit( end ).position( start );
+        views[ i ] = view;
+        offset -= size;
+      }
+      return views;
+    }
+  }
+}
@@ -0,0 +1,285 @@
+package com.mms.composer;
+
+/*
+ * @(#)MessageTemplate.java	1.1
+ *
+ * Summary
+ *
+ * A pre-encoded message template. Across a campaign the only per-message differences are the headers set by
+ * "SetHeaders()" (From, To, Subject, Transaction-ID, Date), while the multipart body built by "AddContents()" is
+ * byte for byte the same for every message. The template encodes that body once, with the Nokia MMS Java Library,
+ * and keeps it ; each message then only needs its header block to be encoded (see "HeaderEncoder") and written in
+ * front of the shared body. The per-message CPU and allocations shrink to the size of the header block.
+ *
+ * The header blocks are written by a "HeaderWriter", prepared from the probe message, into a buffer reused by each
+ * thread, so that encoding a message allocates next to nothing. There are two writers : one for the "m-send-req"
+ * messages submitted to an MMSC, and one for the "m-retrieve-conf" messages written to files or segments, which
+ * leave out the fields that only apply to the submission of a message (see "HeaderEncoder").
+ *
+ * When the template is compiled, the header block of the probe message is encoded by the "HeaderEncoder", and the
+ * template is refused unless it is the start of the full encoding of the probe by the library. "MessageTemplateTest"
+ * checks that other messages, to a recipient or to a group of "To", "Cc" and "Bcc" recipients (see
+ * "RecipientList.Group"), encode the same both ways.
+ *
+ * The shared body is held either on the heap or, when the template is compiled with a "MediaStore", off the heap in
+ * a direct buffer of the store, keyed by a digest of its bytes : many templates then weigh next to nothing on the
+ * heap, and the body is written to the files or sockets straight from that buffer. Such a template holds a reference
+ * to its body until it is closed.
+ */
+
+// These imports are necessary for utilities.
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+// Nokia MMS Java Library version 1.1
+import com.nokia.mms.*;
+
+public class MessageTemplate implements Closeable {
+  // Headers of the probe message, used to split the full encoding into header block and body.
+  private static final String PROBE_ORIGINATOR = "template";
+  private static final String PROBE_RECIPIENT = "+300000000000/TYPE=PLMN";
+  private static final String PROBE_SUBJECT = "template";
+
+  // The writers of the per-message header blocks, as "m-send-req" and as "m-retrieve-conf".
+  private final HeaderWriter sendReq;
+  private final HeaderWriter retrieveConf;
+  // The encoded multipart body, shared by all the messages, from position 0 to its limit. Never modified.
+  private final ByteBuffer body;
+  // The media of the store holding the body off the heap, or null for a body on the heap.
+  private final MediaStore.Media media;
+  private boolean closed = false;
+
+  private MessageTemplate( HeaderWriter sendReq, HeaderWriter retrieveConf, ByteBuffer body,
+                           MediaStore.Media media ) {
+    this.sendReq = sendReq;
+    this.retrieveConf = retrieveConf;
+    this.body = body;
+    this.media = media;
+  }
+
+  /**
+   * Compile the template of the messages of a composer : encode their multipart body once.
+   *
+   * @param composer the composer
+   * @return the template
+   * @throws IOException if a "multimedia" file cannot be read
+   * @throws MMEncoderException if the message cannot be encoded, or if the header block encoded by the
+   *         "HeaderEncoder" differs from the one encoded by the library
+   */
+  public static MessageTemplate compile( SampleMMSComposer composer ) throws IOException, MMEncoderException {
+    return compile( composer, null );
+  }
+
+  /**
+   * Compile the template of the messages of a composer, holding their multipart body off the heap.
+   *
+   * @param composer the composer
+   * @param store store holding the body off the heap, or null to hold it on the heap
+   * @return the template ; close it once its messages are written
+   * @throws IOException if a "multimedia" file cannot be read
+   * @throws MMEncoderException if the message cannot be encoded, or if the header block encoded by the
+   *         "HeaderEncoder" differs from the one encoded by the library
+   */
+  public static MessageTemplate compile( SampleMMSComposer composer, MediaStore store )
+          throws IOException, MMEncoderException {
+    // Encode a complete probe message with the library. It is not one of the messages : its stages are timed apart
+    // from theirs.
+    PipelineMetrics metrics = new PipelineMetrics();
+    MMMessage probe = composer.compose( PROBE_ORIGINATOR, PROBE_RECIPIENT, PROBE_SUBJECT, metrics );
+    byte[] full = composer.encode( probe, metrics );
+    // The body is whatever follows the header block.
+    byte[] header = HeaderEncoder.encode( probe );
+    if ( full.length < header.length || !Arrays.equals( header, Arrays.copyOf( full, header.length ) ) ) {
+      throw new MMEncoderException( "The header block of the template does not match the encoded message" );
+    }
+    HeaderWriter sendReq = new HeaderWriter( probe, HeaderEncoder.MESSAGE_TYPE_M_SEND_REQ,
+            composer.getIdGenerator() );
+    HeaderWriter retrieveConf = new HeaderWriter( probe, HeaderEncoder.MESSAGE_TYPE_M_RETRIEVE_CONF,
+            composer.getIdGenerator() );
+    byte[] body = Arrays.copyOfRange( full, header.length, full.length );
+    if ( store == null ) {
+      return new MessageTemplate( sendReq, retrieveConf, ByteBuffer.wrap( body ), null );
+    }
+    // Off the heap : templates with the same body share a single copy of it.
+    MediaStore.Media media = store.put( "template:" + digest( body ), body, 0, body.length );
+    return new MessageTemplate( sendReq, retrieveConf, media.buffer(), media );
+  }
+
+  /**
+   * Encode the header block of an "m-send-req" message : set its headers and encode them, the body being the shared
+   * one.
+   *
+   * @param originator address of the message sender
+   * @param recipient address of the message receiver
+   * @param subject subject of the multimedia message
+   * @return the encoded header block
+   */
+  public byte[] encodeHeader( String originator, String recipient, String subject ) {
+    return encodeHeader( originator, recipient, subject, MmsEncoder.MESSAGE_TYPE_M_SEND_REQ );
+  }
+
+  /**
+   * Encode the header block of a message : set its headers and encode them, the body being the shared one.
+   *
+   * @param originator address of the message sender
+   * @param recipient address of the message receiver
+   * @param subject subject of the multimedia message
+   * @param messageType "MESSAGE_TYPE_M_SEND_REQ" to submit the message to an MMSC, or
+   *        "MESSAGE_TYPE_M_RETRIEVE_CONF" to write it to a file or a segment (see "MmsEncoder")
+   * @return the encoded header block
+   */
+  public byte[] encodeHeader( String originator, String recipient, String subject, int messageType ) {
+    return getHeaderWriter( messageType ).write( originator, recipient, subject ).toByteArray();
+  }
+
+  /**
+   * Write the header block of an "m-send-req" message into the buffer of the current thread, without allocating it.
+   *
+   * @param originator address of the message sender
+   * @param recipient address of the message receiver
+   * @param subject subject of the multimedia message
+   * @return the buffer of the current thread, holding the header block ; it is overwritten by the next header block
+   *         written by the same thread
+   */
+  HeaderWriter.Buffer writeHeader( String originator, String recipient, String subject ) {
+    return sendReq.write( originator, recipient, subject );
+  }
+
+  /**
+   * Write the header block of a message into the buffer of the current thread, without allocating it.
+   *
+   * @param originator address of the message sender
+   * @param recipient address of the message receiver
+   * @param subject subject of the multimedia message
+   * @param messageType "MESSAGE_TYPE_M_SEND_REQ" or "MESSAGE_TYPE_M_RETRIEVE_CONF" (see "MmsEncoder")
+   * @return the buffer of the current thread, holding the header block ; it is overwritten by the next header block
+   *         written by the same thread
+   */
+  HeaderWriter.Buffer writeHeader( String originator, String recipient, String subject, int messageType ) {
+    return getHeaderWriter( messageType ).write( originator, recipient, subject );
+  }
+
+  /**
+   * Encode a complete "m-send-req" message, i.e. its header block followed by the shared body.
+   *
+   * @param originator address of the message sender
+   * @param recipient address of the message receiver
+   * @param subject subject of the multimedia message
+   * @return the encoded message
+   */
+  public byte[] encode( String originator, String recipient, String subject ) {
+    return concat( encodeHeader( originator, recipient, subject ), body );
+  }
+
+  /**
+   * Write the header block of a message to a group of recipients into the buffer of the current thread, without
+   * allocating it. The "To", "Cc" and "Bcc" fields are copied as they were encoded with the group ; the "Bcc" ones
+   * are left out of an "m-retrieve-conf".
+   *
+   * @param originator address of the message sender
+   * @param recipients the recipients of the message
+   * @param subject subject of the multimedia message
+   * @param messageType "MESSAGE_TYPE_M_SEND_REQ" to submit the message to an MMSC, or
+   *        "MESSAGE_TYPE_M_RETRIEVE_CONF" to write it to a file or a segment (see "MmsEncoder")
+   * @return the buffer of the current thread, holding the header block ; it is overwritten by the next header block
+   *         written by the same thread
+   */
+  HeaderWriter.Buffer writeHeader( String originator, RecipientList.Group recipients, String subject,
+                                   int messageType ) {
+    return getHeaderWriter( messageType ).write( originator, recipients, subject );
+  }
+
+  /**
+   * Encode a complete message to a group of recipients, i.e. its header block followed by the shared body.
+   *
+   * @param originator address of the message sender
+   * @param recipients the recipients of the message
+   * @param subject subject of the multimedia message
+   * @param messageType "MESSAGE_TYPE_M_SEND_REQ" or "MESSAGE_TYPE_M_RETRIEVE_CONF" (see "MmsEncoder")
+   * @return the encoded message
+   */
+  public byte[] encode( String originator, RecipientList.Group recipients, String subject, int messageType ) {
+    return concat( writeHeader( originator, recipients, subject, messageType ).toByteArray(), body );
+  }
+
+  /**
+   * Return the writer of the header blocks of a message type, e.g. to write one with a given transaction ID and
+   * date.
+   *
+   * @param messageType "MESSAGE_TYPE_M_SEND_REQ" or "MESSAGE_TYPE_M_RETRIEVE_CONF" (see "MmsEncoder")
+   * @return the header writer
+   */
+  HeaderWriter getHeaderWriter( int messageType ) {
+    switch ( messageType ) {
+      case HeaderEncoder.MESSAGE_TYPE_M_SEND_REQ: return sendReq;
+      case HeaderEncoder.MESSAGE_TYPE_M_RETRIEVE_CONF: return retrieveConf;
+      default: throw new IllegalArgumentException( "Invalid Multimedia Message type : " + messageType );
+    }
+  }
+
+  /**
+   * Return the encoded multipart body shared by all the messages, as a view that the caller may consume. Its bytes
+   * must not be modified, nor read once the template is closed.
+   *
+   * @return the encoded body
+   */
+  ByteBuffer getBody() {
+    return body.duplicate();
+  }
+
+  /**
+   * Return the size of the encoded multipart body.
+   *
+   * @return size, in bytes, of the body
+   */
+  public int getBodyLength() {
+    return body.limit();
+  }
+
+  /**
+   * Tell whether the body is held off the heap, in a "MediaStore".
+   *
+   * @return true if the body is held off the heap
+   */
+  public boolean isOffHeap() {
+    return media != null;
+  }
+
+  /**
+   * Release the body held off the heap, if any. The template must not be used afterwards.
+   */
+  @Override
+  public synchronized void close() {
+    if ( !closed && media != null ) {
+      media.release();
+    }
+    closed = true;
+  }
+
+  private static byte[] concat( byte[] header, ByteBuffer body ) {
+    byte[] message = Arrays.copyOf( header, header.length + body.remaining() );
+    body.duplicate().get( message, header.length, body.remaining() );
+    return message;
+  }
+
+  /**
+   * Return the SHA-256 digest of an encoded body, in hexadecimal.
+   */
+  private static String digest( byte[] body ) {
+    try {
+      StringBuilder hex = new StringBuilder( 64 );
+      for ( byte b : MessageDigest.getInstance( "SHA-256" ).digest( body ) ) {
+        hex.append( Character.forDigit( ( b >> 4 ) & 0xF, 16 ) ).append( Character.forDigit( b & 0xF, 16 ) );
+      }
+      return hex.toString();
+    }
+    catch ( NoSuchAlgorithmException e ) {
+      // Every Java platform supports SHA-256.
+      throw new IllegalStateException( e );
+    }
+  }
+}
@@ -0,0 +1,601 @@
+package com.mms.composer;
+
+/*
+ * @(#)MmsDecoder.java	1.1
+ *
+ * Summary
+ *
+ * Streaming, event based decoder of Multimedia Messages (WAP-209-MMSEncapsulation), an alternative to the
+ * "MMDecoder" of the Nokia MMS Java Library for inspecting many or large messages :
+ *
+ * - The message is read from a "ByteBuffer", typically a memory-mapped file (see "decode( Path, Handler )"),
+ *   rather than from an array of bytes holding the whole message.
+ * - No "MMMessage" is built : the handler is called back once with the headers of the message, then once per
+ *   multipart entry, with the content type, the "Content-ID" / "Content-Location", and the offset and length of
+ *   its data. The data is never copied ; a handler that needs it gets a read only view of the buffer.
+ * - A handler can stop after the headers, or after any part, so that the rest of the message is not even read.
+ *
+ * Any message type is decoded ("m-send-req", "m-retrieve-conf", "m-send-conf", ...). Header fields that are not
+ * listed in "Headers" are skipped, following the generic encoding rules of the WSP header values.
+ *
+ * A decoder holds no state ; "decode()" may be called by several threads at once.
+ */
+
+// These imports are necessary for utilities.
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Nokia MMS Java Library version 1.1
+import com.nokia.mms.*;
+
+public class MmsDecoder {
+  // Names of the message types, indexed by their value minus 0x80 (WAP-209-MMSEncapsulation, 7.3.30).
+  private static final String[] MESSAGE_TYPES = {
+    "m-send-req", "m-send-conf", "m-notification-ind", "m-notifyresp-ind", "m-retrieve-conf", "m-acknowledge-ind",
+    "m-delivery-ind"
+  };
+  // Header fields that are not defined in "IMMConstants".
+  private static final int FN_RESPONSE_STATUS = 0x12;
+  private static final int FN_RESPONSE_TEXT = 0x13;
+  // Well known parameters of a content type, as short integers without their high bit.
+  private static final int PARAM_CHARSET = Wsp.PARAM_CHARSET & 0x7F;
+  private static final int PARAM_TYPE = Wsp.PARAM_TYPE & 0x7F;
+  private static final int PARAM_START = Wsp.PARAM_START & 0x7F;
+  // Assigned number of the "utf-8" charset (IANA MIBenum).
+  private static final int CHARSET_UTF_8 = 106;
+  // "Quote" that may start a text string (WAP-230-WSP, 8.4.2.1).
+  private static final int TEXT_QUOTE = 0x7F;
+
+  /**
+   * Callbacks of the decoder.
+   */
+  public interface Handler {
+    /**
+     * Called once, with the headers of the message.
+     *
+     * @param headers the headers
+     * @return true to go on with the parts of the message, false to stop
+     */
+    boolean headers( Headers headers );
+
+    /**
+     * Called once per part of the message, in the order of the message.
+     *
+     * @param part the part
+     * @return true to go on with the next part, false to stop
+     */
+    boolean part( Part part );
+  }
+
+  /**
+   * Decode a message file, memory-mapped.
+   *
+   * @param file the file
+   * @param handler callbacks
+   * @return size, in bytes, of the file
+   * @throws IOException if the file cannot be read
+   * @throws MMDecoderException if the message is truncated or malformed
+   */
+  public long decode( Path file, Handler handler ) throws IOException, MMDecoderException {
+    try ( FileChannel channel = FileChannel.open( file, StandardOpenOption.READ ) ) {
+      long size = channel.size();
+      decode( channel.map( FileChannel.MapMode.READ_ONLY, 0, size ), handler );
+      return size;
+    }
+  }
+
+  /**
+   * Decode a message, from the position of a buffer to its limit. The offsets reported to the handler are relative
+   * to that position. The position of the buffer is not changed.
+   *
+   * @param message the message
+   * @param handler callbacks
+   * @throws MMDecoderException if the message is truncated or malformed
+   */
+  public void decode( ByteBuffer message, Handler handler ) throws MMDecoderException {
+    ByteBuffer buf = message.slice();
+    try {
+      Headers headers = readHeaders( buf );
+      if ( !handler.headers( headers ) ) {
+        return;
+      }
+      if ( !headers.isMultipart() ) {
+        // A single part body, if any.
+        if ( buf.hasRemaining() ) {
+          handler.part( new Part( buf, 0, headers.contentType, null, null, buf.position(), buf.remaining() ) );
+        }
+        return;
+      }
+      long count = Wsp.getUintvar( buf );
+      for ( int i = 0; i < count; i++ ) {
+        if ( !handler.part( readPart( buf, i ) ) ) {
+          return;
+        }
+      }
+    }
+    catch ( BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e ) {
+      throw new MMDecoderException( "Truncated or malformed Multimedia Message at offset " + buf.position() );
+    }
+  }
+
+  /**
+   * Return the name of a message type.
+   *
+   * @param messageType value of the "X-Mms-Message-Type" field, e.g. 0x84
+   * @return the name, e.g. "m-retrieve-conf"
+   */
+  public static String messageTypeName( int messageType ) {
+    int i = messageType - 0x80;
+    return i >= 0 && i < MESSAGE_TYPES.length ? MESSAGE_TYPES[ i ] : String.format( "unknown (0x%02X)", messageType );
+  }
+
+  /**
+   * Read the header fields, up to and including the "Content-Type" field, which is the last one, or up to the end of
+   * a message without a body, such as an "m-send-conf".
+   */
+  private static Headers readHeaders( ByteBuffer buf ) throws MMDecoderException {
+    Headers h = new Headers();
+    while ( true ) {
+      if ( !buf.hasRemaining() && h.messageType != 0 ) {
+        h.length = buf.position();
+        return h;
+      }
+      int field = buf.get() & 0xFF;
+      if ( field < 0x80 ) {
+        // An application header : a token text name, then a text value.
+        skipText( buf );
+        skipValue( buf );
+        continue;
+      }
+      switch ( field & 0x7F ) {
+        case IMMConstants.FN_MESSAGE_TYPE: h.messageType = buf.get() & 0xFF; break;
+        case IMMConstants.FN_TRANSACTION_ID: h.transactionId = readText( buf ); break;
+        case IMMConstants.FN_MMS_VERSION: h.version = buf.get() & 0x7F; break;
+        case IMMConstants.FN_MESSAGE_ID: h.messageId = readText( buf ); break;
+        case IMMConstants.FN_DATE: h.date = readLongInteger( buf ); break;
+        case IMMConstants.FN_FROM: h.from = readFrom( buf ); break;
+        case IMMConstants.FN_TO: h.to.add( readEncodedString( buf ) ); break;
+        case IMMConstants.FN_CC: h.cc.add( readEncodedString( buf ) ); break;
+        case IMMConstants.FN_BCC: h.bcc.add( readEncodedString( buf ) ); break;
+        case IMMConstants.FN_SUBJECT: h.subject = readEncodedString( buf ); break;
+        case FN_RESPONSE_STATUS: h.responseStatus = buf.get() & 0xFF; break;
+        case FN_RESPONSE_TEXT: h.responseText = readEncodedString( buf ); break;
+        case IMMConstants.FN_CONTENT_TYPE:
+          String[] params = new String[ 2 ];
+          h.contentType = readContentType( buf, params );
+          h.multipartType = params[ 0 ];
+          h.start = params[ 1 ];
+          h.length = buf.position();
+          return h;
+        default: skipValue( buf );
+      }
+      if ( h.messageType == 0 ) {
+        throw new MMDecoderException( "The first field of a Multimedia Message must be X-Mms-Message-Type" );
+      }
+    }
+  }
+
+  /**
+   * Read a multipart entry : "HeadersLen", "DataLen", content type, headers and data (WAP-230-WSP, 8.5).
+   */
+  private static Part readPart( ByteBuffer buf, int index ) throws MMDecoderException {
+    int headersLength = (int) Wsp.getUintvar( buf );
+    long dataLength = Wsp.getUintvar( buf );
+    int headersEnd = buf.position() + headersLength;
+    String contentType = readContentType( buf, null );
+    String contentId = null;
+    String contentLocation = null;
+    while ( buf.position() < headersEnd ) {
+      int field = buf.get() & 0xFF;
+      if ( field == Wsp.HEADER_CONTENT_ID ) {
+        contentId = readQuotedString( buf );
+      }
+      else if ( field == Wsp.HEADER_CONTENT_LOCATION ) {
+        contentLocation = readText( buf );
+      }
+      else if ( field >= 0x80 ) {
+        skipValue( buf );
+      }
+      else {
+        // An application header : the rest of the token text name, then a text value.
+        skipText( buf );
+        skipValue( buf );
+      }
+    }
+    buf.position( headersEnd );
+    int offset = buf.position();
+    if ( dataLength > buf.remaining() ) {
+      throw new MMDecoderException( "Truncated Multimedia Message : part " + index + " needs " + dataLength
+              + " bytes, " + buf.remaining() + " left" );
+    }
+    buf.position( offset + (int) dataLength );
+    return new Part( buf, index, contentType, contentId, contentLocation, offset, (int) dataLength );
+  }
+
+  /**
+   * Read a "Content-type-value" : a well known media, a text media, or a "Value-length" followed by the media
+   * and its parameters.
+   *
+   * @param params if not null, receives the "type" and "start" parameters
+   */
+  private static String readContentType( ByteBuffer buf, String[] params ) {
+    int b = buf.get( buf.position() ) & 0xFF;
+    if ( b >= 0x80 ) {
+      buf.get();
+      return media( b & 0x7F );
+    }
+    if ( b > Wsp.LENGTH_QUOTE ) {
+      return readText( buf );
+    }
+    int end = readValueLength( buf );
+    end += buf.position();
+    String media;
+    b = buf.get( buf.position() ) & 0xFF;
+    if ( b >= 0x80 ) {
+      buf.get();
+      media = media( b & 0x7F );
+    }
+    else if ( b <= Wsp.SHORT_LENGTH_MAX ) {
+      media = media( (int) readLongInteger( buf ) );
+    }
+    else {
+      media = readText( buf );
+    }
+    while ( buf.position() < end ) {
+      int param = buf.get() & 0xFF;
+      if ( param < 0x80 ) {
+        // An untyped parameter : the rest of its token text name, then its value.
+        skipText( buf );
+        skipValue( buf );
+      }
+      else if ( params != null && ( param & 0x7F ) == PARAM_TYPE ) {
+        params[ 0 ] = readText( buf );
+      }
+      else if ( params != null && ( param & 0x7F ) == PARAM_START ) {
+        params[ 1 ] = readText( buf );
+      }
+      else {
+        skipValue( buf );
+      }
+    }
+    buf.position( end );
+    return media;
+  }
+
+  private static String media( int number ) {
+    String media = Wsp.wellKnownMedia( number );
+    return media != null ? media : String.format( "unknown (0x%02X)", number );
+  }
+
+  /**
+   * Read the value of the "From" field : "Value-length", then an address or the "Insert-address-token".
+   */
+  private static String readFrom( ByteBuffer buf ) {
+    int end = readValueLength( buf );
+    end += buf.position();
+    int token = buf.get() & 0xFF;
+    String from = token == 0x80 ? readEncodedString( buf ) : null;
+    buf.position( end );
+    return from;
+  }
+
+  /**
+   * Read an "Encoded-string-value" : a text string, or a "Value-length", a charset and a text string.
+   */
+  private static String readEncodedString( ByteBuffer buf ) {
+    int b = buf.get( buf.position() ) & 0xFF;
+    if ( b > Wsp.LENGTH_QUOTE ) {
+      return readText( buf );
+    }
+    int end = readValueLength( buf );
+    end += buf.position();
+    int c = buf.get( buf.position() ) & 0xFF;
+    long charset = c >= 0x80 ? buf.get() & 0x7F : readLongInteger( buf );
+    String text = readText( buf, charset == CHARSET_UTF_8 ? StandardCharsets.UTF_8
+            : charset == ( Wsp.CHARSET_US_ASCII & 0x7F ) ? StandardCharsets.US_ASCII : Charset.defaultCharset() );
+    buf.position( end );
+    return text;
+  }
+
+  /**
+   * Read a null terminated text string, in the platform charset (as the Nokia MMS Java Library writes it), without
+   * its leading quote (0x7F), if any. A text string may well start with a double quote, which is kept.
+   */
+  private static String readText( ByteBuffer buf ) {
+    return readText( buf, Charset.defaultCharset() );
+  }
+
+  private static String readText( ByteBuffer buf, Charset charset ) {
+    int start = buf.position();
+    if ( ( buf.get( start ) & 0xFF ) == TEXT_QUOTE ) {
+      start++;
+    }
+    int end = start;
+    while ( buf.get( end ) != 0 ) {
+      end++;
+    }
+    byte[] bytes = new byte[ end - start ];
+    buf.position( start );
+    buf.get( bytes );
+    buf.get();
+    return new String( bytes, charset );
+  }
+
+  /**
+   * Read a "Quoted-string", e.g. the value of a "Content-ID" header : a double quote (0x22), then a null terminated
+   * text string (WAP-230-WSP, 8.4.2.1). A value written as a plain text string, without the double quote, is read as
+   * such.
+   */
+  private static String readQuotedString( ByteBuffer buf ) {
+    if ( ( buf.get( buf.position() ) & 0xFF ) == Wsp.QUOTE ) {
+      buf.get();
+      return readText( buf, Charset.defaultCharset() );
+    }
+    return readText( buf );
+  }
+
+  private static void skipText( ByteBuffer buf ) {
+    while ( buf.get() != 0 ) {
+      // Skip up to the terminating zero.
+    }
+  }
+
+  /**
+   * Read a "Value-length" : a single byte up to 30, otherwise 31 followed by a "Uintvar".
+   */
+  private static int readValueLength( ByteBuffer buf ) {
+    int b = buf.get() & 0xFF;
+    return b <= Wsp.SHORT_LENGTH_MAX ? b : (int) Wsp.getUintvar( buf );
+  }
+
+  /**
+   * Read a "Long-integer" : its "Short-length" followed by its bytes, most significant first.
+   */
+  private static long readLongInteger( ByteBuffer buf ) {
+    int length = buf.get() & 0xFF;
+    if ( length > 8 ) {
+      throw new IllegalArgumentException( "Long-integer longer than 8 bytes" );
+    }
+    long value = 0;
+    for ( int i = 0; i < length; i++ ) {
+      value = ( value << 8 ) | ( buf.get() & 0xFF );
+    }
+    return value;
+  }
+
+  /**
+   * Skip a header value, whatever its field : a short integer, a "Value-length" and as many bytes, or a text.
+   */
+  private static void skipValue( ByteBuffer buf ) {
+    int b = buf.get( buf.position() ) & 0xFF;
+    if ( b >= 0x80 ) {
+      buf.get();
+    }
+    else if ( b <= Wsp.LENGTH_QUOTE ) {
+      int length = readValueLength( buf );
+      buf.position( buf.position() + length );
+    }
+    else {
+      skipText( buf );
+    }
+  }
+
+  /**
+   * The headers of a message.
+   */
+  public static final class Headers {
+    private int messageType;
+    private String transactionId;
+    private int version = -1;
+    private String messageId;
+    private long date = -1;
+    private String from;
+    private final List<String> to = new ArrayList<>( 1 );
+    private final List<String> cc = new ArrayList<>( 0 );
+    private final List<String> bcc = new ArrayList<>( 0 );
+    private String subject;
+    private int responseStatus = -1;
+    private String responseText;
+    private String contentType;
+    private String multipartType;
+    private String start;
+    private int length;
+
+    /**
+     * Return the message type.
+     *
+     * @return value of the "X-Mms-Message-Type" field, e.g. 0x84 (see "messageTypeName()")
+     */
+    public int getMessageType() {
+      return messageType;
+    }
+
+    public String getTransactionId() {
+      return transactionId;
+    }
+
+    /**
+     * Return the MMS version.
+     *
+     * @return the version, e.g. 0x10 for 1.0, or -1 if not specified
+     */
+    public int getVersion() {
+      return version;
+    }
+
+    public String getMessageId() {
+      return messageId;
+    }
+
+    /**
+     * Return the date of the message.
+     *
+     * @return seconds since the epoch, or -1 if not specified
+     */
+    public long getDate() {
+      return date;
+    }
+
+    public String getFrom() {
+      return from;
+    }
+
+    public List<String> getTo() {
+      return Collections.unmodifiableList( to );
+    }
+
+    public List<String> getCc() {
+      return Collections.unmodifiableList( cc );
+    }
+
+    public List<String> getBcc() {
+      return Collections.unmodifiableList( bcc );
+    }
+
+    public String getSubject() {
+      return subject;
+    }
+
+    /**
+     * Return the status of an "m-send-conf" message.
+     *
+     * @return value of the "X-Mms-Response-Status" field, e.g. 0x80 for "Ok", or -1 if not specified
+     */
+    public int getResponseStatus() {
+      return responseStatus;
+    }
+
+    public String getResponseText() {
+      return responseText;
+    }
+
+    public String getContentType() {
+      return contentType;
+    }
+
+    /**
+     * Return the "type" parameter of a "multipart related" content type.
+     *
+     * @return the type of the presentation part, or null
+     */
+    public String getMultipartType() {
+      return multipartType;
+    }
+
+    /**
+     * Return the "start" parameter of a "multipart related" content type.
+     *
+     * @return the content id of the presentation part, or null
+     */
+    public String getStart() {
+      return start;
+    }
+
+    /**
+     * Return the size of the header block.
+     *
+     * @return size, in bytes, of the headers, i.e. offset of the body
+     */
+    public int getLength() {
+      return length;
+    }
+
+    /**
+     * Return true if the body of the message is made of multipart entries.
+     *
+     * @return true for a multipart content type
+     */
+    public boolean isMultipart() {
+      return contentType != null
+              && ( contentType.startsWith( "application/vnd.wap.multipart." ) || contentType.startsWith( "multipart/" ) );
+    }
+  }
+
+  /**
+   * A part of a message. Its data is not copied : "getData()" returns a view of the decoded buffer.
+   */
+  public static final class Part {
+    private final ByteBuffer message;
+    private final int index;
+    private final String contentType;
+    private final String contentId;
+    private final String contentLocation;
+    private final int offset;
+    private final int length;
+
+    Part( ByteBuffer message, int index, String contentType, String contentId, String contentLocation, int offset,
+          int length ) {
+      this.message = message;
+      this.index = index;
+      this.contentType = contentType;
+      this.contentId = contentId;
+      this.contentLocation = contentLocation;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    /**
+     * Return the index of the part.
+     *
+     * @return index, from 0, of the part within the message
+     */
+    public int getIndex() {
+      return index;
+    }
+
+    public String getContentType() {
+      return contentType;
+    }
+
+    /**
+     * Return the "Content-ID" of the part, e.g. "<0000>".
+     *
+     * @return the content id, or null
+     */
+    public String getContentId() {
+      return contentId;
+    }
+
+    public String getContentLocation() {
+      return contentLocation;
+    }
+
+    /**
+     * Return the offset of the data of the part.
+     *
+     * @return offset, in bytes, from the start of the message
+     */
+    public int getOffset() {
+      return offset;
+    }
+
+    /**
+     * Return the size of the data of the part.
+     *
+     * @return size, in bytes
+     */
+    public int getLength() {
+      return length;
+    }
+
+    /**
+     * Return a read only view of the data of the part, without copying it.
+     *
+     * @return the data, from position 0 to its length
+     */
+    public ByteBuffer getData() {
+      ByteBuffer data = message.duplicate();
+      data.limit( offset + length ).position( offset );
+      return data.slice().asReadOnlyBuffer();
+    }
+  }
+}
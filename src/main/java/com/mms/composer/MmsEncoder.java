@@ -0,0 +1,191 @@
+package com.mms.composer;
+
+/*
+ * @(#)MmsEncoder.java	1.1
+ *
+ * Summary
+ *
+ * Streaming encoder of Multimedia Messages (WAP-209-MMSEncapsulation), an alternative to the "MMEncoder" of the
+ * Nokia MMS Java Library :
+ *
+ * - The header block and the multipart entries are written straight to an "OutputStream", or into a reusable
+ *   (e.g. direct) "ByteBuffer", instead of being collected into an array of bytes. At most one content part is
+ *   held in memory on behalf of the encoder (none for the contents of the "ContentCache"), whatever the size of
+ *   the message.
+ * - The parts are written in the order they are given, whereas the library writes them in the order of its
+ *   internal hash table.
+ * - "m-retrieve-conf" messages are encoded as such (see "HeaderEncoder"), rather than by flipping the second byte
+ *   of an "m-send-req" message.
+ *
+ * The multipart entries are encoded like the library encodes them : "text/plain" parts carry a "us-ascii"
+ * charset, and so does the "application/smil" presentation ; a "Content-ID" starting with "<" is written as such,
+ * any other one as a "Content-Location" ; and the entries of a "multipart mixed" message carry no such header.
+ * Lengths are counted in bytes, so that non ASCII content ids and types are encoded correctly.
+ *
+ * An encoder holds no state ; it may be shared by several threads.
+ */
+
+// These imports are necessary for utilities.
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+// Nokia MMS Java Library version 1.1
+import com.nokia.mms.*;
+
+public class MmsEncoder {
+  // Message types, as written in the "X-Mms-Message-Type" field.
+  public static final int MESSAGE_TYPE_M_SEND_REQ = HeaderEncoder.MESSAGE_TYPE_M_SEND_REQ;
+  public static final int MESSAGE_TYPE_M_RETRIEVE_CONF = HeaderEncoder.MESSAGE_TYPE_M_RETRIEVE_CONF;
+
+  /**
+   * Encode a message to a stream.
+   *
+   * @param m multimedia message, holding the headers (and the contents, for the "start" parameter of a "multipart
+   *        related" message)
+   * @param parts content parts of the message, in the order they shall be written
+   * @param messageType "MESSAGE_TYPE_M_SEND_REQ" or "MESSAGE_TYPE_M_RETRIEVE_CONF"
+   * @param out the stream ; it is neither flushed nor closed
+   * @throws MMEncoderException if a mandatory field is missing or a part cannot be encoded
+   * @throws IOException if the stream cannot be written
+   */
+  public void encode( MMMessage m, List<? extends MMContent> parts, int messageType, OutputStream out )
+          throws MMEncoderException, IOException {
+    HeaderEncoder.encode( m, messageType, out );
+    boolean related = HeaderEncoder.isMultipartRelated( m );
+    Wsp.writeUintvar( parts.size(), out );
+    for ( MMContent part : parts ) {
+      writePart( part, related, out );
+    }
+  }
+
+  /**
+   * Encode a message into a buffer, from its current position. The buffer may be reused from one message to the
+   * next : clear it before each message, and flip it after.
+   *
+   * @param m multimedia message, holding the headers (and the contents, for the "start" parameter of a "multipart
+   *        related" message)
+   * @param parts content parts of the message, in the order they shall be written
+   * @param messageType "MESSAGE_TYPE_M_SEND_REQ" or "MESSAGE_TYPE_M_RETRIEVE_CONF"
+   * @param buffer the buffer
+   * @throws MMEncoderException if a mandatory field is missing or a part cannot be encoded
+   * @throws java.nio.BufferOverflowException if the message does not fit into the remaining space of the buffer
+   */
+  public void encode( MMMessage m, List<? extends MMContent> parts, int messageType, ByteBuffer buffer )
+          throws MMEncoderException {
+    try {
+      encode( m, parts, messageType, new ByteBufferOutputStream( buffer ) );
+    }
+    catch ( IOException e ) {
+      // Not thrown by a "ByteBufferOutputStream".
+      throw new MMEncoderException( "An IO error occurred encoding the Multimedia Message." );
+    }
+  }
+
+  /**
+   * Write a multipart entry : "HeadersLen", "DataLen", content type, headers and data (WAP-230-WSP, 8.5).
+   */
+  private static void writePart( MMContent part, boolean related, OutputStream out )
+          throws MMEncoderException, IOException {
+    String type = part.getType();
+    String contentId = part.getContentId();
+    if ( type == null || contentId == null ) {
+      throw new MMEncoderException( "The entry having Content-id = " + contentId + " cannot be encoded." );
+    }
+    byte[] typeBytes = null;
+    int media = Wsp.wellKnownMedia( type );
+    boolean smil = media <= 0 && type.equalsIgnoreCase( IMMConstants.CT_APPLICATION_SMIL );
+    int contentTypeLength;
+    if ( media == Wsp.TEXT_PLAIN ) {
+      contentTypeLength = 4;
+    }
+    else if ( media > 0 ) {
+      contentTypeLength = 1;
+    }
+    else {
+      typeBytes = type.getBytes();
+      // "application/smil" carries a charset parameter, hence a "Value-length".
+      contentTypeLength = smil ? 1 + typeBytes.length + 3 : typeBytes.length + 1;
+    }
+    byte[] idBytes = null;
+    int headerLength = 0;
+    if ( related && contentId.length() > 0 ) {
+      idBytes = contentId.getBytes();
+      // "Content-ID" (0xC0 and a quote) or "Content-Location" (0x8E), the value and its terminating zero.
+      headerLength = ( idBytes[ 0 ] == '<' ? 2 : 1 ) + idBytes.length + 1;
+    }
+    byte[] data = data( part );
+
+    Wsp.writeUintvar( contentTypeLength + headerLength, out );
+    Wsp.writeUintvar( data.length, out );
+
+    if ( media == Wsp.TEXT_PLAIN ) {
+      out.write( 3 );
+      out.write( media | 0x80 );
+      out.write( Wsp.PARAM_CHARSET );
+      out.write( Wsp.CHARSET_US_ASCII );
+    }
+    else if ( media > 0 ) {
+      out.write( media | 0x80 );
+    }
+    else if ( smil ) {
+      out.write( contentTypeLength - 1 );
+      out.write( typeBytes );
+      out.write( 0 );
+      out.write( Wsp.PARAM_CHARSET );
+      out.write( Wsp.CHARSET_US_ASCII );
+    }
+    else {
+      out.write( typeBytes );
+      out.write( 0 );
+    }
+
+    if ( idBytes != null ) {
+      if ( idBytes[ 0 ] == '<' ) {
+        out.write( Wsp.HEADER_CONTENT_ID );
+        out.write( Wsp.QUOTE );
+      }
+      else {
+        out.write( Wsp.HEADER_CONTENT_LOCATION );
+      }
+      out.write( idBytes );
+      out.write( 0 );
+    }
+
+    out.write( data );
+  }
+
+  /**
+   * Return the data of a part. The content of the "ContentCache" is immutable, so its array is used as is ; any
+   * other content is copied by "MMContent.getContent()".
+   */
+  private static byte[] data( MMContent part ) {
+    if ( part instanceof ContentCache.SharedContent ) {
+      return ( (ContentCache.SharedContent) part ).bytes();
+    }
+    byte[] data = part.getContent();
+    return data == null ? new byte[ 0 ] : data;
+  }
+
+  /**
+   * An "OutputStream" view of a "ByteBuffer", from its position on.
+   */
+  private static final class ByteBufferOutputStream extends OutputStream {
+    private final ByteBuffer buffer;
+
+    ByteBufferOutputStream( ByteBuffer buffer ) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public void write( int b ) {
+      buffer.put( (byte) b );
+    }
+
+    @Override
+    public void write( byte[] b, int off, int len ) {
+      buffer.put( b, off, len );
+    }
+  }
+}
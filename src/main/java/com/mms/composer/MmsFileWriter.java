@@ -0,0 +1,393 @@
+package com.mms.composer;
+
+/*
+ * @(#)MmsFileWriter.java	1.1
+ *
+ * Summary
+ *
+ * Writes encoded Multimedia Messages to their files through a "FileChannel", for high volume runs :
+ *
+ * 1) The message is written with a single gathering write of its header block and body, straight from the
+ *    buffers of the encoder ; nothing is copied into a larger array first. A body held off the heap (see
+ *    "MediaStore") is written from its direct buffer, without being copied into a temporary one. The message must
+ *    already be encoded as an "m-retrieve-conf" message (see "MessageTemplate" and "MmsEncoder"), without the fields
+ *    that only apply to its submission ; it is written as it is, and the buffers of the encoder, which may be
+ *    shared by many messages, are never modified.
+ * 2) The message is written to a hidden temporary file in the output folder, which is then renamed atomically to
+ *    its final name : a reader of the folder never sees a partially written message.
+ * 3) Optionally, the messages are made durable in batches : the temporary files of a batch are closed once written,
+ *    reopened to be forced to the disk together, renamed, and the folder itself is forced once per batch. A batch
+ *    holds no file open, whatever its size. Until its batch is synced, a message is only visible under its
+ *    temporary name.
+ *
+ * A message is only saved once its batch is synced : "write()" and "sync()" return the outcome of each message they
+ * completed, saved or failed, with the object the message was written with, so that the caller counts (or records)
+ * a message once it is on the disk, and not before.
+ *
+ * For millions of messages, a "SegmentWriter" packs them into large segment files instead.
+ *
+ * A writer is not thread safe ; it is meant to be used by a single writer thread (see "ParallelComposer").
+ */
+
+// These imports are necessary for utilities.
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class MmsFileWriter implements Closeable {
+  // Second byte of an "m-retrieve-conf" message, i.e. the value of its "X-Mms-Message-Type" field.
+  private static final byte M_RETRIEVE_CONF = (byte) 0x84;
+  // Suffix of the temporary files.
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  // Folder where the files are written.
+  private final Path folder;
+  // Number of messages synced together, or 0 not to sync them at all.
+  private final int syncBatch;
+  // Messages written but not yet synced and renamed.
+  private final List<Pending> pending = new ArrayList<>();
+
+  /**
+   * Create a writer that does not sync the files to the disk.
+   *
+   * @param folder folder where the files are written
+   */
+  public MmsFileWriter( File folder ) {
+    this( folder, 0 );
+  }
+
+  /**
+   * Create a writer.
+   *
+   * @param folder folder where the files are written
+   * @param syncBatch number of messages synced to the disk together, or 0 not to sync them at all
+   */
+  public MmsFileWriter( File folder, int syncBatch ) {
+    if ( syncBatch < 0 ) {
+      throw new IllegalArgumentException( "Negative sync batch : " + syncBatch );
+    }
+    this.folder = folder.toPath();
+    this.syncBatch = syncBatch;
+  }
+
+  public int getSyncBatch() {
+    return syncBatch;
+  }
+
+  /**
+   * Write an encoded message, as an "m-retrieve-conf" message, to a file. Neither buffer is modified.
+   *
+   * @param filename name of the file, within the folder of the writer
+   * @param header header block of the encoded message, or the whole message ("m-retrieve-conf")
+   * @param body body of the encoded message, possibly empty
+   * @return the outcomes of the messages completed by the write (see "write( String, byte[], int, ByteBuffer,
+   *         Object )")
+   * @throws IOException if the file cannot be written
+   */
+  public List<Outcome> write( String filename, byte[] header, byte[] body ) throws IOException {
+    return write( filename, header, header.length, ByteBuffer.wrap( body ), null );
+  }
+
+  /**
+   * Write an encoded message, as an "m-retrieve-conf" message, to a file. Neither buffer is modified.
+   *
+   * @param filename name of the file, within the folder of the writer
+   * @param header array holding the header block of the encoded message, or the whole message ("m-retrieve-conf")
+   * @param headerLength size of the header block, from the start of the array
+   * @param body body of the encoded message, possibly empty
+   * @return the outcomes of the messages completed by the write (see "write( String, byte[], int, ByteBuffer,
+   *         Object )")
+   * @throws IOException if the file cannot be written
+   */
+  public List<Outcome> write( String filename, byte[] header, int headerLength, byte[] body ) throws IOException {
+    return write( filename, header, headerLength, ByteBuffer.wrap( body ), null );
+  }
+
+  /**
+   * Write an encoded message, as an "m-retrieve-conf" message, to a file. Neither buffer is modified.
+   *
+   * @param filename name of the file, within the folder of the writer
+   * @param header array holding the header block of the encoded message, or the whole message ("m-retrieve-conf")
+   * @param headerLength size of the header block, from the start of the array
+   * @param body body of the encoded message, from its position to its limit, possibly empty or off the heap
+   * @return the outcomes of the messages completed by the write (see "write( String, byte[], int, ByteBuffer,
+   *         Object )")
+   * @throws IOException if the file cannot be written
+   */
+  public List<Outcome> write( String filename, byte[] header, int headerLength, ByteBuffer body )
+          throws IOException {
+    return write( filename, header, headerLength, body, null );
+  }
+
+  /**
+   * Write an encoded message, as an "m-retrieve-conf" message, to a file. Neither buffer is modified. Without a
+   * sync batch, the message is saved as soon as it is written ; otherwise it is pending until its batch is synced.
+   *
+   * @param filename name of the file, within the folder of the writer
+   * @param header array holding the header block of the encoded message, or the whole message ("m-retrieve-conf")
+   * @param headerLength size of the header block, from the start of the array
+   * @param body body of the encoded message, from its position to its limit, possibly empty or off the heap
+   * @param attachment object returned with the outcome of the message, e.g. what to record once it is saved ;
+   *        possibly null
+   * @return the outcomes of the messages completed by the write : this message, without a sync batch, the
+   *         messages of the batch it completes, if any, or none
+   * @throws IOException if the file cannot be written ; the message is then neither saved nor pending
+   */
+  public List<Outcome> write( String filename, byte[] header, int headerLength, ByteBuffer body, Object attachment )
+          throws IOException {
+    if ( headerLength < 2 || header[ 1 ] != M_RETRIEVE_CONF ) {
+      throw new IOException( "Not an m-retrieve-conf Multimedia Message : \"" + filename + "\"" );
+    }
+    Path target = folder.resolve( filename );
+    Path temp = folder.resolve( "." + filename + TEMP_SUFFIX );
+    FileChannel channel = FileChannel.open( temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING );
+    try {
+      writeFully( channel, header, headerLength, body );
+      channel.close();
+    }
+    catch ( IOException | RuntimeException e ) {
+      discard( channel, temp );
+      throw e;
+    }
+    if ( syncBatch == 0 ) {
+      try {
+        rename( temp, target );
+      }
+      catch ( IOException e ) {
+        delete( temp );
+        throw e;
+      }
+      return Collections.singletonList( new Outcome( filename, attachment, target, -1 ) );
+    }
+    // The file is closed : it is reopened to be forced with the rest of its batch.
+    pending.add( new Pending( filename, attachment, temp, target ) );
+    return pending.size() >= syncBatch ? sync() : Collections.<Outcome>emptyList();
+  }
+
+  /**
+   * Sync the messages written since the last sync to the disk, and rename them to their final names. A message
+   * that cannot be synced or renamed is deleted ; the other messages of the batch are still synced and renamed.
+   *
+   * @return the outcome of each message of the batch, in the order they were written
+   * @throws IOException if the writer itself cannot be synced
+   */
+  public List<Outcome> sync() throws IOException {
+    if ( pending.isEmpty() ) {
+      return Collections.emptyList();
+    }
+    List<Outcome> outcomes = new ArrayList<>( pending.size() );
+    for ( Pending p : pending ) {
+      IOException failure = null;
+      try {
+        // The pages written through the closed channel are forced through a new one.
+        try ( FileChannel channel = FileChannel.open( p.temp, StandardOpenOption.WRITE ) ) {
+          channel.force( true );
+        }
+        rename( p.temp, p.target );
+      }
+      catch ( IOException e ) {
+        failure = e;
+        delete( p.temp );
+      }
+      outcomes.add( failure == null ? new Outcome( p.filename, p.attachment, p.target, -1 )
+              : new Outcome( p.filename, p.attachment, failure ) );
+    }
+    pending.clear();
+    forceFolder();
+    return outcomes;
+  }
+
+  /**
+   * Sync the pending messages, if any. A caller that counts the messages by outcome calls "sync()" first.
+   *
+   * @throws IOException if a pending message cannot be synced or renamed
+   */
+  @Override
+  public void close() throws IOException {
+    check( sync() );
+  }
+
+  /**
+   * Throw the first error of the messages that failed, if any.
+   *
+   * @param outcomes outcomes of the messages
+   * @throws IOException if a message failed
+   */
+  static void check( List<Outcome> outcomes ) throws IOException {
+    IOException failure = null;
+    int failed = 0;
+    for ( Outcome outcome : outcomes ) {
+      if ( !outcome.isSaved() ) {
+        failed++;
+        if ( failure == null ) {
+          failure = outcome.getFailure();
+        }
+      }
+    }
+    if ( failure != null ) {
+      throw new IOException( failed + " of " + outcomes.size() + " Multimedia Messages could not be synced : "
+              + failure.getMessage(), failure );
+    }
+  }
+
+  /**
+   * Write the message with gathering writes : the header block and the body, both wrapped in place.
+   */
+  private static void writeFully( FileChannel channel, byte[] header, int headerLength, ByteBuffer body )
+          throws IOException {
+    ByteBuffer[] buffers = { ByteBuffer.wrap( header, 0, headerLength ), body.duplicate() };
+    long remaining = headerLength + (long) body.remaining();
+    while ( remaining > 0 ) {
+      remaining -= channel.write( buffers );
+    }
+  }
+
+  /**
+   * Rename a temporary file to its final name, atomically where the file system allows it.
+   */
+  private static void rename( Path temp, Path target ) throws IOException {
+    try {
+      Files.move( temp, target, StandardCopyOption.ATOMIC_MOVE );
+    }
+    catch ( AtomicMoveNotSupportedException e ) {
+      Files.move( temp, target, StandardCopyOption.REPLACE_EXISTING );
+    }
+  }
+
+  /**
+   * Force the entries of the folder (i.e. the renames) to the disk. Not every platform can open a folder for
+   * that purpose, so this is done on a best effort basis.
+   */
+  void forceFolder() {
+    try ( FileChannel channel = FileChannel.open( folder, StandardOpenOption.READ ) ) {
+      channel.force( true );
+    }
+    catch ( IOException e ) {
+      // E.g. on Windows, where a folder cannot be opened as a file.
+    }
+  }
+
+  private static void discard( FileChannel channel, Path temp ) {
+    try {
+      channel.close();
+    }
+    catch ( IOException e ) {
+      // The file is deleted all the same.
+    }
+    delete( temp );
+  }
+
+  private static void delete( Path temp ) {
+    try {
+      Files.deleteIfExists( temp );
+    }
+    catch ( IOException e ) {
+      // Nothing more can be done about it ; a leftover temporary file is overwritten by the next run.
+    }
+  }
+
+  /**
+   * What became of a message : saved, to its own file or to a segment (see "SegmentWriter"), or failed.
+   */
+  public static final class Outcome {
+    private final String filename;
+    private final Object attachment;
+    private final Path file;
+    private final long offset;
+    private final IOException failure;
+
+    /**
+     * Create the outcome of a message saved.
+     */
+    Outcome( String filename, Object attachment, Path file, long offset ) {
+      this.filename = filename;
+      this.attachment = attachment;
+      this.file = file;
+      this.offset = offset;
+      this.failure = null;
+    }
+
+    /**
+     * Create the outcome of a message that failed.
+     */
+    Outcome( String filename, Object attachment, IOException failure ) {
+      this.filename = filename;
+      this.attachment = attachment;
+      this.file = null;
+      this.offset = -1;
+      this.failure = failure;
+    }
+
+    public String getFilename() {
+      return filename;
+    }
+
+    /**
+     * Return the file the message was saved to : its own file, or its segment.
+     *
+     * @return the file, or null if the message failed
+     */
+    public Path getFile() {
+      return file;
+    }
+
+    /**
+     * Return the offset of the record of the message within its segment.
+     *
+     * @return the offset, or -1 for a message saved to its own file, or failed
+     */
+    public long getOffset() {
+      return offset;
+    }
+
+    /**
+     * Return the object the message was written with.
+     *
+     * @return the attachment of the message, possibly null
+     */
+    public Object getAttachment() {
+      return attachment;
+    }
+
+    /**
+     * Return the error that prevented the message from being saved.
+     *
+     * @return the error, or null if the message was saved
+     */
+    public IOException getFailure() {
+      return failure;
+    }
+
+    public boolean isSaved() {
+      return failure == null;
+    }
+  }
+
+  /**
+   * A message written to its temporary file, closed, waiting for its batch to be synced.
+   */
+  private static final class Pending {
+    final String filename;
+    final Object attachment;
+    final Path temp;
+    final Path target;
+
+    Pending( String filename, Object attachment, Path temp, Path target ) {
+      this.filename = filename;
+      this.attachment = attachment;
+      this.temp = temp;
+      this.target = target;
+    }
+  }
+}
@@ -0,0 +1,302 @@
+package com.mms.composer;
+
+/*
+ * @(#)MmsInspector.java	1.1
+ *
+ * Summary
+ *
+ * Inspects folders of encoded Multimedia Messages (".mms" files, e.g. the output of the "BatchComposer") and
+ * summarizes them : number and sizes of the messages, message types, and number and sizes of the parts per
+ * content type. The files are decoded by a pool of threads with the streaming "MmsDecoder", memory-mapped, so
+ * that the data of the parts is never read : only the headers of the messages and of their parts are.
+ *
+ * Usage
+ *
+ * 	 	mms_creation$ java.exe -Dfile.encoding=UTF-8 -classpath "target/classes;lib/MMSLibrary.jar" com.mms.composer.MmsInspector [--threads <n>] [--verbose] <folder or file> ...
+ * example :
+ * 	 	mms_creation$ java.exe -Dfile.encoding=UTF-8 -classpath "target/classes;lib/MMSLibrary.jar" com.mms.composer.MmsInspector --threads 4 target/mms
+ *
+ * Folders are searched recursively for ".mms" files. With "--verbose", one line is also printed per message.
+ * A file that cannot be decoded is reported and counted as failed ; it does not stop the run.
+ */
+
+// These imports are necessary for utilities.
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Nokia MMS Java Library version 1.1
+import com.nokia.mms.*;
+
+public class MmsInspector {
+  private final MmsDecoder decoder = new MmsDecoder();
+  // Number of inspecting threads.
+  private final int threads;
+  // True to print one line per message.
+  private final boolean verbose;
+
+  /**
+   * Create an inspector.
+   *
+   * @param threads number of inspecting threads
+   * @param verbose true to print one line per message
+   */
+  public MmsInspector( int threads, boolean verbose ) {
+    if ( threads < 1 ) {
+      throw new IllegalArgumentException( "At least one thread is required" );
+    }
+    this.threads = threads;
+    this.verbose = verbose;
+  }
+
+  /**
+   * Inspect ".mms" files.
+   *
+   * @param paths folders (searched recursively) or files
+   * @return summary of the messages
+   * @throws IOException if a folder cannot be listed
+   */
+  public Summary inspect( List<Path> paths ) throws IOException {
+    List<Path> files = new ArrayList<>();
+    for ( Path path : paths ) {
+      if ( Files.isDirectory( path ) ) {
+        try ( Stream<Path> walk = Files.walk( path ) ) {
+          files.addAll( walk.filter( p -> p.getFileName().toString().toLowerCase( Locale.ROOT ).endsWith( ".mms" )
+                  && Files.isRegularFile( p ) ).sorted().collect( Collectors.toList() ) );
+        }
+      }
+      else {
+        files.add( path );
+      }
+    }
+
+    // Each thread takes the next file of the list until there is none left.
+    Summary summary = new Summary();
+    AtomicInteger next = new AtomicInteger();
+    ThreadFactory factory = Threads.factory( "mms-inspector", false );
+    Thread[] pool = new Thread[ Math.min( threads, Math.max( 1, files.size() ) ) ];
+    for ( int i = 0; i < pool.length; i++ ) {
+      pool[ i ] = factory.newThread( () -> {
+        for ( int n; ( n = next.getAndIncrement() ) < files.size(); ) {
+          inspect( files.get( n ), summary );
+        }
+      } );
+      pool[ i ].start();
+    }
+    boolean interrupted = false;
+    for ( Thread thread : pool ) {
+      while ( true ) {
+        try {
+          thread.join();
+          break;
+        }
+        catch ( InterruptedException e ) {
+          interrupted = true;
+        }
+      }
+    }
+    if ( interrupted ) {
+      Thread.currentThread().interrupt();
+    }
+    summary.finish();
+    return summary;
+  }
+
+  /**
+   * Inspect a single file.
+   */
+  private void inspect( Path file, Summary summary ) {
+    // The parts are only added to the summary once the whole file is decoded, so that a file that fails part way
+    // through counts as failed only.
+    List<MmsDecoder.Part> parts = new ArrayList<>();
+    String[] type = new String[ 1 ];
+    try {
+      long size = decoder.decode( file, new MmsDecoder.Handler() {
+        @Override
+        public boolean headers( MmsDecoder.Headers headers ) {
+          type[ 0 ] = MmsDecoder.messageTypeName( headers.getMessageType() );
+          return true;
+        }
+
+        @Override
+        public boolean part( MmsDecoder.Part part ) {
+          parts.add( part );
+          return true;
+        }
+      } );
+      summary.message( type[ 0 ], size );
+      StringBuilder line = verbose ? new StringBuilder() : null;
+      for ( MmsDecoder.Part part : parts ) {
+        summary.part( part.getContentType(), part.getLength() );
+        if ( line != null ) {
+          line.append( ' ' ).append( part.getContentType() ).append( ':' ).append( part.getLength() );
+        }
+      }
+      if ( line != null ) {
+        System.out.println( file + " : " + type[ 0 ] + ", " + size + " bytes," + line );
+      }
+    }
+    catch ( IOException | MMDecoderException e ) {
+      System.err.println( "Cannot inspect the Multimedia Message \"" + file + "\" : " + e.getMessage() );
+      summary.failed();
+    }
+  }
+
+  /**
+   * Summary of an inspection. The counters may be updated by several threads at once.
+   */
+  public static class Summary {
+    private final long startNanos = System.nanoTime();
+    private volatile long elapsedNanos;
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAccumulator smallest = new LongAccumulator( Math::min, Long.MAX_VALUE );
+    private final LongAccumulator largest = new LongAccumulator( Math::max, 0 );
+    private final Map<String, LongAdder> messageTypes = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> partCounts = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> partBytes = new ConcurrentHashMap<>();
+
+    void message( String type, long size ) {
+      messages.increment();
+      bytes.add( size );
+      smallest.accumulate( size );
+      largest.accumulate( size );
+      messageTypes.computeIfAbsent( type, k -> new LongAdder() ).increment();
+    }
+
+    void part( String contentType, long length ) {
+      partCounts.computeIfAbsent( contentType, k -> new LongAdder() ).increment();
+      partBytes.computeIfAbsent( contentType, k -> new LongAdder() ).add( length );
+    }
+
+    void failed() {
+      failed.increment();
+    }
+
+    void finish() {
+      elapsedNanos = System.nanoTime() - startNanos;
+    }
+
+    public long getMessages() {
+      return messages.sum();
+    }
+
+    public long getFailed() {
+      return failed.sum();
+    }
+
+    public long getBytes() {
+      return bytes.sum();
+    }
+
+    /**
+     * Return the number of messages per message type.
+     *
+     * @return number of messages, keyed by message type name (e.g. "m-retrieve-conf")
+     */
+    public Map<String, Long> getMessageTypes() {
+      return sums( messageTypes );
+    }
+
+    /**
+     * Return the number of parts per content type.
+     *
+     * @return number of parts, keyed by content type
+     */
+    public Map<String, Long> getPartCounts() {
+      return sums( partCounts );
+    }
+
+    /**
+     * Return the size of the parts per content type.
+     *
+     * @return size, in bytes, of the data of the parts, keyed by content type
+     */
+    public Map<String, Long> getPartBytes() {
+      return sums( partBytes );
+    }
+
+    private static Map<String, Long> sums( Map<String, LongAdder> adders ) {
+      Map<String, Long> sums = new TreeMap<>();
+      adders.forEach( ( k, v ) -> sums.put( k, v.sum() ) );
+      return sums;
+    }
+
+    @Override
+    public String toString() {
+      long n = getMessages();
+      StringBuilder s = new StringBuilder( String.format(
+              "Inspected %d Multimedia Messages (%d failed, %d bytes) in %.3f s", n, getFailed(), getBytes(),
+              elapsedNanos / 1e9 ) );
+      if ( n > 0 ) {
+        s.append( String.format( "%nMessage size : min %d, avg %d, max %d bytes", smallest.get(), getBytes() / n,
+                largest.get() ) );
+      }
+      getMessageTypes().forEach( ( type, count ) -> s.append( String.format( "%n  %-40s %10d", type, count ) ) );
+      Map<String, Long> partBytes = getPartBytes();
+      s.append( String.format( "%nParts :" ) );
+      getPartCounts().forEach( ( type, count ) -> s.append( String.format( "%n  %-40s %10d parts %14d bytes", type,
+              count, partBytes.get( type ) ) ) );
+      return s.toString();
+    }
+  }
+
+  /**
+   * MMS Inspector application
+   *
+   * @param args application's input arguments
+   */
+  public static void main( String[] args ) throws IOException {
+    // The application requires at least one input argument :
+    // * the folders or files to inspect
+    // preceded by the options, if any :
+    // * --threads <n> : inspect on "n" threads (one per available processor by default)
+    // * --verbose : print one line per message
+    int threads = Runtime.getRuntime().availableProcessors();
+    boolean verbose = false;
+    int i = 0;
+    try {
+      for ( ; i < args.length && args[ i ].startsWith( "--" ); i++ ) {
+        switch ( args[ i ] ) {
+          case "--threads": threads = Integer.parseInt( args[ ++i ] ); break;
+          case "--verbose": verbose = true; break;
+          default: throw new IllegalArgumentException( "Unknown option : " + args[ i ] );
+        }
+      }
+      if ( threads < 1 ) {
+        throw new IllegalArgumentException( "At least one thread is required" );
+      }
+    }
+    catch ( RuntimeException e ) {
+      System.err.println( e.getMessage() );
+      i = args.length;
+    }
+    if ( args.length - i < 1 ) {
+      System.err.println( "Usage : MmsInspector [--threads <n>] [--verbose] <folder or file> ..." );
+      System.exit( 1 );
+    }
+    List<Path> paths = new ArrayList<>();
+    for ( ; i < args.length; i++ ) {
+      paths.add( Paths.get( args[ i ] ) );
+    }
+    Summary summary = new MmsInspector( threads, verbose ).inspect( paths );
+    System.out.println( summary );
+    if ( summary.getFailed() > 0 ) {
+      System.exit( 2 );
+    }
+  }
+}
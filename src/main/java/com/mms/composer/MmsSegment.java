@@ -0,0 +1,791 @@
+package com.mms.composer;
+
+/*
+ * @(#)MmsSegment.java	1.1
+ *
+ * Summary
+ *
+ * A segment of packed Multimedia Messages, as written by the "SegmentWriter" : rather than one small file per
+ * message, the messages of a batch are appended to large segment files, each with an index of its messages by
+ * transaction ID. A segment is made of two files :
+ *
+ * - "segment-<n>.seg" : the 8 bytes "MMSSEG01", followed by one record per message : the size of the message
+ *   (4 bytes), its CRC-32 (4 bytes, as recorded by the "ProgressJournal"), the size of its name (2 bytes), its name
+ *   in UTF-8 (e.g. "<key>.mms") and the "m-retrieve-conf" message itself, as it would be in its own file ;
+ * - "segment-<n>.idx" : the 8 bytes "MMSIDX01", the number of slots, a power of two (4 bytes), the number of
+ *   messages (4 bytes), and the slots : an open addressing hash table, at most half full, of the hash of the
+ *   transaction ID of each message (8 bytes) and the offset of its record (8 bytes, 0 for an empty slot).
+ *
+ * Both files are memory-mapped : finding a message by its transaction ID probes a slot or two of the index and
+ * checks the transaction ID of the record, without reading anything else, and a message is read (or written to a
+ * file or a socket) straight from the mapped segment. The index is written once the segment is complete ; a
+ * segment without an index, e.g. after a crash, is scanned again and indexed by "reindex", which drops a partially
+ * written last record. A segment whose invalid record is followed by valid ones was damaged rather than
+ * interrupted : it is left as it is, and the failure is reported, rather than losing the valid records.
+ *
+ * A single process writes or reindexes the segments of a folder at a time : it holds the lock of the folder, on
+ * its ".segments.lock" file, meanwhile (see "lock()"). Closing a segment unmaps it, so that it can be truncated or
+ * deleted even on Windows.
+ *
+ * Usage
+ *
+ * 	 	mms_creation$ java.exe -Dfile.encoding=UTF-8 -classpath "target/classes;lib/MMSLibrary.jar" com.mms.composer.MmsSegment list <segment>
+ * 	 	mms_creation$ java.exe -Dfile.encoding=UTF-8 -classpath "target/classes;lib/MMSLibrary.jar" com.mms.composer.MmsSegment extract <segment or folder> <transaction id> [<output file>]
+ * 	 	mms_creation$ java.exe -Dfile.encoding=UTF-8 -classpath "target/classes;lib/MMSLibrary.jar" com.mms.composer.MmsSegment unpack <segment> [<output folder>]
+ * 	 	mms_creation$ java.exe -Dfile.encoding=UTF-8 -classpath "target/classes;lib/MMSLibrary.jar" com.mms.composer.MmsSegment reindex <segment>
+ * example :
+ * 	 	mms_creation$ java.exe -Dfile.encoding=UTF-8 -classpath "target/classes;lib/MMSLibrary.jar" com.mms.composer.MmsSegment extract target/mms 0899067073324388479 message.mms
+ */
+
+// These imports are necessary for utilities.
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+public class MmsSegment implements Closeable {
+  // Names of the files of a segment : "segment-<n>.seg" and "segment-<n>.idx".
+  static final String PREFIX = "segment-";
+  static final String SEGMENT_SUFFIX = ".seg";
+  static final String INDEX_SUFFIX = ".idx";
+  // Lock file of the folder of the segments.
+  static final String LOCK = ".segments.lock";
+  // Magic numbers of the files.
+  static final byte[] SEGMENT_MAGIC = "MMSSEG01".getBytes( StandardCharsets.US_ASCII );
+  private static final byte[] INDEX_MAGIC = "MMSIDX01".getBytes( StandardCharsets.US_ASCII );
+  // Offset of the first record.
+  static final int FIRST_RECORD = 8;
+  // Size of the fixed part of a record : the size of the message, its CRC-32 and the size of its name.
+  static final int RECORD_HEADER = 10;
+  // Size of the header of the index, and of a slot.
+  private static final int INDEX_HEADER = 16;
+  private static final int SLOT = 16;
+  // "X-Mms-Message-Type" field, the first field of a message, with the value of an "m-retrieve-conf" message.
+  private static final int FIELD_MESSAGE_TYPE = 0x8C;
+  private static final int M_RETRIEVE_CONF = 0x84;
+  // "X-Mms-Transaction-ID" field, the second field of a message.
+  private static final int FIELD_TRANSACTION_ID = 0x98;
+
+  private final Path file;
+  private final FileChannel channel;
+  // The mapped segment, and the mapped slots of its index (null if it has no index).
+  private final MappedByteBuffer data;
+  private final MappedByteBuffer index;
+  private final int slots;
+  private final int count;
+
+  /**
+   * Open a segment, and its index if it has one.
+   *
+   * @param file the segment file ("segment-<n>.seg")
+   * @throws IOException if the segment or its index cannot be read, or is not a segment
+   */
+  public MmsSegment( Path file ) throws IOException {
+    this.file = file;
+    this.channel = FileChannel.open( file, StandardOpenOption.READ );
+    try {
+      long size = channel.size();
+      if ( size > Integer.MAX_VALUE ) {
+        throw new IOException( "Segment too large : \"" + file + "\"" );
+      }
+      data = channel.map( FileChannel.MapMode.READ_ONLY, 0, size );
+      if ( size < FIRST_RECORD || !hasMagic( data, SEGMENT_MAGIC ) ) {
+        throw new IOException( "Not a segment of Multimedia Messages : \"" + file + "\"" );
+      }
+      Path indexFile = indexOf( file );
+      if ( !Files.exists( indexFile ) ) {
+        index = null;
+        slots = 0;
+        count = -1;
+        return;
+      }
+      try ( FileChannel indexChannel = FileChannel.open( indexFile, StandardOpenOption.READ ) ) {
+        MappedByteBuffer mapped = indexChannel.map( FileChannel.MapMode.READ_ONLY, 0, indexChannel.size() );
+        if ( mapped.capacity() < INDEX_HEADER || !hasMagic( mapped, INDEX_MAGIC ) ) {
+          throw new IOException( "Invalid index of segment : \"" + indexFile + "\"" );
+        }
+        slots = mapped.getInt( 8 );
+        count = mapped.getInt( 12 );
+        if ( Integer.bitCount( slots ) != 1 || (long) INDEX_HEADER + (long) slots * SLOT != mapped.capacity() ) {
+          throw new IOException( "Invalid index of segment : \"" + indexFile + "\"" );
+        }
+        index = mapped;
+      }
+    }
+    catch ( IOException | RuntimeException e ) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Return the index file of a segment file.
+   *
+   * @param segment the segment file
+   * @return the index file, next to it
+   */
+  static Path indexOf( Path segment ) {
+    String name = segment.getFileName().toString();
+    if ( name.endsWith( SEGMENT_SUFFIX ) ) {
+      name = name.substring( 0, name.length() - SEGMENT_SUFFIX.length() );
+    }
+    return segment.resolveSibling( name + INDEX_SUFFIX );
+  }
+
+  public Path getFile() {
+    return file;
+  }
+
+  /**
+   * Tell whether the segment has an index, i.e. whether it was completed by its writer (or indexed again).
+   *
+   * @return true if the messages can be found by transaction ID
+   */
+  public boolean isIndexed() {
+    return index != null;
+  }
+
+  /**
+   * Return the number of messages of the segment, as recorded in its index.
+   *
+   * @return number of messages, or -1 if the segment has no index
+   */
+  public int getCount() {
+    return count;
+  }
+
+  /**
+   * Find a message by its transaction ID, through the index.
+   *
+   * @param transactionId the transaction ID
+   * @return the record of the message, or null if the segment holds no such message
+   * @throws IOException if the segment has no index, or if the record the index refers to is invalid
+   */
+  public Record find( String transactionId ) throws IOException {
+    if ( index == null ) {
+      throw new IOException( "The segment is not indexed : \"" + file + "\"" );
+    }
+    byte[] id = transactionId.getBytes( StandardCharsets.UTF_8 );
+    long hash = hash( id, 0, id.length );
+    int mask = slots - 1;
+    for ( int slot = (int) hash & mask, probes = 0; probes < slots; slot = ( slot + 1 ) & mask, probes++ ) {
+      int position = INDEX_HEADER + slot * SLOT;
+      long offset = index.getLong( position + 8 );
+      if ( offset == 0 ) {
+        return null;
+      }
+      if ( index.getLong( position ) == hash ) {
+        Record record = read( offset );
+        if ( record != null && record.hasTransactionId( id ) ) {
+          return record;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Read the record at an offset, e.g. to read all the records of the segment in turn :
+   *
+   * 	 	for ( Record r = segment.read( MmsSegment.FIRST_RECORD ); r != null; r = segment.read( r.getEnd() ) ) { ... }
+   *
+   * @param offset offset of the record
+   * @return the record, or null at the end of the segment
+   * @throws IOException if the record is invalid or partially written
+   */
+  public Record read( long offset ) throws IOException {
+    long size = data.capacity();
+    if ( offset == size ) {
+      return null;
+    }
+    if ( offset < FIRST_RECORD || offset + RECORD_HEADER > size ) {
+      throw new IOException( "Truncated record at offset " + offset + " of \"" + file + "\"" );
+    }
+    int position = (int) offset;
+    int length = data.getInt( position );
+    int crc = data.getInt( position + 4 );
+    int nameLength = data.getShort( position + 8 ) & 0xFFFF;
+    long end = offset + RECORD_HEADER + nameLength + (long) length;
+    if ( length < 2 || end > size ) {
+      throw new IOException( "Truncated record at offset " + offset + " of \"" + file + "\"" );
+    }
+    byte[] name = new byte[ nameLength ];
+    ByteBuffer view = data.duplicate();
+    view.position( position + RECORD_HEADER );
+    view.get( name );
+    return new Record( new String( name, StandardCharsets.UTF_8 ), offset, position + RECORD_HEADER + nameLength,
+            length, crc );
+  }
+
+  /**
+   * Close the segment and unmap it, and its index. The records read from the segment, and their messages, must not
+   * be used afterwards.
+   *
+   * @throws IOException if the segment cannot be closed
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      channel.close();
+    }
+    finally {
+      MediaStore.deallocate( data );
+      if ( index != null ) {
+        MediaStore.deallocate( index );
+      }
+    }
+  }
+
+  /**
+   * Find the first valid record from an offset on, e.g. past an invalid one : a record of an "m-retrieve-conf"
+   * message that starts with its transaction ID, whose CRC-32 matches.
+   *
+   * @param from offset to start from
+   * @return the offset of the record, or -1 if there is none
+   */
+  private long findRecord( long from ) {
+    long size = data.capacity();
+    for ( long offset = Math.max( from, FIRST_RECORD ); offset + RECORD_HEADER + 4 <= size; offset++ ) {
+      int position = (int) offset;
+      int length = data.getInt( position );
+      long start = offset + RECORD_HEADER + ( data.getShort( position + 8 ) & 0xFFFF );
+      // Only what looks like a record is read, and its CRC-32 checked.
+      if ( length < 4 || start + length > size || ( data.get( (int) start ) & 0xFF ) != FIELD_MESSAGE_TYPE
+              || ( data.get( (int) start + 1 ) & 0xFF ) != M_RETRIEVE_CONF
+              || ( data.get( (int) start + 2 ) & 0xFF ) != FIELD_TRANSACTION_ID ) {
+        continue;
+      }
+      try {
+        Record r = read( offset );
+        if ( r != null && r.verify() ) {
+          return offset;
+        }
+      }
+      catch ( IOException e ) {
+        // Not a record.
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Lock the segments of a folder, so that a single process writes or reindexes them at a time. The lock is held
+   * until the returned channel is closed ; the lock file itself is left in the folder.
+   *
+   * @param folder the folder of the segments
+   * @return the channel of the lock file
+   * @throws IOException if the lock file cannot be created, or if another writer holds the lock
+   */
+  static FileChannel lock( Path folder ) throws IOException {
+    FileChannel channel = FileChannel.open( folder.resolve( LOCK ), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE );
+    FileLock lock;
+    try {
+      lock = channel.tryLock();
+    }
+    catch ( OverlappingFileLockException e ) {
+      // Held by another writer of this process.
+      lock = null;
+    }
+    catch ( IOException | RuntimeException e ) {
+      channel.close();
+      throw e;
+    }
+    if ( lock == null ) {
+      channel.close();
+      throw new IOException( "The segments of \"" + folder + "\" are being written by another writer" );
+    }
+    return channel;
+  }
+
+  /**
+   * Write the index of a segment, atomically.
+   *
+   * @param segment the segment file
+   * @param hashes hashes of the transaction IDs of the messages (see "hash()")
+   * @param offsets offsets of their records
+   * @param count number of messages
+   * @param force true to force the index to the disk
+   * @throws IOException if the index cannot be written
+   */
+  static void writeIndex( Path segment, long[] hashes, long[] offsets, int count, boolean force )
+          throws IOException {
+    int slots = Integer.highestOneBit( Math.max( 2, 2 * count - 1 ) ) << 1;
+    if ( slots <= 0 || slots > ( Integer.MAX_VALUE - INDEX_HEADER ) / SLOT ) {
+      throw new IOException( "Too many messages to index : " + count );
+    }
+    ByteBuffer buf = ByteBuffer.allocate( INDEX_HEADER + slots * SLOT );
+    buf.put( INDEX_MAGIC ).putInt( slots ).putInt( count );
+    int mask = slots - 1;
+    for ( int i = 0; i < count; i++ ) {
+      int slot = (int) hashes[ i ] & mask;
+      while ( buf.getLong( INDEX_HEADER + slot * SLOT + 8 ) != 0 ) {
+        slot = ( slot + 1 ) & mask;
+      }
+      buf.putLong( INDEX_HEADER + slot * SLOT, hashes[ i ] );
+      buf.putLong( INDEX_HEADER + slot * SLOT + 8, offsets[ i ] );
+    }
+    buf.rewind();
+    Path target = indexOf( segment );
+    Path temp = target.resolveSibling( "." + target.getFileName() + ".tmp" );
+    try ( FileChannel channel = FileChannel.open( temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING ) ) {
+      while ( buf.hasRemaining() ) {
+        channel.write( buf );
+      }
+      if ( force ) {
+        channel.force( true );
+      }
+    }
+    try {
+      Files.move( temp, target, StandardCopyOption.ATOMIC_MOVE );
+    }
+    catch ( AtomicMoveNotSupportedException e ) {
+      Files.move( temp, target, StandardCopyOption.REPLACE_EXISTING );
+    }
+  }
+
+  /**
+   * Return the hash of a transaction ID : FNV-1a, with the final mix of MurmurHash3 so that its low bits, which
+   * select the slot, depend on every byte.
+   *
+   * @param id the bytes of the transaction ID
+   * @param offset offset of the first byte
+   * @param length number of bytes
+   * @return the hash
+   */
+  static long hash( byte[] id, int offset, int length ) {
+    long h = 0xcbf29ce484222325L;
+    for ( int i = offset; i < offset + length; i++ ) {
+      h = ( h ^ ( id[ i ] & 0xFF ) ) * 0x100000001b3L;
+    }
+    h = ( h ^ ( h >>> 33 ) ) * 0xff51afd7ed558ccdL;
+    h = ( h ^ ( h >>> 33 ) ) * 0xc4ceb9fe1a85ec53L;
+    return h ^ ( h >>> 33 );
+  }
+
+  /**
+   * Return the length of the transaction ID of an encoded message, which starts at offset 3, right after the
+   * "X-Mms-Message-Type" field and the "X-Mms-Transaction-ID" field name.
+   *
+   * @param message array holding the header block of the message
+   * @param length size of the header block
+   * @return the length of the transaction ID, without its terminating null byte, or -1 if the message does not
+   *         start with one
+   */
+  static int transactionIdLength( byte[] message, int length ) {
+    if ( length < 4 || ( message[ 2 ] & 0xFF ) != FIELD_TRANSACTION_ID ) {
+      return -1;
+    }
+    for ( int i = 3; i < length; i++ ) {
+      if ( message[ i ] == 0 ) {
+        return i - 3;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Tell whether a segment holds the record of a message at an offset. The segment is read through a channel
+   * rather than mapped, as a writer may still append to it, or truncate it.
+   *
+   * @param segment the segment, open for reading
+   * @param offset offset of the record
+   * @param name name of the message (e.g. "<key>.mms")
+   * @param checksum CRC-32 of the message
+   * @param length size of the message
+   * @param verify true to also check the CRC-32 of the message itself, rather than only the one of its record
+   * @return true if the record is there, with that name, size and CRC-32
+   * @throws IOException if the segment cannot be read
+   */
+  static boolean holds( FileChannel segment, long offset, String name, int checksum, long length, boolean verify )
+          throws IOException {
+    byte[] expected = name.getBytes( StandardCharsets.UTF_8 );
+    long start = offset + RECORD_HEADER + expected.length;
+    if ( offset < FIRST_RECORD || start + length > segment.size() ) {
+      return false;
+    }
+    ByteBuffer head = ByteBuffer.allocate( RECORD_HEADER + expected.length );
+    if ( !readFully( segment, head, offset ) || head.getInt( 0 ) != length || head.getInt( 4 ) != checksum
+            || ( head.getShort( 8 ) & 0xFFFF ) != expected.length ) {
+      return false;
+    }
+    for ( int i = 0; i < expected.length; i++ ) {
+      if ( head.get( RECORD_HEADER + i ) != expected[ i ] ) {
+        return false;
+      }
+    }
+    if ( !verify ) {
+      return true;
+    }
+    CRC32 crc = new CRC32();
+    ByteBuffer buffer = ByteBuffer.allocate( 1 << 16 );
+    for ( long position = start, end = start + length; position < end; position += buffer.limit() ) {
+      buffer.clear().limit( (int) Math.min( buffer.capacity(), end - position ) );
+      if ( !readFully( segment, buffer, position ) ) {
+        return false;
+      }
+      buffer.flip();
+      crc.update( buffer );
+    }
+    return (int) crc.getValue() == checksum;
+  }
+
+  /**
+   * Read a buffer, up to its limit, from a position of a channel.
+   *
+   * @return false at the end of the channel
+   */
+  private static boolean readFully( FileChannel channel, ByteBuffer buffer, long position ) throws IOException {
+    while ( buffer.hasRemaining() ) {
+      int n = channel.read( buffer, position + buffer.position() );
+      if ( n < 0 ) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean hasMagic( ByteBuffer buf, byte[] magic ) {
+    for ( int i = 0; i < magic.length; i++ ) {
+      if ( buf.get( i ) != magic[ i ] ) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Scan a segment, drop its partially written last record if any, and write its index. The lock of its folder is
+   * held meanwhile (see "lock()").
+   *
+   * @param file the segment file
+   * @return the number of messages indexed
+   * @throws IOException if the segment cannot be read or indexed, if a valid record follows an invalid one, or if
+   *         another writer holds the lock of its folder
+   */
+  public static int reindex( Path file ) throws IOException {
+    Path folder = file.toAbsolutePath().getParent();
+    try ( FileChannel lock = lock( folder ) ) {
+      return reindexLocked( file );
+    }
+  }
+
+  /**
+   * Scan a segment, drop its partially written last record if any, and write its index. The caller holds the lock
+   * of its folder. An invalid record followed by a valid one is not the last record of an interrupted writer, but
+   * damage : the segment is then left as it is, without an index, rather than losing the valid records.
+   *
+   * @param file the segment file
+   * @return the number of messages indexed
+   * @throws IOException if the segment cannot be read or indexed, or if a valid record follows an invalid one
+   */
+  static int reindexLocked( Path file ) throws IOException {
+    long[] hashes = new long[ 1024 ];
+    long[] offsets = new long[ 1024 ];
+    int count = 0;
+    long end = FIRST_RECORD;
+    Files.deleteIfExists( indexOf( file ) );
+    try ( MmsSegment segment = new MmsSegment( file ) ) {
+      try {
+        for ( Record r = segment.read( FIRST_RECORD ); r != null; r = segment.read( r.getEnd() ) ) {
+          if ( !r.verify() ) {
+            throw new IOException( "Invalid checksum of the record at offset " + r.getOffset() + " of \"" + file
+                    + "\"" );
+          }
+          byte[] id = r.getTransactionId().getBytes( StandardCharsets.UTF_8 );
+          if ( count == hashes.length ) {
+            hashes = Arrays.copyOf( hashes, 2 * count );
+            offsets = Arrays.copyOf( offsets, 2 * count );
+          }
+          hashes[ count ] = hash( id, 0, id.length );
+          offsets[ count++ ] = r.getOffset();
+          end = r.getEnd();
+        }
+      }
+      catch ( IOException e ) {
+        long next = segment.findRecord( end + 1 );
+        if ( next >= 0 ) {
+          throw new IOException( e.getMessage() + ", followed by a valid record at offset " + next + " : \"" + file
+                  + "\" is damaged, and left as it is without an index", e );
+        }
+        System.err.println( e.getMessage() + " : the segment is truncated to " + end + " bytes" );
+      }
+    }
+    // The segment is unmapped once closed : it can be truncated.
+    try ( FileChannel channel = FileChannel.open( file, StandardOpenOption.WRITE ) ) {
+      if ( channel.size() > end ) {
+        channel.truncate( end );
+        channel.force( true );
+      }
+    }
+    writeIndex( file, hashes, offsets, count, true );
+    return count;
+  }
+
+  /**
+   * A message of the segment.
+   */
+  public final class Record {
+    private final String name;
+    private final long offset;
+    private final int start;
+    private final int length;
+    private final int crc;
+
+    Record( String name, long offset, int start, int length, int crc ) {
+      this.name = name;
+      this.offset = offset;
+      this.start = start;
+      this.length = length;
+      this.crc = crc;
+    }
+
+    /**
+     * Return the name of the message, i.e. the name of its file had it been written to its own file.
+     *
+     * @return the name
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * Return the offset of the record within the segment.
+     *
+     * @return the offset
+     */
+    public long getOffset() {
+      return offset;
+    }
+
+    /**
+     * Return the offset of the next record.
+     *
+     * @return the offset right after the record
+     */
+    public long getEnd() {
+      return start + (long) length;
+    }
+
+    /**
+     * Return the size of the message.
+     *
+     * @return size, in bytes
+     */
+    public int getLength() {
+      return length;
+    }
+
+    public int getChecksum() {
+      return crc;
+    }
+
+    /**
+     * Return the message, straight from the mapped segment.
+     *
+     * @return a read-only view of the "m-retrieve-conf" message
+     */
+    public ByteBuffer getMessage() {
+      ByteBuffer view = data.duplicate();
+      view.limit( start + length ).position( start );
+      return view.slice();
+    }
+
+    /**
+     * Return the transaction ID of the message.
+     *
+     * @return the transaction ID
+     * @throws IOException if the message does not start with a transaction ID
+     */
+    public String getTransactionId() throws IOException {
+      byte[] head = new byte[ Math.min( length, 256 ) ];
+      getMessage().get( head );
+      int n = transactionIdLength( head, head.length );
+      if ( n < 0 ) {
+        throw new IOException( "No transaction ID in the record at offset " + offset + " of \"" + file + "\"" );
+      }
+      return new String( head, 3, n, StandardCharsets.UTF_8 );
+    }
+
+    private boolean hasTransactionId( byte[] id ) {
+      if ( length < id.length + 4 || ( data.get( start + 2 ) & 0xFF ) != FIELD_TRANSACTION_ID
+              || data.get( start + 3 + id.length ) != 0 ) {
+        return false;
+      }
+      for ( int i = 0; i < id.length; i++ ) {
+        if ( data.get( start + 3 + i ) != id[ i ] ) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Check the CRC-32 of the message.
+     *
+     * @return true if the message is intact
+     */
+    public boolean verify() {
+      CRC32 check = new CRC32();
+      check.update( getMessage() );
+      return (int) check.getValue() == crc;
+    }
+
+    /**
+     * Write the message to a channel, straight from the mapped segment.
+     *
+     * @param out the channel
+     * @throws IOException if the message cannot be written
+     */
+    public void writeTo( WritableByteChannel out ) throws IOException {
+      ByteBuffer message = getMessage();
+      while ( message.hasRemaining() ) {
+        out.write( message );
+      }
+    }
+
+    @Override
+    public String toString() {
+      return String.format( "%s : %d bytes at offset %d", name, length, offset );
+    }
+  }
+
+  /**
+   * List the segment files of a folder, in the order they were written.
+   *
+   * @param folder the folder
+   * @return the segment files
+   * @throws IOException if the folder cannot be read
+   */
+  static List<Path> list( Path folder ) throws IOException {
+    try ( Stream<Path> files = Files.list( folder ) ) {
+      return files.filter( p -> p.getFileName().toString().startsWith( PREFIX )
+              && p.getFileName().toString().endsWith( SEGMENT_SUFFIX ) ).sorted().collect( Collectors.toList() );
+    }
+  }
+
+  /**
+   * Write a message to a file, or to the standard output for "-".
+   */
+  private static void save( Record record, Path target ) throws IOException {
+    if ( target.toString().equals( "-" ) ) {
+      record.writeTo( Channels.newChannel( System.out ) );
+      System.out.flush();
+      return;
+    }
+    Path temp = target.resolveSibling( "." + target.getFileName() + ".tmp" );
+    try ( FileChannel out = FileChannel.open( temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING ) ) {
+      record.writeTo( out );
+    }
+    Files.move( temp, target, StandardCopyOption.REPLACE_EXISTING );
+  }
+
+  /**
+   * Tools of the segments of Multimedia Messages.
+   *
+   * @param args the command and its arguments
+   * @throws IOException if a segment cannot be read, or a message cannot be written
+   */
+  public static void main( String[] args ) throws IOException {
+    // The application takes a command and its arguments :
+    // * list <segment> : list the messages of a segment
+    // * extract <segment or folder> <transaction id> [<output file>] : extract a message, found through the
+    //   index of the segment (or of each segment of the folder), to "output file" ("<name>" by default, "-" for
+    //   the standard output)
+    // * unpack <segment> [<output folder>] : extract every message of a segment to its own file
+    // * reindex <segment> : index a segment that has no index, e.g. after a crash
+    String command = args.length > 0 ? args[ 0 ] : "";
+    boolean valid;
+    switch ( command ) {
+      case "list": case "reindex": valid = args.length == 2; break;
+      case "extract": valid = args.length == 3 || args.length == 4; break;
+      case "unpack": valid = args.length == 2 || args.length == 3; break;
+      default: valid = false;
+    }
+    if ( !valid ) {
+      System.err.println( "Usage : MmsSegment list <segment> | extract <segment or folder> <transaction id> [<output file>] | unpack <segment> [<output folder>] | reindex <segment>" );
+      System.exit( 1 );
+    }
+    Path path = Paths.get( args[ 1 ] );
+    switch ( command ) {
+      case "list":
+        try ( MmsSegment segment = new MmsSegment( path ) ) {
+          int n = 0;
+          long bytes = 0;
+          IOException failure = null;
+          try {
+            for ( Record r = segment.read( FIRST_RECORD ); r != null; r = segment.read( r.getEnd() ) ) {
+              System.out.println( r.getTransactionId() + " " + r );
+              n++;
+              bytes += r.getLength();
+            }
+          }
+          catch ( IOException e ) {
+            failure = e;
+          }
+          System.out.println( String.format( "%d Multimedia Messages, %d bytes%s", n, bytes,
+                  segment.isIndexed() ? "" : " (not indexed)" ) );
+          if ( failure != null ) {
+            System.err.println( failure.getMessage() );
+            System.exit( 2 );
+          }
+        }
+        break;
+      case "extract":
+        List<Path> segments = Files.isDirectory( path ) ? list( path ) : new ArrayList<>( Arrays.asList( path ) );
+        for ( Path file : segments ) {
+          try ( MmsSegment segment = new MmsSegment( file ) ) {
+            if ( !segment.isIndexed() ) {
+              System.err.println( "Skipping the segment that is not indexed : \"" + file + "\"" );
+              continue;
+            }
+            Record r = segment.find( args[ 2 ] );
+            if ( r != null ) {
+              if ( !r.verify() ) {
+                throw new IOException( "Invalid checksum of " + r + " of \"" + file + "\"" );
+              }
+              save( r, args.length > 3 ? Paths.get( args[ 3 ] ) : Paths.get( r.getName() ).getFileName() );
+              return;
+            }
+          }
+        }
+        System.err.println( "No Multimedia Message with the transaction ID " + args[ 2 ] );
+        System.exit( 2 );
+        break;
+      case "unpack":
+        Path folder = Paths.get( args.length > 2 ? args[ 2 ] : "." );
+        Files.createDirectories( folder );
+        try ( MmsSegment segment = new MmsSegment( path ) ) {
+          int n = 0;
+          for ( Record r = segment.read( FIRST_RECORD ); r != null; r = segment.read( r.getEnd() ) ) {
+            save( r, folder.resolve( Paths.get( r.getName() ).getFileName() ) );
+            n++;
+          }
+          System.out.println( n + " Multimedia Messages written to \"" + folder + "\"" );
+        }
+        break;
+      default:
+        System.out.println( reindex( path ) + " Multimedia Messages indexed" );
+    }
+  }
+}
@@ -0,0 +1,944 @@
+package com.mms.composer;
+
+/*
+ * @(#)MmsServer.java	1.1
+ *
+ * Summary
+ *
+ * Embedded HTTP server from which the handsets retrieve their Multimedia Messages. Upon receiving an
+ * "m-notification.ind", the MMS client issues an "HTTP GET" to the URL it references ; rather than placing the
+ * ".mms" files on an Apache server (see "SampleMMSComposer"), the composer process can serve them itself :
+ *
+ * 	 	GET /mms/<transaction id> HTTP/1.1
+ *
+ * The last segment of the path is the transaction ID of the message (a ".mms" extension is ignored). The message is
+ * looked up :
+ *
+ * 1) in the "MessageStore", an in-memory (heap or off-heap) LRU store of encoded messages, written to the socket
+ *    straight from its buffers with a single gathering write, together with the response headers ;
+ * 2) among the ".mms" files of the served folders, indexed by the transaction ID found in their headers (see
+ *    "MmsDecoder"), or else named "<transaction id>.mms". A file is sent with "FileChannel.transferTo()", i.e.
+ *    zero-copy from the page cache to the socket where the platform allows it.
+ *
+ * The response is an "m-retrieve-conf" PDU with the "application/vnd.wap.mms-message" content type. Every message
+ * has a strong entity tag ("ETag"), so that a client may revalidate it with "If-None-Match" (304 Not Modified),
+ * and resume an interrupted download with a single "Range" (206 Partial Content), possibly guarded by "If-Range".
+ * "HEAD" is supported as well, and connections are kept alive (HTTP/1.1) until idle for the idle timeout.
+ *
+ * The server may also expose the "PipelineMetrics" of the process on "/metrics", in the Prometheus text format,
+ * and then times the messages it sends as their "SERVE" stage.
+ *
+ * Each connection is served by its own thread, blocked in plain socket reads and writes : on Java 21 and later,
+ * these are virtual threads, so that thousands of concurrent handsets do not need a platform thread each ;
+ * otherwise, a fixed pool of platform threads serves the connections, those in excess waiting for a thread.
+ *
+ * Usage
+ *
+ * 	 	mms_creation$ java.exe -Dfile.encoding=UTF-8 -classpath "target/classes;lib/MMSLibrary.jar" com.mms.composer.MmsServer [--port <n>] [--threads <n>] [--virtual] [--preload <bytes>] [--off-heap] [--metrics] <folder> ...
+ * example :
+ * 	 	mms_creation$ java.exe -Dfile.encoding=UTF-8 -classpath "target/classes;lib/MMSLibrary.jar" com.mms.composer.MmsServer --virtual --preload 268435456 --off-heap target/mms
+ *
+ * With "--preload <bytes>", the messages of the folders are also loaded into the message store, up to that many
+ * bytes, off the heap with "--off-heap" ; the others are still served from their files. With "--metrics", the
+ * metrics of the process are served on "/metrics".
+ */
+
+// These imports are necessary for utilities.
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Nokia MMS Java Library version 1.1
+import com.nokia.mms.*;
+
+public class MmsServer implements Closeable {
+  // Content type of the messages.
+  public static final String CONTENT_TYPE = "application/vnd.wap.mms-message";
+  // Default port of the server.
+  public static final int DEFAULT_PORT = 8080;
+  // Default number of platform threads serving the connections.
+  public static final int DEFAULT_THREADS = 64;
+  // Default time, in milliseconds, an idle connection is kept open, can be overridden with the
+  // "mms.server.idle.timeout" system property.
+  public static final int DEFAULT_IDLE_TIMEOUT = Integer.getInteger( "mms.server.idle.timeout", 15000 );
+  // Marks an unsatisfiable range.
+  private static final long[] UNSATISFIABLE = new long[ 0 ];
+  private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME;
+
+  // Store of the messages held in memory.
+  private final MessageStore store;
+  private final MmsDecoder decoder = new MmsDecoder();
+  // Served folders, and their ".mms" files keyed by transaction ID.
+  private final List<Path> folders = new CopyOnWriteArrayList<>();
+  private final Map<String, Path> files = new ConcurrentHashMap<>();
+  // Number of platform threads, and factory of the threads serving the connections.
+  private final int threads;
+  private final ThreadFactory connectionFactory;
+  private final boolean virtual;
+  private volatile int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+  // Metrics served on "/metrics", or null.
+  private volatile PipelineMetrics metrics;
+
+  private ServerSocketChannel server;
+  private Thread acceptor;
+  private ExecutorService pool;
+  private final Set<SocketChannel> connections = ConcurrentHashMap.newKeySet();
+  // Value of the "Date" header, formatted once per second.
+  private volatile HttpDate date = new HttpDate( 0, null );
+
+  private final LongAdder accepted = new LongAdder();
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder partial = new LongAdder();
+  private final LongAdder notModified = new LongAdder();
+  private final LongAdder notFound = new LongAdder();
+  private final LongAdder bytesSent = new LongAdder();
+
+  /**
+   * Create a server.
+   *
+   * @param store store of the messages held in memory
+   * @param threads number of platform threads serving the connections, ignored with virtual threads
+   * @param virtual true to serve each connection on its own virtual thread
+   * @throws UnsupportedOperationException if virtual threads are asked for but not available
+   */
+  public MmsServer( MessageStore store, int threads, boolean virtual ) {
+    if ( threads < 1 && !virtual ) {
+      throw new IllegalArgumentException( "At least one thread is required" );
+    }
+    this.store = store;
+    this.threads = threads;
+    this.virtual = virtual;
+    this.connectionFactory = Threads.factory( "mms-http", virtual );
+  }
+
+  public MessageStore getStore() {
+    return store;
+  }
+
+  /**
+   * Close the connections that stay idle for a while.
+   *
+   * @param idleTimeout time, in milliseconds, an idle connection is kept open ; 0 for ever
+   */
+  public void setIdleTimeout( int idleTimeout ) {
+    if ( idleTimeout < 0 ) {
+      throw new IllegalArgumentException( "Negative idle timeout : " + idleTimeout );
+    }
+    this.idleTimeout = idleTimeout;
+  }
+
+  /**
+   * Serve metrics on "/metrics", in the Prometheus text exposition format.
+   *
+   * @param metrics the metrics, or null not to serve any
+   */
+  public void setMetrics( PipelineMetrics metrics ) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Serve the ".mms" files of a folder and of its subfolders, indexed by their transaction ID. A file that is added
+   * to the folder later on is still served if it is named "<transaction id>.mms".
+   *
+   * @param folder the folder
+   * @return number of files indexed ; those that cannot be decoded are skipped
+   * @throws IOException if the folder cannot be listed
+   */
+  public int addFolder( Path folder ) throws IOException {
+    List<Path> found;
+    try ( Stream<Path> walk = Files.walk( folder ) ) {
+      found = walk.filter( p -> p.getFileName().toString().toLowerCase( Locale.ROOT ).endsWith( ".mms" )
+              && Files.isRegularFile( p ) ).collect( Collectors.toList() );
+    }
+    folders.add( folder );
+    int indexed = 0;
+    for ( Path file : found ) {
+      String[] transactionId = new String[ 1 ];
+      try {
+        decoder.decode( file, new MmsDecoder.Handler() {
+          @Override
+          public boolean headers( MmsDecoder.Headers headers ) {
+            transactionId[ 0 ] = headers.getTransactionId();
+            return false;
+          }
+
+          @Override
+          public boolean part( MmsDecoder.Part part ) {
+            return false;
+          }
+        } );
+      }
+      catch ( IOException | MMDecoderException e ) {
+        continue;
+      }
+      if ( transactionId[ 0 ] != null ) {
+        files.put( transactionId[ 0 ], file );
+        indexed++;
+      }
+    }
+    return indexed;
+  }
+
+  /**
+   * Serve a ".mms" file.
+   *
+   * @param transactionId transaction ID of the message
+   * @param file the file, holding an "m-retrieve-conf" message
+   */
+  public void addFile( String transactionId, Path file ) {
+    files.put( transactionId, file );
+  }
+
+  /**
+   * Load the indexed ".mms" files into the message store, until it is full.
+   *
+   * @return number of messages loaded
+   * @throws IOException if a file cannot be read
+   */
+  public int preload() throws IOException {
+    int loaded = 0;
+    for ( Map.Entry<String, Path> file : files.entrySet() ) {
+      byte[] bytes = Files.readAllBytes( file.getValue() );
+      if ( store.getResidentBytes() + bytes.length > store.getMaxBytes() ) {
+        break;
+      }
+      if ( bytes.length >= 2 && store.put( file.getKey(), bytes, bytes.length, (byte[]) null ) ) {
+        loaded++;
+      }
+    }
+    return loaded;
+  }
+
+  /**
+   * Start accepting connections.
+   *
+   * @param address address to listen on ; port 0 for any free port
+   * @throws IOException if the address cannot be bound
+   */
+  public synchronized void start( InetSocketAddress address ) throws IOException {
+    if ( server != null ) {
+      throw new IllegalStateException( "The server is already started" );
+    }
+    server = ServerSocketChannel.open();
+    server.socket().setReuseAddress( true );
+    server.bind( address, 1024 );
+    Executor executor;
+    if ( virtual ) {
+      executor = r -> connectionFactory.newThread( r ).start();
+    }
+    else {
+      executor = pool = Executors.newFixedThreadPool( threads, connectionFactory );
+    }
+    acceptor = Threads.factory( "mms-http-acceptor", false ).newThread( () -> accept( executor ) );
+    acceptor.start();
+  }
+
+  /**
+   * Return the port the server listens on.
+   *
+   * @return the local port, e.g. the one chosen for port 0
+   */
+  public int getPort() {
+    return server.socket().getLocalPort();
+  }
+
+  /**
+   * Stop accepting connections and close the open ones.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if ( server == null ) {
+      return;
+    }
+    server.close();
+    try {
+      acceptor.join( 1000 );
+    }
+    catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+    }
+    for ( SocketChannel connection : connections ) {
+      connection.close();
+    }
+    if ( pool != null ) {
+      pool.shutdownNow();
+      try {
+        pool.awaitTermination( 1, TimeUnit.SECONDS );
+      }
+      catch ( InterruptedException e ) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Accept the connections, until the server is closed, and hand each one over to a connection thread.
+   */
+  private void accept( Executor executor ) {
+    while ( server.isOpen() ) {
+      SocketChannel connection;
+      try {
+        connection = server.accept();
+      }
+      catch ( ClosedChannelException e ) {
+        return;
+      }
+      catch ( IOException e ) {
+        // E.g. too many open files : back off a little rather than spinning.
+        System.err.println( "Cannot accept a connection : " + e.getMessage() );
+        try {
+          Thread.sleep( 100 );
+        }
+        catch ( InterruptedException ie ) {
+          return;
+        }
+        continue;
+      }
+      accepted.increment();
+      connections.add( connection );
+      try {
+        executor.execute( () -> serve( connection ) );
+      }
+      catch ( RuntimeException e ) {
+        connections.remove( connection );
+        closeQuietly( connection );
+      }
+    }
+  }
+
+  /**
+   * Serve the requests of a connection, one after the other, until it is closed or idle for too long.
+   */
+  private void serve( SocketChannel connection ) {
+    try {
+      Socket socket = connection.socket();
+      socket.setTcpNoDelay( true );
+      socket.setSoTimeout( idleTimeout );
+      RequestReader reader = new RequestReader( socket.getInputStream() );
+      while ( true ) {
+        Request request;
+        try {
+          request = reader.read();
+        }
+        catch ( ProtocolException e ) {
+          requests.increment();
+          respondError( connection, 400, "Bad Request", e.getMessage() );
+          return;
+        }
+        if ( request == null ) {
+          return;
+        }
+        requests.increment();
+        if ( !respond( connection, request ) ) {
+          return;
+        }
+      }
+    }
+    catch ( SocketTimeoutException e ) {
+      // Idle for too long.
+    }
+    catch ( IOException e ) {
+      // The client went away, or the server is closed.
+    }
+    finally {
+      connections.remove( connection );
+      closeQuietly( connection );
+    }
+  }
+
+  /**
+   * Respond to a request.
+   *
+   * @return true if the connection is to be kept alive
+   */
+  private boolean respond( SocketChannel connection, Request request ) throws IOException {
+    boolean keepAlive = request.keepAlive();
+    boolean head = request.method.equals( "HEAD" );
+    if ( !head && !request.method.equals( "GET" ) ) {
+      StringBuilder h = status( 405, "Method Not Allowed", keepAlive );
+      h.append( "Allow: GET, HEAD\r\n" );
+      return sendText( connection, h, "Only GET and HEAD are supported", head, keepAlive );
+    }
+    PipelineMetrics m = metrics;
+    if ( m != null && request.target.equals( "/metrics" ) ) {
+      StringBuilder text = new StringBuilder( 4096 );
+      m.writePrometheus( text );
+      byte[] body = text.toString().getBytes( StandardCharsets.UTF_8 );
+      StringBuilder h = status( 200, "OK", keepAlive );
+      h.append( "Content-Type: " ).append( PipelineMetrics.PROMETHEUS_CONTENT_TYPE ).append( "\r\n" )
+       .append( "Content-Length: " ).append( body.length ).append( "\r\n" )
+       .append( "Cache-Control: no-cache\r\n\r\n" );
+      send( connection, h, head ? null : ByteBuffer.wrap( body ) );
+      return keepAlive;
+    }
+    String transactionId = transactionId( request.target );
+    try ( Resource resource = transactionId == null ? null : lookup( transactionId ) ) {
+      if ( resource == null ) {
+        notFound.increment();
+        return sendText( connection, status( 404, "Not Found", keepAlive ), "No such Multimedia Message", head,
+                keepAlive );
+      }
+      String etag = resource.etag();
+      String ifNoneMatch = request.headers.get( "if-none-match" );
+      if ( ifNoneMatch != null && matches( ifNoneMatch, etag ) ) {
+        notModified.increment();
+        StringBuilder h = status( 304, "Not Modified", keepAlive );
+        h.append( "ETag: " ).append( etag ).append( "\r\n\r\n" );
+        send( connection, h, null );
+        return keepAlive;
+      }
+      long length = resource.length();
+      long[] range = null;
+      String ifRange = request.headers.get( "if-range" );
+      if ( ifRange == null || ifRange.trim().equals( etag ) ) {
+        range = range( request.headers.get( "range" ), length );
+      }
+      if ( range == UNSATISFIABLE ) {
+        StringBuilder h = status( 416, "Range Not Satisfiable", keepAlive );
+        h.append( "Content-Range: bytes */" ).append( length ).append( "\r\n" );
+        return sendText( connection, h, "Range not satisfiable", head, keepAlive );
+      }
+      long offset = range == null ? 0 : range[ 0 ];
+      long count = range == null ? length : range[ 1 ] - range[ 0 ] + 1;
+      StringBuilder h;
+      if ( range == null ) {
+        h = status( 200, "OK", keepAlive );
+      }
+      else {
+        partial.increment();
+        h = status( 206, "Partial Content", keepAlive );
+        h.append( "Content-Range: bytes " ).append( range[ 0 ] ).append( '-' ).append( range[ 1 ] ).append( '/' )
+         .append( length ).append( "\r\n" );
+      }
+      h.append( "Content-Type: " ).append( CONTENT_TYPE ).append( "\r\n" )
+       .append( "Content-Length: " ).append( count ).append( "\r\n" )
+       .append( "ETag: " ).append( etag ).append( "\r\n" )
+       .append( "Accept-Ranges: bytes\r\n" )
+       .append( "Cache-Control: private\r\n\r\n" );
+      if ( head ) {
+        send( connection, h, null );
+      }
+      else {
+        long start = m != null ? m.start() : 0;
+        resource.send( connection, h, offset, count );
+        bytesSent.add( count );
+        if ( m != null ) {
+          m.stop( PipelineMetrics.Stage.SERVE, start, count );
+        }
+      }
+      return keepAlive;
+    }
+  }
+
+  /**
+   * Look up a message : in the message store first, then among the served files.
+   *
+   * @return the message, or null if it cannot be found
+   */
+  private Resource lookup( String transactionId ) throws IOException {
+    MessageStore.Message message = store.get( transactionId );
+    if ( message != null ) {
+      return new StoredResource( message );
+    }
+    Path file = files.get( transactionId );
+    if ( file != null ) {
+      Resource resource = FileResource.open( file );
+      if ( resource != null ) {
+        return resource;
+      }
+    }
+    for ( Path folder : folders ) {
+      Resource resource = FileResource.open( folder.resolve( transactionId + ".mms" ) );
+      if ( resource != null ) {
+        return resource;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Return the transaction ID of a request target, i.e. the last segment of its path without any ".mms"
+   * extension, or null if it is not a valid transaction ID.
+   */
+  static String transactionId( String target ) {
+    int end = target.indexOf( '?' );
+    String path = end < 0 ? target : target.substring( 0, end );
+    String id = path.substring( path.lastIndexOf( '/' ) + 1 );
+    if ( id.toLowerCase( Locale.ROOT ).endsWith( ".mms" ) ) {
+      id = id.substring( 0, id.length() - 4 );
+    }
+    if ( id.isEmpty() || id.startsWith( "." ) ) {
+      return null;
+    }
+    for ( int i = 0; i < id.length(); i++ ) {
+      char c = id.charAt( i );
+      if ( c <= ' ' || c >= 0x7F || c == '\\' || c == '%' ) {
+        return null;
+      }
+    }
+    return id;
+  }
+
+  /**
+   * Return true if an "If-None-Match" header matches an entity tag (weak comparison).
+   */
+  static boolean matches( String ifNoneMatch, String etag ) {
+    String opaque = etag.startsWith( "W/" ) ? etag.substring( 2 ) : etag;
+    for ( String tag : ifNoneMatch.split( "," ) ) {
+      tag = tag.trim();
+      if ( tag.equals( "*" ) ) {
+        return true;
+      }
+      if ( tag.startsWith( "W/" ) ) {
+        tag = tag.substring( 2 );
+      }
+      if ( tag.equals( opaque ) ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Parse a single byte range ("bytes=<first>-<last>", "bytes=<first>-" or "bytes=-<suffix length>").
+   *
+   * @return the first and last byte positions of the range ; "UNSATISFIABLE" ; or null to ignore the header, which
+   *         is either missing, malformed, or asks for several ranges
+   */
+  static long[] range( String header, long length ) {
+    if ( header == null ) {
+      return null;
+    }
+    header = header.trim();
+    if ( !header.regionMatches( true, 0, "bytes=", 0, 6 ) || header.indexOf( ',' ) >= 0 ) {
+      return null;
+    }
+    String spec = header.substring( 6 ).trim();
+    int dash = spec.indexOf( '-' );
+    if ( dash < 0 ) {
+      return null;
+    }
+    try {
+      String first = spec.substring( 0, dash ).trim();
+      String last = spec.substring( dash + 1 ).trim();
+      if ( first.isEmpty() ) {
+        long suffix = Long.parseLong( last );
+        if ( suffix < 0 ) {
+          return null;
+        }
+        if ( suffix == 0 || length == 0 ) {
+          return UNSATISFIABLE;
+        }
+        return new long[] { Math.max( 0, length - suffix ), length - 1 };
+      }
+      long from = Long.parseLong( first );
+      long to = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong( last );
+      if ( from < 0 || to < from ) {
+        return null;
+      }
+      if ( from >= length ) {
+        return UNSATISFIABLE;
+      }
+      return new long[] { from, Math.min( to, length - 1 ) };
+    }
+    catch ( NumberFormatException e ) {
+      return null;
+    }
+  }
+
+  /**
+   * Start the response headers.
+   */
+  private StringBuilder status( int status, String reason, boolean keepAlive ) {
+    StringBuilder h = new StringBuilder( 256 );
+    h.append( "HTTP/1.1 " ).append( status ).append( ' ' ).append( reason ).append( "\r\n" )
+     .append( "Date: " ).append( date() ).append( "\r\n" )
+     .append( "Connection: " ).append( keepAlive ? "keep-alive" : "close" ).append( "\r\n" );
+    return h;
+  }
+
+  /**
+   * Send a short plain text response.
+   */
+  private boolean sendText( SocketChannel connection, StringBuilder h, String text, boolean head, boolean keepAlive )
+          throws IOException {
+    byte[] body = ( text + "\r\n" ).getBytes( StandardCharsets.US_ASCII );
+    h.append( "Content-Type: text/plain\r\n" )
+     .append( "Content-Length: " ).append( body.length ).append( "\r\n\r\n" );
+    send( connection, h, head ? null : ByteBuffer.wrap( body ) );
+    return keepAlive;
+  }
+
+  private void respondError( SocketChannel connection, int status, String reason, String text ) {
+    try {
+      sendText( connection, status( status, reason, false ), text, false, false );
+    }
+    catch ( IOException e ) {
+      // The connection is closed anyway.
+    }
+  }
+
+  /**
+   * Send the response headers, and a body held in memory, if any, with a single gathering write.
+   */
+  private static void send( SocketChannel connection, StringBuilder headers, ByteBuffer body ) throws IOException {
+    ByteBuffer h = ByteBuffer.wrap( headers.toString().getBytes( StandardCharsets.ISO_8859_1 ) );
+    writeFully( connection, body == null ? new ByteBuffer[] { h } : new ByteBuffer[] { h, body } );
+  }
+
+  private static void writeFully( SocketChannel connection, ByteBuffer[] buffers ) throws IOException {
+    long remaining = 0;
+    for ( ByteBuffer b : buffers ) {
+      remaining += b.remaining();
+    }
+    while ( remaining > 0 ) {
+      remaining -= connection.write( buffers );
+    }
+  }
+
+  /**
+   * Return the value of the "Date" header, formatted at most once per second.
+   */
+  private String date() {
+    long second = System.currentTimeMillis() / 1000;
+    HttpDate d = date;
+    if ( d.second != second ) {
+      d = new HttpDate( second, HTTP_DATE.format( ZonedDateTime.now( ZoneOffset.UTC ) ) );
+      date = d;
+    }
+    return d.value;
+  }
+
+  private static void closeQuietly( Closeable c ) {
+    try {
+      c.close();
+    }
+    catch ( IOException e ) {
+      // Nothing more can be done about it.
+    }
+  }
+
+  public long getRequests() {
+    return requests.sum();
+  }
+
+  public long getBytesSent() {
+    return bytesSent.sum();
+  }
+
+  @Override
+  public String toString() {
+    return String.format( "MMS server : %d connections, %d requests (%d partial, %d not modified, %d not found), "
+            + "%d bytes sent%n%s", accepted.sum(), getRequests(), partial.sum(), notModified.sum(), notFound.sum(),
+            getBytesSent(), store );
+  }
+
+  /**
+   * The "Date" header value of a second.
+   */
+  private static final class HttpDate {
+    final long second;
+    final String value;
+
+    HttpDate( long second, String value ) {
+      this.second = second;
+      this.value = value;
+    }
+  }
+
+  /**
+   * A request : its request line and the header fields the server cares about, by lower case name.
+   */
+  private static final class Request {
+    final String method;
+    final String target;
+    final boolean http11;
+    final Map<String, String> headers;
+
+    Request( String method, String target, boolean http11, Map<String, String> headers ) {
+      this.method = method;
+      this.target = target;
+      this.http11 = http11;
+      this.headers = headers;
+    }
+
+    boolean keepAlive() {
+      String connection = headers.get( "connection" );
+      return http11 ? !"close".equalsIgnoreCase( connection ) : "keep-alive".equalsIgnoreCase( connection );
+    }
+  }
+
+  /**
+   * Reads the requests of a connection.
+   */
+  private static final class RequestReader {
+    private final HttpInput in;
+
+    RequestReader( InputStream in ) {
+      this.in = new HttpInput( in );
+    }
+
+    /**
+     * Read the next request.
+     *
+     * @return the request, or null at the end of the stream
+     * @throws ProtocolException if the request is malformed
+     */
+    Request read() throws IOException {
+      String line = in.readLine();
+      // Empty lines before a request line are ignored.
+      while ( line != null && line.isEmpty() ) {
+        line = in.readLine();
+      }
+      if ( line == null ) {
+        return null;
+      }
+      String[] requestLine = line.split( " " );
+      if ( requestLine.length != 3 || !requestLine[ 2 ].startsWith( "HTTP/1." ) ) {
+        throw new ProtocolException( "Malformed request line" );
+      }
+      Map<String, String> headers = new HashMap<>();
+      if ( !in.readHeaders( headers ) ) {
+        return null;
+      }
+      if ( headers.containsKey( "transfer-encoding" ) ) {
+        throw new ProtocolException( "Request bodies are not supported" );
+      }
+      String contentLength = headers.get( "content-length" );
+      if ( contentLength != null ) {
+        try {
+          in.skip( Long.parseLong( contentLength ) );
+        }
+        catch ( NumberFormatException e ) {
+          throw new ProtocolException( "Malformed Content-Length" );
+        }
+      }
+      return new Request( requestLine[ 0 ], requestLine[ 1 ], !requestLine[ 2 ].equals( "HTTP/1.0" ), headers );
+    }
+  }
+
+  /**
+   * A message to be sent, either from the message store or from a file.
+   */
+  private interface Resource extends Closeable {
+    long length();
+
+    String etag();
+
+    /**
+     * Send the response headers, then a range of the message.
+     */
+    void send( SocketChannel connection, StringBuilder headers, long offset, long count ) throws IOException;
+  }
+
+  private static final class StoredResource implements Resource {
+    private final MessageStore.Message message;
+
+    StoredResource( MessageStore.Message message ) {
+      this.message = message;
+    }
+
+    @Override
+    public long length() {
+      return message.getLength();
+    }
+
+    @Override
+    public String etag() {
+      return message.getEtag();
+    }
+
+    @Override
+    public void send( SocketChannel connection, StringBuilder headers, long offset, long count ) throws IOException {
+      ByteBuffer[] range = message.slice( offset, count );
+      ByteBuffer[] buffers = new ByteBuffer[ range.length + 1 ];
+      buffers[ 0 ] = ByteBuffer.wrap( headers.toString().getBytes( StandardCharsets.ISO_8859_1 ) );
+      System.arraycopy( range, 0, buffers, 1, range.length );
+      writeFully( connection, buffers );
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  private static final class FileResource implements Resource {
+    private final FileChannel channel;
+    private final long length;
+    private final String etag;
+
+    private FileResource( FileChannel channel, long length, String etag ) {
+      this.channel = channel;
+      this.length = length;
+      this.etag = etag;
+    }
+
+    /**
+     * Open a ".mms" file.
+     *
+     * @return the file, or null if it does not exist
+     */
+    static FileResource open( Path file ) throws IOException {
+      FileChannel channel;
+      try {
+        channel = FileChannel.open( file, StandardOpenOption.READ );
+      }
+      catch ( NoSuchFileException e ) {
+        return null;
+      }
+      try {
+        long length = channel.size();
+        long modified = Files.getLastModifiedTime( file ).toMillis();
+        return new FileResource( channel, length,
+                "\"" + Long.toHexString( modified ) + "-" + Long.toHexString( length ) + "\"" );
+      }
+      catch ( IOException e ) {
+        channel.close();
+        throw e;
+      }
+    }
+
+    @Override
+    public long length() {
+      return length;
+    }
+
+    @Override
+    public String etag() {
+      return etag;
+    }
+
+    @Override
+    public void send( SocketChannel connection, StringBuilder headers, long offset, long count ) throws IOException {
+      MmsServer.send( connection, headers, null );
+      // Zero-copy, from the page cache to the socket, where the platform allows it.
+      while ( count > 0 ) {
+        long n = channel.transferTo( offset, count, connection );
+        if ( n <= 0 ) {
+          throw new IOException( "Multimedia Message truncated while being sent" );
+        }
+        offset += n;
+        count -= n;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+
+  /**
+   * MMS Server application
+   *
+   * @param args application's input arguments
+   */
+  public static void main( String[] args ) throws IOException {
+    // The application requires at least one input argument :
+    // * the folders of ".mms" files to serve
+    // preceded by the options, if any :
+    // * --port <n> : listen on port "n" (8080 by default)
+    // * --threads <n> : serve the connections on "n" platform threads (64 by default)
+    // * --virtual : serve each connection on its own virtual thread (Java 21 or later)
+    // * --preload <bytes> : load the messages into a message store of that many bytes
+    // * --off-heap : hold the message store off the heap
+    // * --metrics : serve the metrics of the process on "/metrics"
+    int port = DEFAULT_PORT;
+    int threads = DEFAULT_THREADS;
+    boolean virtual = false;
+    long preload = 0;
+    boolean offHeap = false;
+    boolean metrics = false;
+    int i = 0;
+    try {
+      for ( ; i < args.length && args[ i ].startsWith( "--" ); i++ ) {
+        switch ( args[ i ] ) {
+          case "--port": port = Integer.parseInt( args[ ++i ] ); break;
+          case "--threads": threads = Integer.parseInt( args[ ++i ] ); break;
+          case "--virtual": virtual = true; break;
+          case "--preload": preload = Long.parseLong( args[ ++i ] ); break;
+          case "--off-heap": offHeap = true; break;
+          case "--metrics": metrics = true; break;
+          default: throw new IllegalArgumentException( "Unknown option : " + args[ i ] );
+        }
+      }
+    }
+    catch ( RuntimeException e ) {
+      System.err.println( e.getMessage() );
+      i = args.length;
+    }
+    if ( args.length - i < 1 ) {
+      System.err.println( "Usage : MmsServer [--port <n>] [--threads <n>] [--virtual] [--preload <bytes>] [--off-heap] [--metrics] <folder> ..." );
+      System.exit( 1 );
+    }
+    List<Path> paths = new ArrayList<>();
+    for ( ; i < args.length; i++ ) {
+      paths.add( Paths.get( args[ i ] ) );
+    }
+    MmsServer server;
+    try {
+      server = new MmsServer( new MessageStore( preload, offHeap ), threads, virtual );
+    }
+    catch ( RuntimeException e ) {
+      System.err.println( e.getMessage() );
+      System.exit( 1 );
+      return;
+    }
+    if ( metrics ) {
+      server.setMetrics( PipelineMetrics.getDefault() );
+    }
+    int indexed = 0;
+    for ( Path path : paths ) {
+      indexed += server.addFolder( path );
+    }
+    int loaded = preload > 0 ? server.preload() : 0;
+    server.start( new InetSocketAddress( port ) );
+    System.out.println( "Serving " + indexed + " Multimedia Messages (" + loaded + " in memory) on http://localhost:"
+            + server.getPort() + "/mms/<transaction id>" );
+    Runtime.getRuntime().addShutdownHook( new Thread( () -> {
+      closeQuietly( server );
+      System.out.println( server );
+    } ) );
+    // The connection threads are daemon threads : serve until the acceptor stops, i.e. until the process is killed.
+    try {
+      server.acceptor.join();
+    }
+    catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
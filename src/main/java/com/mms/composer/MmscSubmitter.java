@@ -0,0 +1,652 @@
+package com.mms.composer;
+
+/*
+ * @(#)MmscSubmitter.java	1.1
+ *
+ * Summary
+ *
+ * Submission stage of the composer : sends the encoded "m-send-req" messages to an MMSC with "HTTP POST", as
+ * "MMSender.send( byte[] )" of the Nokia MMS Java Library does, but asynchronously and for high volumes :
+ *
+ * - "submit()" returns at once with a "CompletableFuture" of the response ; the message is posted by a sender
+ *   thread, a virtual thread on Java 21 and later, or one of a pool of platform threads otherwise.
+ * - The connections to the MMSC are kept alive (HTTP/1.1) and pooled, so that a message does not pay for a new TCP
+ *   connection. The request headers, the header block and the body of the message are written with a single
+ *   gathering write ; a body shared by all the messages of a template is never copied, and one held off the heap
+ *   (see "MediaStore") is written from its direct buffer.
+ * - The number of messages in flight (being posted, or waiting for a retry) is capped : "submit()" blocks while the
+ *   cap is reached, so that a slow MMSC throttles the composer instead of filling the memory.
+ * - A transient failure (an I/O error before the whole message is sent, an HTTP 408, 429 or 5xx status, or a
+ *   transient "X-Mms-Response-Status") is retried, after an exponential backoff with jitter, up to a number of
+ *   retries. Once the whole message is sent, the MMSC may have accepted it even if no response comes back (e.g. a
+ *   read timeout) : as a submission is not idempotent, such a message fails rather than being submitted twice.
+ * - A pooled connection that the MMSC closed while it was idle is detected and dropped before it is used.
+ * - The "m-send-conf" response of the MMSC is decoded (see "MmsDecoder") into a "Response", an "MMResponse" that
+ *   also holds the "X-Mms-Response-Status", "X-Mms-Response-Text" and "Message-ID" of the message.
+ *
+ * The "SUBMIT" stage of the "PipelineMetrics" times each message from its first attempt to its completion,
+ * retries included.
+ *
+ * Only "http" MMSC URLs are supported. A submitter is safe for use by multiple threads.
+ */
+
+// These imports are necessary for utilities.
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Nokia MMS Java Library version 1.1
+import com.nokia.mms.*;
+
+public class MmscSubmitter implements Closeable {
+  // Content type of the messages.
+  public static final String CONTENT_TYPE = "application/vnd.wap.mms-message";
+  // Default cap on the number of messages in flight.
+  public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+  // Default number of retries of a message, and backoff before the first and any retry, in milliseconds.
+  public static final int DEFAULT_RETRIES = 3;
+  public static final long DEFAULT_INITIAL_BACKOFF = 100;
+  public static final long DEFAULT_MAX_BACKOFF = 5000;
+  // "X-Mms-Response-Status" values (WAP-209-MMSEncapsulation, 7.2.27 ; OMA-MMS-ENC 1.2).
+  public static final int STATUS_OK = 0x80;
+  private static final int STATUS_NETWORK_PROBLEM = 0x86;
+  private static final int STATUS_TRANSIENT_FIRST = 0xC0;
+  private static final int STATUS_TRANSIENT_LAST = 0xDF;
+  // Value of the "X-Mms-Message-Type" field of an "m-send-conf" message.
+  private static final int M_SEND_CONF = 0x81;
+  // Maximum size of a response.
+  private static final int MAX_RESPONSE = 64 * 1024;
+  private static final byte[] EMPTY = new byte[ 0 ];
+
+  private final InetSocketAddress address;
+  // Start of every request : the request line and the fixed header fields.
+  private final String requestHead;
+  private final int maxInFlight;
+  private final Semaphore inFlight;
+  // Idle connections, the most recently used first.
+  private final ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<>();
+  private final Executor executor;
+  private final ExecutorService pool;
+  private final ScheduledExecutorService timer;
+  private final MmsDecoder decoder = new MmsDecoder();
+  private volatile int retries = DEFAULT_RETRIES;
+  private volatile long initialBackoff = DEFAULT_INITIAL_BACKOFF;
+  private volatile long maxBackoff = DEFAULT_MAX_BACKOFF;
+  private volatile int connectTimeout = 10000;
+  private volatile int readTimeout = 30000;
+  private volatile boolean closed = false;
+  private volatile PipelineMetrics metrics = PipelineMetrics.getDefault();
+
+  private final LongAdder submitted = new LongAdder();
+  private final LongAdder accepted = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+  private final LongAdder retried = new LongAdder();
+  private final LongAdder connections = new LongAdder();
+
+  /**
+   * Create a submitter.
+   *
+   * @param mmsc URL of the MMSC, e.g. "http://mmsc.example.com:8002/mms"
+   * @param maxInFlight maximum number of messages in flight, and of sender threads and pooled connections
+   * @param virtual true to post the messages on virtual threads
+   * @throws MalformedURLException if the URL is not an "http" URL
+   * @throws UnsupportedOperationException if virtual threads are asked for but not available
+   */
+  public MmscSubmitter( String mmsc, int maxInFlight, boolean virtual ) throws MalformedURLException {
+    URL url = new URL( mmsc );
+    if ( !url.getProtocol().equals( "http" ) ) {
+      throw new MalformedURLException( "Only http MMSC URLs are supported : " + mmsc );
+    }
+    if ( maxInFlight < 1 ) {
+      throw new IllegalArgumentException( "At least one message in flight is required" );
+    }
+    int port = url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+    this.address = new InetSocketAddress( url.getHost(), port );
+    String path = url.getFile().isEmpty() ? "/" : url.getFile();
+    this.requestHead = "POST " + path + " HTTP/1.1\r\n"
+            + "Host: " + url.getHost() + ( url.getPort() < 0 ? "" : ":" + port ) + "\r\n"
+            + "Content-Type: " + CONTENT_TYPE + "\r\n"
+            + "Accept: " + CONTENT_TYPE + "\r\n"
+            + "Content-Length: ";
+    this.maxInFlight = maxInFlight;
+    this.inFlight = new Semaphore( maxInFlight );
+    if ( virtual ) {
+      ThreadFactory senders = Threads.factory( "mms-sender", true );
+      this.pool = null;
+      this.executor = r -> senders.newThread( r ).start();
+    }
+    else {
+      this.pool = Executors.newFixedThreadPool( maxInFlight, Threads.factory( "mms-sender", false ) );
+      this.executor = pool;
+    }
+    this.timer = Executors.newSingleThreadScheduledExecutor( Threads.factory( "mms-sender-timer", false ) );
+  }
+
+  /**
+   * Retry the messages that fail transiently.
+   *
+   * @param retries maximum number of retries of a message, 0 not to retry
+   * @param initialBackoff time, in milliseconds, before the first retry ; doubled before each further retry
+   * @param maxBackoff maximum time, in milliseconds, before a retry
+   */
+  public void setRetries( int retries, long initialBackoff, long maxBackoff ) {
+    if ( retries < 0 || initialBackoff < 0 || maxBackoff < initialBackoff ) {
+      throw new IllegalArgumentException( "Invalid retries : " + retries + ", " + initialBackoff + ", " + maxBackoff );
+    }
+    this.retries = retries;
+    this.initialBackoff = initialBackoff;
+    this.maxBackoff = maxBackoff;
+  }
+
+  /**
+   * Set the timeouts of the connections.
+   *
+   * @param connectTimeout time, in milliseconds, to connect to the MMSC
+   * @param readTimeout time, in milliseconds, to wait for a response
+   */
+  public void setTimeouts( int connectTimeout, int readTimeout ) {
+    if ( connectTimeout < 0 || readTimeout < 0 ) {
+      throw new IllegalArgumentException( "Negative timeout" );
+    }
+    this.connectTimeout = connectTimeout;
+    this.readTimeout = readTimeout;
+  }
+
+  /**
+   * Record the latency of the submissions in other metrics than the process wide ones.
+   *
+   * @param metrics the metrics
+   */
+  public void setMetrics( PipelineMetrics metrics ) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Submit an encoded message.
+   *
+   * @param message the encoded "m-send-req" message
+   * @return the future response of the MMSC
+   */
+  public CompletableFuture<Response> submit( EncodedMessage message ) {
+    return submit( message.getKey(), message.getHeader(), message.getHeader().length, message.getBody() );
+  }
+
+  /**
+   * Submit an encoded message, blocking while the maximum number of messages are in flight. The header block is
+   * copied ; the body must not be modified afterwards.
+   *
+   * @param key key of the message, for the reports
+   * @param header array holding the header block of the encoded "m-send-req" message, or the whole message
+   * @param headerLength size of the header block, from the start of the array
+   * @param body body of the encoded message, possibly shared ; null for none
+   * @return the future response of the MMSC ; it completes exceptionally if the message could not be posted, even
+   *         after the retries
+   * @throws IllegalStateException if the submitter is closed
+   */
+  public CompletableFuture<Response> submit( String key, byte[] header, int headerLength, byte[] body ) {
+    return submit( key, header, headerLength, body == null ? null : ByteBuffer.wrap( body ) );
+  }
+
+  /**
+   * Submit an encoded message whose body is held in a buffer, possibly off the heap. The body must neither be
+   * modified nor released until the response completes.
+   *
+   * @param key key of the message, for the reports
+   * @param header array holding the header block of the encoded "m-send-req" message, or the whole message
+   * @param headerLength size of the header block, from the start of the array
+   * @param body body of the encoded message, possibly shared, from its position to its limit ; null for none
+   * @return the future response of the MMSC
+   * @throws IllegalStateException if the submitter is closed
+   */
+  public CompletableFuture<Response> submit( String key, byte[] header, int headerLength, ByteBuffer body ) {
+    if ( closed ) {
+      throw new IllegalStateException( "The submitter is closed" );
+    }
+    byte[] copy = new byte[ headerLength ];
+    System.arraycopy( header, 0, copy, 0, headerLength );
+    Submission submission = new Submission( key, copy, body == null ? ByteBuffer.allocate( 0 ) : body.duplicate() );
+    inFlight.acquireUninterruptibly();
+    submission.start = metrics.start();
+    submitted.increment();
+    execute( submission );
+    return submission.future;
+  }
+
+  /**
+   * Hand the next attempt of a message over to a sender thread ; the message fails if none will take it.
+   */
+  private void execute( Submission submission ) {
+    try {
+      executor.execute( () -> attempt( submission ) );
+    }
+    catch ( RejectedExecutionException e ) {
+      complete( submission, null, e );
+    }
+  }
+
+  /**
+   * Post a message once, then complete it, or schedule its next attempt.
+   */
+  private void attempt( Submission submission ) {
+    submission.attempts++;
+    Response response = null;
+    Exception failure = null;
+    try {
+      response = post( submission );
+    }
+    catch ( IOException | RuntimeException e ) {
+      failure = e;
+    }
+    // Once the whole message is sent, only an explicit transient status is retried, lest it be submitted twice.
+    boolean retry = failure == null ? response.isTransient() : failure instanceof IOException && !submission.sent;
+    if ( retry && submission.attempts <= retries && !closed ) {
+      retried.increment();
+      long backoff = Math.min( maxBackoff, initialBackoff << Math.min( submission.attempts - 1, 20 ) );
+      // Full jitter, between half and the whole backoff, so that the retries of a burst are spread out.
+      long delay = backoff / 2 + ThreadLocalRandom.current().nextLong( backoff / 2 + 1 );
+      try {
+        timer.schedule( () -> execute( submission ), delay, TimeUnit.MILLISECONDS );
+        return;
+      }
+      catch ( RejectedExecutionException e ) {
+        // Closed in the meantime : the message completes with the outcome of its last attempt.
+      }
+    }
+    complete( submission, response, failure );
+  }
+
+  /**
+   * Complete a message with its response, or its failure, and release its permit whatever happens.
+   */
+  private void complete( Submission submission, Response response, Exception failure ) {
+    // The future completes before the permit is released, so that "flush()" also waits for its callbacks.
+    try {
+      metrics.stop( PipelineMetrics.Stage.SUBMIT, submission.start,
+              submission.header.length + (long) submission.body.remaining() );
+      if ( failure != null ) {
+        failed.increment();
+        submission.future.completeExceptionally( failure );
+      }
+      else {
+        ( response.isAccepted() ? accepted : rejected ).increment();
+        submission.future.complete( response );
+      }
+    }
+    finally {
+      inFlight.release();
+    }
+  }
+
+  /**
+   * Post a message on a pooled connection. A pooled connection may have been closed by the MMSC in the meantime :
+   * such a connection is dropped, and if one fails before the message is sent, the message is posted again at once
+   * on a new connection.
+   */
+  private Response post( Submission submission ) throws IOException {
+    submission.sent = false;
+    for ( Connection connection = idle.pollFirst(); connection != null; connection = idle.pollFirst() ) {
+      if ( !connection.isReusable() ) {
+        connection.close();
+        continue;
+      }
+      try {
+        return post( connection, submission );
+      }
+      catch ( IOException e ) {
+        if ( submission.sent ) {
+          throw e;
+        }
+        break;
+      }
+    }
+    return post( open(), submission );
+  }
+
+  private Response post( Connection connection, Submission submission ) throws IOException {
+    boolean keepAlive = false;
+    try {
+      long length = submission.header.length + (long) submission.body.remaining();
+      ByteBuffer[] buffers = {
+        ByteBuffer.wrap( ( requestHead + length + "\r\n\r\n" ).getBytes( StandardCharsets.ISO_8859_1 ) ),
+        ByteBuffer.wrap( submission.header ),
+        submission.body.duplicate()
+      };
+      long remaining = buffers[ 0 ].remaining() + length;
+      while ( remaining > 0 ) {
+        remaining -= connection.channel.write( buffers );
+      }
+      submission.sent = true;
+
+      String statusLine = connection.in.readLine();
+      if ( statusLine == null ) {
+        throw new IOException( "Connection closed by the MMSC" );
+      }
+      String[] status = statusLine.split( " ", 3 );
+      if ( status.length < 2 || !status[ 0 ].startsWith( "HTTP/1." ) ) {
+        throw new ProtocolException( "Malformed status line : " + statusLine );
+      }
+      int code;
+      try {
+        code = Integer.parseInt( status[ 1 ] );
+      }
+      catch ( NumberFormatException e ) {
+        throw new ProtocolException( "Malformed status line : " + statusLine );
+      }
+      Map<String, String> headers = new HashMap<>();
+      if ( !connection.in.readHeaders( headers ) ) {
+        throw new IOException( "Connection closed by the MMSC" );
+      }
+      byte[] content = code == 204 || code == 304 ? EMPTY : connection.in.readBody( headers, MAX_RESPONSE );
+      String close = headers.get( "connection" );
+      keepAlive = status[ 0 ].equals( "HTTP/1.1" ) ? !"close".equalsIgnoreCase( close )
+              : "keep-alive".equalsIgnoreCase( close );
+      keepAlive &= headers.containsKey( "content-length" ) || headers.containsKey( "transfer-encoding" )
+              || content.length == 0;
+      return new Response( submission.key, code, status.length > 2 ? status[ 2 ] : "", headers, content,
+              submission.attempts, decoder );
+    }
+    finally {
+      if ( keepAlive && !closed ) {
+        idle.offerFirst( connection );
+      }
+      else {
+        connection.close();
+      }
+    }
+  }
+
+  private Connection open() throws IOException {
+    SocketChannel channel = SocketChannel.open();
+    try {
+      Socket socket = channel.socket();
+      socket.connect( address, connectTimeout );
+      socket.setTcpNoDelay( true );
+      socket.setSoTimeout( readTimeout );
+      connections.increment();
+      return new Connection( channel, new HttpInput( socket.getInputStream() ) );
+    }
+    catch ( IOException e ) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Wait until every submitted message is completed, i.e. accepted, rejected or failed.
+   */
+  public void flush() {
+    inFlight.acquireUninterruptibly( maxInFlight );
+    inFlight.release( maxInFlight );
+  }
+
+  /**
+   * Wait for the messages in flight, then close the connections and stop the sender threads.
+   */
+  @Override
+  public void close() {
+    if ( closed ) {
+      return;
+    }
+    flush();
+    closed = true;
+    timer.shutdownNow();
+    if ( pool != null ) {
+      pool.shutdown();
+    }
+    for ( Connection connection = idle.poll(); connection != null; connection = idle.poll() ) {
+      connection.close();
+    }
+  }
+
+  public long getSubmitted() {
+    return submitted.sum();
+  }
+
+  public long getAccepted() {
+    return accepted.sum();
+  }
+
+  public long getRejected() {
+    return rejected.sum();
+  }
+
+  public long getFailed() {
+    return failed.sum();
+  }
+
+  public long getRetried() {
+    return retried.sum();
+  }
+
+  /**
+   * Return the number of messages in flight, i.e. being posted or waiting for a retry.
+   *
+   * @return number of messages in flight
+   */
+  public long getInFlight() {
+    return maxInFlight - inFlight.availablePermits();
+  }
+
+  @Override
+  public String toString() {
+    return String.format( "MMSC submitter : %d submitted, %d accepted, %d rejected, %d failed, %d retries, "
+            + "%d connections", getSubmitted(), getAccepted(), getRejected(), getFailed(), getRetried(),
+            connections.sum() );
+  }
+
+  /**
+   * A message on its way to the MMSC.
+   */
+  private static final class Submission {
+    final String key;
+    final byte[] header;
+    final ByteBuffer body;
+    final CompletableFuture<Response> future = new CompletableFuture<>();
+    // Number of attempts so far ; only updated by the attempts, one after the other.
+    volatile int attempts = 0;
+    // True once the whole message is sent by the current attempt : the MMSC may then have accepted it.
+    volatile boolean sent;
+    // Start time of the submission, for the metrics.
+    long start;
+
+    Submission( String key, byte[] header, ByteBuffer body ) {
+      this.key = key;
+      this.header = header;
+      this.body = body;
+    }
+  }
+
+  /**
+   * A connection to the MMSC.
+   */
+  private static final class Connection {
+    final SocketChannel channel;
+    final HttpInput in;
+    // Buffer of the checks of an idle connection.
+    private final ByteBuffer probe = ByteBuffer.allocate( 1 );
+
+    Connection( SocketChannel channel, HttpInput in ) {
+      this.channel = channel;
+      this.in = in;
+    }
+
+    /**
+     * Tell whether an idle connection can be used again : it is neither closed by the MMSC (end of stream) nor
+     * holding unexpected bytes. Checked with a non blocking read, which does not wait.
+     */
+    boolean isReusable() {
+      try {
+        channel.configureBlocking( false );
+        try {
+          probe.clear();
+          return channel.read( probe ) == 0;
+        }
+        finally {
+          channel.configureBlocking( true );
+        }
+      }
+      catch ( IOException e ) {
+        return false;
+      }
+    }
+
+    void close() {
+      try {
+        channel.close();
+      }
+      catch ( IOException e ) {
+        // Nothing more can be done about it.
+      }
+    }
+  }
+
+  /**
+   * The response of the MMSC to a submitted message : the HTTP response, as an "MMResponse", and the fields of the
+   * "m-send-conf" message it carries, if any.
+   */
+  public static final class Response extends MMResponse {
+    private final String key;
+    private final int attempts;
+    private int responseStatus = -1;
+    private String responseText;
+    private String messageId;
+    private String transactionId;
+
+    Response( String key, int code, String reason, Map<String, String> headers, byte[] content, int attempts,
+              MmsDecoder decoder ) {
+      this.key = key;
+      this.attempts = attempts;
+      setResponseCode( code );
+      setResponseMessage( reason );
+      headers.forEach( this::addHeader );
+      setContentType( headers.get( "content-type" ) );
+      setContentLength( content.length );
+      setContent( content );
+      if ( code / 100 == 2 && content.length > 0 ) {
+        try {
+          decoder.decode( ByteBuffer.wrap( content ), new MmsDecoder.Handler() {
+            @Override
+            public boolean headers( MmsDecoder.Headers h ) {
+              if ( h.getMessageType() == M_SEND_CONF ) {
+                responseStatus = h.getResponseStatus();
+                responseText = h.getResponseText();
+                messageId = h.getMessageId();
+                transactionId = h.getTransactionId();
+              }
+              return false;
+            }
+
+            @Override
+            public boolean part( MmsDecoder.Part part ) {
+              return false;
+            }
+          } );
+        }
+        catch ( MMDecoderException e ) {
+          responseText = e.getMessage();
+        }
+      }
+    }
+
+    /**
+     * Return the key of the submitted message.
+     *
+     * @return the key given to "submit()"
+     */
+    public String getKey() {
+      return key;
+    }
+
+    /**
+     * Return the number of times the message was posted.
+     *
+     * @return 1, plus the number of retries
+     */
+    public int getAttempts() {
+      return attempts;
+    }
+
+    /**
+     * Return the status of the "m-send-conf" message.
+     *
+     * @return value of the "X-Mms-Response-Status" field, e.g. 0x80 for "Ok", or -1 without an "m-send-conf"
+     */
+    public int getResponseStatus() {
+      return responseStatus;
+    }
+
+    public String getResponseText() {
+      return responseText;
+    }
+
+    /**
+     * Return the "Message-ID" the MMSC gave to the message.
+     *
+     * @return the message ID, or null if the message was not accepted
+     */
+    public String getMessageId() {
+      return messageId;
+    }
+
+    public String getTransactionId() {
+      return transactionId;
+    }
+
+    /**
+     * Return true if the MMSC accepted the message.
+     *
+     * @return true for an HTTP 2xx status and an "Ok" response status
+     */
+    public boolean isAccepted() {
+      return getResponseCode() / 100 == 2 && responseStatus == STATUS_OK;
+    }
+
+    /**
+     * Return true if the message was refused for a reason that may go away, i.e. if it is worth retrying.
+     *
+     * @return true for an HTTP 408, 429 or 5xx status, or a transient response status
+     */
+    public boolean isTransient() {
+      int code = getResponseCode();
+      return code == 408 || code == 429 || code / 100 == 5 || responseStatus == STATUS_NETWORK_PROBLEM
+              || responseStatus >= STATUS_TRANSIENT_FIRST && responseStatus <= STATUS_TRANSIENT_LAST;
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder s = new StringBuilder( key ).append( " : HTTP " ).append( getResponseCode() );
+      if ( responseStatus >= 0 ) {
+        s.append( String.format( ", status 0x%02X", responseStatus ) );
+      }
+      if ( responseText != null ) {
+        s.append( " \"" ).append( responseText ).append( '"' );
+      }
+      if ( messageId != null ) {
+        s.append( ", Message-ID " ).append( messageId );
+      }
+      return s.append( ", " ).append( attempts ).append( attempts == 1 ? " attempt" : " attempts" ).toString();
+    }
+  }
+}
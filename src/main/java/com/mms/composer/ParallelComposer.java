@@ -0,0 +1,408 @@
+package com.mms.composer;
+
+/*
+ * @(#)ParallelComposer.java	1.1
+ *
+ * Summary
+ *
+ * Parallel batch pipeline for high volume runs. Composing and encoding a message is CPU bound and independent for each
+ * recipient, so the work is spread over a pool of worker threads :
+ *
+ * 1) The calling thread reads the manifest and puts its rows on a bounded work queue.
+ * 2) The workers take the rows, compose and encode the messages (exactly as "BatchComposer" does) and put the
+ *    encoded messages on a bounded output queue.
+ * 3) A single writer thread takes the encoded messages and writes each of them to its own file (see
+ *    "MmsFileWriter") or appends it to a segment file (see "SegmentWriter"), or submits them to an MMSC (see
+ *    "MmscSubmitter").
+ *
+ * Both queues are bounded, so a slow disk throttles the workers, which in turn throttle the manifest reader,
+ * instead of letting encoded messages pile up in memory. At most "2 x queue capacity + workers" messages are in
+ * flight at any time. The output files are the same as those of the sequential "BatchComposer", apart from the
+ * transaction IDs and dates of the messages.
+ *
+ * The workers are platform threads, or virtual threads on Java 21 and later.
+ *
+ * With a progress journal (see "ProgressJournal"), the calling thread skips the rows recorded as completed, and the
+ * writer records each message once written.
+ *
+ * While the pipeline runs, the depths of its queues are gauges of the "PipelineMetrics" of the composer
+ * ("work_queue_depth" and "output_queue_depth").
+ */
+
+// These imports are necessary for utilities.
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+public class ParallelComposer {
+  // Default capacity of the work and output queues.
+  public static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+  // Marks the end of the work queue.
+  private static final ManifestEntry END_OF_WORK = new ManifestEntry( -1, null, null, null, null );
+  // Marks the end of the output queue.
+  private static final EncodedMessage END_OF_OUTPUT = new EncodedMessage( null, null, (byte[]) null );
+
+  // The composer, shared by all the workers.
+  private final SampleMMSComposer composer;
+  // Folder where the output MMS files shall be stored.
+  private final File outputFolder;
+  // Number of worker threads.
+  private final int workers;
+  // Capacity of the work and output queues.
+  private final int queueCapacity;
+  // Factory of the worker threads.
+  private final ThreadFactory workerFactory;
+  // Pre-encoded template of the messages, or null to encode each message in full.
+  private volatile MessageTemplate template;
+  // Number of messages synced to the disk together, or 0 not to sync them at all.
+  private volatile int syncBatch;
+  // Maximum size of the segment files, or 0 to write a file per message.
+  private volatile long segmentSize;
+  // Submitter of the messages to an MMSC, or null to write them to files.
+  private volatile MmscSubmitter submitter;
+  // Journal of the progress of the run, or null.
+  private volatile ProgressJournal journal;
+  // True to check the checksums of the files of the journal.
+  private volatile boolean verify;
+
+  /**
+   * Create a parallel composer.
+   *
+   * @param outputFolder folder where the output MMS files shall be stored
+   * @param workers number of worker threads
+   * @param queueCapacity capacity of the work and output queues
+   * @param virtual true to run the workers on virtual threads
+   * @throws UnsupportedOperationException if virtual threads are asked for but not available
+   */
+  public ParallelComposer( File outputFolder, int workers, int queueCapacity, boolean virtual ) {
+    this( new SampleMMSComposer(), outputFolder, workers, queueCapacity, virtual );
+  }
+
+  /**
+   * Create a parallel composer.
+   *
+   * @param composer composer of the messages, shared by all the workers
+   * @param outputFolder folder where the output MMS files shall be stored
+   * @param workers number of worker threads
+   * @param queueCapacity capacity of the work and output queues
+   * @param virtual true to run the workers on virtual threads
+   * @throws UnsupportedOperationException if virtual threads are asked for but not available
+   */
+  public ParallelComposer( SampleMMSComposer composer, File outputFolder, int workers, int queueCapacity,
+                           boolean virtual ) {
+    if ( workers < 1 || queueCapacity < 1 ) {
+      throw new IllegalArgumentException( "At least one worker and a queue capacity of one are required" );
+    }
+    this.composer = composer;
+    this.outputFolder = outputFolder;
+    this.workers = workers;
+    this.queueCapacity = queueCapacity;
+    this.workerFactory = Threads.factory( "mms-composer", virtual );
+  }
+
+  /**
+   * Encode the messages from a pre-encoded template : only the header block of each message is encoded, the
+   * multipart body being shared.
+   *
+   * @param template template of the messages, or null to encode each message in full
+   */
+  public void setTemplate( MessageTemplate template ) {
+    this.template = template;
+  }
+
+  /**
+   * Sync the output files to the disk in batches (see "MmsFileWriter").
+   *
+   * @param syncBatch number of messages synced together, or 0 not to sync them at all
+   */
+  public void setSyncBatch( int syncBatch ) {
+    if ( syncBatch < 0 ) {
+      throw new IllegalArgumentException( "Negative sync batch : " + syncBatch );
+    }
+    this.syncBatch = syncBatch;
+  }
+
+  /**
+   * Pack the messages into segment files rather than writing a file each (see "SegmentWriter").
+   *
+   * @param segmentSize maximum size of a segment, in bytes, or 0 to write a file per message
+   */
+  public void setSegmentSize( long segmentSize ) {
+    if ( segmentSize < 0 ) {
+      throw new IllegalArgumentException( "Negative segment size : " + segmentSize );
+    }
+    this.segmentSize = segmentSize;
+  }
+
+  /**
+   * Submit the messages to an MMSC instead of writing them to files. The writer thread then blocks while the
+   * submitter has the maximum number of messages in flight.
+   *
+   * @param submitter submitter of the messages, or null to write them to files
+   */
+  public void setSubmitter( MmscSubmitter submitter ) {
+    this.submitter = submitter;
+  }
+
+  /**
+   * Record the messages in a progress journal, and skip those that it records as completed.
+   *
+   * @param journal the journal, or null
+   * @param verify true to also check the checksums of the files recorded, rather than only their sizes
+   */
+  public void setJournal( ProgressJournal journal, boolean verify ) {
+    this.journal = journal;
+    this.verify = verify;
+  }
+
+  /**
+   * Compose, encode and save one MMS per row of a manifest.
+   *
+   * @param manifest name of the manifest file
+   * @return report of the run
+   * @throws IOException if the manifest cannot be read or the output folder cannot be created
+   */
+  public BatchComposer.Report run( String manifest ) throws IOException {
+    MmscSubmitter submitter = this.submitter;
+    ProgressJournal journal = this.journal;
+    if ( submitter == null && !outputFolder.isDirectory() && !outputFolder.mkdirs() ) {
+      throw new IOException( "Cannot create output folder : \"" + outputFolder + "\"" );
+    }
+    PipelineMetrics metrics = composer.getMetrics();
+    BatchComposer.Report report = new BatchComposer.Report( metrics );
+    BlockingQueue<ManifestEntry> work = new ArrayBlockingQueue<>( queueCapacity );
+    BlockingQueue<EncodedMessage> output = new ArrayBlockingQueue<>( queueCapacity );
+    LongSupplier workDepth = work::size;
+    LongSupplier outputDepth = output::size;
+    LongSupplier inFlight = submitter != null ? submitter::getInFlight : null;
+    metrics.registerGauge( "work_queue_depth", workDepth );
+    metrics.registerGauge( "output_queue_depth", outputDepth );
+    if ( inFlight != null ) {
+      metrics.registerGauge( "mmsc_in_flight", inFlight );
+    }
+    if ( journal != null ) {
+      journal.begin( ProgressJournal.fingerprint( composer.getContents() ) );
+    }
+
+    // Start the writer (or submitter), then the workers. The last worker to finish closes the output queue.
+    Thread writer;
+    if ( submitter != null ) {
+      writer = Threads.factory( "mms-submitter", false ).newThread( () -> {
+        try {
+          submit( output, submitter, report, journal );
+        }
+        finally {
+          submitter.flush();
+          if ( journal != null ) {
+            BatchComposer.sync( journal, report );
+          }
+        }
+      } );
+    }
+    else {
+      MmsFileWriter fileWriter = BatchComposer.newWriter( outputFolder, segmentSize, syncBatch );
+      writer = Threads.factory( "mms-writer", false ).newThread( () -> {
+        try {
+          write( output, fileWriter, report, journal );
+        }
+        finally {
+          BatchComposer.close( fileWriter, report, journal );
+          if ( journal != null ) {
+            BatchComposer.sync( journal, report );
+          }
+        }
+      } );
+    }
+    writer.start();
+    AtomicInteger running = new AtomicInteger( workers );
+    int messageType = BatchComposer.messageType( submitter );
+    Thread[] pool = new Thread[ workers ];
+    for ( int i = 0; i < workers; i++ ) {
+      pool[ i ] = workerFactory.newThread( () -> {
+        try {
+          work( work, output, messageType, report, journal );
+        }
+        finally {
+          if ( running.decrementAndGet() == 0 ) {
+            putUninterruptibly( output, END_OF_OUTPUT );
+          }
+        }
+      } );
+      pool[ i ].start();
+    }
+
+    // Feed the workers from the calling thread ; "put()" blocks while the work queue is full.
+    try ( ManifestReader reader = new ManifestReader( manifest ) ) {
+      while ( true ) {
+        ManifestEntry entry;
+        try {
+          entry = reader.next();
+        }
+        catch ( ManifestReader.MalformedRowException e ) {
+          // A malformed row : report it and carry on with the next one. Any other error ends the run.
+          System.err.println( e.getMessage() );
+          report.failed();
+          continue;
+        }
+        if ( entry == null ) {
+          break;
+        }
+        if ( journal != null && BatchComposer.isDone( journal, entry, journal.input( entry ),
+                submitter == null ? outputFolder : null, segmentSize > 0, verify ) ) {
+          report.skipped();
+          continue;
+        }
+        putUninterruptibly( work, entry );
+      }
+    }
+    finally {
+      // One end marker per worker, then wait for the pipeline to drain.
+      for ( int i = 0; i < workers; i++ ) {
+        putUninterruptibly( work, END_OF_WORK );
+      }
+      joinUninterruptibly( writer );
+      metrics.unregisterGauge( "work_queue_depth", workDepth );
+      metrics.unregisterGauge( "output_queue_depth", outputDepth );
+      if ( inFlight != null ) {
+        metrics.unregisterGauge( "mmsc_in_flight", inFlight );
+      }
+    }
+    report.finish();
+    return report;
+  }
+
+  /**
+   * Worker : compose and encode the messages of the work queue, until its end marker, as messages of the given type
+   * (see "BatchComposer.messageType()").
+   */
+  private void work( BlockingQueue<ManifestEntry> work, BlockingQueue<EncodedMessage> output, int messageType,
+                     BatchComposer.Report report, ProgressJournal journal ) {
+    while ( true ) {
+      ManifestEntry entry = takeUninterruptibly( work );
+      if ( entry == END_OF_WORK ) {
+        return;
+      }
+      try {
+        // Set headers, add various content parts and encode the message (or only its headers, from the template),
+        // then hand it over to the writer ; "put()" blocks while the writer is behind.
+        EncodedMessage encoded = EncodedMessage.encode( composer, template, entry, messageType );
+        if ( journal != null ) {
+          encoded.setInput( journal.input( entry ) );
+        }
+        putUninterruptibly( output, encoded );
+      }
+      catch ( Exception e ) {
+        System.err.println( "An error occurred composing the Multimedia Message " + entry + " : " + e.getMessage() );
+        report.failed();
+      }
+    }
+  }
+
+  /**
+   * Writer : write the encoded messages of the output queue to their files or segments, until its end marker.
+   */
+  private void write( BlockingQueue<EncodedMessage> output, MmsFileWriter writer, BatchComposer.Report report,
+                      ProgressJournal journal ) {
+    PipelineMetrics metrics = composer.getMetrics();
+    while ( true ) {
+      EncodedMessage encoded = takeUninterruptibly( output );
+      if ( encoded == END_OF_OUTPUT ) {
+        return;
+      }
+      try {
+        // The message is counted once saved, i.e. once its batch is synced.
+        long start = metrics.start();
+        List<MmsFileWriter.Outcome> outcomes = writer.write( encoded.getKey() + ".mms", encoded.getHeader(),
+                encoded.getHeader().length, encoded.getBody(), BatchComposer.written( encoded, journal ) );
+        metrics.stop( PipelineMetrics.Stage.WRITE, start, encoded.getLength() );
+        BatchComposer.saved( outcomes, report, journal );
+      }
+      catch ( Exception e ) {
+        System.err.println( "An error occurred saving the Multimedia Message " + encoded.getKey() + " : " + e.getMessage() );
+        report.failed();
+      }
+    }
+  }
+
+  /**
+   * Submitter : submit the encoded messages of the output queue to the MMSC, until its end marker.
+   */
+  private void submit( BlockingQueue<EncodedMessage> output, MmscSubmitter submitter, BatchComposer.Report report,
+                       ProgressJournal journal ) {
+    while ( true ) {
+      EncodedMessage encoded = takeUninterruptibly( output );
+      if ( encoded == END_OF_OUTPUT ) {
+        return;
+      }
+      try {
+        BatchComposer.submit( submitter, encoded.getKey(), encoded.getHeader(), encoded.getHeader().length,
+                encoded.getBody(), report, journal, encoded.getInput() );
+      }
+      catch ( Exception e ) {
+        System.err.println( "An error occurred submitting the Multimedia Message " + encoded.getKey() + " : "
+                + e.getMessage() );
+        report.failed();
+      }
+    }
+  }
+
+  // The pipeline always drains to its end markers, so that no stage is left blocked forever. An interruption
+  // is therefore remembered and re-asserted, rather than abandoning the queue.
+
+  private static <T> void putUninterruptibly( BlockingQueue<T> queue, T item ) {
+    boolean interrupted = false;
+    while ( true ) {
+      try {
+        queue.put( item );
+        break;
+      }
+      catch ( InterruptedException e ) {
+        interrupted = true;
+      }
+    }
+    if ( interrupted ) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static <T> T takeUninterruptibly( BlockingQueue<T> queue ) {
+    boolean interrupted = false;
+    try {
+      while ( true ) {
+        try {
+          return queue.take();
+        }
+        catch ( InterruptedException e ) {
+          interrupted = true;
+        }
+      }
+    }
+    finally {
+      if ( interrupted ) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private static void joinUninterruptibly( Thread thread ) {
+    boolean interrupted = false;
+    while ( true ) {
+      try {
+        thread.join();
+        break;
+      }
+      catch ( InterruptedException e ) {
+        interrupted = true;
+      }
+    }
+    if ( interrupted ) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
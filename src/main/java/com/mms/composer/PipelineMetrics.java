@@ -0,0 +1,448 @@
+package com.mms.composer;
+
+/*
+ * @(#)PipelineMetrics.java	1.1
+ *
+ * Summary
+ *
+ * Metrics of the compose pipeline, for finding regressions in production without attaching a profiler :
+ *
+ * - the latency of each stage ("Stage" : reading a "multimedia" file, setting the headers, adding the content parts,
+ *   encoding, writing a file, submitting to an MMSC and serving a retrieval), in a "LatencyHistogram", and the
+ *   bytes it processed ;
+ * - the number of messages by outcome ("Outcome" : composed, failed, rejected by the MMSC, or skipped as completed
+ *   by a previous run) ;
+ * - gauges, such as the depths of the queues of the "ParallelComposer" or the messages in flight to the MMSC,
+ *   registered by the components while they run.
+ *
+ * A stage is timed with "start()" and "stop()", i.e. two "System.nanoTime()" calls and a few uncontended
+ * increments, without locks nor allocation. The metrics are safe for use by multiple threads ; the components use
+ * the process wide instance of "getDefault()", unless given another one.
+ *
+ * The metrics are exported :
+ *
+ * 1) as a log line, every interval, with the percentiles of the interval (see "Reporter") ;
+ * 2) in the Prometheus text exposition format ("writePrometheus()"), to a file for the textfile collector of the
+ *    node exporter (see "Reporter") or on the "/metrics" path of an "MmsServer" ;
+ * 3) optionally, as Java Flight Recorder events, one "com.mms.composer.Stage" event per stage timed (see
+ *    "setJfrEvents()"), for a recording to tell where the time of a given message went.
+ */
+
+// These imports are necessary for utilities.
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+public class PipelineMetrics {
+  // Content type of the Prometheus text exposition format.
+  public static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+  // Quantiles of the Prometheus summaries.
+  private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+  private static final PipelineMetrics DEFAULT = new PipelineMetrics();
+
+  /**
+   * A stage of the compose pipeline.
+   */
+  public enum Stage {
+    READ_FILE, SET_HEADERS, ADD_CONTENTS, ENCODE, WRITE, SUBMIT, SERVE;
+
+    // Name of the stage in the exports.
+    final String label = name().toLowerCase( Locale.ROOT );
+  }
+
+  /**
+   * The outcome of a message.
+   */
+  public enum Outcome {
+    COMPOSED, FAILED, REJECTED, SKIPPED;
+
+    final String label = name().toLowerCase( Locale.ROOT );
+  }
+
+  /**
+   * Receives the stages timed, e.g. to emit them as Java Flight Recorder events.
+   */
+  interface EventSink {
+    void stage( Stage stage, long elapsedNanos, long bytes );
+  }
+
+  private final long createdNanos = System.nanoTime();
+  private final LatencyHistogram[] latencies = new LatencyHistogram[ Stage.values().length ];
+  private final LongAdder[] bytes = new LongAdder[ Stage.values().length ];
+  private final LongAdder[] outcomes = new LongAdder[ Outcome.values().length ];
+  // Gauges, by name.
+  private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+  // Sink of the stages timed, or null.
+  private volatile EventSink events;
+
+  /**
+   * Create metrics, e.g. for a benchmark ; the components use those of "getDefault()" unless told otherwise.
+   */
+  public PipelineMetrics() {
+    for ( int i = 0; i < latencies.length; i++ ) {
+      latencies[ i ] = new LatencyHistogram();
+      bytes[ i ] = new LongAdder();
+    }
+    for ( int i = 0; i < outcomes.length; i++ ) {
+      outcomes[ i ] = new LongAdder();
+    }
+  }
+
+  /**
+   * Return the process wide metrics.
+   *
+   * @return the metrics shared by the components
+   */
+  public static PipelineMetrics getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Start timing a stage.
+   *
+   * @return the start time, to be passed to "stop()"
+   */
+  public long start() {
+    return System.nanoTime();
+  }
+
+  /**
+   * Stop timing a stage, and count the bytes it processed.
+   *
+   * @param stage the stage
+   * @param start the start time returned by "start()"
+   * @param processed number of bytes read, encoded, written or submitted by the stage, if any
+   */
+  public void stop( Stage stage, long start, long processed ) {
+    long elapsed = System.nanoTime() - start;
+    latencies[ stage.ordinal() ].record( elapsed );
+    if ( processed > 0 ) {
+      bytes[ stage.ordinal() ].add( processed );
+    }
+    EventSink sink = events;
+    if ( sink != null ) {
+      sink.stage( stage, elapsed, processed );
+    }
+  }
+
+  /**
+   * Count a message by its outcome.
+   *
+   * @param outcome the outcome
+   */
+  public void count( Outcome outcome ) {
+    outcomes[ outcome.ordinal() ].increment();
+  }
+
+  /**
+   * Register a gauge, replacing the one of the same name, if any.
+   *
+   * @param name name of the gauge, e.g. "work_queue_depth" ; lower case letters, digits and underscores
+   * @param gauge reads the current value of the gauge
+   */
+  public void registerGauge( String name, LongSupplier gauge ) {
+    if ( !name.matches( "[a-z_][a-z0-9_]*" ) ) {
+      throw new IllegalArgumentException( "Invalid gauge name : " + name );
+    }
+    gauges.put( name, gauge );
+  }
+
+  /**
+   * Unregister a gauge, unless it was replaced by another one meanwhile.
+   *
+   * @param name name of the gauge
+   * @param gauge the gauge registered
+   */
+  public void unregisterGauge( String name, LongSupplier gauge ) {
+    gauges.remove( name, gauge );
+  }
+
+  /**
+   * Emit a Java Flight Recorder event, "com.mms.composer.Stage", for every stage timed. The events are only
+   * recorded while a recording enables them, e.g. with "-XX:StartFlightRecording".
+   *
+   * @param enabled true to emit the events
+   * @throws UnsupportedOperationException if Java Flight Recorder is not available
+   */
+  public void setJfrEvents( boolean enabled ) {
+    if ( !enabled ) {
+      events = null;
+      return;
+    }
+    try {
+      // The event classes are only loaded when asked for, so that the metrics still work without "jdk.jfr".
+      Class.forName( "jdk.jfr.Event" );
+      events = (EventSink) Class.forName( "com.mms.composer.StageEvent$Sink" ).getDeclaredConstructor()
+              .newInstance();
+    }
+    catch ( ClassNotFoundException | LinkageError e ) {
+      throw new UnsupportedOperationException( "Java Flight Recorder events require Java 11, or 8u272, or later" );
+    }
+    catch ( ReflectiveOperationException e ) {
+      throw new UnsupportedOperationException( "Java Flight Recorder events are not available : " + e );
+    }
+  }
+
+  public LatencyHistogram.Snapshot getLatencies( Stage stage ) {
+    return latencies[ stage.ordinal() ].snapshot();
+  }
+
+  public long getBytes( Stage stage ) {
+    return bytes[ stage.ordinal() ].sum();
+  }
+
+  public long getCount( Outcome outcome ) {
+    return outcomes[ outcome.ordinal() ].sum();
+  }
+
+  /**
+   * Return a copy of the metrics, from which the log lines are formatted.
+   *
+   * @return the snapshot
+   */
+  Snapshot snapshot() {
+    LatencyHistogram.Snapshot[] l = new LatencyHistogram.Snapshot[ latencies.length ];
+    long[] b = new long[ bytes.length ];
+    for ( int i = 0; i < l.length; i++ ) {
+      l[ i ] = latencies[ i ].snapshot();
+      b[ i ] = bytes[ i ].sum();
+    }
+    long[] o = new long[ outcomes.length ];
+    for ( int i = 0; i < o.length; i++ ) {
+      o[ i ] = outcomes[ i ].sum();
+    }
+    return new Snapshot( System.nanoTime(), l, b, o );
+  }
+
+  /**
+   * Write the metrics in the Prometheus text exposition format (version 0.0.4) : the latencies as summaries, in
+   * seconds, the bytes and outcomes as counters, and the gauges.
+   *
+   * @param out the output
+   * @throws IOException if the output cannot be written
+   */
+  public void writePrometheus( Appendable out ) throws IOException {
+    Snapshot s = snapshot();
+    out.append( "# HELP mms_stage_seconds Latency of the stages of the compose pipeline.\n" )
+       .append( "# TYPE mms_stage_seconds summary\n" );
+    for ( Stage stage : Stage.values() ) {
+      LatencyHistogram.Snapshot latency = s.latencies[ stage.ordinal() ];
+      for ( double quantile : QUANTILES ) {
+        out.append( "mms_stage_seconds{stage=\"" ).append( stage.label ).append( "\",quantile=\"" )
+           .append( Double.toString( quantile ) ).append( "\"} " )
+           .append( seconds( latency.getValueAtPercentile( quantile * 100 ) ) ).append( '\n' );
+      }
+      out.append( "mms_stage_seconds_sum{stage=\"" ).append( stage.label ).append( "\"} " )
+         .append( seconds( latency.getSum() ) ).append( '\n' )
+         .append( "mms_stage_seconds_count{stage=\"" ).append( stage.label ).append( "\"} " )
+         .append( Long.toString( latency.getCount() ) ).append( '\n' );
+    }
+    out.append( "# HELP mms_stage_bytes_total Bytes processed by the stages of the compose pipeline.\n" )
+       .append( "# TYPE mms_stage_bytes_total counter\n" );
+    for ( Stage stage : Stage.values() ) {
+      out.append( "mms_stage_bytes_total{stage=\"" ).append( stage.label ).append( "\"} " )
+         .append( Long.toString( s.bytes[ stage.ordinal() ] ) ).append( '\n' );
+    }
+    out.append( "# HELP mms_messages_total Multimedia Messages by outcome.\n" )
+       .append( "# TYPE mms_messages_total counter\n" );
+    for ( Outcome outcome : Outcome.values() ) {
+      out.append( "mms_messages_total{outcome=\"" ).append( outcome.label ).append( "\"} " )
+         .append( Long.toString( s.outcomes[ outcome.ordinal() ] ) ).append( '\n' );
+    }
+    for ( Map.Entry<String, LongSupplier> gauge : gauges.entrySet() ) {
+      out.append( "# TYPE mms_" ).append( gauge.getKey() ).append( " gauge\n" )
+         .append( "mms_" ).append( gauge.getKey() ).append( ' ' )
+         .append( Long.toString( gauge.getValue().getAsLong() ) ).append( '\n' );
+    }
+  }
+
+  /**
+   * Write the metrics to a file in the Prometheus text exposition format : to a temporary file first, then moved in
+   * place, so that a collector never reads a partial file.
+   *
+   * @param file the file, e.g. "mms.prom" in the folder of the textfile collector
+   * @throws IOException if the file cannot be written
+   */
+  public void writePrometheus( Path file ) throws IOException {
+    Path folder = file.toAbsolutePath().getParent();
+    Path temporary = Files.createTempFile( folder, file.getFileName().toString(), ".tmp" );
+    try {
+      try ( Writer out = Files.newBufferedWriter( temporary, StandardCharsets.UTF_8 ) ) {
+        writePrometheus( out );
+      }
+      Files.move( temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+    }
+    finally {
+      Files.deleteIfExists( temporary );
+    }
+  }
+
+  /**
+   * Format the metrics between two snapshots as a log line.
+   */
+  String format( Snapshot previous, Snapshot current ) {
+    double elapsed = ( current.nanos - previous.nanos ) / 1e9;
+    long composed = current.outcomes[ Outcome.COMPOSED.ordinal() ] - previous.outcomes[ Outcome.COMPOSED.ordinal() ];
+    StringBuilder line = new StringBuilder( 256 );
+    line.append( String.format( "Pipeline metrics : %d composed, %d failed, %d rejected, %d skipped in %.1f s "
+            + "(%.1f messages/s)", composed,
+            current.outcomes[ Outcome.FAILED.ordinal() ] - previous.outcomes[ Outcome.FAILED.ordinal() ],
+            current.outcomes[ Outcome.REJECTED.ordinal() ] - previous.outcomes[ Outcome.REJECTED.ordinal() ],
+            current.outcomes[ Outcome.SKIPPED.ordinal() ] - previous.outcomes[ Outcome.SKIPPED.ordinal() ],
+            elapsed, elapsed > 0 ? composed / elapsed : 0 ) );
+    for ( Stage stage : Stage.values() ) {
+      LatencyHistogram.Snapshot latency = current.latencies[ stage.ordinal() ]
+              .minus( previous.latencies[ stage.ordinal() ] );
+      if ( latency.getCount() == 0 ) {
+        continue;
+      }
+      line.append( " ; " ).append( stage.label ).append( ' ' ).append( latency.getCount() )
+          .append( " x p50 " ).append( duration( latency.getValueAtPercentile( 50 ) ) )
+          .append( " p99 " ).append( duration( latency.getValueAtPercentile( 99 ) ) )
+          .append( " max " ).append( duration( latency.getMax() ) );
+      long processed = current.bytes[ stage.ordinal() ] - previous.bytes[ stage.ordinal() ];
+      if ( processed > 0 ) {
+        line.append( ' ' ).append( processed ).append( " bytes" );
+      }
+    }
+    for ( Map.Entry<String, LongSupplier> gauge : gauges.entrySet() ) {
+      line.append( " ; " ).append( gauge.getKey() ).append( ' ' ).append( gauge.getValue().getAsLong() );
+    }
+    return line.toString();
+  }
+
+  private static String seconds( long nanos ) {
+    return Double.toString( nanos / 1e9 );
+  }
+
+  private static String duration( long nanos ) {
+    if ( nanos < 1000 ) {
+      return nanos + " ns";
+    }
+    if ( nanos < 1000000 ) {
+      return String.format( "%.1f us", nanos / 1e3 );
+    }
+    if ( nanos < 1000000000 ) {
+      return String.format( "%.1f ms", nanos / 1e6 );
+    }
+    return String.format( "%.2f s", nanos / 1e9 );
+  }
+
+  /**
+   * Return the metrics since their creation, as a log line.
+   */
+  @Override
+  public String toString() {
+    return format( new Snapshot( createdNanos ), snapshot() );
+  }
+
+  /**
+   * A copy of the metrics.
+   */
+  static final class Snapshot {
+    final long nanos;
+    final LatencyHistogram.Snapshot[] latencies;
+    final long[] bytes;
+    final long[] outcomes;
+
+    Snapshot( long nanos, LatencyHistogram.Snapshot[] latencies, long[] bytes, long[] outcomes ) {
+      this.nanos = nanos;
+      this.latencies = latencies;
+      this.bytes = bytes;
+      this.outcomes = outcomes;
+    }
+
+    /**
+     * Create an empty snapshot, i.e. the metrics when created.
+     */
+    Snapshot( long nanos ) {
+      this( nanos, new LatencyHistogram.Snapshot[ Stage.values().length ], new long[ Stage.values().length ],
+              new long[ Outcome.values().length ] );
+      Arrays.fill( latencies, LatencyHistogram.Snapshot.empty() );
+    }
+  }
+
+  /**
+   * Reports the metrics every interval, on a daemon thread : as a log line, with the percentiles of the interval,
+   * and to a Prometheus text file, with the cumulated metrics. Closing the reporter makes a last report.
+   */
+  public static class Reporter implements Closeable {
+    private final PipelineMetrics metrics;
+    private final PrintStream log;
+    private final Path file;
+    private final ScheduledExecutorService timer;
+    // The previous snapshot. Only used by the reports, one after the other.
+    private Snapshot previous;
+    private boolean closed = false;
+
+    /**
+     * Start reporting the metrics.
+     *
+     * @param metrics the metrics
+     * @param interval time, in milliseconds, between two reports
+     * @param log stream of the log lines, or null for none
+     * @param file Prometheus text file, or null for none
+     */
+    public Reporter( PipelineMetrics metrics, long interval, PrintStream log, Path file ) {
+      if ( interval < 1 ) {
+        throw new IllegalArgumentException( "Invalid metrics interval : " + interval );
+      }
+      this.metrics = metrics;
+      this.log = log;
+      this.file = file;
+      this.previous = metrics.snapshot();
+      this.timer = Executors.newSingleThreadScheduledExecutor( Threads.factory( "mms-metrics", false ) );
+      timer.scheduleAtFixedRate( this::tick, interval, interval, TimeUnit.MILLISECONDS );
+    }
+
+    private synchronized void tick() {
+      if ( !closed ) {
+        report();
+      }
+    }
+
+    private void report() {
+      Snapshot current = metrics.snapshot();
+      if ( log != null ) {
+        log.println( metrics.format( previous, current ) );
+      }
+      previous = current;
+      if ( file != null ) {
+        try {
+          metrics.writePrometheus( file );
+        }
+        catch ( IOException e ) {
+          System.err.println( "Cannot write the metrics to \"" + file + "\" : " + e );
+        }
+      }
+    }
+
+    /**
+     * Stop reporting, after a last report.
+     */
+    @Override
+    public synchronized void close() {
+      if ( closed ) {
+        return;
+      }
+      closed = true;
+      timer.shutdownNow();
+      report();
+    }
+  }
+}
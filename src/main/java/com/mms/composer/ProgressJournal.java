@@ -0,0 +1,529 @@
+package com.mms.composer;
+
+/*
+ * @(#)ProgressJournal.java	1.1
+ *
+ * Summary
+ *
+ * Append-only journal of the progress of a batch run, so that an interrupted run can be resumed rather than redone.
+ * Every message written to its file or segment (or accepted by the MMSC) is recorded as a line of text :
+ *
+ * 	 	<key> <input digest> <checksum> <length> [<segment> <offset>]
+ *
+ * - the key of the manifest row, i.e. the name of its output file ;
+ * - a digest of the inputs of the message : the content parts (i.e. the template and its assets, as fitted) and the
+ *   originator, recipient and subject of the row (see "input()") ;
+ * - the CRC-32 of the encoded message, as written to its file or submitted, and its size ;
+ * - for a message appended to a segment (see "SegmentWriter"), the name of the segment and the offset of its record.
+ *
+ * When a run starts, the journal of the previous runs is read back : a row whose key is recorded with the same input
+ * digest, and whose output file is still there with the recorded size, is skipped ; any other row (a new one, one
+ * whose inputs changed, or whose file went missing) is composed again. A message appended to a segment is only
+ * skipped if its segment still holds its record, with the recorded name, size and checksum, at the recorded offset.
+ * With "verify", the checksum of each output file (or record) is checked too, at the cost of reading it.
+ *
+ * The records are appended in batches, each forced to the disk ("fsync") before the next one is started ; a crash
+ * loses at most the records of the current batch, i.e. those messages are composed again. A line torn by a crash is
+ * ignored. A journal that holds many records superseded by later ones is compacted when opened.
+ *
+ * The journal is safe for use by multiple threads.
+ */
+
+// These imports are necessary for utilities.
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+// Nokia MMS Java Library version 1.1
+import com.nokia.mms.*;
+
+public class ProgressJournal implements Closeable {
+  // Default number of records forced to the disk together.
+  public static final int DEFAULT_SYNC_BATCH = 1000;
+  // First line of a journal.
+  private static final String HEADER = "# MMS progress journal 1";
+
+  private final Path file;
+  private final int syncBatch;
+  // Latest record of each key. Guarded by "this".
+  private final Map<String, Record> records = new HashMap<>();
+  // Records not written yet. Guarded by "this".
+  private final StringBuilder batch = new StringBuilder( 8192 );
+  private int batched = 0;
+  private final FileChannel channel;
+  // Segments read to check the records of the previous runs, by name ; null for a missing one. Guarded by itself.
+  private final Map<String, FileChannel> segments = new HashMap<>();
+  // Digest of the content parts of the run, see "begin()".
+  private volatile String fingerprint = "";
+  private boolean closed = false;
+
+  private final int loaded;
+  private final LongAdder skipped = new LongAdder();
+  private final LongAdder changed = new LongAdder();
+  private final LongAdder missing = new LongAdder();
+  private final LongAdder recorded = new LongAdder();
+
+  /**
+   * Open a journal, reading back the records of the previous runs, if any.
+   *
+   * @param file the journal file, created if need be
+   * @param syncBatch number of records forced to the disk together (at least 1)
+   * @throws IOException if the journal cannot be read or opened
+   */
+  public ProgressJournal( Path file, int syncBatch ) throws IOException {
+    if ( syncBatch < 1 ) {
+      throw new IllegalArgumentException( "Invalid journal sync batch : " + syncBatch );
+    }
+    this.file = file;
+    this.syncBatch = syncBatch;
+    int lines = load();
+    this.loaded = records.size();
+    // Compact a journal mostly made of superseded records, then append to it.
+    if ( lines > 2 * records.size() + DEFAULT_SYNC_BATCH ) {
+      compact();
+    }
+    String start = tail();
+    this.channel = FileChannel.open( file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.APPEND );
+    if ( !start.isEmpty() ) {
+      channel.write( ByteBuffer.wrap( start.getBytes( StandardCharsets.US_ASCII ) ) );
+      channel.force( true );
+    }
+  }
+
+  /**
+   * Read back the records of the journal.
+   *
+   * @return number of records read, superseded ones included
+   */
+  private int load() throws IOException {
+    int lines = 0;
+    try ( BufferedReader in = Files.newBufferedReader( file, StandardCharsets.UTF_8 ) ) {
+      for ( String line = in.readLine(); line != null; line = in.readLine() ) {
+        if ( line.startsWith( "#" ) ) {
+          continue;
+        }
+        String[] fields = line.split( " " );
+        if ( fields.length != 4 && fields.length != 6 ) {
+          // A line torn by a crash.
+          continue;
+        }
+        try {
+          records.put( fields[ 0 ], new Record( Long.parseUnsignedLong( fields[ 1 ], 16 ),
+                  (int) Long.parseLong( fields[ 2 ], 16 ), Long.parseLong( fields[ 3 ] ),
+                  fields.length == 6 ? fields[ 4 ] : null, fields.length == 6 ? Long.parseLong( fields[ 5 ] ) : -1 ) );
+          lines++;
+        }
+        catch ( NumberFormatException e ) {
+          // A line torn by a crash.
+        }
+      }
+    }
+    catch ( NoSuchFileException e ) {
+      // A first run.
+    }
+    return lines;
+  }
+
+  /**
+   * Return what to write before the first record : the header of a new journal, or the end of a line torn by a
+   * crash, so that the first record does not extend it.
+   */
+  private String tail() throws IOException {
+    try ( FileChannel in = FileChannel.open( file, StandardOpenOption.READ ) ) {
+      if ( in.size() == 0 ) {
+        return HEADER + "\n";
+      }
+      ByteBuffer last = ByteBuffer.allocate( 1 );
+      in.read( last, in.size() - 1 );
+      return last.get( 0 ) == '\n' ? "" : "\n";
+    }
+    catch ( NoSuchFileException e ) {
+      return HEADER + "\n";
+    }
+  }
+
+  /**
+   * Rewrite the journal with the latest record of each key : to a temporary file first, then moved in place.
+   */
+  private void compact() throws IOException {
+    Path temporary = Files.createTempFile( file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp" );
+    try {
+      try ( FileChannel out = FileChannel.open( temporary, StandardOpenOption.WRITE ) ) {
+        StringBuilder lines = new StringBuilder( 1 << 16 ).append( HEADER ).append( '\n' );
+        for ( Map.Entry<String, Record> record : records.entrySet() ) {
+          append( lines, record.getKey(), record.getValue() );
+          if ( lines.length() >= 1 << 16 ) {
+            writeFully( out, lines );
+          }
+        }
+        writeFully( out, lines );
+        out.force( true );
+      }
+      Files.move( temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+    }
+    finally {
+      Files.deleteIfExists( temporary );
+    }
+  }
+
+  /**
+   * Begin a run : set the digest of its content parts, which is part of the input digest of every message.
+   *
+   * @param fingerprint digest of the content parts of the messages (see "fingerprint()")
+   */
+  public void begin( String fingerprint ) {
+    this.fingerprint = fingerprint;
+  }
+
+  /**
+   * Return the digest of the content parts of the messages : their types, IDs and bytes. Whatever changes them,
+   * e.g. a template, an asset or the maximum size of the messages, changes the digest.
+   *
+   * @param parts the content parts
+   * @return the SHA-256 digest of the parts, in hexadecimal
+   */
+  public static String fingerprint( List<MMContent> parts ) {
+    MessageDigest digest = sha256();
+    for ( MMContent part : parts ) {
+      digest.update( ( part.getType() + "\0" + part.getContentId() + "\0" + part.getLength() + "\0" )
+              .getBytes( StandardCharsets.UTF_8 ) );
+      digest.update( part.getContent(), 0, part.getLength() );
+    }
+    return TranscodeCache.hex( digest.digest() );
+  }
+
+  /**
+   * Return the digest of the inputs of the message of a manifest row, i.e. the content parts of the run and the
+   * headers of the row.
+   *
+   * @param entry the manifest row
+   * @return the first 64 bits of the SHA-256 digest of the inputs
+   */
+  public long input( ManifestEntry entry ) {
+    byte[] digest = sha256().digest( ( fingerprint + "\0" + entry.getOriginator() + "\0" + entry.getRecipient()
+            + "\0" + entry.getSubject() ).getBytes( StandardCharsets.UTF_8 ) );
+    return ByteBuffer.wrap( digest ).getLong();
+  }
+
+  /**
+   * Tell whether the message of a row was completed by a previous run, with the same inputs ; the row is then to
+   * be skipped.
+   *
+   * @param key key of the row
+   * @param input digest of the inputs of the message (see "input()")
+   * @param output output file of the message, or null for a message submitted to an MMSC
+   * @param verify true to also check the checksum of the output file
+   * @return true if the message is complete
+   */
+  public boolean isDone( String key, long input, Path output, boolean verify ) {
+    Record record = lookup( key, input );
+    if ( record == null ) {
+      return false;
+    }
+    if ( output != null ) {
+      try {
+        if ( Files.size( output ) != record.length || ( verify && checksum( output ) != record.checksum ) ) {
+          missing.increment();
+          return false;
+        }
+      }
+      catch ( IOException e ) {
+        missing.increment();
+        return false;
+      }
+    }
+    skipped.increment();
+    return true;
+  }
+
+  /**
+   * Tell whether the message of a row was appended to a segment by a previous run, with the same inputs, and is
+   * still there ; the row is then to be skipped. The segment is read, rather than mapped, as a writer may append
+   * to it or truncate it meanwhile.
+   *
+   * @param key key of the row
+   * @param input digest of the inputs of the message (see "input()")
+   * @param folder folder of the segments
+   * @param verify true to also check the checksum of the message in its segment
+   * @return true if the message is complete
+   */
+  public boolean isDoneInSegment( String key, long input, Path folder, boolean verify ) {
+    Record record = lookup( key, input );
+    if ( record == null ) {
+      return false;
+    }
+    try {
+      FileChannel segment = record.segment == null ? null : segment( folder, record.segment );
+      if ( segment == null || !MmsSegment.holds( segment, record.offset, key + ".mms", record.checksum,
+              record.length, verify ) ) {
+        missing.increment();
+        return false;
+      }
+    }
+    catch ( IOException e ) {
+      missing.increment();
+      return false;
+    }
+    skipped.increment();
+    return true;
+  }
+
+  /**
+   * Return the record of a key, if its inputs are the same.
+   */
+  private Record lookup( String key, long input ) {
+    Record record;
+    synchronized ( this ) {
+      record = records.get( key );
+    }
+    if ( record == null ) {
+      return null;
+    }
+    if ( record.input != input ) {
+      changed.increment();
+      return null;
+    }
+    return record;
+  }
+
+  /**
+   * Return a segment of the folder, opened for reading the first time it is needed.
+   *
+   * @return the segment, or null if it is missing
+   */
+  private FileChannel segment( Path folder, String name ) throws IOException {
+    synchronized ( segments ) {
+      if ( segments.containsKey( name ) ) {
+        return segments.get( name );
+      }
+      FileChannel segment;
+      try {
+        segment = FileChannel.open( folder.resolve( name ), StandardOpenOption.READ );
+      }
+      catch ( NoSuchFileException e ) {
+        segment = null;
+      }
+      segments.put( name, segment );
+      return segment;
+    }
+  }
+
+  /**
+   * Record a completed message. The record is forced to the disk with the rest of its batch.
+   *
+   * @param key key of the row
+   * @param input digest of the inputs of the message (see "input()")
+   * @param checksum CRC-32 of the encoded message, as written or submitted
+   * @param length size of the encoded message
+   * @throws IOException if the batch it completes cannot be written
+   */
+  public void completed( String key, long input, int checksum, long length ) throws IOException {
+    completed( key, input, checksum, length, null, -1 );
+  }
+
+  /**
+   * Record a completed message, appended to a segment. The record is forced to the disk with the rest of its batch.
+   *
+   * @param key key of the row
+   * @param input digest of the inputs of the message (see "input()")
+   * @param checksum CRC-32 of the encoded message, as written or submitted
+   * @param length size of the encoded message
+   * @param segment name of the segment the message was appended to, or null for a message of its own file, or
+   *        submitted
+   * @param offset offset of the record of the message within its segment
+   * @throws IOException if the batch it completes cannot be written
+   */
+  public synchronized void completed( String key, long input, int checksum, long length, String segment,
+                                      long offset ) throws IOException {
+    if ( closed ) {
+      throw new IOException( "The progress journal is closed" );
+    }
+    Record record = new Record( input, checksum, length, segment, offset );
+    records.put( key, record );
+    append( batch, key, record );
+    recorded.increment();
+    if ( ++batched >= syncBatch ) {
+      sync();
+    }
+  }
+
+  /**
+   * Write the records of the current batch, and force them to the disk.
+   *
+   * @throws IOException if the records cannot be written
+   */
+  public synchronized void sync() throws IOException {
+    if ( batched == 0 ) {
+      return;
+    }
+    writeFully( channel, batch );
+    channel.force( false );
+    batched = 0;
+  }
+
+  /**
+   * Write the last batch of records, and close the journal.
+   *
+   * @throws IOException if the records cannot be written
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if ( closed ) {
+      return;
+    }
+    try {
+      sync();
+    }
+    finally {
+      closed = true;
+      channel.close();
+      synchronized ( segments ) {
+        for ( FileChannel segment : segments.values() ) {
+          if ( segment != null ) {
+            segment.close();
+          }
+        }
+        segments.clear();
+      }
+    }
+  }
+
+  /**
+   * Return the CRC-32 of an encoded message, as it is submitted or written by the "MmsFileWriter".
+   *
+   * @param header array holding the header block of the message, or the whole message
+   * @param headerLength size of the header block
+   * @param body body of the message, from its position to its limit
+   * @return the checksum
+   */
+  public static int checksum( byte[] header, int headerLength, ByteBuffer body ) {
+    CRC32 crc = new CRC32();
+    crc.update( header, 0, headerLength );
+    crc.update( body.duplicate() );
+    return (int) crc.getValue();
+  }
+
+  /**
+   * Return the CRC-32 of a file.
+   */
+  private static int checksum( Path output ) throws IOException {
+    CRC32 crc = new CRC32();
+    try ( FileChannel in = FileChannel.open( output, StandardOpenOption.READ ) ) {
+      ByteBuffer buffer = ByteBuffer.allocate( 1 << 16 );
+      while ( in.read( buffer ) >= 0 ) {
+        buffer.flip();
+        crc.update( buffer );
+        buffer.clear();
+      }
+    }
+    return (int) crc.getValue();
+  }
+
+  private static void append( StringBuilder lines, String key, Record record ) {
+    lines.append( key ).append( ' ' ).append( Long.toHexString( record.input ) ).append( ' ' )
+         .append( Integer.toHexString( record.checksum ) ).append( ' ' ).append( record.length );
+    if ( record.segment != null ) {
+      lines.append( ' ' ).append( record.segment ).append( ' ' ).append( record.offset );
+    }
+    lines.append( '\n' );
+  }
+
+  private static void writeFully( FileChannel out, StringBuilder lines ) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap( lines.toString().getBytes( StandardCharsets.UTF_8 ) );
+    while ( buffer.hasRemaining() ) {
+      out.write( buffer );
+    }
+    lines.setLength( 0 );
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance( "SHA-256" );
+    }
+    catch ( NoSuchAlgorithmException e ) {
+      // Every Java platform supports SHA-256.
+      throw new IllegalStateException( e );
+    }
+  }
+
+  public Path getFile() {
+    return file;
+  }
+
+  /**
+   * Return the number of messages recorded by the previous runs.
+   *
+   * @return number of keys read back from the journal
+   */
+  public int getLoaded() {
+    return loaded;
+  }
+
+  public long getSkipped() {
+    return skipped.sum();
+  }
+
+  /**
+   * Return the number of messages composed again because their inputs changed.
+   *
+   * @return number of messages whose inputs changed
+   */
+  public long getChanged() {
+    return changed.sum();
+  }
+
+  /**
+   * Return the number of messages composed again because their output file is missing, or differs.
+   *
+   * @return number of messages whose output was lost
+   */
+  public long getMissing() {
+    return missing.sum();
+  }
+
+  public long getRecorded() {
+    return recorded.sum();
+  }
+
+  @Override
+  public String toString() {
+    return String.format( "Progress journal : %d messages from previous runs, %d skipped, %d changed, %d missing, "
+            + "%d recorded", getLoaded(), getSkipped(), getChanged(), getMissing(), getRecorded() );
+  }
+
+  /**
+   * The latest record of a key.
+   */
+  private static final class Record {
+    final long input;
+    final int checksum;
+    final long length;
+    // Name of the segment of the message, and offset of its record, or null and -1.
+    final String segment;
+    final long offset;
+
+    Record( long input, int checksum, long length, String segment, long offset ) {
+      this.input = input;
+      this.checksum = checksum;
+      this.length = length;
+      this.segment = segment;
+      this.offset = offset;
+    }
+  }
+}
@@ -0,0 +1,379 @@
+package com.mms.composer;
+
+/*
+ * @(#)RecipientList.java	1.1
+ *
+ * Summary
+ *
+ * A distribution list : the recipients of a message sent to many addresses at once (see "FanOutComposer"). A list
+ * file holds one address per line, possibly preceded by the field it goes to, "to:" (the default), "cc:" or "bcc:" ;
+ * blank lines and lines starting with "#" are skipped. The file is read as UTF-8.
+ *
+ * 		# Campaign 0001
+ * 		+30 690 000 0000
+ * 		cc:Joe@User.ORG
+ * 		bcc:10.0.0.1
+ *
+ * Each address is validated and normalized as it is read (see "AddressNormalizer") ; an invalid address is reported
+ * and skipped. An address already in the list, once normalized, is a duplicate, skipped as well : it keeps the
+ * field of its first occurrence, so that no recipient gets the message twice.
+ *
+ * The recipients are then split into groups of up to a maximum number of addresses, each group being the
+ * recipients of one "m-send-req" PDU : the "To" recipients first, then the "Cc" and the "Bcc" ones, each in the
+ * order of the list. The "To", "Cc" and "Bcc" fields of a group are encoded once, when the group is created, and
+ * copied as they are into the header block of each message sent to it (see "HeaderWriter"). A maximum of one
+ * address per group sends a PDU per recipient. A recipient sees the "To" and "Cc" addresses of its own group only.
+ *
+ * The "Bcc" fields only go into an "m-send-req" submitted to an MMSC, which delivers the message without them. A
+ * message written to a file or a segment is delivered as it is, as an "m-retrieve-conf", so its header block only
+ * holds the "To" and "Cc" fields of the group, which come first in its encoded fields. For such messages, the list
+ * is grouped without "Bcc" fields : the "To" and "Cc" recipients are grouped as usual, and each "Bcc" recipient gets
+ * a message of its own, with its address as the only "To" one, so that it is neither lost nor seen by the others.
+ */
+
+// These imports are necessary for utilities.
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Nokia MMS Java Library version 1.1
+import com.nokia.mms.*;
+
+public class RecipientList {
+  // Default maximum number of addresses of a group.
+  public static final int DEFAULT_MAX_RECIPIENTS = 20;
+
+  // Normalized addresses, by field : "To", "Cc" and "Bcc".
+  private final List<List<String>> addresses = Arrays.asList( new ArrayList<>(), new ArrayList<>(),
+          new ArrayList<>() );
+  // Normalized addresses already in the list.
+  private final Set<String> known = new HashSet<>();
+  private final AddressNormalizer normalizer = new AddressNormalizer();
+
+  // Addresses by kind, invalid and duplicate ones.
+  private final long[] types = new long[ AddressNormalizer.Type.values().length ];
+  private long invalid;
+  private long duplicates;
+
+  /**
+   * Read a list file, adding its recipients to the list.
+   *
+   * @param filename name of the list file
+   * @throws IOException if the file cannot be read
+   */
+  public void read( String filename ) throws IOException {
+    try ( Reader in = new InputStreamReader( new FileInputStream( filename ), StandardCharsets.UTF_8 ) ) {
+      read( in, filename );
+    }
+  }
+
+  /**
+   * Read a list from a character stream, adding its recipients to the list. The invalid addresses are reported to
+   * the error stream.
+   *
+   * @param in the list ; it is not closed
+   * @param name name of the list, used in error messages
+   * @throws IOException if the list cannot be read
+   */
+  public void read( Reader in, String name ) throws IOException {
+    BufferedReader reader = in instanceof BufferedReader ? (BufferedReader) in : new BufferedReader( in, 64 * 1024 );
+    long lineNumber = 0;
+    String line;
+    while ( ( line = reader.readLine() ) != null ) {
+      lineNumber++;
+      if ( !add( line ) ) {
+        System.err.println( "Invalid recipient : \"" + name + "\" line " + lineNumber + " : " + line.trim() );
+      }
+    }
+  }
+
+  /**
+   * Add a line of a list file : an address, possibly preceded by its field.
+   *
+   * @param line the line
+   * @return false if the address is invalid ; true if it was added, or was a duplicate, or the line is blank or a
+   *         comment
+   */
+  public boolean add( String line ) {
+    int start = 0;
+    int end = line.length();
+    while ( start < end && line.charAt( start ) <= ' ' ) {
+      start++;
+    }
+    if ( start == end || line.charAt( start ) == '#' ) {
+      return true;
+    }
+    byte field = IMMConstants.FN_TO;
+    int colon = line.indexOf( ':', start );
+    if ( colon > start ) {
+      int length = colon - start;
+      if ( length == 2 && line.regionMatches( true, start, "to", 0, 2 ) ) {
+        field = IMMConstants.FN_TO;
+      }
+      else if ( length == 2 && line.regionMatches( true, start, "cc", 0, 2 ) ) {
+        field = IMMConstants.FN_CC;
+      }
+      else if ( length == 3 && line.regionMatches( true, start, "bcc", 0, 3 ) ) {
+        field = IMMConstants.FN_BCC;
+      }
+      else {
+        invalid++;
+        return false;
+      }
+      line = line.substring( colon + 1 );
+    }
+    else if ( start > 0 ) {
+      line = line.substring( start );
+    }
+    return add( field, line );
+  }
+
+  /**
+   * Add a recipient.
+   *
+   * @param field "IMMConstants.FN_TO", "FN_CC" or "FN_BCC"
+   * @param address address of the recipient, in any of the formats of "AddressNormalizer"
+   * @return false if the address is invalid ; true if it was added, or was a duplicate
+   */
+  public boolean add( byte field, String address ) {
+    int index = indexOf( field );
+    String normalized = normalizer.normalize( address );
+    if ( normalized == null ) {
+      invalid++;
+      return false;
+    }
+    if ( !known.add( normalized ) ) {
+      duplicates++;
+      return true;
+    }
+    types[ normalizer.getType().ordinal() ]++;
+    addresses.get( index ).add( normalized );
+    return true;
+  }
+
+  /**
+   * Return the number of recipients of the list, duplicates excluded.
+   *
+   * @return the number of recipients
+   */
+  public int size() {
+    return known.size();
+  }
+
+  /**
+   * Return the number of recipients of a kind.
+   *
+   * @param type the kind of address
+   * @return the number of recipients
+   */
+  public long getCount( AddressNormalizer.Type type ) {
+    return types[ type.ordinal() ];
+  }
+
+  public long getInvalid() {
+    return invalid;
+  }
+
+  public long getDuplicates() {
+    return duplicates;
+  }
+
+  /**
+   * Split the recipients into groups, with their "Bcc" fields, and encode their fields.
+   *
+   * @param maxRecipients maximum number of addresses of a group
+   * @return the groups, in order
+   */
+  public List<Group> group( int maxRecipients ) {
+    return group( maxRecipients, true );
+  }
+
+  /**
+   * Split the recipients into groups, and encode their fields.
+   *
+   * @param maxRecipients maximum number of addresses of a group
+   * @param bcc true to put the "Bcc" recipients into the groups, for messages submitted to an MMSC ; false for
+   *        messages written to files or segments : each "Bcc" recipient then gets a group of its own, as its only
+   *        "To" recipient, after the groups of the "To" and "Cc" ones
+   * @return the groups, in order
+   */
+  public List<Group> group( int maxRecipients, boolean bcc ) {
+    if ( maxRecipients < 1 ) {
+      throw new IllegalArgumentException( "Invalid number of recipients per message : " + maxRecipients );
+    }
+    int total = size();
+    List<Group> groups = new ArrayList<>( ( total + maxRecipients - 1 ) / maxRecipients
+            + ( bcc ? 0 : addresses.get( 2 ).size() ) );
+    String[] group = new String[ maxRecipients ];
+    byte[] fields = new byte[ maxRecipients ];
+    int n = 0;
+    byte[] fieldOf = { IMMConstants.FN_TO, IMMConstants.FN_CC, IMMConstants.FN_BCC };
+    for ( int f = 0; f < ( bcc ? fieldOf.length : 2 ); f++ ) {
+      for ( String address : addresses.get( f ) ) {
+        group[ n ] = address;
+        fields[ n++ ] = fieldOf[ f ];
+        if ( n == maxRecipients ) {
+          groups.add( new Group( group, fields, n ) );
+          n = 0;
+        }
+      }
+    }
+    if ( n > 0 ) {
+      groups.add( new Group( group, fields, n ) );
+    }
+    if ( !bcc ) {
+      for ( String address : addresses.get( 2 ) ) {
+        groups.add( new Group( address ) );
+      }
+    }
+    return groups;
+  }
+
+  private static int indexOf( byte field ) {
+    switch ( field ) {
+      case IMMConstants.FN_TO: return 0;
+      case IMMConstants.FN_CC: return 1;
+      case IMMConstants.FN_BCC: return 2;
+      default: throw new IllegalArgumentException( "Not an address field : " + field );
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format( "Recipient list : %d recipients (%d to, %d cc, %d bcc ; %d phone numbers, %d e-mail, "
+            + "%d IPv4), %d duplicates, %d invalid", size(), addresses.get( 0 ).size(), addresses.get( 1 ).size(),
+            addresses.get( 2 ).size(), getCount( AddressNormalizer.Type.PLMN ),
+            getCount( AddressNormalizer.Type.EMAIL ), getCount( AddressNormalizer.Type.IPV4 ), duplicates, invalid );
+  }
+
+  /**
+   * The recipients of one message, with their "To", "Cc" and "Bcc" fields encoded once and for all.
+   */
+  public static final class Group {
+    private final String[] addresses;
+    private final byte[] fields;
+    // The encoded fields, in order, as "HeaderEncoder" encodes them. Never modified.
+    private final byte[] encoded;
+    // Size of the encoded "To" and "Cc" fields, which come before the "Bcc" ones.
+    private final int visibleLength;
+
+    /**
+     * Create a group.
+     *
+     * @param addresses normalized addresses, the "To" ones first, then the "Cc" and the "Bcc" ones
+     * @param fields field of each address
+     * @param count number of addresses
+     * @throws IllegalArgumentException if a "To" or "Cc" address follows a "Bcc" one
+     */
+    Group( String[] addresses, byte[] fields, int count ) {
+      this.addresses = Arrays.copyOf( addresses, count );
+      this.fields = Arrays.copyOf( fields, count );
+      ByteArrayOutputStream out = new ByteArrayOutputStream( 32 * count );
+      int visible = -1;
+      try {
+        for ( int i = 0; i < count; i++ ) {
+          if ( fields[ i ] == IMMConstants.FN_BCC ) {
+            if ( visible < 0 ) {
+              visible = out.size();
+            }
+          }
+          else if ( visible >= 0 ) {
+            throw new IllegalArgumentException( "A \"To\" or \"Cc\" address after a \"Bcc\" one : " + addresses[ i ] );
+          }
+          out.write( fields[ i ] | 0x80 );
+          Wsp.writeText( addresses[ i ], out );
+        }
+      }
+      catch ( IOException e ) {
+        // Not thrown by a "ByteArrayOutputStream".
+        throw new UncheckedIOException( e );
+      }
+      this.encoded = out.toByteArray();
+      this.visibleLength = visible < 0 ? encoded.length : visible;
+    }
+
+    /**
+     * Create a group of a single "To" recipient.
+     *
+     * @param address normalized address of the recipient
+     */
+    public Group( String address ) {
+      this( new String[] { address }, new byte[] { IMMConstants.FN_TO }, 1 );
+    }
+
+    public int size() {
+      return addresses.length;
+    }
+
+    public String getAddress( int index ) {
+      return addresses[ index ];
+    }
+
+    /**
+     * Return the field of an address.
+     *
+     * @param index index of the address
+     * @return "IMMConstants.FN_TO", "FN_CC" or "FN_BCC"
+     */
+    public byte getField( int index ) {
+      return fields[ index ];
+    }
+
+    /**
+     * Return the encoded fields of the group. The array must not be modified.
+     *
+     * @return the encoded "To", "Cc" and "Bcc" fields
+     */
+    byte[] getEncoded() {
+      return encoded;
+    }
+
+    /**
+     * Return the size of the encoded "To" and "Cc" fields of the group, i.e. of its encoded fields without the "Bcc"
+     * ones, which follow them.
+     *
+     * @return the number of bytes, from the start of "getEncoded()", visible to every recipient
+     */
+    int getVisibleLength() {
+      return visibleLength;
+    }
+
+    /**
+     * Tell whether the group has "Bcc" recipients, which a message written to a file or a segment would lose.
+     *
+     * @return true if the group has "Bcc" fields
+     */
+    public boolean hasBcc() {
+      return visibleLength < encoded.length;
+    }
+
+    /**
+     * Add the recipients of the group to a message.
+     *
+     * @param m multimedia message
+     */
+    void addTo( MMMessage m ) {
+      for ( int i = 0; i < addresses.length; i++ ) {
+        switch ( fields[ i ] ) {
+          case IMMConstants.FN_TO: m.addToAddress( addresses[ i ] ); break;
+          case IMMConstants.FN_CC: m.addCcAddress( addresses[ i ] ); break;
+          default: m.addBccAddress( addresses[ i ] ); break;
+        }
+      }
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder s = new StringBuilder();
+      for ( int i = 0; i < addresses.length; i++ ) {
+        s.append( i == 0 ? "" : ", " ).append( fields[ i ] == IMMConstants.FN_TO ? "to:"
+                : fields[ i ] == IMMConstants.FN_CC ? "cc:" : "bcc:" ).append( addresses[ i ] );
+      }
+      return s.toString();
+    }
+  }
+}
@@ -69,8 +69,11 @@ package com.mms.composer;
 
 // These imports are necessary for utilities.
 import java.io.*;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.Random;
+import java.util.List;
 
 // Nokia MMS Java Library version 1.1
 // The library provides examples of the most common tasks applications perform through the Multimedia Messaging
@@ -87,6 +90,94 @@ public class SampleMMSComposer {
   private final String MULTIMEDIA_PATH = new File( "src/main/resources/multimedia" ).getAbsolutePath();
   // Path where the output MMS file shall be stored.
   private final String MMS_PATH = new File( "src/main/resources/mms" ).getAbsolutePath();
+  // Cache of the multimedia content parts, shared by all the composed messages.
+  private final ContentCache cache;
+  // Loader of the "multimedia" files.
+  private final MediaLoader loader = new MediaLoader();
+  // Streaming encoder of the messages.
+  private final MmsEncoder encoder = new MmsEncoder();
+  // Compiled slide templates, and the slide template of the messages, if any.
+  private final SlideTemplate.Cache slideTemplates;
+  private volatile Path slideTemplate;
+  // Fits the content parts into a maximum message size, if any.
+  private volatile MessageFitter fitter;
+  // Metrics of the stages of the pipeline.
+  private volatile PipelineMetrics metrics = PipelineMetrics.getDefault();
+  // Generator of the transaction IDs.
+  private volatile IdGenerator ids = IdGenerator.getDefault();
+
+  /**
+   * Create a reusable composer. Nothing is composed until "compose()" is called, so that a single instance can
+   * be used to compose many Multimedia Messages (e.g. by the "BatchComposer").
+   */
+  public SampleMMSComposer() {
+    this( ContentCache.getDefault() );
+  }
+
+  /**
+   * Create a reusable composer, taking the multimedia content parts from the given cache.
+   *
+   * @param cache cache of the multimedia content parts
+   */
+  public SampleMMSComposer( ContentCache cache ) {
+    this.cache = cache;
+    this.slideTemplates = new SlideTemplate.Cache( cache, this::readFile );
+  }
+
+  /**
+   * Compose the messages from a slide template (see "SlideTemplate") rather than from the predefined content parts
+   * of "getContents()". The template is compiled once, and again whenever its file or one of its media files changes.
+   *
+   * @param file the slide template file, or null for the predefined content parts
+   * @throws IOException if the template cannot be compiled
+   */
+  public void setSlideTemplate( Path file ) throws IOException {
+    if ( file != null ) {
+      slideTemplates.get( file );
+    }
+    slideTemplate = file;
+  }
+
+  /**
+   * Fit the content parts of the messages into a maximum message size (see "MessageFitter") : the images are
+   * transcoded, and the audio clips trimmed or parts dropped, by priority, should the message be too large.
+   *
+   * @param fitter the fitter, or null to leave the content parts as they are
+   */
+  public void setFitter( MessageFitter fitter ) {
+    this.fitter = fitter;
+  }
+
+  public MessageFitter getFitter() {
+    return fitter;
+  }
+
+  /**
+   * Record the latency of the stages of the messages in other metrics than the process wide ones.
+   *
+   * @param metrics the metrics
+   */
+  public void setMetrics( PipelineMetrics metrics ) {
+    this.metrics = metrics;
+  }
+
+  public PipelineMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Generate the transaction IDs of the messages with another generator than the process wide one, e.g. one with
+   * the ID of this node.
+   *
+   * @param ids the generator
+   */
+  public void setIdGenerator( IdGenerator ids ) {
+    this.ids = ids;
+  }
+
+  public IdGenerator getIdGenerator() {
+    return ids;
+  }
 
   /**
    * Compose a Multimedia Message. Application constructor.
@@ -96,45 +187,134 @@ public class SampleMMSComposer {
    * @param subject subject of the multimedia message
    */
   public SampleMMSComposer( String originator, String recipient, String subject ) {
+    this();
+
+    try {
+      // Set Multimedia Message headers and add Multimedia Message various content parts to the body of the message.
+      MMMessage mms = compose( originator, recipient, subject );
+      // Encode the Multimedia Message and retrieve the buffer of bytes representing the encoded Multimedia Message.
+      byte[] out = encode( mms );
+      // Print the encoded message to a file.
+      createMmsFile( out, MMS_PATH + "/Sample.mms" );
+    }
+    catch ( Exception e ) {
+      System.out.println( "An error occurred encoding or saving the Multimedia Message : " + e.getMessage() );
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Compose a Multimedia Message i.e. set its headers and add its various content parts.
+   *
+   * @param originator address of the message sender
+   * @param recipient address of the message receiver
+   * @param subject subject of the multimedia message
+   * @return the composed multimedia message
+   * @throws IOException if a "multimedia" file cannot be read
+   */
+  public MMMessage compose( String originator, String recipient, String subject ) throws IOException {
+    return compose( originator, recipient, subject, metrics );
+  }
+
+  /**
+   * Compose a Multimedia Message, timing its stages in the given metrics, e.g. apart from those of the messages.
+   */
+  MMMessage compose( String originator, String recipient, String subject, PipelineMetrics m ) throws IOException {
     // The "MMMessage" class represents a Multimedia Message. It contains all the methods to set and
     // get the "mm-header" fields and to add the contents (represented by the "MMContent" class) included
     // in the body of the MM.
     MMMessage mms = new MMMessage();
     // Set Multimedia Message headers.
+    long start = m.start();
     SetHeaders( mms, originator, recipient, subject );
+    m.stop( PipelineMetrics.Stage.SET_HEADERS, start, 0 );
     // Add Multimedia Message various content parts to the body of the message.
+    start = m.start();
+    AddContents( mms );
+    m.stop( PipelineMetrics.Stage.ADD_CONTENTS, start, 0 );
+    return mms;
+  }
+
+  /**
+   * Compose a Multimedia Message to a group of recipients, e.g. of a distribution list (see "RecipientList").
+   *
+   * @param originator address of the message sender
+   * @param recipients the "To", "Cc" and "Bcc" recipients of the message
+   * @param subject subject of the multimedia message
+   * @return the composed multimedia message
+   * @throws IOException if a "multimedia" file cannot be read
+   */
+  public MMMessage compose( String originator, RecipientList.Group recipients, String subject ) throws IOException {
+    MMMessage mms = new MMMessage();
+    PipelineMetrics m = metrics;
+    long start = m.start();
+    SetHeaders( mms, originator, null, subject );
+    // Add the receivers of the Multimedia Message, each to its "To", "CC" or "BCC" field.
+    recipients.addTo( mms );
+    m.stop( PipelineMetrics.Stage.SET_HEADERS, start, 0 );
+    start = m.start();
     AddContents( mms );
+    m.stop( PipelineMetrics.Stage.ADD_CONTENTS, start, 0 );
+    return mms;
+  }
+
+  /**
+   * Encode a Multimedia Message according to the specification "WAP-209-MMSEncapsulation" (WAP Forum).
+   *
+   * @param mms multimedia message
+   * @return buffer of bytes representing the encoded multimedia message
+   * @throws MMEncoderException if the message cannot be encoded
+   */
+  public byte[] encode( MMMessage mms ) throws MMEncoderException {
+    return encode( mms, metrics );
+  }
 
+  /**
+   * Encode a Multimedia Message, timing it in the given metrics, e.g. apart from the messages.
+   */
+  byte[] encode( MMMessage mms, PipelineMetrics m ) throws MMEncoderException {
     // The "MMEncoder" class encodes Multimedia Message object (MMMessage) into an array of bytes
     // according to the specification "WAP-209-MMSEncapsulation" (WAP Forum).
+    long start = m.start();
     // Instantiate an "encoder" object.
     MMEncoder encoder = new MMEncoder();
     // Set the message to be encoded.
     encoder.setMessage( mms );
-
-    try {
-      // Encode the Multimedia Message.
-      encoder.encodeMessage();
-      // Retrieve the buffer of bytes representing the encoded Multimedia Message.
-      byte[] out = encoder.getMessage();
-      // Print the encoded message to a file.
-      createMmsFile( out, MMS_PATH + "/Sample.mms" );
-    }
-    catch ( Exception e ) {
-      System.out.println( "An error occurred encoding or saving the Multimedia Message : " + e.getMessage() );
-      e.printStackTrace();
-    }
+    // Encode the Multimedia Message.
+    encoder.encodeMessage();
+    // Retrieve the buffer of bytes representing the encoded Multimedia Message.
+    byte[] encoded = encoder.getMessage();
+    m.stop( PipelineMetrics.Stage.ENCODE, start, encoded.length );
+    return encoded;
   }
 
   /**
-   * Generate a random int with n digits.
+   * Compose a multimedia message and stream it, encoded as an "m-retrieve-conf" message, with its content parts
+   * in order (see "MmsEncoder"). No byte needs to be flipped afterwards.
    *
-   * @param n number of digits
-   * @return a random int with n digits
+   * @param originator address of the message sender
+   * @param recipient address of the message receiver
+   * @param subject subject of the multimedia message
+   * @param out the stream ; it is neither flushed nor closed
+   * @throws IOException if a "multimedia" file cannot be read, or the stream cannot be written
+   * @throws MMEncoderException if the message cannot be encoded
    */
-  private int generateRandomDigits( int n ) {
-    int m = (int) Math.pow( 10, n - 1 );
-    return m + new Random().nextInt(9 * m );
+  public void encode( String originator, String recipient, String subject, OutputStream out )
+          throws IOException, MMEncoderException {
+    PipelineMetrics m = metrics;
+    MMMessage mms = new MMMessage();
+    long start = m.start();
+    SetHeaders( mms, originator, recipient, subject );
+    m.stop( PipelineMetrics.Stage.SET_HEADERS, start, 0 );
+    start = m.start();
+    List<MMContent> parts = getContents();
+    for ( MMContent part : parts ) {
+      mms.addContent( part );
+    }
+    m.stop( PipelineMetrics.Stage.ADD_CONTENTS, start, 0 );
+    start = m.start();
+    encoder.encode( mms, parts, MmsEncoder.MESSAGE_TYPE_M_RETRIEVE_CONF, out );
+    m.stop( PipelineMetrics.Stage.ENCODE, start, 0 );
   }
 
   /**
@@ -142,10 +322,10 @@ public class SampleMMSComposer {
    *
    * @param m multimedia message
    * @param sender address of the message sender
-   * @param receiver address of the message receiver
+   * @param receiver address of the message receiver, or null for the receivers to be added by the caller
    * @param subject subject of the multimedia message
    */
-  private void SetHeaders( MMMessage m, String sender, String receiver, String subject ) {
+  void SetHeaders( MMMessage m, String sender, String receiver, String subject ) {
     // In the "MMMessage" object we are going to set both mandatory and optional properties.
 	// Just going to set the mandatory properties, and the "Subject".
 	// "Type", "TransID", "Version" are all mandatory, and must be the first headers, in this order !
@@ -156,8 +336,9 @@ public class SampleMMSComposer {
     // to "m-retrieve-conf" since the Nokia MMS Java Library creates compiled MMS messages of the type "m-send-req".
 	m.setMessageType( IMMConstants.MESSAGE_TYPE_M_SEND_REQ );
 	// Set the transaction ID (Mandatory). It is a unique identifier for the message. It identifies the
-    // "M-Send.req" and the corresponding reply only.
-    m.setTransactionId( String.valueOf( generateRandomDigits(10 ) ) );
+    // "M-Send.req" and the corresponding reply only. It is unique across threads and nodes (see "IdGenerator").
+    long now = System.currentTimeMillis();
+    m.setTransactionId( IdGenerator.toTransactionId( ids.next( now ) ) );
     // Set the MMS version number (Mandatory). According to the followed specification the version is 1.0.
     // "IMMConstants" is an interface that includes all the constants that are useful for the treatment of a
     // multimedia message (MM).
@@ -166,7 +347,7 @@ public class SampleMMSComposer {
     // Set the sending time of the message at the "MMS Proxy-Relay" (Optional).
     // Note : in the "m-send-req" format, the "Date:" header is optional, while it is required in the "m-retrieve-conf"
     // format. Some MMS clients will refuse an MMS message if it does not have a "Date:" header.
-    m.setDate( new Date( System.currentTimeMillis() ) );
+    m.setDate( new Date( now ) );
 
     // Set the address of the message sender (Mandatory) - is the string representing the address of the sender.
     // It has to be specified in the full format i.e.: +306900000000/TYPE=PLMN or joe@user.org or 123.123.123.123/TYPE=IPv4.
@@ -176,7 +357,9 @@ public class SampleMMSComposer {
     // Add a new receiver of the Multimedia Message. The message can have more than one receiver but at least one - is the
     // string representing the address of the receiver. It has to be specified in the full format i.e.:
     // +306900000000/TYPE=PLMN or joe@user.org or 123.123.123.123/TYPE=IPv4. (See WAP-209-MMSEncapsulation (WAP Forum)).
-    m.addToAddress( receiver );
+    if ( receiver != null ) {
+      m.addToAddress( receiver );
+    }
 
     // Specify whether the user wants a delivery report from each recipient (Optional).
     m.setDeliveryReport( false );
@@ -231,8 +414,31 @@ public class SampleMMSComposer {
    * Add Multimedia Message various content parts to the body of the message.
    *
    * @param m multimedia message
+   * @throws IOException if a "multimedia" file cannot be read
    */
-  private void AddContents( MMMessage m ) {
+  void AddContents( MMMessage m ) throws IOException {
+    for ( MMContent part : getContents() ) {
+      // Add a content to the message.
+      m.addContent( part );
+    }
+  }
+
+  /**
+   * Return the Multimedia Message various content parts, in the order they shall appear in the message : the parts
+   * of the slide template, if one is set (see "setSlideTemplate()"), or else the predefined parts below ; fitted
+   * into the maximum message size, if one is set (see "setFitter()").
+   *
+   * @return content parts of the message
+   * @throws IOException if a "multimedia" file cannot be read
+   */
+  public List<MMContent> getContents() throws IOException {
+    Path template = slideTemplate;
+    if ( template != null ) {
+      // The parts of the compiled slide template, shared by every message.
+      SlideTemplate slides = slideTemplates.get( template );
+      return fit( slides.getParts(), slides.getPriorities() );
+    }
+    List<MMContent> parts = new ArrayList<>( 7 );
     // This is where the majority of the work is done. Note that here we are adding the parts of the
     // message in the order we want them to appear. Actually the presentation part specifies that,
     // but in terminals which cannot understand the presentation part, the order may be significant,
@@ -240,211 +446,183 @@ public class SampleMMSComposer {
 
     // Note also, that the current version (1.1) of the library encodes the message in some sort
     // of random order, so developers must either fix that problem using the source code, or
-    // be prepared for random order output.
+    // be prepared for random order output. The "MmsEncoder" writes the parts in the order of this list.
 
     // Add "SMIL" content.
     // The "MMContent" class represents a generic entry of a Multimedia Message. Creates the object representing the content.
     // It contains methods to set and get the array of bytes representing the content, to set and get the content type
     // and to save the content into a binary file. The "MMContent" object provides the methods to set the content and its properties.
-    MMContent smil_part = new MMContent();
-    // Read the "multimedia" file with "readFile()" that is a function that reads a file and
-    // returns an array of bytes.
-    byte[] b1 = readFile(MULTIMEDIA_PATH + "/HelloWorld.smil" );
-    // Write bytes from the specified byte array starting at a specific offset.
-    smil_part.setContent( b1, 0, b1.length );
+    // Take the content from the content cache : the "multimedia" file is read with "readFile()" only the first
+    // time, the cached, immutable content being shared by every message composed afterwards.
     // If "<>" are used with this method, the result is "Content-ID".
-    // Set the ID of the entry.
-    smil_part.setContentId( "<0000>" );
     // Set the type of the entry - valid content types : See WAP-203-WSP (WAP Forum) (Table 40). Examples are : text/plain,
     // image/jpeg, image/gif, etc. use also some constants like: CT_TEXT_HTML, CT_TEXT_PLAIN, CT_TEXT_WML, CT_IMAGE_GIF,
     // CT_IMAGE_JPEG, CT_IMAGE_WBMP, CT_APPLICATION_SMIL, etc.
     // "IMMConstants" is an interface that includes all the constants that are useful for the treatment of a
     // multimedia message (MM).
-    smil_part.setType( IMMConstants.CT_APPLICATION_SMIL );
-    // Add a content to the message.
-    m.addContent( smil_part );
+    MMContent smil_part = content( MULTIMEDIA_PATH + "/HelloWorld.smil", "<0000>", IMMConstants.CT_APPLICATION_SMIL );
+    // Add a content to the list of parts.
+    parts.add( smil_part );
 
     // Add "slide1" text.
     // The "MMContent" class represents a generic entry of a Multimedia Message. Creates the object representing the content.
     // It contains methods to set and get the array of bytes representing the content, to set and get the content type
     // and to save the content into a binary file. The "MMContent" object provides the methods to set the content and its properties.
-    MMContent s1_text = new MMContent();
-    // Read the "multimedia" file with "readFile()" that is a function that reads a file and
-    // returns an array of bytes.
-    byte[] b2 = readFile(MULTIMEDIA_PATH + "/HelloWorld.txt" );
-    // Write bytes from the specified byte array starting at a specific offset.
-    s1_text.setContent( b2,0, b2.length );
+    // Take the content from the content cache : the "multimedia" file is read with "readFile()" only the first
+    // time, the cached, immutable content being shared by every message composed afterwards.
     // If "<>" are not used with this method, the result is "Content-Location".
-    // Set the ID of the entry.
-    s1_text.setContentId( "HelloWorld.txt" );
     // Set the type of the entry - valid content types : See WAP-203-WSP (WAP Forum) (Table 40). Examples are : text/plain,
     // image/jpeg, image/gif, etc. use also some constants like: CT_TEXT_HTML, CT_TEXT_PLAIN, CT_TEXT_WML, CT_IMAGE_GIF,
     // CT_IMAGE_JPEG, CT_IMAGE_WBMP, CT_APPLICATION_SMIL, etc.
     // "IMMConstants" is an interface that includes all the constants that are useful for the treatment of a
     // multimedia message (MM).
-    s1_text.setType( IMMConstants.CT_TEXT_PLAIN );
-    // Add a content to the message.
-    m.addContent( s1_text );
+    MMContent s1_text = content( MULTIMEDIA_PATH + "/HelloWorld.txt", "HelloWorld.txt", IMMConstants.CT_TEXT_PLAIN );
+    // Add a content to the list of parts.
+    parts.add( s1_text );
 
     // Add "slide1" image.
     // The "MMContent" class represents a generic entry of a Multimedia Message. Creates the object representing the content.
     // It contains methods to set and get the array of bytes representing the content, to set and get the content type
     // and to save the content into a binary file. The "MMContent" object provides the methods to set the content and its properties.
-    MMContent s1_image = new MMContent();
-    // Read the "multimedia" file with "readFile()" that is a function that reads a file and
-    // returns an array of bytes.
-    byte[] b3 = readFile(MULTIMEDIA_PATH + "/SmileyFace.gif" );
-    // Write bytes from the specified byte array starting at a specific offset.
-    s1_image.setContent( b3,0, b3.length );
+    // Take the content from the content cache : the "multimedia" file is read with "readFile()" only the first
+    // time, the cached, immutable content being shared by every message composed afterwards.
     // If "<>" are not used with this method, the result is "Content-Location".
-    // Set the ID of the entry.
-    s1_image.setContentId( "SmileyFace.gif" );
     // Set the type of the entry - valid content types : See WAP-203-WSP (WAP Forum) (Table 40). Examples are : text/plain,
     // image/jpeg, image/gif, etc. use also some constants like: CT_TEXT_HTML, CT_TEXT_PLAIN, CT_TEXT_WML, CT_IMAGE_GIF,
     // CT_IMAGE_JPEG, CT_IMAGE_WBMP, CT_APPLICATION_SMIL, etc.
     // "IMMConstants" is an interface that includes all the constants that are useful for the treatment of a
     // multimedia message (MM).
-    s1_image.setType( IMMConstants.CT_IMAGE_GIF );
-    // Add a content to the message.
-    m.addContent( s1_image );
+    MMContent s1_image = content( MULTIMEDIA_PATH + "/SmileyFace.gif", "SmileyFace.gif", IMMConstants.CT_IMAGE_GIF );
+    // Add a content to the list of parts.
+    parts.add( s1_image );
 
     // Add "slide1" audio.
     // The "MMContent" class represents a generic entry of a Multimedia Message. Creates the object representing the content.
     // It contains methods to set and get the array of bytes representing the content, to set and get the content type
     // and to save the content into a binary file. The "MMContent" object provides the methods to set the content and its properties.
-    MMContent s1_audio = new MMContent();
-    // Read the "multimedia" file with "readFile()" that is a function that reads a file and
-    // returns an array of bytes.
-    byte[] b4 = readFile(MULTIMEDIA_PATH + "/HelloWorld.amr" );
-    // Write bytes from the specified byte array starting at a specific offset.
-    s1_audio.setContent( b4,0, b4.length );
+    // Take the content from the content cache : the "multimedia" file is read with "readFile()" only the first
+    // time, the cached, immutable content being shared by every message composed afterwards.
     // If "<>" are not used with this method, the result is "Content-Location".
-    // Set the ID of the entry.
-    s1_audio.setContentId( "HelloWorld.amr" );
     // Note how to use "mime-types" with no pre-defined constant !
     // Set the type of the entry - valid content types : See WAP-203-WSP (WAP Forum) (Table 40). Examples are : text/plain,
     // image/jpeg, image/gif, etc. use also some constants like: CT_TEXT_HTML, CT_TEXT_PLAIN, CT_TEXT_WML, CT_IMAGE_GIF,
     // CT_IMAGE_JPEG, CT_IMAGE_WBMP, CT_APPLICATION_SMIL, etc.
-    s1_audio.setType( "audio/amr" );
-    // Add a content to the message.
-    m.addContent( s1_audio );
+    MMContent s1_audio = content( MULTIMEDIA_PATH + "/HelloWorld.amr", "HelloWorld.amr", "audio/amr" );
+    // Add a content to the list of parts.
+    parts.add( s1_audio );
 
     // "Add slide2" text.
     // The "MMContent" class represents a generic entry of a Multimedia Message. Creates the object representing the content.
     // It contains methods to set and get the array of bytes representing the content, to set and get the content type
     // and to save the content into a binary file. The "MMContent" object provides the methods to set the content and its properties.
-    MMContent s2_text = new MMContent();
-    // Read the "multimedia" file with "readFile()" that is a function that reads a file and
-    // returns an array of bytes.
-    byte[] b5 = readFile(MULTIMEDIA_PATH + "/TheEnd.txt" );
-    // Write bytes from the specified byte array starting at a specific offset.
-    s2_text.setContent( b5,0, b5.length );
+    // Take the content from the content cache : the "multimedia" file is read with "readFile()" only the first
+    // time, the cached, immutable content being shared by every message composed afterwards.
     // Here, again, we are using "Content-ID" - just for demonstration.
-    // Set the ID of the entry.
-    s2_text.setContentId( "<TheEnd.txt>" );
     // Set the type of the entry - valid content types : See WAP-203-WSP (WAP Forum) (Table 40). Examples are : text/plain,
     // image/jpeg, image/gif, etc. use also some constants like: CT_TEXT_HTML, CT_TEXT_PLAIN, CT_TEXT_WML, CT_IMAGE_GIF,
     // CT_IMAGE_JPEG, CT_IMAGE_WBMP, CT_APPLICATION_SMIL, etc.
     // "IMMConstants" is an interface that includes all the constants that are useful for the treatment of a
     // multimedia message (MM).
-    s2_text.setType( IMMConstants.CT_TEXT_PLAIN );
-    // Add a content to the message.
-    m.addContent( s2_text );
+    MMContent s2_text = content( MULTIMEDIA_PATH + "/TheEnd.txt", "<TheEnd.txt>", IMMConstants.CT_TEXT_PLAIN );
+    // Add a content to the list of parts.
+    parts.add( s2_text );
 
     // Add "slide2" image.
     // The "MMContent" class represents a generic entry of a Multimedia Message. Creates the object representing the content.
     // It contains methods to set and get the array of bytes representing the content, to set and get the content type
     // and to save the content into a binary file. The "MMContent" object provides the methods to set the content and its properties.
-    MMContent s2_image = new MMContent();
-    // Read the "multimedia" file with "readFile()" that is a function that reads a file and
-    // returns an array of bytes.
-    byte[] b6 = readFile(MULTIMEDIA_PATH + "/TheEnd.gif" );
-    // Write bytes from the specified byte array starting at a specific offset.
-    s2_image.setContent( b6,0, b6.length );
+    // Take the content from the content cache : the "multimedia" file is read with "readFile()" only the first
+    // time, the cached, immutable content being shared by every message composed afterwards.
     // Here, again, we are using "Content-ID" - just for demonstration.
-    // Set the ID of the entry.
-    s2_image.setContentId( "<TheEnd.gif>" );
     // Set the type of the entry - valid content types : See WAP-203-WSP (WAP Forum) (Table 40). Examples are : text/plain,
     // image/jpeg, image/gif, etc. use also some constants like: CT_TEXT_HTML, CT_TEXT_PLAIN, CT_TEXT_WML, CT_IMAGE_GIF,
     // CT_IMAGE_JPEG, CT_IMAGE_WBMP, CT_APPLICATION_SMIL, etc.
     // "IMMConstants" is an interface that includes all the constants that are useful for the treatment of a
     // multimedia message (MM).
-    s2_image.setType( IMMConstants.CT_IMAGE_GIF );
-    // Add a content to the message.
-    m.addContent( s2_image );
+    MMContent s2_image = content( MULTIMEDIA_PATH + "/TheEnd.gif", "<TheEnd.gif>", IMMConstants.CT_IMAGE_GIF );
+    // Add a content to the list of parts.
+    parts.add( s2_image );
 
     // Add "slide2" audio.
     // The "MMContent" class represents a generic entry of a Multimedia Message. Creates the object representing the content.
     // It contains methods to set and get the array of bytes representing the content, to set and get the content type
     // and to save the content into a binary file. The "MMContent" object provides the methods to set the content and its properties.
-    MMContent s2_audio = new MMContent();
-    // Read the "multimedia" file with "readFile()" that is a function that reads a file and
-    // returns an array of bytes.
-    byte[] b7 = readFile(MULTIMEDIA_PATH + "/YallComeBackNowYaHear.amr" );
-    // Write bytes from the specified byte array starting at a specific offset.
-    s2_audio.setContent( b7,0, b7.length );
+    // Take the content from the content cache : the "multimedia" file is read with "readFile()" only the first
+    // time, the cached, immutable content being shared by every message composed afterwards.
     // Note that the filename and "Content-ID" don't need to be the same.
-    // Set the ID of the entry.
-    s2_audio.setContentId( "<YCBNYH.amr>" );
     // Note how to use "mime-types" with no pre-defined constant !
     // Set the type of the entry - valid content types : See WAP-203-WSP (WAP Forum) (Table 40). Examples are : text/plain,
     // image/jpeg, image/gif, etc. use also some constants like: CT_TEXT_HTML, CT_TEXT_PLAIN, CT_TEXT_WML, CT_IMAGE_GIF,
     // CT_IMAGE_JPEG, CT_IMAGE_WBMP, CT_APPLICATION_SMIL, etc.
-    s2_audio.setType( "audio/amr" );
-    // Add a content to the message.
-    m.addContent( s2_audio );
+    MMContent s2_audio = content( MULTIMEDIA_PATH + "/YallComeBackNowYaHear.amr", "<YCBNYH.amr>", "audio/amr" );
+    // Add a content to the list of parts.
+    parts.add( s2_audio );
+
+    return fit( parts, null );
   }
 
   /**
-   * Read the "multimedia" file with "readFile()" that is a function that reads a file and
-   * returns an array of bytes.
+   * Fit content parts into the maximum message size, if one is set.
    *
-   * @param filename name of the "multimedia" file
-   * @return array of bytes
+   * @param parts the content parts
+   * @param priorities priority of each part, or null for the default priorities
+   * @return the fitted parts
+   * @throws IOException if the parts cannot be fitted
    */
-  private byte[] readFile( String filename ) {
-    int fileSize = 0;
-    RandomAccessFile fileH = null;
+  private List<MMContent> fit( List<MMContent> parts, int[] priorities ) throws IOException {
+    MessageFitter f = fitter;
+    return f != null ? f.fit( parts, priorities ) : parts;
+  }
 
-    // Open the file for reading.
+
+  /**
+   * Return the content part of a "multimedia" file from the content cache. The returned content is shared by
+   * all the composed messages and cannot be modified.
+   *
+   * @param filename name of the "multimedia" file
+   * @param contentId "Content-ID" (within "<>") or "Content-Location" of the entry
+   * @param type type of the entry
+   * @return the content part
+   * @throws IOException if the "multimedia" file cannot be read
+   */
+  private MMContent content( String filename, String contentId, String type ) throws IOException {
     try {
-      // Create a random access file stream to read from with the specified name. A new "FileDescriptor" object is created
-      // to represent the connection to the file.
-      fileH = new RandomAccessFile( filename, "r" );
-      // Return the length of this file.
-      fileSize = (int) fileH.length();
+      return cache.get( filename, contentId, type, this::readFile );
     }
-    catch ( IOException ioErr ) {
-      System.err.println( "Cannot find : \"" + filename + "\"" );
-      System.err.println( ioErr );
-
-      // Exit immediately in case of error opening the file.
-      System.exit(200 );
+    catch ( NoSuchFileException e ) {
+      throw new FileNotFoundException( "Cannot find : \"" + filename + "\"" );
     }
+  }
 
-    // Allocate the buffer large enough to hold entire file.
-    byte[] buf = new byte[ fileSize ];
+  /**
+   * Return the cache of the multimedia content parts.
+   *
+   * @return the content cache
+   */
+  public ContentCache getContentCache() {
+    return cache;
+  }
 
-    // Read all bytes of file.
-    int i = 0;
+  /**
+   * Read the "multimedia" file with "readFile()" that is a function that reads a file and
+   * returns an array of bytes. The file is read in bulk (or memory-mapped, when large) by the "MediaLoader",
+   * and its handle is always closed.
+   *
+   * @param filename name of the "multimedia" file
+   * @return array of bytes
+   * @throws IOException if the file cannot be found or read
+   */
+  byte[] readFile( String filename ) throws IOException {
+    PipelineMetrics m = metrics;
+    long start = m.start();
     try {
-       while ( true ) {
-         try {
-           // Reads a byte from the file, starting from the current file pointer.
-           buf[ i++ ] = fileH.readByte();
-         }
-         catch ( EOFException e ) {
-           // Break in case of error reading the file.
-           break;
-         }
-       }
+      byte[] bytes = loader.load( filename );
+      m.stop( PipelineMetrics.Stage.READ_FILE, start, bytes.length );
+      return bytes;
     }
-    catch ( IOException ioErr ) {
-      System.out.println( "ERROR in reading of file : \"" + filename + "\"" );
+    catch ( NoSuchFileException e ) {
+      throw new FileNotFoundException( "Cannot find : \"" + filename + "\"" );
     }
-
-    // Return the array of bytes.
-    return buf;
   }
 
   /**
@@ -470,10 +648,7 @@ public class SampleMMSComposer {
   public void createMmsFile( byte[] output, String filename ) {
 	try	{
 	  // Create a new "File" instance by converting the given pathname string into an abstract pathname.
-	  File f = new File( filename );
-	  // Create a file output stream to write to the file represented by the specified "File" object. A new "FileDescriptor"
-      // object is created to represent this file connection.
-	  FileOutputStream out = new FileOutputStream( f );
+	  File f = new File( filename ).getAbsoluteFile();
 
 	  // Hack : the Nokia MMS Java Library creates compiled MMS messages of the type "m-send-req". This format is the
       // format that we use to submit a message to an MMSC. Unfortunately, if we try to send an MMS notification message
@@ -482,18 +657,22 @@ public class SampleMMSComposer {
       // is very similar, we can often just flip the second byte of the file to convert formats. Specifically, an "m-send-req"
       // format file always starts with the bytes "8C 80". An "m-retrieve-conf" format file always starts with the bytes "8C 84".
       // So, changing that second byte will often do the trick.
-	  output[ 1 ] = (byte) 0x84;
-
-	  // Write bytes from the specified byte array to the file output stream.
-  	  out.write( output );
-  	  // Close the file output stream and release any system resources associated with this stream.
-	  out.close();
+      // That byte is flipped in a copy, leaving the "output" buffer untouched ; the fields that only apply to the
+      // submission of the message are kept (see "encode( String, String, String, OutputStream )" for a genuine
+      // "m-retrieve-conf" message). The "MmsFileWriter" closes the file even if it cannot be written.
+	  PipelineMetrics m = metrics;
+	  long start = m.start();
+	  byte[] retrieveConf = output.clone();
+	  retrieveConf[ 1 ] = (byte) MmsEncoder.MESSAGE_TYPE_M_RETRIEVE_CONF;
+	  new MmsFileWriter( f.getParentFile() ).write( f.getName(), retrieveConf, new byte[ 0 ] );
+	  m.stop( PipelineMetrics.Stage.WRITE, start, output.length );
 	}
 	catch ( Exception e )	{
 	  System.out.println( e.getMessage() );
 	}
   }
 
+
   /**
    * Sample MMS Composer application
    *
@@ -0,0 +1,342 @@
+package com.mms.composer;
+
+/*
+ * @(#)SegmentWriter.java	1.1
+ *
+ * Summary
+ *
+ * Writes encoded Multimedia Messages to segment files rather than to a file each (see "MmsSegment" for the format).
+ * At millions of messages, creating, renaming and syncing a small file per message costs more than encoding it ;
+ * a segment writer appends each message to the current segment instead, as a record written with a single
+ * gathering write, and keeps the offset of the record and the hash of its transaction ID in memory. Once the
+ * segment reaches its maximum size, its index is written and the next message starts a new segment.
+ *
+ * The segments are numbered after those already in the folder, which are never overwritten. The index of a segment
+ * is written, atomically, only once the segment is complete : a segment without an index is still being written,
+ * or was interrupted (see "MmsSegment.reindex()"), in which case it is indexed by the next writer of the folder. A
+ * segment interrupted before its first record, i.e. shorter than its magic number, is deleted instead. A writer
+ * holds the lock of its folder from its first segment until it is closed (see "MmsSegment.lock()"), so that it never
+ * indexes, truncates or deletes a segment that another process is still writing ; a second writer of the folder
+ * fails instead. A damaged segment, whose invalid record is followed by valid ones, is not truncated : the writer
+ * fails until it is repaired or moved away. With a sync
+ * batch, the segment is forced to the disk every that many messages, and the segment and its index once complete.
+ *
+ * A message is only saved once its segment is forced to the disk, or indexed : until then, it is pending, and its
+ * outcome is returned by the "write()" or "sync()" that forces or indexes it. The outcome of a saved message holds
+ * its segment and the offset of its record (see "Outcome.getFile()" and "Outcome.getOffset()").
+ *
+ * A writer is not thread safe ; it is meant to be used by a single writer thread (see "ParallelComposer").
+ */
+
+// These imports are necessary for utilities.
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class SegmentWriter extends MmsFileWriter {
+  // Default maximum size of a segment.
+  public static final long DEFAULT_SEGMENT_SIZE = 1L << 30;
+  // Largest segment size, as a segment is mapped as a whole.
+  public static final long MAX_SEGMENT_SIZE = Integer.MAX_VALUE;
+  // Second byte of an "m-retrieve-conf" message, i.e. the value of its "X-Mms-Message-Type" field.
+  private static final byte M_RETRIEVE_CONF = (byte) 0x84;
+
+  private final Path folder;
+  // Lock of the folder, once the first segment is opened.
+  private FileChannel lock;
+  // Maximum size of a segment.
+  private final long segmentSize;
+  // Number of the last segment written.
+  private int number = -1;
+
+  // The current segment, if any, and its size.
+  private Path segment;
+  private FileChannel channel;
+  private long size;
+  // Hashes of the transaction IDs of the messages of the current segment, and offsets of their records.
+  private long[] hashes = new long[ 1024 ];
+  private long[] offsets = new long[ 1024 ];
+  private int count;
+  // Messages of the current segment written since it was last forced, and their offsets.
+  private final List<Pending> pending = new ArrayList<>();
+  // Outcomes of the messages saved or failed, not returned yet.
+  private List<Outcome> done = new ArrayList<>();
+
+  private int segments;
+  private long messages;
+  private long bytes;
+
+  /**
+   * Create a writer.
+   *
+   * @param folder folder where the segments are written
+   * @param segmentSize maximum size of a segment, in bytes ; a larger message is written to a segment of its own
+   * @param syncBatch number of messages after which the segment is forced to the disk, or 0 not to sync it at all
+   */
+  public SegmentWriter( File folder, long segmentSize, int syncBatch ) {
+    super( folder, syncBatch );
+    if ( segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE ) {
+      throw new IllegalArgumentException( "Invalid segment size : " + segmentSize + " (up to " + MAX_SEGMENT_SIZE
+              + " bytes)" );
+    }
+    this.folder = folder.toPath();
+    this.segmentSize = segmentSize;
+  }
+
+  /**
+   * Append an encoded message, as an "m-retrieve-conf" message, to the current segment. Neither buffer is modified.
+   *
+   * @param filename name of the message, e.g. the name of its file had it been written to its own file
+   * @param header array holding the header block of the encoded message, or the whole message ("m-retrieve-conf")
+   * @param headerLength size of the header block, from the start of the array
+   * @param body body of the encoded message, from its position to its limit, possibly empty or off the heap
+   * @param attachment object returned with the outcome of the message ; possibly null
+   * @return the outcomes of the messages completed by the write : those of the segment it completes, or of the
+   *         sync batch it completes, if any
+   * @throws IOException if the message cannot be written ; it is then neither saved nor pending
+   */
+  @Override
+  public List<Outcome> write( String filename, byte[] header, int headerLength, ByteBuffer body, Object attachment )
+          throws IOException {
+    int idLength = MmsSegment.transactionIdLength( header, headerLength );
+    byte[] name = filename.getBytes( StandardCharsets.UTF_8 );
+    long length = headerLength + (long) body.remaining();
+    long recordLength = MmsSegment.RECORD_HEADER + name.length + length;
+    if ( headerLength < 2 || header[ 1 ] != M_RETRIEVE_CONF ) {
+      throw new IOException( "Not an m-retrieve-conf Multimedia Message : \"" + filename + "\"" );
+    }
+    if ( idLength < 0 || name.length > 0xFFFF
+            || MmsSegment.FIRST_RECORD + recordLength > MAX_SEGMENT_SIZE ) {
+      throw new IOException( "Invalid Multimedia Message : \"" + filename + "\"" );
+    }
+    if ( channel != null && size + recordLength > segmentSize ) {
+      finish();
+    }
+    if ( channel == null ) {
+      open();
+    }
+    ByteBuffer record = ByteBuffer.allocate( MmsSegment.RECORD_HEADER + name.length );
+    record.putInt( (int) length ).putInt( ProgressJournal.checksum( header, headerLength, body ) )
+            .putShort( (short) name.length ).put( name ).flip();
+    ByteBuffer[] buffers = { record, ByteBuffer.wrap( header, 0, headerLength ), body.duplicate() };
+    try {
+      long remaining = recordLength;
+      while ( remaining > 0 ) {
+        remaining -= channel.write( buffers );
+      }
+    }
+    catch ( IOException e ) {
+      // Drop the partially written record, so that the next one follows the last complete one.
+      try {
+        channel.truncate( size );
+        channel.position( size );
+      }
+      catch ( IOException ignored ) {
+        // The segment will be truncated when indexed again.
+      }
+      throw e;
+    }
+    if ( count == hashes.length ) {
+      hashes = Arrays.copyOf( hashes, 2 * count );
+      offsets = Arrays.copyOf( offsets, 2 * count );
+    }
+    hashes[ count ] = MmsSegment.hash( header, 3, idLength );
+    offsets[ count++ ] = size;
+    pending.add( new Pending( filename, attachment, size ) );
+    size += recordLength;
+    messages++;
+    bytes += length;
+    if ( getSyncBatch() > 0 && pending.size() >= getSyncBatch() ) {
+      force();
+    }
+    return drain();
+  }
+
+  /**
+   * Force the messages written to the current segment since it was last forced to the disk, even without a sync
+   * batch, e.g. at the end of a run.
+   *
+   * @return the outcome of each message forced, and of any message completed before and not returned yet
+   */
+  @Override
+  public List<Outcome> sync() {
+    force();
+    return drain();
+  }
+
+  /**
+   * Complete the current segment, if any, and write its index.
+   *
+   * @throws IOException if a message of the segment cannot be synced or indexed
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      if ( channel != null ) {
+        finish();
+      }
+      check( drain() );
+    }
+    finally {
+      if ( lock != null ) {
+        lock.close();
+        lock = null;
+      }
+    }
+  }
+
+  /**
+   * Start a new segment, numbered after the segments of the folder. The first time, the lock of the folder is
+   * taken, and the segments of the folder left without an index by an interrupted run are indexed, or deleted if
+   * they hold no record. The number is only set once the folder is scanned, so that a scan that fails is done again
+   * by the next message.
+   */
+  private void open() throws IOException {
+    if ( lock == null ) {
+      lock = MmsSegment.lock( folder );
+    }
+    if ( number < 0 ) {
+      List<Path> existing = MmsSegment.list( folder );
+      int last = 0;
+      for ( Path p : existing ) {
+        String n = p.getFileName().toString();
+        try {
+          last = Math.max( last, Integer.parseInt( n.substring( MmsSegment.PREFIX.length(),
+                  n.length() - MmsSegment.SEGMENT_SUFFIX.length() ) ) );
+        }
+        catch ( NumberFormatException e ) {
+          // Not a segment of a writer.
+        }
+      }
+      for ( Path p : existing ) {
+        if ( Files.size( p ) < MmsSegment.FIRST_RECORD ) {
+          // Interrupted before its magic number was written.
+          Files.deleteIfExists( MmsSegment.indexOf( p ) );
+          Files.delete( p );
+        }
+        else if ( !Files.exists( MmsSegment.indexOf( p ) ) ) {
+          MmsSegment.reindexLocked( p );
+        }
+      }
+      number = last;
+    }
+    number++;
+    segment = folder.resolve( String.format( "%s%06d%s", MmsSegment.PREFIX, number, MmsSegment.SEGMENT_SUFFIX ) );
+    FileChannel created = FileChannel.open( segment, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE );
+    try {
+      ByteBuffer magic = ByteBuffer.wrap( MmsSegment.SEGMENT_MAGIC );
+      while ( magic.hasRemaining() ) {
+        created.write( magic );
+      }
+    }
+    catch ( IOException e ) {
+      created.close();
+      Files.deleteIfExists( segment );
+      throw e;
+    }
+    channel = created;
+    size = MmsSegment.FIRST_RECORD;
+    count = 0;
+    segments++;
+  }
+
+  /**
+   * Force the pending messages of the current segment to the disk : they are saved, or failed if the segment cannot
+   * be forced.
+   */
+  private void force() {
+    if ( pending.isEmpty() ) {
+      return;
+    }
+    IOException failure = null;
+    try {
+      channel.force( false );
+    }
+    catch ( IOException e ) {
+      failure = e;
+    }
+    complete( failure );
+  }
+
+  /**
+   * Complete the current segment : sync it if asked to, close it and write its index. Its pending messages are
+   * saved once indexed, or failed if the segment cannot be indexed ; a segment left without an index is indexed by
+   * the next writer of the folder.
+   */
+  private void finish() {
+    boolean force = getSyncBatch() > 0;
+    IOException failure = null;
+    try {
+      try {
+        if ( force ) {
+          channel.force( true );
+        }
+      }
+      finally {
+        channel.close();
+        channel = null;
+      }
+      MmsSegment.writeIndex( segment, hashes, offsets, count, force );
+      if ( force ) {
+        forceFolder();
+      }
+    }
+    catch ( IOException e ) {
+      failure = e;
+    }
+    complete( failure );
+  }
+
+  /**
+   * Complete the pending messages of the current segment, saved or failed.
+   */
+  private void complete( IOException failure ) {
+    for ( Pending p : pending ) {
+      done.add( failure == null ? new Outcome( p.filename, p.attachment, segment, p.offset )
+              : new Outcome( p.filename, p.attachment, failure ) );
+    }
+    pending.clear();
+  }
+
+  /**
+   * Return the outcomes of the messages completed since the last call.
+   */
+  private List<Outcome> drain() {
+    if ( done.isEmpty() ) {
+      return Collections.emptyList();
+    }
+    List<Outcome> outcomes = done;
+    done = new ArrayList<>();
+    return outcomes;
+  }
+
+  @Override
+  public String toString() {
+    return String.format( "Segment writer : %d Multimedia Messages, %d bytes, in %d segments", messages, bytes,
+            segments );
+  }
+
+  /**
+   * A message written to the current segment, waiting for the segment to be forced or indexed.
+   */
+  private static final class Pending {
+    final String filename;
+    final Object attachment;
+    final long offset;
+
+    Pending( String filename, Object attachment, long offset ) {
+      this.filename = filename;
+      this.attachment = attachment;
+      this.offset = offset;
+    }
+  }
+}
@@ -0,0 +1,445 @@
+package com.mms.composer;
+
+/*
+ * @(#)SlideTemplate.java	1.1
+ *
+ * Summary
+ *
+ * A declarative layout of the slides of a Multimedia Message, compiled into the immutable list of its content
+ * parts. A slide template is a properties file listing the slides and, for each one, its media files :
+ *
+ *    # Optional "meta" of the presentation.
+ *    title=Sample MMS
+ *    author=Aristotelis Metsinis
+ *    # Size of the screen, and regions as <width>x<height>+<left>+<top>.
+ *    root-layout=160x140
+ *    region.Image=160x120+0+0
+ *    region.Text=160x20+0+120
+ *    # The slides, numbered from 1.
+ *    slides=2
+ *    slide.1.dur=5s
+ *    slide.1.text=HelloWorld.txt
+ *    slide.1.image=SmileyFace.gif
+ *    slide.1.audio=HelloWorld.amr
+ *    slide.2.dur=10s
+ *    slide.2.image=TheEnd.gif
+ *    slide.2.image.id=<TheEnd.gif>
+ *    ...
+ *
+ * Each slide has up to one "text", "image", "audio" and "video" media. The media files are relative to the folder
+ * of the template. For each media, optional keys give :
+ *
+ * - ".id" : the "Content-ID" (within "<>") or "Content-Location" of the part, the name of the file by default ;
+ * - ".type" : the content type of the part, guessed from the extension of the file by default ;
+ * - ".region" : the region of the slide, "Image" for an image or a video and "Text" for a text by default ;
+ * - ".priority" : the priority of the part when the message must be made smaller (see "MessageFitter") : the parts of
+ *   the lowest priority are degraded and dropped first. By default, by the type of the part.
+ *
+ * Compiling a template generates its "SMIL" presentation, with the "Content-ID" "<0000>" that "SetHeaders()" sets as
+ * the presentation id of every message, and references each media by "cid:" or by location as the sample
+ * "HelloWorld.smil" does. The media parts are taken from the "ContentCache". The compiled template is immutable and
+ * its parts may be shared by any number of messages, composed by any number of threads. A "SlideTemplate.Cache"
+ * compiles each template once, and again when the template or one of its media files changes.
+ */
+
+// These imports are necessary for utilities.
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Nokia MMS Java Library version 1.1
+import com.nokia.mms.*;
+
+public final class SlideTemplate {
+  // "Content-ID" of the presentation part, as set by "SetHeaders()".
+  public static final String PRESENTATION_ID = "<0000>";
+  // Media of a slide : their keys and "SMIL" elements, in the order of the "SMIL" presentation.
+  private static final String[] MEDIA = { "image", "text", "audio", "video" };
+  private static final String[] ELEMENTS = { "img", "text", "audio", "video" };
+  // Order of the media parts within the message, as "AddContents()" adds them.
+  private static final int[] PART_ORDER = { 1, 0, 2, 3 };
+  // Default regions of the media, if any.
+  private static final String[] REGIONS = { "Image", "Text", null, "Image" };
+  // A region : <width>x<height>+<left>+<top>.
+  private static final Pattern REGION = Pattern.compile( "(\\d+%?)x(\\d+%?)\\+(\\d+%?)\\+(\\d+%?)" );
+  // A duration : a number of seconds or milliseconds.
+  private static final Pattern DURATION = Pattern.compile( "\\d+(\\.\\d+)?(s|ms)?" );
+  // Line separator of the "SMIL" presentation, as in the sample "HelloWorld.smil".
+  private static final String EOL = "\r\n";
+
+  private final Path file;
+  private final String smil;
+  private final List<MMContent> parts;
+  // Priority of each part, see "MessageFitter".
+  private final int[] priorities;
+  // Files the template was compiled from, and their attributes at that time.
+  private final List<Stamp> stamps;
+
+  private SlideTemplate( Path file, String smil, List<MMContent> parts, int[] priorities, List<Stamp> stamps ) {
+    this.file = file;
+    this.smil = smil;
+    this.parts = Collections.unmodifiableList( parts );
+    this.priorities = priorities;
+    this.stamps = stamps;
+  }
+
+  /**
+   * Compile a slide template.
+   *
+   * @param file the template file
+   * @param cache cache of the media parts
+   * @param loader reads the media files on a cache miss
+   * @return the compiled template
+   * @throws IOException if the template or one of its media files cannot be read, or the template is malformed
+   */
+  public static SlideTemplate compile( Path file, ContentCache cache, ContentCache.Loader loader ) throws IOException {
+    List<Stamp> stamps = new ArrayList<>();
+    stamps.add( Stamp.of( file ) );
+    Properties p = new Properties();
+    try ( InputStream in = Files.newInputStream( file ) ) {
+      p.load( in );
+    }
+    Path folder = file.toAbsolutePath().getParent();
+
+    StringBuilder smil = new StringBuilder();
+    smil.append( "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" ).append( EOL )
+        .append( "<!DOCTYPE smil PUBLIC \"-//W3C//DTD SMIL 2.0//EN\" \"http://www.w3.org/2001/SMIL20/SMIL20.dtd\">" )
+        .append( EOL )
+        .append( "<smil xmlns=\"http://www.w3.org/2001/SMIL20/Language\">" ).append( EOL )
+        .append( "  <head>" ).append( EOL );
+    for ( String meta : new String[] { "title", "author" } ) {
+      String value = p.getProperty( meta );
+      if ( value != null ) {
+        smil.append( "    <meta name=\"" ).append( meta ).append( "\" content=\"" ).append( escape( value ) )
+            .append( "\" />" ).append( EOL );
+      }
+    }
+    smil.append( "    <layout>" ).append( EOL );
+    String rootLayout = p.getProperty( "root-layout" );
+    if ( rootLayout != null ) {
+      String[] size = rootLayout.split( "x", -1 );
+      if ( size.length != 2 || !REGION.matcher( rootLayout + "+0+0" ).matches() ) {
+        throw malformed( file, "root-layout", "expected <width>x<height>" );
+      }
+      smil.append( "      <root-layout width=\"" ).append( size[ 0 ] ).append( "\" height=\"" ).append( size[ 1 ] )
+          .append( "\"/>" ).append( EOL );
+    }
+    Set<String> regions = new TreeSet<>();
+    for ( String key : p.stringPropertyNames() ) {
+      if ( key.startsWith( "region." ) ) {
+        regions.add( key.substring( "region.".length() ) );
+      }
+    }
+    for ( String region : regions ) {
+      Matcher m = REGION.matcher( p.getProperty( "region." + region ) );
+      if ( !m.matches() ) {
+        throw malformed( file, "region." + region, "expected <width>x<height>+<left>+<top>" );
+      }
+      smil.append( "      <region id=\"" ).append( escape( region ) ).append( "\" width=\"" ).append( m.group( 1 ) )
+          .append( "\" height=\"" ).append( m.group( 2 ) ).append( "\" left=\"" ).append( m.group( 3 ) )
+          .append( "\" top=\"" ).append( m.group( 4 ) ).append( "\"/>" ).append( EOL );
+    }
+    smil.append( "    </layout>" ).append( EOL )
+        .append( "  </head>" ).append( EOL )
+        .append( "  <body>" ).append( EOL );
+
+    int slides;
+    try {
+      slides = Integer.parseInt( p.getProperty( "slides", "" ).trim() );
+    }
+    catch ( NumberFormatException e ) {
+      throw malformed( file, "slides", "expected the number of slides" );
+    }
+    if ( slides < 1 ) {
+      throw malformed( file, "slides", "at least one slide is required" );
+    }
+    List<MMContent> parts = new ArrayList<>();
+    List<Integer> priorities = new ArrayList<>();
+    Set<String> ids = new HashSet<>();
+    ids.add( PRESENTATION_ID );
+    parts.add( null );
+    priorities.add( MessageFitter.PRESENTATION_PRIORITY );
+    for ( int s = 1; s <= slides; s++ ) {
+      String prefix = "slide." + s + ".";
+      String dur = p.getProperty( prefix + "dur" );
+      if ( dur != null && !DURATION.matcher( dur ).matches() ) {
+        throw malformed( file, prefix + "dur", "expected a duration, e.g. 5s or 500ms" );
+      }
+      MMContent[] media = new MMContent[ MEDIA.length ];
+      int[] priority = new int[ MEDIA.length ];
+      smil.append( "    <par" );
+      if ( dur != null ) {
+        smil.append( " dur=\"" ).append( dur ).append( "\"" );
+      }
+      smil.append( ">" ).append( EOL );
+      for ( int i = 0; i < MEDIA.length; i++ ) {
+        String key = prefix + MEDIA[ i ];
+        String name = p.getProperty( key );
+        if ( name == null ) {
+          continue;
+        }
+        String id = p.getProperty( key + ".id", name );
+        if ( !ids.add( id ) ) {
+          throw malformed( file, key + ".id", "duplicate id " + id );
+        }
+        String type = p.getProperty( key + ".type", type( name ) );
+        if ( type == null ) {
+          throw malformed( file, key + ".type", "unknown content type of " + name );
+        }
+        String region = p.getProperty( key + ".region", REGIONS[ i ] );
+        if ( region != null && !regions.isEmpty() && !regions.contains( region ) ) {
+          throw malformed( file, key + ".region", "undefined region " + region );
+        }
+        String value = p.getProperty( key + ".priority" );
+        try {
+          priority[ i ] = value != null ? Integer.parseInt( value.trim() ) : MessageFitter.defaultPriority( type );
+        }
+        catch ( NumberFormatException e ) {
+          throw malformed( file, key + ".priority", "expected an integer" );
+        }
+        Path path = folder.resolve( name );
+        stamps.add( Stamp.of( path ) );
+        media[ i ] = cache.get( path.toString(), id, type, loader );
+
+        // A "Content-ID" is referenced as "cid:<id>", a "Content-Location" as is.
+        String src = id.startsWith( "<" ) && id.endsWith( ">" ) ? "cid:" + id.substring( 1, id.length() - 1 ) : id;
+        smil.append( "      <" ).append( ELEMENTS[ i ] ).append( " src=\"" ).append( escape( src ) ).append( "\"" );
+        if ( region != null ) {
+          smil.append( " region=\"" ).append( escape( region ) ).append( "\"" );
+        }
+        smil.append( " />" ).append( EOL );
+      }
+      smil.append( "    </par>" ).append( EOL );
+      for ( int i : PART_ORDER ) {
+        if ( media[ i ] != null ) {
+          parts.add( media[ i ] );
+          priorities.add( priority[ i ] );
+        }
+      }
+    }
+    smil.append( "  </body>" ).append( EOL )
+        .append( "</smil>" ).append( EOL );
+
+    String presentation = smil.toString();
+    parts.set( 0, new ContentCache.SharedContent( presentation.getBytes( StandardCharsets.UTF_8 ), PRESENTATION_ID,
+            IMMConstants.CT_APPLICATION_SMIL ) );
+    int[] order = new int[ priorities.size() ];
+    for ( int i = 0; i < order.length; i++ ) {
+      order[ i ] = priorities.get( i );
+    }
+    return new SlideTemplate( file, presentation, parts, order, Collections.unmodifiableList( stamps ) );
+  }
+
+  /**
+   * Guess the content type of a media file from its extension.
+   */
+  private static String type( String name ) {
+    String extension = name.substring( name.lastIndexOf( '.' ) + 1 ).toLowerCase();
+    switch ( extension ) {
+      case "txt": return IMMConstants.CT_TEXT_PLAIN;
+      case "gif": return IMMConstants.CT_IMAGE_GIF;
+      case "jpg":
+      case "jpeg": return IMMConstants.CT_IMAGE_JPEG;
+      case "png": return "image/png";
+      case "wbmp": return IMMConstants.CT_IMAGE_WBMP;
+      case "amr": return "audio/amr";
+      case "mp3": return "audio/mpeg";
+      case "mid":
+      case "midi": return "audio/midi";
+      case "3gp": return "video/3gpp";
+      case "mp4": return "video/mp4";
+      default: return null;
+    }
+  }
+
+  private static String escape( String text ) {
+    return text.replace( "&", "&amp;" ).replace( "<", "&lt;" ).replace( ">", "&gt;" ).replace( "\"", "&quot;" );
+  }
+
+  private static IOException malformed( Path file, String key, String reason ) {
+    return new IOException( "Malformed slide template : \"" + file + "\" key \"" + key + "\" : " + reason );
+  }
+
+  public Path getFile() {
+    return file;
+  }
+
+  /**
+   * Return the generated "SMIL" presentation.
+   *
+   * @return the presentation, also the first part of the message
+   */
+  public String getSmil() {
+    return smil;
+  }
+
+  /**
+   * Return the content parts of the message : the presentation, then the media of each slide, text first. The
+   * parts are shared and cannot be modified.
+   *
+   * @return unmodifiable list of the content parts
+   */
+  public List<MMContent> getParts() {
+    return parts;
+  }
+
+  /**
+   * Return the priority of each part, in the order of "getParts()" : the parts of the lowest priority are degraded
+   * and dropped first when the message must be made smaller (see "MessageFitter").
+   *
+   * @return priority of each part
+   */
+  public int[] getPriorities() {
+    return priorities.clone();
+  }
+
+  /**
+   * Return true if the template or one of its media files has changed on disk since it was compiled.
+   *
+   * @return true if the template shall be compiled again
+   */
+  public boolean isStale() {
+    for ( Stamp stamp : stamps ) {
+      if ( stamp.isStale() ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Last modification time and size of a file.
+   */
+  private static final class Stamp {
+    private final Path path;
+    private final long modified;
+    private final long size;
+
+    private Stamp( Path path, long modified, long size ) {
+      this.path = path;
+      this.modified = modified;
+      this.size = size;
+    }
+
+    static Stamp of( Path path ) throws IOException {
+      try {
+        BasicFileAttributes attributes = Files.readAttributes( path, BasicFileAttributes.class );
+        return new Stamp( path, attributes.lastModifiedTime().toMillis(), attributes.size() );
+      }
+      catch ( NoSuchFileException e ) {
+        throw new FileNotFoundException( "Cannot find : \"" + path + "\"" );
+      }
+    }
+
+    boolean isStale() {
+      try {
+        BasicFileAttributes attributes = Files.readAttributes( path, BasicFileAttributes.class );
+        return attributes.lastModifiedTime().toMillis() != modified || attributes.size() != size;
+      }
+      catch ( IOException e ) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Cache of compiled slide templates, keyed by the path of their file. A template is compiled the first time it is
+   * asked for, and compiled again when it is asked for after its file or one of its media files has changed. The
+   * files are checked at most once per check interval, so that composing many messages does not add a "stat" per
+   * message. The cache is safe for use by multiple threads.
+   */
+  public static final class Cache {
+    // Default interval, in milliseconds, between two checks of the files of a template, can be overridden with the
+    // "mms.slides.check.interval" system property.
+    public static final long DEFAULT_CHECK_INTERVAL = Long.getLong( "mms.slides.check.interval", 1000L );
+
+    private final ContentCache contents;
+    private final ContentCache.Loader loader;
+    private final long checkIntervalNanos;
+    private final ConcurrentHashMap<Path, Compiled> templates = new ConcurrentHashMap<>();
+
+    /**
+     * Create a template cache with the default check interval.
+     *
+     * @param contents cache of the media parts
+     * @param loader reads the media files on a cache miss
+     */
+    public Cache( ContentCache contents, ContentCache.Loader loader ) {
+      this( contents, loader, DEFAULT_CHECK_INTERVAL );
+    }
+
+    /**
+     * Create a template cache.
+     *
+     * @param contents cache of the media parts
+     * @param loader reads the media files on a cache miss
+     * @param checkIntervalMillis interval, in milliseconds, between two checks of the files of a template ; 0 to
+     *        check them on every lookup
+     */
+    public Cache( ContentCache contents, ContentCache.Loader loader, long checkIntervalMillis ) {
+      if ( checkIntervalMillis < 0 ) {
+        throw new IllegalArgumentException( "Negative check interval : " + checkIntervalMillis );
+      }
+      this.contents = contents;
+      this.loader = loader;
+      this.checkIntervalNanos = checkIntervalMillis * 1_000_000L;
+    }
+
+    /**
+     * Return a compiled template, compiling it if it is not cached yet or if it has changed.
+     *
+     * @param file the template file
+     * @return the compiled template
+     * @throws IOException if the template cannot be compiled
+     */
+    public SlideTemplate get( Path file ) throws IOException {
+      Path key = file.toAbsolutePath().normalize();
+      Compiled compiled = templates.get( key );
+      long now = System.nanoTime();
+      if ( compiled != null && ( now - compiled.checked < checkIntervalNanos || !compiled.template.isStale() ) ) {
+        if ( now - compiled.checked >= checkIntervalNanos ) {
+          compiled.checked = now;
+        }
+        return compiled.template;
+      }
+      // Several threads may compile a changed template at once ; they all get an equivalent template, and the last
+      // one is kept.
+      SlideTemplate template = compile( key, contents, loader );
+      templates.put( key, new Compiled( template, now ) );
+      return template;
+    }
+
+    /**
+     * Remove all the compiled templates.
+     */
+    public void clear() {
+      templates.clear();
+    }
+
+    private static final class Compiled {
+      private final SlideTemplate template;
+      // Last time the files of the template were checked, in "System.nanoTime()" units.
+      private volatile long checked;
+
+      Compiled( SlideTemplate template, long checked ) {
+        this.template = template;
+        this.checked = checked;
+      }
+    }
+  }
+}
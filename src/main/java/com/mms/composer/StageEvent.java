@@ -0,0 +1,55 @@
+package com.mms.composer;
+
+/*
+ * @(#)StageEvent.java	1.1
+ *
+ * Summary
+ *
+ * Java Flight Recorder event of a stage of the compose pipeline (see "PipelineMetrics.setJfrEvents()"). The event is
+ * disabled unless a recording enables it ; "jdk.jfr" (Java 11, or 8u272, and later) is only needed once the events
+ * are asked for, this class being loaded reflectively.
+ */
+
+// These imports are necessary for utilities.
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+@Name( "com.mms.composer.Stage" )
+@Label( "MMS Pipeline Stage" )
+@Description( "A stage of the compose pipeline, with its latency and the bytes it processed" )
+@Category( "MMS Composer" )
+@StackTrace( false )
+final class StageEvent extends Event {
+  @Label( "Stage" )
+  String stage;
+
+  @Label( "Elapsed" )
+  @Timespan( Timespan.NANOSECONDS )
+  long elapsed;
+
+  @Label( "Bytes" )
+  @DataAmount( DataAmount.BYTES )
+  long bytes;
+
+  /**
+   * Emits the stages timed as events.
+   */
+  static final class Sink implements PipelineMetrics.EventSink {
+    @Override
+    public void stage( PipelineMetrics.Stage stage, long elapsedNanos, long bytes ) {
+      StageEvent event = new StageEvent();
+      if ( event.isEnabled() ) {
+        event.stage = stage.label;
+        event.elapsed = elapsedNanos;
+        event.bytes = bytes;
+        event.commit();
+      }
+    }
+  }
+}
@@ -0,0 +1,365 @@
+package com.mms.composer;
+
+/*
+ * @(#)StubMmsc.java	1.1
+ *
+ * Summary
+ *
+ * A stub MMSC, embedded in the process, so that the submission of messages (see "MmscSubmitter") can be tried and
+ * benchmarked offline. It accepts "HTTP POST" requests of "m-send-req" messages on any path and answers each one
+ * with an "m-send-conf" message carrying the transaction ID of the request and, once accepted, a new "Message-ID".
+ *
+ * Slow or failing MMSCs can be simulated : a latency is added to every response, and a share of the requests is
+ * answered with an HTTP 503 ("unavailable"), with the "Error-transient-failure" (0xC0) or with the
+ * "Error-permanent-failure" (0xE0) response status, at random. A request that does not hold an "m-send-req"
+ * message is answered with the "Error-permanent-message-format-corrupt" (0xE2) response status.
+ *
+ * The stub is built on the HTTP server of the JDK ("com.sun.net.httpserver"), with keep-alive connections.
+ *
+ * Usage
+ *
+ * 	 	mms_creation$ java.exe -Dfile.encoding=UTF-8 -classpath "target/classes;lib/MMSLibrary.jar" com.mms.composer.StubMmsc [--port <n>] [--threads <n>] [--latency <ms>] [--unavailable <rate>] [--transient <rate>] [--permanent <rate>]
+ * example :
+ * 	 	mms_creation$ java.exe -Dfile.encoding=UTF-8 -classpath "target/classes;lib/MMSLibrary.jar" com.mms.composer.StubMmsc --port 8002 --latency 20 --transient 0.05
+ */
+
+// These imports are necessary for utilities.
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+// Nokia MMS Java Library version 1.1
+import com.nokia.mms.*;
+
+public class StubMmsc implements Closeable {
+  // Default port of the stub.
+  public static final int DEFAULT_PORT = 8002;
+  // Values of the "X-Mms-Message-Type" field.
+  private static final int M_SEND_REQ = 0x80;
+  private static final int M_SEND_CONF = 0x81;
+  // Header fields of an "m-send-conf" message, with their high bit set.
+  private static final int FIELD_MESSAGE_ID = 0x8B;
+  private static final int FIELD_MESSAGE_TYPE = 0x8C;
+  private static final int FIELD_MMS_VERSION = 0x8D;
+  private static final int FIELD_RESPONSE_STATUS = 0x92;
+  private static final int FIELD_RESPONSE_TEXT = 0x93;
+  private static final int FIELD_TRANSACTION_ID = 0x98;
+  // MMS version 1.0.
+  private static final int MMS_VERSION = 0x90;
+  // Response statuses.
+  private static final int STATUS_OK = 0x80;
+  private static final int STATUS_TRANSIENT_FAILURE = 0xC0;
+  private static final int STATUS_PERMANENT_FAILURE = 0xE0;
+  private static final int STATUS_FORMAT_CORRUPT = 0xE2;
+  // Maximum size of a request.
+  private static final int MAX_REQUEST = 16 * 1024 * 1024;
+
+  private final MmsDecoder decoder = new MmsDecoder();
+  private final int threads;
+  private final boolean virtual;
+  private final ThreadFactory factory;
+  private HttpServer server;
+  private ExecutorService pool;
+  private volatile long latency = 0;
+  private volatile double unavailableRate = 0;
+  private volatile double transientRate = 0;
+  private volatile double permanentRate = 0;
+  private final IdGenerator messageIds = IdGenerator.getDefault();
+
+  private final LongAdder received = new LongAdder();
+  private final LongAdder accepted = new LongAdder();
+  private final LongAdder unavailable = new LongAdder();
+  private final LongAdder transientFailures = new LongAdder();
+  private final LongAdder permanentFailures = new LongAdder();
+
+  /**
+   * Create a stub MMSC.
+   *
+   * @param threads number of platform threads serving the requests, ignored with virtual threads
+   * @param virtual true to serve each request on its own virtual thread
+   * @throws UnsupportedOperationException if virtual threads are asked for but not available
+   */
+  public StubMmsc( int threads, boolean virtual ) {
+    if ( threads < 1 && !virtual ) {
+      throw new IllegalArgumentException( "At least one thread is required" );
+    }
+    this.threads = threads;
+    this.virtual = virtual;
+    this.factory = Threads.factory( "mmsc", virtual );
+  }
+
+  /**
+   * Add a latency to every response.
+   *
+   * @param latency time, in milliseconds, before a response
+   */
+  public void setLatency( long latency ) {
+    if ( latency < 0 ) {
+      throw new IllegalArgumentException( "Negative latency : " + latency );
+    }
+    this.latency = latency;
+  }
+
+  /**
+   * Fail a share of the requests, at random.
+   *
+   * @param unavailable share of the requests answered with an HTTP 503
+   * @param transientFailure share of the requests answered with a transient failure status
+   * @param permanentFailure share of the requests answered with a permanent failure status
+   */
+  public void setFailures( double unavailable, double transientFailure, double permanentFailure ) {
+    if ( unavailable < 0 || transientFailure < 0 || permanentFailure < 0
+            || unavailable + transientFailure + permanentFailure > 1 ) {
+      throw new IllegalArgumentException( "Invalid failure rates" );
+    }
+    this.unavailableRate = unavailable;
+    this.transientRate = transientFailure;
+    this.permanentRate = permanentFailure;
+  }
+
+  /**
+   * Start accepting requests.
+   *
+   * @param address address to listen on ; port 0 for any free port
+   * @throws IOException if the address cannot be bound
+   */
+  public synchronized void start( InetSocketAddress address ) throws IOException {
+    if ( server != null ) {
+      throw new IllegalStateException( "The stub MMSC is already started" );
+    }
+    server = HttpServer.create( address, 1024 );
+    server.createContext( "/", this::handle );
+    if ( virtual ) {
+      server.setExecutor( r -> factory.newThread( r ).start() );
+    }
+    else {
+      pool = Executors.newFixedThreadPool( threads, factory );
+      server.setExecutor( pool );
+    }
+    server.start();
+  }
+
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  /**
+   * Return the URL to submit the messages to.
+   *
+   * @return the URL of the stub, on the loopback interface
+   */
+  public String getUrl() {
+    return "http://127.0.0.1:" + getPort() + "/mmsc";
+  }
+
+  @Override
+  public synchronized void close() {
+    if ( server == null ) {
+      return;
+    }
+    server.stop( 0 );
+    if ( pool != null ) {
+      pool.shutdownNow();
+      try {
+        pool.awaitTermination( 1, TimeUnit.SECONDS );
+      }
+      catch ( InterruptedException e ) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Answer a request.
+   */
+  private void handle( HttpExchange exchange ) throws IOException {
+    try {
+      if ( !exchange.getRequestMethod().equals( "POST" ) ) {
+        exchange.getResponseHeaders().set( "Allow", "POST" );
+        exchange.sendResponseHeaders( 405, -1 );
+        return;
+      }
+      byte[] request = readFully( exchange.getRequestBody() );
+      received.increment();
+      if ( latency > 0 ) {
+        try {
+          Thread.sleep( latency );
+        }
+        catch ( InterruptedException e ) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      String[] transactionId = new String[ 1 ];
+      int[] messageType = { -1 };
+      try {
+        decoder.decode( ByteBuffer.wrap( request ), new MmsDecoder.Handler() {
+          @Override
+          public boolean headers( MmsDecoder.Headers headers ) {
+            messageType[ 0 ] = headers.getMessageType();
+            transactionId[ 0 ] = headers.getTransactionId();
+            return false;
+          }
+
+          @Override
+          public boolean part( MmsDecoder.Part part ) {
+            return false;
+          }
+        } );
+      }
+      catch ( MMDecoderException e ) {
+        // Answered below, as a corrupt message.
+      }
+
+      byte[] response;
+      if ( messageType[ 0 ] != M_SEND_REQ || transactionId[ 0 ] == null ) {
+        permanentFailures.increment();
+        response = sendConf( transactionId[ 0 ], STATUS_FORMAT_CORRUPT, "Not an m-send-req message", null );
+      }
+      else {
+        double r = ThreadLocalRandom.current().nextDouble();
+        if ( r < unavailableRate ) {
+          unavailable.increment();
+          exchange.sendResponseHeaders( 503, -1 );
+          return;
+        }
+        r -= unavailableRate;
+        if ( r < transientRate ) {
+          transientFailures.increment();
+          response = sendConf( transactionId[ 0 ], STATUS_TRANSIENT_FAILURE, "Try again later", null );
+        }
+        else if ( r - transientRate < permanentRate ) {
+          permanentFailures.increment();
+          response = sendConf( transactionId[ 0 ], STATUS_PERMANENT_FAILURE, "Rejected", null );
+        }
+        else {
+          accepted.increment();
+          response = sendConf( transactionId[ 0 ], STATUS_OK, null, messageIds.nextMessageId() );
+        }
+      }
+      exchange.getResponseHeaders().set( "Content-Type", MmscSubmitter.CONTENT_TYPE );
+      exchange.sendResponseHeaders( 200, response.length );
+      try ( OutputStream out = exchange.getResponseBody() ) {
+        out.write( response );
+      }
+    }
+    finally {
+      exchange.close();
+    }
+  }
+
+  /**
+   * Encode an "m-send-conf" message.
+   */
+  private static byte[] sendConf( String transactionId, int status, String text, String messageId )
+          throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream( 64 );
+    out.write( FIELD_MESSAGE_TYPE );
+    out.write( M_SEND_CONF );
+    out.write( FIELD_TRANSACTION_ID );
+    Wsp.writeText( transactionId == null ? "" : transactionId, out );
+    out.write( FIELD_MMS_VERSION );
+    out.write( MMS_VERSION );
+    out.write( FIELD_RESPONSE_STATUS );
+    out.write( status );
+    if ( text != null ) {
+      out.write( FIELD_RESPONSE_TEXT );
+      Wsp.writeText( text, out );
+    }
+    if ( messageId != null ) {
+      out.write( FIELD_MESSAGE_ID );
+      Wsp.writeText( messageId, out );
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] readFully( InputStream in ) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream( 8192 );
+    byte[] buf = new byte[ 8192 ];
+    for ( int n = in.read( buf ); n >= 0; n = in.read( buf ) ) {
+      if ( out.size() + n > MAX_REQUEST ) {
+        throw new IOException( "Request larger than " + MAX_REQUEST + " bytes" );
+      }
+      out.write( buf, 0, n );
+    }
+    return out.toByteArray();
+  }
+
+  public long getReceived() {
+    return received.sum();
+  }
+
+  public long getAccepted() {
+    return accepted.sum();
+  }
+
+  @Override
+  public String toString() {
+    return String.format( "Stub MMSC : %d received, %d accepted, %d unavailable, %d transient failures, "
+            + "%d permanent failures", getReceived(), getAccepted(), unavailable.sum(), transientFailures.sum(),
+            permanentFailures.sum() );
+  }
+
+  /**
+   * Stub MMSC application
+   *
+   * @param args application's input arguments
+   */
+  public static void main( String[] args ) throws IOException {
+    // The application takes options only :
+    // * --port <n> : listen on port "n" (8002 by default)
+    // * --threads <n> : serve the requests on "n" platform threads (64 by default)
+    // * --virtual : serve each request on its own virtual thread (Java 21 or later)
+    // * --latency <ms> : add a latency to every response
+    // * --unavailable <rate>, --transient <rate>, --permanent <rate> : fail that share of the requests
+    int port = DEFAULT_PORT;
+    int threads = 64;
+    boolean virtual = false;
+    long latency = 0;
+    double unavailable = 0;
+    double transientFailure = 0;
+    double permanentFailure = 0;
+    StubMmsc mmsc;
+    try {
+      for ( int i = 0; i < args.length; i++ ) {
+        switch ( args[ i ] ) {
+          case "--port": port = Integer.parseInt( args[ ++i ] ); break;
+          case "--threads": threads = Integer.parseInt( args[ ++i ] ); break;
+          case "--virtual": virtual = true; break;
+          case "--latency": latency = Long.parseLong( args[ ++i ] ); break;
+          case "--unavailable": unavailable = Double.parseDouble( args[ ++i ] ); break;
+          case "--transient": transientFailure = Double.parseDouble( args[ ++i ] ); break;
+          case "--permanent": permanentFailure = Double.parseDouble( args[ ++i ] ); break;
+          default: throw new IllegalArgumentException( "Unknown option : " + args[ i ] );
+        }
+      }
+      mmsc = new StubMmsc( threads, virtual );
+      mmsc.setLatency( latency );
+      mmsc.setFailures( unavailable, transientFailure, permanentFailure );
+    }
+    catch ( RuntimeException e ) {
+      System.err.println( e.getMessage() );
+      System.err.println( "Usage : StubMmsc [--port <n>] [--threads <n>] [--virtual] [--latency <ms>] [--unavailable <rate>] [--transient <rate>] [--permanent <rate>]" );
+      System.exit( 1 );
+      return;
+    }
+    mmsc.start( new InetSocketAddress( port ) );
+    System.out.println( "Stub MMSC listening on http://localhost:" + mmsc.getPort() + "/mmsc" );
+    Runtime.getRuntime().addShutdownHook( new Thread( () -> {
+      mmsc.close();
+      System.out.println( mmsc );
+    } ) );
+  }
+}
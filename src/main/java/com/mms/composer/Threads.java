@@ -0,0 +1,60 @@
+package com.mms.composer;
+
+/*
+ * @(#)Threads.java	1.1
+ *
+ * Summary
+ *
+ * Thread factories of the pipeline stages. Worker threads may either be platform threads or, on Java 21 and later,
+ * virtual threads. Virtual threads are looked up reflectively, so that the application still builds and runs on
+ * older Java versions ; asking for them on such a version fails with an "UnsupportedOperationException".
+ */
+
+// These imports are necessary for utilities.
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+final class Threads {
+
+  private Threads() {
+  }
+
+  /**
+   * Return a factory of named threads, "prefix-0", "prefix-1", etc.
+   *
+   * @param prefix prefix of the thread names
+   * @param virtual true for virtual threads, false for daemon platform threads
+   * @return the thread factory
+   * @throws UnsupportedOperationException if virtual threads are not available
+   */
+  static ThreadFactory factory( String prefix, boolean virtual ) {
+    if ( virtual ) {
+      return virtualFactory( prefix );
+    }
+    AtomicInteger count = new AtomicInteger();
+    return r -> {
+      Thread t = new Thread( r, prefix + "-" + count.getAndIncrement() );
+      t.setDaemon( true );
+      return t;
+    };
+  }
+
+  /**
+   * Return a factory of virtual threads, i.e. "Thread.ofVirtual().name( prefix + "-", 0 ).factory()".
+   */
+  private static ThreadFactory virtualFactory( String prefix ) {
+    try {
+      // Go through the public "Thread.Builder" interface, the builder itself being an internal class.
+      Class<?> builderType = Class.forName( "java.lang.Thread$Builder" );
+      Object builder = Thread.class.getMethod( "ofVirtual" ).invoke( null );
+      builder = builderType.getMethod( "name", String.class, long.class ).invoke( builder, prefix + "-", 0L );
+      return (ThreadFactory) builderType.getMethod( "factory" ).invoke( builder );
+    }
+    catch ( ClassNotFoundException | NoSuchMethodException e ) {
+      throw new UnsupportedOperationException( "Virtual threads require Java 21 or later" );
+    }
+    catch ( ReflectiveOperationException e ) {
+      throw new UnsupportedOperationException( "Virtual threads are not available : " + e );
+    }
+  }
+}
@@ -0,0 +1,304 @@
+package com.mms.composer;
+
+/*
+ * @(#)TranscodeCache.java	1.1
+ *
+ * Summary
+ *
+ * Content addressed cache of transcoded media : each result is keyed by the digest (SHA-256) of the source bytes and
+ * the name of the target profile (see "MediaTranscoder.Profile"), so that the same asset is transcoded once for a
+ * given profile, whichever template, file or message it comes from, and however many times its template is compiled.
+ *
+ * Concurrent lookups of the same key wait for a single transcoding rather than each doing their own. Results are held
+ * in memory, bounded by their total size (the least recently used ones are evicted) and, optionally, in a folder, so
+ * that they outlive the process : every batch run of a campaign then reuses the results of the previous ones. The
+ * files of the folder are named after a digest of their key, and written atomically.
+ *
+ * The cache is safe for use by multiple threads. Hit, miss and eviction counters are available for monitoring.
+ */
+
+// These imports are necessary for utilities.
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+public class TranscodeCache {
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+  // Default budget of the results held in memory, can be overridden with the "mms.transcode.cache.size" system
+  // property.
+  private static final long DEFAULT_MAX_BYTES = Long.getLong( "mms.transcode.cache.size", 32L * 1024 * 1024 );
+
+  /**
+   * Transcodes a media, on a cache miss.
+   */
+  public interface Transcoder {
+    /**
+     * Transcode the source media.
+     *
+     * @return the transcoded bytes
+     * @throws IOException if the media cannot be transcoded
+     */
+    byte[] transcode() throws IOException;
+  }
+
+  // Maximum total size, in bytes, of the results held in memory.
+  private final long maxBytes;
+  // Folder of the results, or null to keep them in memory only.
+  private final Path folder;
+  // Results in access order, i.e. the least recently used one comes first. Guarded by "this".
+  private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>( 16, 0.75f, true );
+  // Total size, in bytes, of the results held in memory. Guarded by "this".
+  private long residentBytes = 0;
+  // Transcodings in progress, which lookups of the same key wait for.
+  private final ConcurrentHashMap<String, CompletableFuture<byte[]>> pending = new ConcurrentHashMap<>();
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder diskHits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * Create a cache with the default budget.
+   *
+   * @param folder folder of the results, created if need be ; null to keep them in memory only
+   */
+  public TranscodeCache( Path folder ) {
+    this( DEFAULT_MAX_BYTES, folder );
+  }
+
+  /**
+   * Create a cache, backed by a folder.
+   *
+   * @param maxBytes maximum total size, in bytes, of the results held in memory
+   * @param folder folder of the results, created if need be ; null to keep them in memory only
+   */
+  public TranscodeCache( long maxBytes, Path folder ) {
+    if ( maxBytes < 0 ) {
+      throw new IllegalArgumentException( "Negative cache size : " + maxBytes );
+    }
+    this.maxBytes = maxBytes;
+    this.folder = folder;
+  }
+
+  /**
+   * Return the digest of some bytes, as used in the keys of the cache.
+   *
+   * @param bytes the bytes
+   * @return the SHA-256 digest of the bytes, in hexadecimal
+   */
+  public static String digest( byte[] bytes ) {
+    return hex( sha256().digest( bytes ) );
+  }
+
+  /**
+   * Return the transcoded media of a source and a profile, transcoding it only if it is not cached yet. The returned
+   * array is shared and must not be modified.
+   *
+   * @param sourceDigest digest of the source bytes (see "digest()")
+   * @param profile name of the target profile
+   * @param transcoder transcodes the source on a cache miss
+   * @return the transcoded bytes
+   * @throws IOException if the media cannot be transcoded
+   */
+  public byte[] get( String sourceDigest, String profile, Transcoder transcoder ) throws IOException {
+    String key = sourceDigest + "/" + profile;
+    byte[] cached = cached( key );
+    if ( cached != null ) {
+      return cached;
+    }
+    CompletableFuture<byte[]> mine = new CompletableFuture<>();
+    CompletableFuture<byte[]> theirs = pending.putIfAbsent( key, mine );
+    if ( theirs != null ) {
+      // Another thread transcodes it : wait for its result.
+      hits.increment();
+      try {
+        return theirs.join();
+      }
+      catch ( RuntimeException e ) {
+        Throwable cause = e.getCause() != null ? e.getCause() : e;
+        throw cause instanceof IOException ? (IOException) cause : new IOException( cause );
+      }
+    }
+    try {
+      // A transcoding of the same key may have completed, and left "pending", since the lookup above.
+      byte[] bytes = cached( key );
+      if ( bytes != null ) {
+        mine.complete( bytes );
+        return bytes;
+      }
+      bytes = load( key );
+      if ( bytes != null ) {
+        diskHits.increment();
+      }
+      else {
+        misses.increment();
+        bytes = transcoder.transcode();
+        store( key, bytes );
+      }
+      put( key, bytes );
+      mine.complete( bytes );
+      return bytes;
+    }
+    catch ( IOException | RuntimeException e ) {
+      mine.completeExceptionally( e );
+      throw e;
+    }
+    finally {
+      pending.remove( key, mine );
+    }
+  }
+
+  /**
+   * Return the result of a key held in memory, if any, counting it as a hit.
+   */
+  private synchronized byte[] cached( String key ) {
+    byte[] bytes = entries.get( key );
+    if ( bytes != null ) {
+      hits.increment();
+    }
+    return bytes;
+  }
+
+  private synchronized void put( String key, byte[] bytes ) {
+    if ( bytes.length > maxBytes ) {
+      return;
+    }
+    byte[] previous = entries.put( key, bytes );
+    if ( previous != null ) {
+      residentBytes -= previous.length;
+    }
+    residentBytes += bytes.length;
+    Iterator<Map.Entry<String, byte[]>> eldest = entries.entrySet().iterator();
+    while ( residentBytes > maxBytes && eldest.hasNext() ) {
+      residentBytes -= eldest.next().getValue().length;
+      eldest.remove();
+      evictions.increment();
+    }
+  }
+
+  /**
+   * Read the result of a key from the folder, if any.
+   */
+  private byte[] load( String key ) throws IOException {
+    if ( folder == null ) {
+      return null;
+    }
+    try {
+      return Files.readAllBytes( file( key ) );
+    }
+    catch ( NoSuchFileException e ) {
+      return null;
+    }
+  }
+
+  /**
+   * Write the result of a key to the folder, if any : to a temporary file first, then moved in place, so that a
+   * reader never sees a partial result.
+   */
+  private void store( String key, byte[] bytes ) throws IOException {
+    if ( folder == null ) {
+      return;
+    }
+    Files.createDirectories( folder );
+    Path file = file( key );
+    Path temporary = Files.createTempFile( folder, file.getFileName().toString(), ".tmp" );
+    try {
+      Files.write( temporary, bytes );
+      Files.move( temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+    }
+    finally {
+      Files.deleteIfExists( temporary );
+    }
+  }
+
+  private Path file( String key ) {
+    return folder.resolve( hex( sha256().digest( key.getBytes( StandardCharsets.UTF_8 ) ) ) + ".bin" );
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance( "SHA-256" );
+    }
+    catch ( NoSuchAlgorithmException e ) {
+      // Every Java platform supports SHA-256.
+      throw new IllegalStateException( e );
+    }
+  }
+
+  static String hex( byte[] bytes ) {
+    char[] chars = new char[ bytes.length * 2 ];
+    for ( int i = 0; i < bytes.length; i++ ) {
+      chars[ 2 * i ] = HEX[ ( bytes[ i ] >> 4 ) & 0x0F ];
+      chars[ 2 * i + 1 ] = HEX[ bytes[ i ] & 0x0F ];
+    }
+    return new String( chars );
+  }
+
+  /**
+   * Remove all the results held in memory ; those of the folder are kept. The counters are left untouched.
+   */
+  public synchronized void clear() {
+    entries.clear();
+    residentBytes = 0;
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  /**
+   * Return the number of results read from the folder, i.e. transcoded by a previous run.
+   *
+   * @return number of results read from the folder
+   */
+  public long getDiskHits() {
+    return diskHits.sum();
+  }
+
+  /**
+   * Return the number of misses, i.e. of transcodings.
+   *
+   * @return number of media transcoded
+   */
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  public synchronized long getResidentBytes() {
+    return residentBytes;
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public Path getFolder() {
+    return folder;
+  }
+
+  @Override
+  public String toString() {
+    return String.format( "Transcode cache : %d entries, %d/%d bytes, %d hits, %d from disk, %d transcoded, "
+            + "%d evictions", size(), getResidentBytes(), maxBytes, getHits(), getDiskHits(), getMisses(),
+            getEvictions() );
+  }
+}
@@ -0,0 +1,218 @@
+package com.mms.composer;
+
+/*
+ * @(#)Wsp.java	1.1
+ *
+ * Summary
+ *
+ * Primitives of the WSP binary encoding (WAP-230-WSP, section 8.4) that are used by the MMS encapsulation
+ * (WAP-209-MMSEncapsulation) : well known media types, "Uintvar" and "Long-integer" numbers, "Value-length"
+ * and text strings. They are shared by the encoders and the decoders of this package.
+ */
+
+// These imports are necessary for utilities.
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+final class Wsp {
+  // Well known media types (WAP-203-WSP, Table 40), indexed by their assigned number.
+  static final String[] WELL_KNOWN_MEDIA = {
+    "*/*", "text/*", "text/html", "text/plain", "text/x-hdml", "text/x-ttml", "text/x-vCalendar", "text/x-vCard",
+    "text/vnd.wap.wml", "text/vnd.wap.wmlscript", "text/vnd.wap.channel", "multipart/*", "multipart/mixed",
+    "multipart/form-data", "multipart/byteranges", "multipart/alternative", "application/*", "application/java-vm",
+    "application/x-www-form-urlencoded", "application/x-hdmlc", "application/vnd.wap.wmlc",
+    "application/vnd.wap.wmlscriptc", "application/vnd.wap.channelc", "application/vnd.wap.uaprof",
+    "application/vnd.wap.wtls-ca-certificate", "application/vnd.wap.wtls-user-certificate",
+    "application/x-x509-ca-cert", "application/x-x509-user-cert", "image/*", "image/gif", "image/jpeg", "image/tiff",
+    "image/png", "image/vnd.wap.wbmp", "application/vnd.wap.multipart.*", "application/vnd.wap.multipart.mixed",
+    "application/vnd.wap.multipart.form-data", "application/vnd.wap.multipart.byteranges",
+    "application/vnd.wap.multipart.alternative", "application/xml", "text/xml", "application/vnd.wap.wbxml",
+    "application/x-x968-cross-cert", "application/x-x968-ca-cert", "application/x-x968-user-cert",
+    "text/vnd.wap.si", "application/vnd.wap.sic", "text/vnd.wap.sl", "application/vnd.wap.slc", "text/vnd.wap.co",
+    "application/vnd.wap.coc", "application/vnd.wap.multipart.related", "application/vnd.wap.sia",
+    "text/vnd.wap.connectivity-xml", "application/vnd.wap.connectivity-wbxml"
+  };
+
+  // Assigned numbers of the well known media types, keyed by their lower case name.
+  private static final Map<String, Integer> MEDIA_NUMBERS = new HashMap<>();
+  static {
+    for ( int i = 0; i < WELL_KNOWN_MEDIA.length; i++ ) {
+      MEDIA_NUMBERS.put( WELL_KNOWN_MEDIA[ i ].toLowerCase( Locale.ROOT ), i );
+    }
+  }
+
+  // Assigned number of "text/plain".
+  static final int TEXT_PLAIN = 0x03;
+  // Assigned number of "application/vnd.wap.multipart.related".
+  static final int MULTIPART_RELATED = 0x33;
+  // Assigned number of "application/vnd.wap.multipart.mixed".
+  static final int MULTIPART_MIXED = 0x23;
+  // Well known parameters "Charset", "Type" (multipart related) and "Start" (multipart related), as short integers.
+  static final int PARAM_CHARSET = 0x81;
+  static final int PARAM_TYPE = 0x89;
+  static final int PARAM_START = 0x8A;
+  // Assigned number of the "us-ascii" charset, as a short integer.
+  static final int CHARSET_US_ASCII = 0x83;
+  // Header field names of a multipart entry : "Content-Location" and "Content-ID" (as a short integer, and as
+  // the well known header "Content-ID" that the Nokia MMS Java Library writes, i.e. 0xC0 followed by a quote).
+  static final int HEADER_CONTENT_LOCATION = 0x8E;
+  static final int HEADER_CONTENT_ID = 0xC0;
+  // Quote that starts a quoted string.
+  static final int QUOTE = 0x22;
+  // Largest "Short-length" (WAP-230-WSP, 8.4.2.2) ; longer lengths are written as "Length-quote" + "Uintvar".
+  static final int SHORT_LENGTH_MAX = 30;
+  static final int LENGTH_QUOTE = 31;
+
+  private Wsp() {
+  }
+
+  /**
+   * Return the assigned number of a well known media type.
+   *
+   * @param type media type, e.g. "image/gif" (case insensitive)
+   * @return the assigned number, or -1 if the type is not well known
+   */
+  static int wellKnownMedia( String type ) {
+    Integer number = MEDIA_NUMBERS.get( type.toLowerCase( Locale.ROOT ) );
+    return number == null ? -1 : number;
+  }
+
+  /**
+   * Return the media type of an assigned number.
+   *
+   * @param number assigned number (0-54)
+   * @return the media type, or null if the number is not assigned
+   */
+  static String wellKnownMedia( int number ) {
+    return number >= 0 && number < WELL_KNOWN_MEDIA.length ? WELL_KNOWN_MEDIA[ number ] : null;
+  }
+
+  /**
+   * Return the number of bytes of a "Uintvar", i.e. 7 bits per byte, most significant first.
+   *
+   * @param value the number (non negative)
+   * @return number of bytes
+   */
+  static int uintvarLength( long value ) {
+    int length = 1;
+    while ( ( value >>>= 7 ) != 0 ) {
+      length++;
+    }
+    return length;
+  }
+
+  /**
+   * Write a "Uintvar" into an array of bytes.
+   *
+   * @param value the number (non negative)
+   * @param buf the array
+   * @param pos position of the first byte
+   * @return position after the last byte
+   */
+  static int putUintvar( long value, byte[] buf, int pos ) {
+    int length = uintvarLength( value );
+    for ( int i = length - 1; i >= 0; i-- ) {
+      int septet = (int) ( value >>> ( 7 * i ) ) & 0x7F;
+      buf[ pos++ ] = (byte) ( i > 0 ? septet | 0x80 : septet );
+    }
+    return pos;
+  }
+
+  /**
+   * Read a "Uintvar" from a buffer, at its position.
+   *
+   * @param buf the buffer
+   * @return the number
+   * @throws java.nio.BufferUnderflowException if the buffer ends within the number
+   * @throws IllegalArgumentException if the number is longer than 5 bytes, i.e. beyond 32 bits
+   */
+  static long getUintvar( ByteBuffer buf ) {
+    long value = 0;
+    for ( int i = 0; i < 5; i++ ) {
+      int b = buf.get() & 0xFF;
+      value = ( value << 7 ) | ( b & 0x7F );
+      if ( ( b & 0x80 ) == 0 ) {
+        return value;
+      }
+    }
+    throw new IllegalArgumentException( "Uintvar longer than 5 bytes" );
+  }
+
+  /**
+   * Write a "Uintvar" to a stream.
+   *
+   * @param value the number (non negative)
+   * @param out the stream
+   * @throws IOException if the stream cannot be written
+   */
+  static void writeUintvar( long value, OutputStream out ) throws IOException {
+    for ( int i = uintvarLength( value ) - 1; i >= 0; i-- ) {
+      int septet = (int) ( value >>> ( 7 * i ) ) & 0x7F;
+      out.write( i > 0 ? septet | 0x80 : septet );
+    }
+  }
+
+  /**
+   * Write a "Value-length" to a stream : a single byte up to 30, otherwise 31 followed by a "Uintvar".
+   *
+   * @param length the length
+   * @param out the stream
+   * @throws IOException if the stream cannot be written
+   */
+  static void writeValueLength( long length, OutputStream out ) throws IOException {
+    if ( length <= SHORT_LENGTH_MAX ) {
+      out.write( (int) length );
+    }
+    else {
+      out.write( LENGTH_QUOTE );
+      writeUintvar( length, out );
+    }
+  }
+
+  /**
+   * Return the number of significant bytes of a "Long-integer" value, i.e. big endian without leading zero bytes.
+   * Like the Nokia MMS Java Library, zero has no significant bytes.
+   *
+   * @param value the number (non negative)
+   * @return number of bytes (0-8)
+   */
+  static int longIntegerLength( long value ) {
+    int length = 0;
+    while ( value != 0 ) {
+      value >>>= 8;
+      length++;
+    }
+    return length;
+  }
+
+  /**
+   * Write a "Long-integer" to a stream : its "Short-length" followed by its significant bytes.
+   *
+   * @param value the number (non negative)
+   * @param out the stream
+   * @throws IOException if the stream cannot be written
+   */
+  static void writeLongInteger( long value, OutputStream out ) throws IOException {
+    int length = longIntegerLength( value );
+    out.write( length );
+    for ( int i = length - 1; i >= 0; i-- ) {
+      out.write( (int) ( value >>> ( 8 * i ) ) & 0xFF );
+    }
+  }
+
+  /**
+   * Write a null terminated text string to a stream.
+   *
+   * @param text the text, encoded with the platform charset (as the Nokia MMS Java Library does)
+   * @param out the stream
+   * @throws IOException if the stream cannot be written
+   */
+  static void writeText( String text, OutputStream out ) throws IOException {
+    out.write( text.getBytes() );
+    out.write( 0 );
+  }
+}
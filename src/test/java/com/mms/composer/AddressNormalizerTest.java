@@ -0,0 +1,60 @@
+package com.mms.composer;
+
+/*
+ * @(#)AddressNormalizerTest.java	1.1
+ *
+ * Summary
+ *
+ * Tests of the "AddressNormalizer" : phone numbers, e-mail and IPv4 addresses, written the ways they are in
+ * recipient lists, are normalized to their full format, and anything else is refused.
+ */
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class AddressNormalizerTest {
+  private final AddressNormalizer normalizer = new AddressNormalizer();
+
+  @Test
+  public void phoneNumbers() {
+    assertNormalized( "+306900000000/TYPE=PLMN", "+30 (690) 000-0000", AddressNormalizer.Type.PLMN );
+    assertNormalized( "+306900000000/TYPE=PLMN", "+30.690.000.0000/type=plmn", AddressNormalizer.Type.PLMN );
+    assertNormalized( "6900000000/TYPE=PLMN", " 690 000 0000 ", AddressNormalizer.Type.PLMN );
+    assertNormalized( "112/TYPE=PLMN", "112", AddressNormalizer.Type.PLMN );
+  }
+
+  @Test
+  public void emailAddresses() {
+    assertNormalized( "Joe@user.org", "Joe@User.ORG", AddressNormalizer.Type.EMAIL );
+    assertNormalized( "first.last+tag@mail-1.example.com", "first.last+tag@Mail-1.Example.com",
+            AddressNormalizer.Type.EMAIL );
+  }
+
+  @Test
+  public void ipv4Addresses() {
+    assertNormalized( "10.1.1.1/TYPE=IPv4", "010.1.1.1", AddressNormalizer.Type.IPV4 );
+    assertNormalized( "255.0.0.1/TYPE=IPv4", "255.000.0.1/TYPE=ipv4", AddressNormalizer.Type.IPV4 );
+  }
+
+  @Test
+  public void normalizedAddressIsKept() {
+    String address = "+306900000000/TYPE=PLMN";
+    assertSame( address, normalizer.normalize( address ) );
+  }
+
+  @Test
+  public void invalidAddresses() {
+    for ( String address : new String[] { "", "   ", "a@b@c", "@user.org", "joe.@user.org", "joe@user..org",
+            "joe@-user.org", "joe@user-", "12", "+3069000000000000", "690-CALL-NOW", "256.1.1.1",
+            "1.2.3.4/TYPE=IPv6", "joe@user.org/TYPE=IPv4", "+306900000000/TYPE=FAX", "Jo\u00e9@user.org" } ) {
+      assertNull( address, normalizer.normalize( address ) );
+      assertNull( address, normalizer.getType() );
+    }
+  }
+
+  private void assertNormalized( String expected, String address, AddressNormalizer.Type type ) {
+    assertEquals( address, expected, normalizer.normalize( address ) );
+    assertEquals( address, type, normalizer.getType() );
+  }
+}
@@ -0,0 +1,99 @@
+package com.mms.composer;
+
+/*
+ * @(#)IdGeneratorTest.java	1.1
+ *
+ * Summary
+ *
+ * Tests of the "IdGenerator" : the IDs generated by many threads on many nodes at once are unique and increasing
+ * on each thread, even beyond 4096 IDs within a millisecond, and carry the time and node they were generated at.
+ */
+
+import static org.junit.Assert.*;
+
+// These imports are necessary for utilities.
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class IdGeneratorTest {
+  private static final int NODES = 2;
+  private static final int THREADS = 4;
+  private static final int COUNT = 100_000;
+
+  @Test
+  public void uniqueAcrossThreadsAndNodes() throws InterruptedException {
+    long[][] ids = new long[ NODES * THREADS ][];
+    boolean[] ordered = new boolean[ ids.length ];
+    Thread[] workers = new Thread[ ids.length ];
+    for ( int n = 0; n < NODES; n++ ) {
+      IdGenerator generator = new IdGenerator( n );
+      for ( int t = 0; t < THREADS; t++ ) {
+        int w = n * THREADS + t;
+        long[] generated = ids[ w ] = new long[ COUNT ];
+        workers[ w ] = new Thread( () -> {
+          boolean increasing = true;
+          for ( int i = 0; i < generated.length; i++ ) {
+            generated[ i ] = generator.next();
+            increasing &= i == 0 || generated[ i ] > generated[ i - 1 ];
+          }
+          ordered[ w ] = increasing;
+        }, "ids-" + n + "-" + t );
+        workers[ w ].start();
+      }
+    }
+    for ( Thread worker : workers ) {
+      worker.join();
+    }
+    long[] all = new long[ ids.length * COUNT ];
+    for ( int w = 0; w < ids.length; w++ ) {
+      assertTrue( "IDs of thread " + w + " out of order", ordered[ w ] );
+      System.arraycopy( ids[ w ], 0, all, w * COUNT, COUNT );
+    }
+    Arrays.sort( all );
+    for ( int i = 1; i < all.length; i++ ) {
+      assertNotEquals( "Duplicate ID", all[ i - 1 ], all[ i ] );
+    }
+  }
+
+  @Test
+  public void sequenceOverflow() {
+    // More than 4096 IDs within the same millisecond go on in the next milliseconds, ahead of the clock.
+    IdGenerator generator = new IdGenerator( 7 );
+    long now = System.currentTimeMillis();
+    long previous = 0;
+    for ( int i = 0; i < 3 * 4096; i++ ) {
+      long id = generator.next( now );
+      assertTrue( id > previous );
+      assertEquals( now + i / 4096, IdGenerator.getTimestamp( id ) );
+      previous = id;
+    }
+  }
+
+  @Test
+  public void clockSetBack() {
+    IdGenerator generator = new IdGenerator( 1 );
+    long now = System.currentTimeMillis();
+    long id = generator.next( now );
+    assertTrue( generator.next( now - 60_000L ) > id );
+  }
+
+  @Test
+  public void fields() {
+    long now = System.currentTimeMillis();
+    long id = new IdGenerator( IdGenerator.MAX_NODE ).next( now );
+    assertEquals( IdGenerator.MAX_NODE, IdGenerator.getNode( id ) );
+    assertEquals( now, IdGenerator.getTimestamp( id ) );
+    String transactionId = IdGenerator.toTransactionId( id );
+    assertEquals( IdGenerator.TRANSACTION_ID_DIGITS, transactionId.length() );
+    assertEquals( id, Long.parseLong( transactionId ) );
+    String messageId = IdGenerator.toMessageId( id );
+    assertEquals( 16, messageId.length() );
+    assertEquals( id, Long.parseLong( messageId, 16 ) );
+  }
+
+  @Test( expected = IllegalArgumentException.class )
+  public void invalidNode() {
+    new IdGenerator( IdGenerator.MAX_NODE + 1 );
+  }
+}
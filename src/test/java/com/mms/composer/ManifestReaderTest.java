@@ -0,0 +1,81 @@
+package com.mms.composer;
+
+/*
+ * @(#)ManifestReaderTest.java	1.1
+ *
+ * Summary
+ *
+ * Tests of the "ManifestReader" : rows of CSV and JSON Lines manifests, and rows whose key, i.e. the name of their
+ * output file, is the key of an earlier row, which are reported as malformed rather than overwriting its message.
+ */
+
+import static org.junit.Assert.*;
+
+// These imports are necessary for utilities.
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ManifestReaderTest {
+  @Test
+  public void csv() throws IOException {
+    List<ManifestEntry> entries = new ArrayList<>();
+    int malformed = read( "\uFEFFsubject,Recipient,originator,id\n\"Hello, \"\"world\"\"\",+306900000000,me,c-0001\n"
+            + "Hi,+306900000001,me,\n", entries );
+    assertEquals( 0, malformed );
+    assertEquals( 2, entries.size() );
+    assertEquals( "Hello, \"world\"", entries.get( 0 ).getSubject() );
+    assertEquals( "c-0001", entries.get( 0 ).getKey() );
+    assertEquals( "00000001", entries.get( 1 ).getKey() );
+  }
+
+  @Test
+  public void jsonLines() throws IOException {
+    List<ManifestEntry> entries = new ArrayList<>();
+    int malformed = read( "{\"originator\":\"me\",\"recipient\":\"+306900000000\",\"subject\":\"Hi\",\"id\":\"a/b\"}\n"
+            + "{\"originator\":\"me\"}\n", entries );
+    assertEquals( 1, malformed );
+    assertEquals( 1, entries.size() );
+    assertEquals( "a_b", entries.get( 0 ).getKey() );
+  }
+
+  @Test
+  public void duplicateKeys() throws IOException {
+    List<ManifestEntry> entries = new ArrayList<>();
+    // "a/b" and "a_b" share a key, and so do "Key" and "key" on some file systems, and the id "00000001" and the
+    // sequence number of the second row.
+    int malformed = read( "originator,recipient,subject,id\nme,+306900000000,Hi,a/b\nme,+306900000001,Hi,\n"
+            + "me,+306900000002,Hi,a_b\nme,+306900000003,Hi,Key\nme,+306900000004,Hi,key\n"
+            + "me,+306900000005,Hi,00000001\nme,+306900000006,Hi,c\n", entries );
+    assertEquals( 3, malformed );
+    List<String> keys = new ArrayList<>();
+    for ( ManifestEntry entry : entries ) {
+      keys.add( entry.getKey() );
+    }
+    assertEquals( "[a_b, 00000001, Key, c]", keys.toString() );
+  }
+
+  /**
+   * Read a manifest, and return the number of malformed rows.
+   */
+  private static int read( String manifest, List<ManifestEntry> entries ) throws IOException {
+    int malformed = 0;
+    try ( ManifestReader reader = new ManifestReader( new StringReader( manifest ), "test" ) ) {
+      while ( true ) {
+        try {
+          ManifestEntry entry = reader.next();
+          if ( entry == null ) {
+            return malformed;
+          }
+          entries.add( entry );
+        }
+        catch ( ManifestReader.MalformedRowException e ) {
+          malformed++;
+        }
+      }
+    }
+  }
+}
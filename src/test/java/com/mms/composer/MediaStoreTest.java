@@ -0,0 +1,89 @@
+package com.mms.composer;
+
+/*
+ * @(#)MediaStoreTest.java	1.1
+ *
+ * Summary
+ *
+ * Tests of the "MediaStore" : when the budget is exceeded, only as many of the least recently used media that
+ * nobody else references are evicted as it takes to fit the budget again.
+ */
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class MediaStoreTest {
+  private static final int LENGTH = 100;
+
+  @Test
+  public void evictsEldestOnly() {
+    MediaStore store = new MediaStore( 3 * LENGTH );
+    put( store, "a" ).release();
+    put( store, "b" ).release();
+    put( store, "c" ).release();
+    assertEquals( 3 * LENGTH, store.getResidentBytes() );
+    put( store, "d" ).release();
+    assertEquals( 1, store.getEvictions() );
+    assertEquals( 3, store.size() );
+    assertEquals( 3 * LENGTH, store.getResidentBytes() );
+    assertEquals( 3 * LENGTH, store.getCachedBytes() );
+    assertNull( store.get( "a" ) );
+    for ( String key : new String[] { "b", "c", "d" } ) {
+      MediaStore.Media media = store.get( key );
+      assertNotNull( key, media );
+      media.release();
+    }
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsed() {
+    MediaStore store = new MediaStore( 3 * LENGTH );
+    put( store, "a" ).release();
+    put( store, "b" ).release();
+    put( store, "c" ).release();
+    store.get( "a" ).release();
+    put( store, "d" ).release();
+    assertEquals( 1, store.getEvictions() );
+    assertNull( store.get( "b" ) );
+    assertEquals( 3, store.size() );
+  }
+
+  @Test
+  public void keepsMediaInUse() {
+    MediaStore store = new MediaStore( 3 * LENGTH );
+    MediaStore.Media a = put( store, "a" );
+    put( store, "b" ).release();
+    put( store, "c" ).release();
+    put( store, "d" ).release();
+    // "a" is still referenced : "b" goes instead.
+    assertEquals( 1, store.getEvictions() );
+    assertNull( store.get( "b" ) );
+    assertEquals( LENGTH, a.buffer().remaining() );
+    a.release();
+    assertEquals( 3 * LENGTH, store.getResidentBytes() );
+  }
+
+  @Test
+  public void overBudgetWhileInUse() {
+    MediaStore store = new MediaStore( 2 * LENGTH );
+    MediaStore.Media a = put( store, "a" );
+    MediaStore.Media b = put( store, "b" );
+    MediaStore.Media c = put( store, "c" );
+    assertEquals( 0, store.getEvictions() );
+    assertEquals( 3 * LENGTH, store.getResidentBytes() );
+    // Once released, only the eldest is evicted.
+    a.release();
+    b.release();
+    c.release();
+    assertEquals( 1, store.getEvictions() );
+    assertEquals( 2 * LENGTH, store.getResidentBytes() );
+    assertNull( store.get( "a" ) );
+    store.close();
+    assertEquals( 0, store.getResidentBytes() );
+  }
+
+  private static MediaStore.Media put( MediaStore store, String key ) {
+    return store.put( key, new byte[ LENGTH ], 0, LENGTH );
+  }
+}
@@ -0,0 +1,68 @@
+package com.mms.composer;
+
+/*
+ * @(#)MessageStoreTest.java	1.1
+ *
+ * Summary
+ *
+ * Tests of the "MessageStore" : a stored message, on or off the heap, is served as an "m-retrieve-conf" message,
+ * in full or by range, even when its body is a view of a larger buffer, e.g. one shared with other messages.
+ */
+
+import static org.junit.Assert.*;
+
+// These imports are necessary for utilities.
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class MessageStoreTest {
+  private static final byte[] HEADER = { (byte) 0x8C, (byte) 0x84, (byte) 0x98, '1', 0 };
+
+  @Test
+  public void rangesOnHeap() {
+    ranges( false );
+  }
+
+  @Test
+  public void rangesOffHeap() {
+    ranges( true );
+  }
+
+  private static void ranges( boolean direct ) {
+    byte[] shared = new byte[ 100 ];
+    for ( int i = 0; i < shared.length; i++ ) {
+      shared[ i ] = (byte) i;
+    }
+    // The body is the middle of the shared buffer.
+    ByteBuffer body = ByteBuffer.wrap( shared, 30, 40 );
+    MessageStore store = new MessageStore( 1 << 20, direct );
+    assertTrue( store.put( "1", HEADER, HEADER.length, body ) );
+    assertEquals( 30, body.position() );
+    MessageStore.Message message = store.get( "1" );
+    assertEquals( HEADER.length + 40, message.getLength() );
+    byte[] expected = new byte[ HEADER.length + 40 ];
+    System.arraycopy( HEADER, 0, expected, 0, HEADER.length );
+    System.arraycopy( shared, 30, expected, HEADER.length, 40 );
+    assertArrayEquals( expected, read( message, 0, message.getLength() ) );
+    // A range across the header block and the body, and one within the body.
+    assertArrayEquals( copy( expected, 3, 10 ), read( message, 3, 10 ) );
+    assertArrayEquals( copy( expected, HEADER.length + 5, 20 ), read( message, HEADER.length + 5, 20 ) );
+    assertArrayEquals( copy( expected, expected.length - 1, 1 ), read( message, expected.length - 1, 1 ) );
+  }
+
+  private static byte[] read( MessageStore.Message message, long offset, long count ) {
+    ByteBuffer out = ByteBuffer.allocate( (int) count );
+    for ( ByteBuffer view : message.slice( offset, count ) ) {
+      out.put( view );
+    }
+    assertFalse( out.hasRemaining() );
+    return out.array();
+  }
+
+  private static byte[] copy( byte[] bytes, int offset, int count ) {
+    byte[] range = new byte[ count ];
+    System.arraycopy( bytes, offset, range, 0, count );
+    return range;
+  }
+}
@@ -0,0 +1,164 @@
+package com.mms.composer;
+
+/*
+ * @(#)MessageTemplateTest.java	1.1
+ *
+ * Summary
+ *
+ * Differential tests of the "MessageTemplate" : a message encoded as a header block, written by the "HeaderWriter"
+ * of the template, followed by the shared body must be, byte for byte, the message encoded in full by the library,
+ * whether it goes to a single recipient or to a group of "To", "Cc" and "Bcc" recipients. The header block of an
+ * "m-retrieve-conf" message, written to files and segments, must be the one encoded by the "HeaderEncoder", without
+ * the "Bcc" recipients and the other fields that only apply to the submission of a message. The probe message of
+ * the template is not timed in the metrics of the composer.
+ */
+
+import static org.junit.Assert.*;
+
+// These imports are necessary for utilities.
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+// Nokia MMS Java Library version 1.1
+import com.nokia.mms.*;
+
+public class MessageTemplateTest {
+  private static final String ORIGINATOR = "made by Aristotelis";
+  private static final String RECIPIENT = "check@template.org";
+  private static final String SUBJECT = "Differential check";
+
+  private static SampleMMSComposer composer;
+  private static MessageTemplate template;
+
+  @BeforeClass
+  public static void setUp() throws Exception {
+    composer = new SampleMMSComposer();
+    template = MessageTemplate.compile( composer );
+  }
+
+  @AfterClass
+  public static void tearDown() {
+    template.close();
+  }
+
+  @Test
+  public void recipient() throws Exception {
+    MMMessage m = composer.compose( ORIGINATOR, RECIPIENT, SUBJECT );
+    HeaderWriter.Buffer header = sendReq().write( ORIGINATOR, RECIPIENT, SUBJECT, transactionId( m ), date( m ) );
+    assertArrayEquals( composer.encode( m ), withBody( header ) );
+  }
+
+  @Test
+  public void recipientRetrieveConf() throws Exception {
+    MMMessage m = composer.compose( ORIGINATOR, RECIPIENT, SUBJECT );
+    HeaderWriter.Buffer header = retrieveConf().write( ORIGINATOR, RECIPIENT, SUBJECT, transactionId( m ),
+            date( m ) );
+    assertArrayEquals( retrieveConfHeader( m ), header.toByteArray() );
+  }
+
+  @Test
+  public void group() throws Exception {
+    RecipientList.Group recipients = group( "+306900000000/TYPE=PLMN", "to:" + RECIPIENT, "cc:10.0.0.1/TYPE=IPv4",
+            "bcc:+306900000001/TYPE=PLMN" );
+    MMMessage m = composer.compose( ORIGINATOR, recipients, SUBJECT );
+    HeaderWriter.Buffer header = sendReq().write( ORIGINATOR, recipients, SUBJECT, transactionId( m ), date( m ) );
+    assertArrayEquals( composer.encode( m ), withBody( header ) );
+  }
+
+  @Test
+  public void groupRetrieveConf() throws Exception {
+    // The "Bcc" recipients of the group are left out, as the "HeaderEncoder" leaves them out.
+    RecipientList.Group recipients = group( "+306900000000/TYPE=PLMN", "to:" + RECIPIENT, "cc:10.0.0.1/TYPE=IPv4",
+            "bcc:+306900000001/TYPE=PLMN", "bcc:joe@user.org" );
+    MMMessage m = composer.compose( ORIGINATOR, recipients, SUBJECT );
+    HeaderWriter.Buffer header = retrieveConf().write( ORIGINATOR, recipients, SUBJECT, transactionId( m ),
+            date( m ) );
+    byte[] encoded = header.toByteArray();
+    assertArrayEquals( retrieveConfHeader( m ), encoded );
+    assertEquals( MmsEncoder.MESSAGE_TYPE_M_RETRIEVE_CONF, encoded[ 1 ] & 0xFF );
+
+    // The whole message decodes without the "Bcc" recipients.
+    MmsDecoder.Headers[] headers = new MmsDecoder.Headers[ 1 ];
+    new MmsDecoder().decode( ByteBuffer.wrap( withBody( header ) ), new MmsDecoder.Handler() {
+      @Override
+      public boolean headers( MmsDecoder.Headers h ) {
+        headers[ 0 ] = h;
+        return false;
+      }
+
+      @Override
+      public boolean part( MmsDecoder.Part part ) {
+        return false;
+      }
+    } );
+    assertEquals( MmsEncoder.MESSAGE_TYPE_M_RETRIEVE_CONF, headers[ 0 ].getMessageType() );
+    assertEquals( Arrays.asList( "+306900000000/TYPE=PLMN", RECIPIENT ), headers[ 0 ].getTo() );
+    assertEquals( Arrays.asList( "10.0.0.1/TYPE=IPv4" ), headers[ 0 ].getCc() );
+    assertTrue( headers[ 0 ].getBcc().isEmpty() );
+  }
+
+  @Test
+  public void probeNotTimed() throws Exception {
+    SampleMMSComposer other = new SampleMMSComposer();
+    PipelineMetrics metrics = new PipelineMetrics();
+    other.setMetrics( metrics );
+    MessageTemplate.compile( other ).close();
+    // The probe message is not one of the messages of the composer.
+    for ( PipelineMetrics.Stage stage : new PipelineMetrics.Stage[] { PipelineMetrics.Stage.SET_HEADERS,
+            PipelineMetrics.Stage.ADD_CONTENTS, PipelineMetrics.Stage.ENCODE } ) {
+      assertEquals( stage.toString(), 0, metrics.getLatencies( stage ).getCount() );
+    }
+  }
+
+  @Test
+  public void encode() throws Exception {
+    byte[] message = template.encode( ORIGINATOR, RECIPIENT, SUBJECT );
+    byte[] header = template.encodeHeader( ORIGINATOR, RECIPIENT, SUBJECT );
+    assertEquals( header.length + template.getBodyLength(), message.length );
+    ByteBuffer body = template.getBody();
+    assertEquals( body, ByteBuffer.wrap( message, message.length - body.remaining(), body.remaining() ) );
+  }
+
+  private static HeaderWriter sendReq() {
+    return template.getHeaderWriter( MmsEncoder.MESSAGE_TYPE_M_SEND_REQ );
+  }
+
+  private static HeaderWriter retrieveConf() {
+    return template.getHeaderWriter( MmsEncoder.MESSAGE_TYPE_M_RETRIEVE_CONF );
+  }
+
+  private static byte[] retrieveConfHeader( MMMessage m ) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    HeaderEncoder.encode( m, HeaderEncoder.MESSAGE_TYPE_M_RETRIEVE_CONF, out );
+    return out.toByteArray();
+  }
+
+  private static RecipientList.Group group( String... lines ) {
+    RecipientList list = new RecipientList();
+    for ( String line : lines ) {
+      assertTrue( line, list.add( line ) );
+    }
+    return list.group( list.size() ).get( 0 );
+  }
+
+  private static long transactionId( MMMessage m ) {
+    return Long.parseLong( m.getTransactionId() );
+  }
+
+  private static long date( MMMessage m ) {
+    return m.getDate().getTime() / 1000L;
+  }
+
+  private static byte[] withBody( HeaderWriter.Buffer header ) {
+    byte[] encoded = header.toByteArray();
+    ByteBuffer body = template.getBody();
+    byte[] message = Arrays.copyOf( encoded, encoded.length + body.remaining() );
+    body.get( message, encoded.length, body.remaining() );
+    return message;
+  }
+}
@@ -0,0 +1,172 @@
+package com.mms.composer;
+
+/*
+ * @(#)MmsEncoderTest.java	1.1
+ *
+ * Summary
+ *
+ * Round-trip tests of the "MmsEncoder" : the sample message of "SampleMMSComposer", with "To", "Cc" and "Bcc"
+ * recipients, is encoded both as "m-send-req" and as "m-retrieve-conf", to a stream and into a direct buffer, then
+ * decoded with the "MMDecoder" of the library and with "MmsDecoder". The addresses, the subject and the parts, in
+ * order, must come back as they were encoded, the "Bcc" recipients being left out of the "m-retrieve-conf". A text
+ * that starts with a double quote keeps it, while the "Content-ID" of a part, a quoted string, loses its quote.
+ */
+
+import static org.junit.Assert.*;
+
+// These imports are necessary for utilities.
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Vector;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+// Nokia MMS Java Library version 1.1
+import com.nokia.mms.*;
+
+public class MmsEncoderTest {
+  private static SampleMMSComposer composer;
+  private static List<MMContent> parts;
+
+  @BeforeClass
+  public static void setUp() throws Exception {
+    composer = new SampleMMSComposer();
+    parts = composer.getContents();
+  }
+
+  @Test
+  public void sendReq() throws Exception {
+    roundTrip( MmsEncoder.MESSAGE_TYPE_M_SEND_REQ );
+  }
+
+  @Test
+  public void retrieveConf() throws Exception {
+    roundTrip( MmsEncoder.MESSAGE_TYPE_M_RETRIEVE_CONF );
+  }
+
+  @Test
+  public void quotedText() throws Exception {
+    MMMessage m = new MMMessage();
+    composer.SetHeaders( m, "made by Aristotelis", "+306900000000/TYPE=PLMN", "\"Quoted\" subject" );
+    for ( MMContent part : parts ) {
+      m.addContent( part );
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new MmsEncoder().encode( m, parts, MmsEncoder.MESSAGE_TYPE_M_RETRIEVE_CONF, out );
+    MmsDecoder.Headers[] headers = new MmsDecoder.Headers[ 1 ];
+    List<String> ids = new ArrayList<>();
+    new MmsDecoder().decode( ByteBuffer.wrap( out.toByteArray() ), new MmsDecoder.Handler() {
+      @Override
+      public boolean headers( MmsDecoder.Headers h ) {
+        headers[ 0 ] = h;
+        return true;
+      }
+
+      @Override
+      public boolean part( MmsDecoder.Part part ) {
+        ids.add( part.getContentId() );
+        return true;
+      }
+    } );
+    assertEquals( "\"Quoted\" subject", headers[ 0 ].getSubject() );
+    for ( int i = 0; i < parts.size(); i++ ) {
+      String id = parts.get( i ).getContentId();
+      assertEquals( "part " + i, id.startsWith( "<" ) ? id : null, ids.get( i ) );
+    }
+  }
+
+  private static void roundTrip( int messageType ) throws Exception {
+    MMMessage m = new MMMessage();
+    composer.SetHeaders( m, "made by Aristotelis", "+306900000000/TYPE=PLMN", "Round trip check" );
+    m.addToAddress( "joe@user.org" );
+    m.addCcAddress( "10.0.0.1/TYPE=IPv4" );
+    m.addBccAddress( "+306900000001/TYPE=PLMN" );
+    for ( MMContent part : parts ) {
+      m.addContent( part );
+    }
+    MmsEncoder encoder = new MmsEncoder();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    encoder.encode( m, parts, messageType, out );
+    byte[] encoded = out.toByteArray();
+    ByteBuffer direct = ByteBuffer.allocateDirect( encoded.length );
+    encoder.encode( m, parts, messageType, direct );
+    direct.flip();
+    assertEquals( "direct buffer", ByteBuffer.wrap( encoded ), direct );
+    assertEquals( "message type", messageType, encoded[ 1 ] & 0xFF );
+    // The recipients of an "m-retrieve-conf" never see the "Bcc" ones.
+    List<String> bcc = messageType == MmsEncoder.MESSAGE_TYPE_M_RETRIEVE_CONF ? Collections.<String>emptyList()
+            : addresses( m.getBcc() );
+
+    // The library : the parts are looked up by "Content-ID", as it does not keep their order.
+    MMDecoder decoder = new MMDecoder();
+    decoder.setMessage( encoded );
+    // "decodeMessage()" only decodes the body of an "m-send-req" message ; both parts are decoded explicitly.
+    decoder.decodeHeader();
+    decoder.decodeBody();
+    MMMessage decoded = decoder.getMessage();
+    assertEquals( m.getTransactionId(), decoded.getTransactionId() );
+    assertEquals( m.getFrom().getFullAddress(), decoded.getFrom().getFullAddress() );
+    assertEquals( addresses( m.getTo() ), addresses( decoded.getTo() ) );
+    assertEquals( addresses( m.getCc() ), addresses( decoded.getCc() ) );
+    assertEquals( bcc, addresses( decoded.getBcc() ) );
+    assertEquals( m.getSubject(), decoded.getSubject() );
+    assertEquals( parts.size(), decoded.getNumContents() );
+    for ( MMContent part : parts ) {
+      MMContent other = decoded.getContent( part.getContentId() );
+      assertNotNull( part.getContentId(), other );
+      assertEquals( part.getContentId(), part.getType(), other.getType() );
+      assertArrayEquals( part.getContentId(), part.getContent(), other.getContent() );
+    }
+
+    // "MmsDecoder" : the parts must come back in the order they were encoded.
+    List<MmsDecoder.Part> decodedParts = new ArrayList<>();
+    MmsDecoder.Headers[] headers = new MmsDecoder.Headers[ 1 ];
+    new MmsDecoder().decode( ByteBuffer.wrap( encoded ), new MmsDecoder.Handler() {
+      @Override
+      public boolean headers( MmsDecoder.Headers h ) {
+        headers[ 0 ] = h;
+        return true;
+      }
+
+      @Override
+      public boolean part( MmsDecoder.Part part ) {
+        decodedParts.add( part );
+        return true;
+      }
+    } );
+    MmsDecoder.Headers h = headers[ 0 ];
+    assertEquals( messageType, h.getMessageType() );
+    assertEquals( m.getTransactionId(), h.getTransactionId() );
+    assertEquals( m.getFrom().getFullAddress(), h.getFrom() );
+    assertEquals( addresses( m.getTo() ), h.getTo() );
+    assertEquals( addresses( m.getCc() ), h.getCc() );
+    assertEquals( bcc, h.getBcc() );
+    assertEquals( m.getSubject(), h.getSubject() );
+    assertEquals( parts.size(), decodedParts.size() );
+    for ( int i = 0; i < parts.size(); i++ ) {
+      MMContent part = parts.get( i );
+      MmsDecoder.Part other = decodedParts.get( i );
+      String id = other.getContentId() != null ? other.getContentId() : other.getContentLocation();
+      assertEquals( "part " + i, part.getContentId(), id );
+      assertEquals( "part " + i, part.getType(), other.getContentType() );
+      assertEquals( "part " + i, ByteBuffer.wrap( part.getContent() ), other.getData() );
+    }
+  }
+
+  /**
+   * Return the full addresses of a "To", "Cc" or "Bcc" field of the library.
+   */
+  private static List<String> addresses( Vector<?> addresses ) {
+    List<String> full = new ArrayList<>();
+    if ( addresses != null ) {
+      for ( Object address : addresses ) {
+        full.add( ( (MMAddress) address ).getFullAddress() );
+      }
+    }
+    return full;
+  }
+}
@@ -0,0 +1,84 @@
+package com.mms.composer;
+
+/*
+ * @(#)MmsFileWriterTest.java	1.1
+ *
+ * Summary
+ *
+ * Tests of the "MmsFileWriter" and the "SegmentWriter" : an "m-retrieve-conf" message is written as it is, while
+ * an "m-send-req" message, which still holds the fields that only apply to its submission, is refused.
+ */
+
+import static org.junit.Assert.*;
+
+// These imports are necessary for utilities.
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+// Nokia MMS Java Library version 1.1
+import com.nokia.mms.*;
+
+public class MmsFileWriterTest {
+  private static final String ORIGINATOR = "made by Aristotelis";
+  private static final String RECIPIENT = "+306900000000/TYPE=PLMN";
+  private static final String SUBJECT = "File check";
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private static MessageTemplate template;
+
+  @BeforeClass
+  public static void setUp() throws Exception {
+    template = MessageTemplate.compile( new SampleMMSComposer() );
+  }
+
+  @AfterClass
+  public static void tearDown() {
+    template.close();
+  }
+
+  @Test
+  public void writesAsIs() throws IOException {
+    HeaderWriter.Buffer header = template.writeHeader( ORIGINATOR, RECIPIENT, SUBJECT,
+            MmsEncoder.MESSAGE_TYPE_M_RETRIEVE_CONF );
+    byte[] expected = header.toByteArray();
+    File output = folder.getRoot();
+    try ( MmsFileWriter writer = new MmsFileWriter( output ) ) {
+      writer.write( "m.mms", header.array(), header.length(), template.getBody() );
+    }
+    byte[] written = Files.readAllBytes( new File( output, "m.mms" ).toPath() );
+    assertEquals( expected.length + template.getBodyLength(), written.length );
+    assertArrayEquals( expected, Arrays.copyOf( written, expected.length ) );
+    assertEquals( template.getBody(), ByteBuffer.wrap( written, expected.length, template.getBodyLength() ) );
+  }
+
+  @Test
+  public void refusesSendReq() throws IOException {
+    HeaderWriter.Buffer header = template.writeHeader( ORIGINATOR, RECIPIENT, SUBJECT );
+    File output = folder.getRoot();
+    for ( MmsFileWriter writer : new MmsFileWriter[] { new MmsFileWriter( output ),
+            new SegmentWriter( folder.newFolder( "segments" ), SegmentWriter.DEFAULT_SEGMENT_SIZE, 0 ) } ) {
+      try {
+        writer.write( "m.mms", header.array(), header.length(), template.getBody() );
+        fail( "m-send-req written by " + writer.getClass().getSimpleName() );
+      }
+      catch ( IOException e ) {
+        assertTrue( e.getMessage(), e.getMessage().startsWith( "Not an m-retrieve-conf" ) );
+      }
+      finally {
+        writer.close();
+      }
+    }
+    assertFalse( new File( output, "m.mms" ).exists() );
+  }
+}
@@ -0,0 +1,151 @@
+package com.mms.composer;
+
+/*
+ * @(#)MmsSegmentTest.java	1.1
+ *
+ * Summary
+ *
+ * Tests of the "SegmentWriter" and of "MmsSegment.reindex()" : a partially written last record is dropped when a
+ * segment is indexed again, a damaged segment whose invalid record is followed by valid ones is left as it is, and
+ * a single writer writes or reindexes the segments of a folder at a time.
+ */
+
+import static org.junit.Assert.*;
+
+// These imports are necessary for utilities.
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MmsSegmentTest {
+  private static final int MESSAGES = 3;
+  private static final int BODY = 1000;
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void dropsPartialLastRecord() throws IOException {
+    Path segment = writeSegment();
+    long size = Files.size( segment );
+    // An interrupted run : no index, and the start of a record.
+    Files.delete( MmsSegment.indexOf( segment ) );
+    append( segment, ByteBuffer.allocate( 20 ).putInt( 1 << 20 ).array() );
+    assertEquals( MESSAGES, MmsSegment.reindex( segment ) );
+    assertEquals( size, Files.size( segment ) );
+    try ( MmsSegment reindexed = new MmsSegment( segment ) ) {
+      assertEquals( MESSAGES, reindexed.getCount() );
+      assertNotNull( reindexed.find( transactionId( MESSAGES - 1 ) ) );
+    }
+  }
+
+  @Test
+  public void keepsDamagedSegment() throws IOException {
+    Path segment = writeSegment();
+    long size = Files.size( segment );
+    Files.delete( MmsSegment.indexOf( segment ) );
+    // Damage the body of the first message : the records after it are still valid.
+    try ( FileChannel channel = FileChannel.open( segment, StandardOpenOption.WRITE ) ) {
+      channel.write( ByteBuffer.wrap( new byte[] { 1 } ), MmsSegment.FIRST_RECORD + 100 );
+    }
+    try {
+      MmsSegment.reindex( segment );
+      fail( "Damaged segment reindexed" );
+    }
+    catch ( IOException e ) {
+      assertTrue( e.getMessage(), e.getMessage().contains( "followed by a valid record" ) );
+    }
+    assertEquals( size, Files.size( segment ) );
+    assertFalse( Files.exists( MmsSegment.indexOf( segment ) ) );
+    // Nor does the next writer of the folder truncate it.
+    try ( SegmentWriter writer = new SegmentWriter( segment.getParent().toFile(), SegmentWriter.DEFAULT_SEGMENT_SIZE,
+            0 ) ) {
+      write( writer, MESSAGES );
+      fail( "Damaged segment reindexed" );
+    }
+    catch ( IOException e ) {
+      assertTrue( e.getMessage(), e.getMessage().contains( "followed by a valid record" ) );
+    }
+    assertEquals( size, Files.size( segment ) );
+  }
+
+  @Test
+  public void singleWriter() throws IOException {
+    File output = folder.getRoot();
+    Path segment;
+    try ( SegmentWriter writer = new SegmentWriter( output, SegmentWriter.DEFAULT_SEGMENT_SIZE, 0 ) ) {
+      write( writer, 0 );
+      segment = MmsSegment.list( output.toPath() ).get( 0 );
+      // The segment being written has no index yet : it must not be indexed, nor truncated, by anyone else.
+      try ( SegmentWriter other = new SegmentWriter( output, SegmentWriter.DEFAULT_SEGMENT_SIZE, 0 ) ) {
+        write( other, 1 );
+        fail( "Second writer of the folder" );
+      }
+      catch ( IOException e ) {
+        assertTrue( e.getMessage(), e.getMessage().contains( "another writer" ) );
+      }
+      try {
+        MmsSegment.reindex( segment );
+        fail( "Segment reindexed while written" );
+      }
+      catch ( IOException e ) {
+        assertTrue( e.getMessage(), e.getMessage().contains( "another writer" ) );
+      }
+      write( writer, 1 );
+    }
+    try ( SegmentWriter writer = new SegmentWriter( output, SegmentWriter.DEFAULT_SEGMENT_SIZE, 0 ) ) {
+      write( writer, 2 );
+    }
+    assertEquals( 2, MmsSegment.list( output.toPath() ).size() );
+    try ( MmsSegment first = new MmsSegment( segment ) ) {
+      assertEquals( 2, first.getCount() );
+    }
+  }
+
+  /**
+   * Write the messages of a segment, and index it.
+   */
+  private Path writeSegment() throws IOException {
+    File output = folder.getRoot();
+    try ( SegmentWriter writer = new SegmentWriter( output, SegmentWriter.DEFAULT_SEGMENT_SIZE, 0 ) ) {
+      for ( int i = 0; i < MESSAGES; i++ ) {
+        write( writer, i );
+      }
+    }
+    return MmsSegment.list( output.toPath() ).get( 0 );
+  }
+
+  /**
+   * Write a small "m-retrieve-conf" message : its message type and transaction ID, followed by a body.
+   */
+  private static void write( SegmentWriter writer, int i ) throws IOException {
+    byte[] id = transactionId( i ).getBytes( StandardCharsets.US_ASCII );
+    byte[] header = new byte[ 4 + id.length ];
+    header[ 0 ] = (byte) 0x8C;
+    header[ 1 ] = (byte) MmsEncoder.MESSAGE_TYPE_M_RETRIEVE_CONF;
+    header[ 2 ] = (byte) 0x98;
+    System.arraycopy( id, 0, header, 3, id.length );
+    byte[] body = new byte[ BODY ];
+    body[ 0 ] = (byte) i;
+    writer.write( "m" + i + ".mms", header, header.length, ByteBuffer.wrap( body ) );
+  }
+
+  private static String transactionId( int i ) {
+    return String.format( "%019d", 1000 + i );
+  }
+
+  private static void append( Path file, byte[] bytes ) throws IOException {
+    try ( FileChannel channel = FileChannel.open( file, StandardOpenOption.APPEND ) ) {
+      channel.write( ByteBuffer.wrap( bytes ) );
+    }
+  }
+}
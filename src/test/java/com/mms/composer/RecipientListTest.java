@@ -0,0 +1,120 @@
+package com.mms.composer;
+
+/*
+ * @(#)RecipientListTest.java	1.1
+ *
+ * Summary
+ *
+ * Tests of the "RecipientList" : reading a list, deduplicating its addresses once normalized, and splitting them
+ * into groups, the "To" recipients first, then the "Cc" and the "Bcc" ones, the latter last in each group, or in
+ * groups of their own, as "To" recipients, for messages written to files or segments.
+ */
+
+import static org.junit.Assert.*;
+
+// These imports are necessary for utilities.
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+import org.junit.Test;
+
+// Nokia MMS Java Library version 1.1
+import com.nokia.mms.*;
+
+public class RecipientListTest {
+  @Test
+  public void read() throws IOException {
+    RecipientList list = new RecipientList();
+    list.read( new StringReader( "# Campaign 0001\n+30 690 000 0000\n\n  cc:Joe@User.ORG\nBCC:10.0.0.1\nfax:123\n"
+            + "to:12\n" ), "test" );
+    assertEquals( 3, list.size() );
+    assertEquals( 2, list.getInvalid() );
+    assertEquals( 0, list.getDuplicates() );
+    assertEquals( 1, list.getCount( AddressNormalizer.Type.PLMN ) );
+    assertEquals( 1, list.getCount( AddressNormalizer.Type.EMAIL ) );
+    assertEquals( 1, list.getCount( AddressNormalizer.Type.IPV4 ) );
+  }
+
+  @Test
+  public void duplicates() {
+    RecipientList list = new RecipientList();
+    assertTrue( list.add( "+30 690 000 0000" ) );
+    // The same recipient, written other ways, keeps the field of its first occurrence.
+    assertTrue( list.add( "bcc:+306900000000/TYPE=PLMN" ) );
+    assertTrue( list.add( "cc:+30-690-000-0000" ) );
+    assertTrue( list.add( "cc:joe@user.org" ) );
+    assertTrue( list.add( "to:joe@USER.org" ) );
+    assertEquals( 2, list.size() );
+    assertEquals( 3, list.getDuplicates() );
+    List<RecipientList.Group> groups = list.group( 10 );
+    assertEquals( 1, groups.size() );
+    assertEquals( "to:+306900000000/TYPE=PLMN, cc:joe@user.org", groups.get( 0 ).toString() );
+  }
+
+  @Test
+  public void bccLast() {
+    RecipientList list = new RecipientList();
+    for ( String line : new String[] { "bcc:+306900000001", "to:+306900000002", "cc:joe@user.org",
+            "to:+306900000003", "bcc:10.0.0.1" } ) {
+      assertTrue( line, list.add( line ) );
+    }
+    List<RecipientList.Group> groups = list.group( 2 );
+    assertEquals( 3, groups.size() );
+    assertEquals( "to:+306900000002/TYPE=PLMN, to:+306900000003/TYPE=PLMN", groups.get( 0 ).toString() );
+    assertEquals( "cc:joe@user.org, bcc:+306900000001/TYPE=PLMN", groups.get( 1 ).toString() );
+    assertEquals( "bcc:10.0.0.1/TYPE=IPv4", groups.get( 2 ).toString() );
+    // The "To" and "Cc" fields come first in the encoded fields, the "Bcc" ones after them.
+    RecipientList.Group first = groups.get( 0 );
+    assertEquals( first.getEncoded().length, first.getVisibleLength() );
+    RecipientList.Group mixed = groups.get( 1 );
+    assertEquals( 1 + "joe@user.org".length() + 1, mixed.getVisibleLength() );
+    assertTrue( mixed.getVisibleLength() < mixed.getEncoded().length );
+    assertEquals( 0, groups.get( 2 ).getVisibleLength() );
+  }
+
+  @Test
+  public void bccApart() {
+    RecipientList list = new RecipientList();
+    for ( String line : new String[] { "bcc:+306900000001", "to:+306900000002", "cc:joe@user.org",
+            "to:+306900000003", "bcc:10.0.0.1" } ) {
+      assertTrue( line, list.add( line ) );
+    }
+    List<RecipientList.Group> groups = list.group( 2, false );
+    assertEquals( 4, groups.size() );
+    assertEquals( "to:+306900000002/TYPE=PLMN, to:+306900000003/TYPE=PLMN", groups.get( 0 ).toString() );
+    assertEquals( "cc:joe@user.org", groups.get( 1 ).toString() );
+    // Each "Bcc" recipient is the only "To" recipient of its own message : none is lost, none is seen.
+    assertEquals( "to:+306900000001/TYPE=PLMN", groups.get( 2 ).toString() );
+    assertEquals( "to:10.0.0.1/TYPE=IPv4", groups.get( 3 ).toString() );
+    for ( RecipientList.Group group : groups ) {
+      assertFalse( group.toString(), group.hasBcc() );
+    }
+    assertTrue( list.group( 2 ).get( 1 ).hasBcc() );
+  }
+
+  @Test
+  public void groupPerRecipient() {
+    RecipientList list = new RecipientList();
+    list.add( "+306900000001" );
+    list.add( "cc:+306900000002" );
+    list.add( "bcc:+306900000003" );
+    List<RecipientList.Group> groups = list.group( 1 );
+    assertEquals( 3, groups.size() );
+    for ( RecipientList.Group group : groups ) {
+      assertEquals( 1, group.size() );
+    }
+    assertEquals( IMMConstants.FN_BCC, groups.get( 2 ).getField( 0 ) );
+  }
+
+  @Test( expected = IllegalArgumentException.class )
+  public void toAfterBcc() {
+    new RecipientList.Group( new String[] { "joe@user.org", "+306900000000/TYPE=PLMN" },
+            new byte[] { IMMConstants.FN_BCC, IMMConstants.FN_TO }, 2 );
+  }
+
+  @Test( expected = IllegalArgumentException.class )
+  public void noGroupSize() {
+    new RecipientList().group( 0 );
+  }
+}